@@ -12,6 +12,7 @@ import java.util.stream.Collectors;
 import org.mitre.healthmanager.config.Constants;
 import org.mitre.healthmanager.domain.Authority;
 import org.mitre.healthmanager.domain.User;
+import org.mitre.healthmanager.lib.pdr.deletion.PdrDeletionService;
 import org.mitre.healthmanager.service.dto.UserDUADTO;
 import org.mitre.healthmanager.service.mapper.UserMapper;
 import org.mitre.healthmanager.repository.AuthorityRepository;
@@ -59,6 +60,9 @@ public class UserService {
     @Autowired
     private FHIRPatientService fhirPatientService;
 
+    @Autowired
+    private PdrDeletionService pdrDeletionService;
+
     public UserService(
         UserRepository userRepository,
         PasswordEncoder passwordEncoder,
@@ -227,6 +231,8 @@ public class UserService {
     private void deleteFHIRPatient(User user) {
         Optional<FHIRPatientDTO> linkedFHIRPatient = fhirPatientService.findOneForUser(user.getId());
         if (linkedFHIRPatient.isPresent()) {
+            // the patient's FHIR resources are purged in the background once the user is deleted
+            pdrDeletionService.deleteAccount(linkedFHIRPatient.get().getFhirId());
         	fhirPatientService.delete(linkedFHIRPatient.get().getId());
         }
     }
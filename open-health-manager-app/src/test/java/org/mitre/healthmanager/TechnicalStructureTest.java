@@ -32,6 +32,7 @@ class TechnicalStructureTest {
         .ignoreDependency(belongToAnyOf(OpenHealthManagerApp.class), alwaysTrue())
         .ignoreDependency(alwaysTrue(), belongToAnyOf(
             org.mitre.healthmanager.config.Constants.class,
-            org.mitre.healthmanager.config.ApplicationProperties.class
+            org.mitre.healthmanager.config.ApplicationProperties.class,
+            org.mitre.healthmanager.lib.config.ApplicationProperties.class
         ));
 }
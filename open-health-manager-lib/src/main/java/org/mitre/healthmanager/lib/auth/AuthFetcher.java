@@ -60,4 +60,26 @@ public class AuthFetcher {
         }
         return token;
     }
+
+    /**
+     * Patient linked to the authenticated user, null when the user is not
+     * linked to a patient.
+     */
+    public static String getPatientId() {
+        Object patientId = parseAuthToken(getAuthorization()).getClaims().get("patient");
+        return (patientId instanceof String) && !((String) patientId).isBlank() ? (String) patientId : null;
+    }
+
+    public static boolean isAdmin() {
+        Object authorities = parseAuthToken(getAuthorization()).getClaims().get("auth");
+        return (authorities instanceof String) && ((String) authorities).contains("ROLE_ADMIN");
+    }
+
+    /**
+     * Whether the authenticated user is an admin or linked to the given
+     * patient.
+     */
+    public static boolean canAccessPatient(String patientId) {
+        return isAdmin() || (patientId != null && patientId.equals(getPatientId()));
+    }
 }
@@ -65,6 +65,9 @@ public class OHMAuthorizationInterceptor extends AuthorizationInterceptor {
         .allow("patient compartment write").write().allResources().inCompartment("Patient", userIdPatientId).andThen()
         .allow("transactions").transaction().withAnyOperation().andApplyNormalRules().andThen()
         .allow("process-message").operation().named("process-message").onServer().andAllowAllResponses().andThen()
+        .allow("process-message-stream").operation().named("process-message-stream").onServer().andAllowAllResponses().andThen()
+        .allow("process-message-status").operation().named("process-message-status").onServer().andAllowAllResponses().andThen()
+        .allow("pdr-deletion-status").operation().named("pdr-deletion-status").onServer().andAllowAllResponses().andThen()
         ;
         
         return patientAccessRules.denyAll("patient access restricted").andThen().build();
@@ -6,4 +6,629 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
  * Properties specific to Open Health Manager.
  */
 @ConfigurationProperties(prefix = "application.healthmanager", ignoreUnknownFields = false)
-public class ApplicationProperties {}
+public class ApplicationProperties {
+	private final Pdr pdr = new Pdr();
+
+	public Pdr getPdr() {
+		return pdr;
+	}
+
+	/**
+	 * Patient Data Receipt ($process-message) pipeline settings.
+	 */
+	public static class Pdr {
+		private final Async async = new Async();
+		private final IdentityIndex identityIndex = new IdentityIndex();
+		private final Ledger ledger = new Ledger();
+		private final Idempotency idempotency = new Idempotency();
+		private final Streaming streaming = new Streaming();
+		private final HealthKit healthKit = new HealthKit();
+		private final Admission admission = new Admission();
+		private final MessageStore messageStore = new MessageStore();
+		private final Metrics metrics = new Metrics();
+		private final Rebuild rebuild = new Rebuild();
+		private final Deletion deletion = new Deletion();
+		private final BulkImport bulkImport = new BulkImport();
+		private int entryParallelism = Runtime.getRuntime().availableProcessors();
+		private int entryParallelismPerMessage = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		private int entryQueueCapacity = 1000;
+		private long aggregationTimeoutMillis = 120000;
+		private boolean skipUnchangedEntries = true;
+		private int transactionChunkSize = 0;
+		private int laneCount = Runtime.getRuntime().availableProcessors();
+
+		public Async getAsync() {
+			return async;
+		}
+
+		public IdentityIndex getIdentityIndex() {
+			return identityIndex;
+		}
+
+		public Ledger getLedger() {
+			return ledger;
+		}
+
+		public Idempotency getIdempotency() {
+			return idempotency;
+		}
+
+		public Streaming getStreaming() {
+			return streaming;
+		}
+
+		public HealthKit getHealthKit() {
+			return healthKit;
+		}
+
+		public Admission getAdmission() {
+			return admission;
+		}
+
+		public MessageStore getMessageStore() {
+			return messageStore;
+		}
+
+		public Metrics getMetrics() {
+			return metrics;
+		}
+
+		public Rebuild getRebuild() {
+			return rebuild;
+		}
+
+		public Deletion getDeletion() {
+			return deletion;
+		}
+
+		public BulkImport getBulkImport() {
+			return bulkImport;
+		}
+
+		/**
+		 * Number of worker threads running transform and record match for
+		 * the entries of split PDR bundles.
+		 */
+		public int getEntryParallelism() {
+			return entryParallelism;
+		}
+
+		public void setEntryParallelism(int entryParallelism) {
+			this.entryParallelism = entryParallelism;
+		}
+
+		/**
+		 * Number of entries of one PDR handled at a time by the entry
+		 * workers, 0 for no limit.
+		 */
+		public int getEntryParallelismPerMessage() {
+			return entryParallelismPerMessage;
+		}
+
+		public void setEntryParallelismPerMessage(int entryParallelismPerMessage) {
+			this.entryParallelismPerMessage = entryParallelismPerMessage;
+		}
+
+		public int getEntryQueueCapacity() {
+			return entryQueueCapacity;
+		}
+
+		public void setEntryQueueCapacity(int entryQueueCapacity) {
+			this.entryQueueCapacity = entryQueueCapacity;
+		}
+
+		public long getAggregationTimeoutMillis() {
+			return aggregationTimeoutMillis;
+		}
+
+		public void setAggregationTimeoutMillis(long aggregationTimeoutMillis) {
+			this.aggregationTimeoutMillis = aggregationTimeoutMillis;
+		}
+
+		/**
+		 * Drop entries identical to the current version of the resource
+		 * they update instead of writing a new version.
+		 */
+		public boolean isSkipUnchangedEntries() {
+			return skipUnchangedEntries;
+		}
+
+		public void setSkipUnchangedEntries(boolean skipUnchangedEntries) {
+			this.skipUnchangedEntries = skipUnchangedEntries;
+		}
+
+		/**
+		 * Maximum number of entries written per database transaction. PDRs
+		 * with more entries are committed in chunks, 0 writes every PDR in a
+		 * single transaction.
+		 */
+		public int getTransactionChunkSize() {
+			return transactionChunkSize;
+		}
+
+		public void setTransactionChunkSize(int transactionChunkSize) {
+			this.transactionChunkSize = transactionChunkSize;
+		}
+
+		/**
+		 * Number of single threaded lanes record matching and writing PDRs,
+		 * the PDRs of a patient always share a lane.
+		 */
+		public int getLaneCount() {
+			return laneCount;
+		}
+
+		public void setLaneCount(int laneCount) {
+			this.laneCount = laneCount;
+		}
+
+		/**
+		 * Settings for messages submitted with {@code Prefer: respond-async}.
+		 */
+		public static class Async {
+			private int corePoolSize = 2;
+			private int maxPoolSize = 8;
+			private int queueCapacity = 500;
+			private long jobRetentionMinutes = 60;
+			private long syncTimeoutSeconds = 30;
+
+			public int getCorePoolSize() {
+				return corePoolSize;
+			}
+
+			public void setCorePoolSize(int corePoolSize) {
+				this.corePoolSize = corePoolSize;
+			}
+
+			public int getMaxPoolSize() {
+				return maxPoolSize;
+			}
+
+			public void setMaxPoolSize(int maxPoolSize) {
+				this.maxPoolSize = maxPoolSize;
+			}
+
+			public int getQueueCapacity() {
+				return queueCapacity;
+			}
+
+			public void setQueueCapacity(int queueCapacity) {
+				this.queueCapacity = queueCapacity;
+			}
+
+			public long getJobRetentionMinutes() {
+				return jobRetentionMinutes;
+			}
+
+			public void setJobRetentionMinutes(long jobRetentionMinutes) {
+				this.jobRetentionMinutes = jobRetentionMinutes;
+			}
+
+			/**
+			 * Time a synchronous request waits for its response, a message
+			 * still running after is answered like an async one.
+			 */
+			public long getSyncTimeoutSeconds() {
+				return syncTimeoutSeconds;
+			}
+
+			public void setSyncTimeoutSeconds(long syncTimeoutSeconds) {
+				this.syncTimeoutSeconds = syncTimeoutSeconds;
+			}
+		}
+
+		/**
+		 * Settings for the source identity index used by record matching.
+		 */
+		public static class IdentityIndex {
+			private boolean authoritative = false;
+			private int rebuildPageSize = 500;
+
+			/**
+			 * Treat index misses as new resources instead of falling back to
+			 * a Provenance search. Enable once the index has been rebuilt.
+			 */
+			public boolean isAuthoritative() {
+				return authoritative;
+			}
+
+			public void setAuthoritative(boolean authoritative) {
+				this.authoritative = authoritative;
+			}
+
+			public int getRebuildPageSize() {
+				return rebuildPageSize;
+			}
+
+			public void setRebuildPageSize(int rebuildPageSize) {
+				this.rebuildPageSize = rebuildPageSize;
+			}
+		}
+
+		/**
+		 * Settings for the PDR List entry ledger.
+		 */
+		public static class Ledger {
+			private long cacheMaximumEntries = 1000000;
+			private long cacheExpireMinutes = 10;
+			private long listIndexMaximumSize = 10000;
+
+			/**
+			 * Upper bound on the total number of List entries held by the
+			 * per-List entry cache.
+			 */
+			public long getCacheMaximumEntries() {
+				return cacheMaximumEntries;
+			}
+
+			public void setCacheMaximumEntries(long cacheMaximumEntries) {
+				this.cacheMaximumEntries = cacheMaximumEntries;
+			}
+
+			public long getCacheExpireMinutes() {
+				return cacheExpireMinutes;
+			}
+
+			public void setCacheExpireMinutes(long cacheExpireMinutes) {
+				this.cacheExpireMinutes = cacheExpireMinutes;
+			}
+
+			/**
+			 * Upper bound on the number of PDR List ids cached by source
+			 * message.
+			 */
+			public long getListIndexMaximumSize() {
+				return listIndexMaximumSize;
+			}
+
+			public void setListIndexMaximumSize(long listIndexMaximumSize) {
+				this.listIndexMaximumSize = listIndexMaximumSize;
+			}
+		}
+
+		/**
+		 * Settings for replaying the response to re-submitted messages.
+		 */
+		public static class Idempotency {
+			private boolean enabled = true;
+			private long ttlMinutes = 60;
+			private long maximumSize = 10000;
+
+			public boolean isEnabled() {
+				return enabled;
+			}
+
+			public void setEnabled(boolean enabled) {
+				this.enabled = enabled;
+			}
+
+			/**
+			 * How long the response to a message is replayed for.
+			 */
+			public long getTtlMinutes() {
+				return ttlMinutes;
+			}
+
+			public void setTtlMinutes(long ttlMinutes) {
+				this.ttlMinutes = ttlMinutes;
+			}
+
+			public long getMaximumSize() {
+				return maximumSize;
+			}
+
+			public void setMaximumSize(long maximumSize) {
+				this.maximumSize = maximumSize;
+			}
+		}
+
+		/**
+		 * Settings for messages submitted to $process-message-stream.
+		 */
+		public static class Streaming {
+			private int windowSize = 500;
+
+			/**
+			 * Number of entries read and processed at a time, bounds the
+			 * heap used by a streamed message.
+			 */
+			public int getWindowSize() {
+				return windowSize;
+			}
+
+			public void setWindowSize(int windowSize) {
+				this.windowSize = windowSize;
+			}
+		}
+
+		/**
+		 * Settings for Apple HealthKit samples.
+		 */
+		public static class HealthKit {
+			private boolean packSamples = true;
+			private long packWindowMinutes = 60;
+			private long packPeriodSeconds = 60;
+
+			/**
+			 * Pack high frequency samples such as heart rate into one
+			 * SampledData Observation per window.
+			 */
+			public boolean isPackSamples() {
+				return packSamples;
+			}
+
+			public void setPackSamples(boolean packSamples) {
+				this.packSamples = packSamples;
+			}
+
+			public long getPackWindowMinutes() {
+				return packWindowMinutes;
+			}
+
+			public void setPackWindowMinutes(long packWindowMinutes) {
+				this.packWindowMinutes = packWindowMinutes;
+			}
+
+			/**
+			 * Sampling period of the packed data, samples within the same
+			 * period are combined.
+			 */
+			public long getPackPeriodSeconds() {
+				return packPeriodSeconds;
+			}
+
+			public void setPackPeriodSeconds(long packPeriodSeconds) {
+				this.packPeriodSeconds = packPeriodSeconds;
+			}
+		}
+
+		/**
+		 * Settings for admission control in front of the PDR pipeline.
+		 */
+		public static class Admission {
+			private boolean enabled = true;
+			private int maxInFlight = 16;
+			private int maxInFlightPerPatient = 2;
+			private int maxQueued = 200;
+			private long queueTimeoutMillis = 30000;
+			private long maxRetryAfterSeconds = 120;
+
+			public boolean isEnabled() {
+				return enabled;
+			}
+
+			public void setEnabled(boolean enabled) {
+				this.enabled = enabled;
+			}
+
+			/**
+			 * Maximum number of messages processed at the same time, keep it
+			 * below the connection pool sizes.
+			 */
+			public int getMaxInFlight() {
+				return maxInFlight;
+			}
+
+			public void setMaxInFlight(int maxInFlight) {
+				this.maxInFlight = maxInFlight;
+			}
+
+			public int getMaxInFlightPerPatient() {
+				return maxInFlightPerPatient;
+			}
+
+			public void setMaxInFlightPerPatient(int maxInFlightPerPatient) {
+				this.maxInFlightPerPatient = maxInFlightPerPatient;
+			}
+
+			/**
+			 * Maximum number of messages waiting for admission, further
+			 * messages are rejected with a 429.
+			 */
+			public int getMaxQueued() {
+				return maxQueued;
+			}
+
+			public void setMaxQueued(int maxQueued) {
+				this.maxQueued = maxQueued;
+			}
+
+			public long getQueueTimeoutMillis() {
+				return queueTimeoutMillis;
+			}
+
+			public void setQueueTimeoutMillis(long queueTimeoutMillis) {
+				this.queueTimeoutMillis = queueTimeoutMillis;
+			}
+
+			public long getMaxRetryAfterSeconds() {
+				return maxRetryAfterSeconds;
+			}
+
+			public void setMaxRetryAfterSeconds(long maxRetryAfterSeconds) {
+				this.maxRetryAfterSeconds = maxRetryAfterSeconds;
+			}
+		}
+
+		/**
+		 * Settings for the JDBC message store backing the PDR pipeline.
+		 */
+		public static class MessageStore {
+			public enum AggregateStore {
+				MEMORY, JDBC
+			}
+
+			private String nodeId;
+			private AggregateStore aggregateStore = AggregateStore.MEMORY;
+			private long resumeStaleAfterMinutes = 10;
+			private int maxResumeAttempts = 3;
+			private long ingestPollIntervalMillis = 100;
+			private int ingestMaxMessagesPerPoll = 10;
+
+			/**
+			 * Identifies this node in the message store, defaults to the host
+			 * name. Must stay the same across restarts of the node.
+			 */
+			public String getNodeId() {
+				return nodeId;
+			}
+
+			public void setNodeId(String nodeId) {
+				this.nodeId = nodeId;
+			}
+
+			/**
+			 * Store of the entries a PDR is aggregating, memory or jdbc.
+			 */
+			public AggregateStore getAggregateStore() {
+				return aggregateStore;
+			}
+
+			public void setAggregateStore(AggregateStore aggregateStore) {
+				this.aggregateStore = aggregateStore;
+			}
+
+			/**
+			 * Incomplete PDRs and claimed async jobs of other nodes are
+			 * resumed once they have not been touched for this long, checked
+			 * at the same interval.
+			 */
+			public long getResumeStaleAfterMinutes() {
+				return resumeStaleAfterMinutes;
+			}
+
+			public void setResumeStaleAfterMinutes(long resumeStaleAfterMinutes) {
+				this.resumeStaleAfterMinutes = resumeStaleAfterMinutes;
+			}
+
+			public int getMaxResumeAttempts() {
+				return maxResumeAttempts;
+			}
+
+			public void setMaxResumeAttempts(int maxResumeAttempts) {
+				this.maxResumeAttempts = maxResumeAttempts;
+			}
+
+			public long getIngestPollIntervalMillis() {
+				return ingestPollIntervalMillis;
+			}
+
+			public void setIngestPollIntervalMillis(long ingestPollIntervalMillis) {
+				this.ingestPollIntervalMillis = ingestPollIntervalMillis;
+			}
+
+			public int getIngestMaxMessagesPerPoll() {
+				return ingestMaxMessagesPerPoll;
+			}
+
+			public void setIngestMaxMessagesPerPoll(int ingestMaxMessagesPerPoll) {
+				this.ingestMaxMessagesPerPoll = ingestMaxMessagesPerPoll;
+			}
+		}
+
+		/**
+		 * Settings for the pdrFlow stage timings.
+		 */
+		public static class Metrics {
+			private int recentCapacity = 1000;
+
+			/**
+			 * Number of recently completed PDRs the pdrtimings endpoint picks
+			 * the slowest from.
+			 */
+			public int getRecentCapacity() {
+				return recentCapacity;
+			}
+
+			public void setRecentCapacity(int recentCapacity) {
+				this.recentCapacity = recentCapacity;
+			}
+		}
+
+		/**
+		 * Settings for the $rebuild-account operation.
+		 */
+		public static class Rebuild {
+			private int parallelism = 4;
+			private int listPageSize = 100;
+
+			/**
+			 * Number of sources replayed at the same time, across rebuilds.
+			 */
+			public int getParallelism() {
+				return parallelism;
+			}
+
+			public void setParallelism(int parallelism) {
+				this.parallelism = parallelism;
+			}
+
+			public int getListPageSize() {
+				return listPageSize;
+			}
+
+			public void setListPageSize(int listPageSize) {
+				this.listPageSize = listPageSize;
+			}
+		}
+
+		/**
+		 * Settings for the background deletion of patient accounts.
+		 */
+		public static class Deletion {
+			private int chunkSize = 100;
+			private int searchPageSize = 500;
+			private boolean expunge = true;
+
+			/**
+			 * Number of resources deleted or expunged per transaction.
+			 */
+			public int getChunkSize() {
+				return chunkSize;
+			}
+
+			public void setChunkSize(int chunkSize) {
+				this.chunkSize = chunkSize;
+			}
+
+			public int getSearchPageSize() {
+				return searchPageSize;
+			}
+
+			public void setSearchPageSize(int searchPageSize) {
+				this.searchPageSize = searchPageSize;
+			}
+
+			/**
+			 * Whether deleted resources are expunged by default, requires
+			 * expunge to be enabled on the server.
+			 */
+			public boolean isExpunge() {
+				return expunge;
+			}
+
+			public void setExpunge(boolean expunge) {
+				this.expunge = expunge;
+			}
+		}
+
+		/**
+		 * Settings for the NDJSON $import of patient resources.
+		 */
+		public static class BulkImport {
+			private String directory;
+
+			/**
+			 * Directory local import files are read from, importing from a
+			 * file is disabled when not set.
+			 */
+			public String getDirectory() {
+				return directory;
+			}
+
+			public void setDirectory(String directory) {
+				this.directory = directory;
+			}
+		}
+	}
+}
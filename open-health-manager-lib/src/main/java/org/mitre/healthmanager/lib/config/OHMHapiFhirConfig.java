@@ -5,6 +5,7 @@ import org.hl7.fhir.r4.model.Meta;
 import org.mitre.healthmanager.lib.fhir.OHMJpaRestfulServer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
@@ -18,6 +19,7 @@ import ca.uhn.fhir.jpa.starter.annotations.OnEitherVersion;
 
 @Configuration
 @EnableTransactionManagement
+@EnableConfigurationProperties(ApplicationProperties.class)
 public class OHMHapiFhirConfig extends BaseR4Config {	
 	@Autowired
 	AutowireCapableBeanFactory beanFactory;
@@ -7,16 +7,28 @@ import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.Patient;
 import org.mitre.healthmanager.lib.auth.OHMAuthorizationInterceptor;
 import org.mitre.healthmanager.lib.auth.OHMSearchNarrowingInterceptor;
+import org.mitre.healthmanager.lib.pdr.PdrJobService;
+import org.mitre.healthmanager.lib.pdr.PdrStreamingService;
+import org.mitre.healthmanager.lib.pdr.deletion.PdrDeletionService;
+import org.mitre.healthmanager.lib.pdr.index.PdrSourceIdentityService;
+import org.mitre.healthmanager.lib.pdr.ledger.PdrLedgerService;
+import org.mitre.healthmanager.lib.pdr.rebuild.PdrAccountRebuildService;
+import org.mitre.healthmanager.lib.sphr.PdrAccountRebuildProvider;
+import org.mitre.healthmanager.lib.sphr.PdrDeletionStatusProvider;
+import org.mitre.healthmanager.lib.sphr.PdrImportProvider;
+import org.mitre.healthmanager.lib.sphr.PdrSourceIdentityProvider;
+import org.mitre.healthmanager.lib.sphr.ProcessMessageStatusProvider;
+import org.mitre.healthmanager.lib.sphr.ProcessMessageStreamProvider;
 import org.mitre.healthmanager.lib.sphr.RequestInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Import;
+import org.springframework.core.task.TaskExecutor;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDaoPatient;
-import ca.uhn.fhir.jpa.dao.TransactionProcessor;
 import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.BaseJpaRestfulServer;
 import ca.uhn.fhir.rest.openapi.OpenApiInterceptor;
@@ -40,9 +52,22 @@ public class OHMJpaRestfulServer extends BaseJpaRestfulServer {
 	@Qualifier("myListDaoR4")
 	protected IFhirResourceDao<ListResource> myListDaoR4;
 	@Autowired
-	private TransactionProcessor myTransactionProcessor;
-	@Autowired
 	private DaoRegistry myDaoRegistry;
+	@Autowired
+	private PdrJobService myPdrJobService;
+	@Autowired
+	private PdrStreamingService myPdrStreamingService;
+	@Autowired
+	private PdrSourceIdentityService mySourceIdentityService;
+	@Autowired
+	private PdrLedgerService myPdrLedgerService;
+	@Autowired
+	private PdrAccountRebuildService myPdrAccountRebuildService;
+	@Autowired
+	private PdrDeletionService myPdrDeletionService;
+	@Autowired
+	@Qualifier("pdrMaintenanceExecutor")
+	private TaskExecutor myPdrMaintenanceExecutor;
 	   
 	public OHMJpaRestfulServer() {
 		super();
@@ -54,7 +79,13 @@ public class OHMJpaRestfulServer extends BaseJpaRestfulServer {
 
 		theCtx.getParserOptions().getDontStripVersionsFromReferencesAtPaths().add("List.entry.item");
 		
-		registerInterceptor(new RequestInterceptor(myPatientDao, myBundleDao, myListDaoR4, myTransactionProcessor, myDaoRegistry));
+		registerInterceptor(new RequestInterceptor(myPatientDao, myBundleDao, myListDaoR4, myDaoRegistry, myPdrLedgerService, myPdrDeletionService));
+		registerProvider(new ProcessMessageStatusProvider(theCtx, myPdrJobService));
+		registerProvider(new ProcessMessageStreamProvider(myPdrStreamingService));
+		registerProvider(new PdrSourceIdentityProvider(mySourceIdentityService, myDaoRegistry, myPdrMaintenanceExecutor));
+		registerProvider(new PdrAccountRebuildProvider(myPdrAccountRebuildService, myDaoRegistry));
+		registerProvider(new PdrDeletionStatusProvider(theCtx, myPdrDeletionService));
+		registerProvider(new PdrImportProvider(myPdrStreamingService, myDaoRegistry));
 
 		ExceptionHandlingInterceptor interceptor = new ExceptionHandlingInterceptor();
 		registerInterceptor(interceptor);
@@ -0,0 +1,117 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+
+/**
+ * Drops record matched PDR entries whose content is identical to the 
+ * current version of the resource they update, so that re-sent data does 
+ * not create new resource versions and Provenance. The PDR still lists the
+ * current versions of the dropped entries.
+ */
+@Service
+public class ChangeDetectionService {
+	// number of resource ids OR'ed together in a single _id search
+	public static final int ID_CHUNK_SIZE = 100;
+	
+	private final FhirContext myFhirContext;
+	
+	@Autowired
+	public ChangeDetectionService(FhirContext theFhirContext) {
+		this.myFhirContext = theFhirContext;
+	}
+	
+	/**
+	 * Removes the PUT entries that would not change the stored resource.
+	 * 
+	 * @return the versioned ids of the stored resources of the entries removed
+	 */
+	public List<IdType> removeUnchanged(@NotNull Bundle theBundle, @NotNull DaoRegistry daoRegistry) {
+		// resource type -> id -> entry
+		Map<String, Map<String, BundleEntryComponent>> updates = new LinkedHashMap<>();
+		for(BundleEntryComponent entry : theBundle.getEntry()) {
+			if(entry.getRequest().getMethod() == Bundle.HTTPVerb.PUT && entry.getResource() != null) {
+				IdType targetId = new IdType(entry.getRequest().getUrl());
+				if(targetId.getResourceType() != null && targetId.getIdPart() != null) {
+					updates.computeIfAbsent(targetId.getResourceType(), type -> new HashMap<>())
+						.put(targetId.getIdPart(), entry);
+				}
+			}
+		}
+		
+		List<BundleEntryComponent> unchanged = new ArrayList<>();
+		List<IdType> currentIds = new ArrayList<>();
+		updates.forEach((resourceType, entries) -> {
+			List<String> ids = new ArrayList<>(entries.keySet());
+			for(int from = 0; from < ids.size(); from += ID_CHUNK_SIZE) {
+				List<String> chunk = ids.subList(from, Math.min(from + ID_CHUNK_SIZE, ids.size()));
+				for(IBaseResource current : findCurrentVersions(resourceType, chunk, daoRegistry)) {
+					BundleEntryComponent entry = entries.get(current.getIdElement().getIdPart());
+					if(entry != null && contentHash(entry.getResource()).equals(contentHash(current))) {
+						unchanged.add(entry);
+						currentIds.add(new IdType(current.getIdElement().toUnqualified().getValue()));
+					}
+				}
+			}
+		});
+		
+		theBundle.getEntry().removeAll(unchanged);
+		return currentIds;
+	}
+	
+	/**
+	 * SHA-256 of the canonical JSON of a resource, ignoring its id and the
+	 * meta elements assigned by the server on every write.
+	 */
+	public String contentHash(@NotNull IBaseResource theResource) {
+		Resource resource = ((Resource) theResource).copy();
+		resource.setIdElement(null);
+		if(resource.hasMeta()) {
+			resource.getMeta().setVersionIdElement(null);
+			resource.getMeta().setLastUpdatedElement(null);
+			resource.getMeta().setSourceElement(null);
+		}
+		IParser parser = myFhirContext.newJsonParser()
+				.setPrettyPrint(false)
+				.setStripVersionsFromReferences(true);
+		return DigestUtils.sha256Hex(parser.encodeResourceToString(resource));
+	}
+	
+	private List<IBaseResource> findCurrentVersions(String resourceType, List<String> ids, DaoRegistry daoRegistry) {
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<IBaseResource> dao = daoRegistry.getResourceDao(resourceType);
+		TokenOrListParam idParam = new TokenOrListParam();
+		ids.forEach(id -> idParam.add(null, id));
+		
+		SearchParameterMap theParams = new SearchParameterMap();
+		theParams.setLoadSynchronous(true);
+		theParams.add(Constants.PARAM_ID, idParam);
+		return dao.search(theParams).getAllResources().stream()
+				.filter(Objects::nonNull)
+				.collect(Collectors.toList());
+	}
+}
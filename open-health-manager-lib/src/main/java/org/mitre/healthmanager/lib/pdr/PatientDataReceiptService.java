@@ -1,6 +1,9 @@
 package org.mitre.healthmanager.lib.pdr;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -8,6 +11,7 @@ import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Coding;
@@ -21,8 +25,12 @@ import org.hl7.fhir.r4.model.MessageHeader;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Provenance;
 import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.Type;
 import org.hl7.fhir.r4.model.UriType;
+import org.mitre.healthmanager.lib.pdr.index.PdrSourceIdentityService;
+import org.mitre.healthmanager.lib.pdr.ledger.PdrLedgerEntry;
+import org.mitre.healthmanager.lib.pdr.ledger.PdrLedgerService;
 import org.springframework.stereotype.Service;
 
 import com.mysql.cj.util.StringUtils;
@@ -34,17 +42,24 @@ import ca.uhn.fhir.jpa.dao.TransactionProcessor;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.api.SortOrderEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 
 @Service
 public class PatientDataReceiptService {
 	public static final String PDR_EVENT = "urn:mitre:healthmanager:pdr";
 	public static final Coding PDR_CODE = new Coding().setSystem("urn:mitre:healthmanager").setCode("pdr");
+	
+	/**
+	 * Entry user data holding the source id of the entry resource, resolved 
+	 * before the transaction assigns the resource its stored id.
+	 */
+	public static final String SOURCE_ID = PatientDataReceiptService.class.getName() + ".sourceId";
 
 	public static final boolean isPDRMessage(MessageHeader header) {
 		Type headerEvent = header.getEvent();
@@ -75,6 +90,12 @@ public class PatientDataReceiptService {
 		return patientDao.read(new IdType(internalPatientId));
 	}
 
+	/**
+	 * Writes the PDR entries and one Provenance per entry in a single FHIR
+	 * transaction. The PDR ledger and the source identity index are kept in
+	 * the application database and are only written once this transaction
+	 * commits, see {@link PdrLedgerService}.
+	 */
 	public static final Bundle storeIndividualPDREntries(@NotNull Bundle theMessage, 
 			@NotNull String patientInternalId, @NotNull TransactionProcessor myTransactionProcessor, 
 			@Nullable MessageHeader theHeader, @NotNull DaoRegistry daoRegistry) {
@@ -84,29 +105,77 @@ public class PatientDataReceiptService {
 		Objects.requireNonNull(daoRegistry);
 		Objects.requireNonNull(theMessage.getEntry());	     	     
 
-		// need to create a new bundle because transaction processor reorders, re-ids re-references the entries
+		// need to create a new bundle because transaction processor reorders the entries,
+		// the resources are shared and get re-ided and re-referenced
 		Bundle transaction = new Bundle();
 		transaction.setType(Bundle.BundleType.TRANSACTION);
 		theMessage.setType(Bundle.BundleType.TRANSACTION);		
 		
 		// validate entries
+		List<Provenance> provenances = new ArrayList<>();
 		for(BundleEntryComponent entry : theMessage.getEntry()) {	    	
 			Objects.requireNonNull(entry.getRequest());		    	
 			if (entry.getRequest().getMethod() == Bundle.HTTPVerb.DELETE) {
 				throw new UnprocessableEntityException("Cannot process DELETE as a part of a PDR");
 			}     
-			transaction.addEntry(entry.copy());			
+			BundleEntryComponent transactionEntry = new BundleEntryComponent()
+					.setFullUrl(entry.getFullUrl())
+					.setRequest(entry.getRequest().copy())
+					.setResource(entry.getResource());
+			if(theHeader != null) {
+				IdType sourceId = getTransactionRequestEntryResourceId(entry, theHeader);
+				entry.setUserData(SOURCE_ID, sourceId != null ? sourceId : new IdType());
+			}
+			if(StringUtils.isNullOrEmpty(transactionEntry.getFullUrl())) {
+				// Provenance needs a placeholder to reference
+				transactionEntry.setFullUrl("urn:uuid:" + UUID.randomUUID());
+			}
+			transaction.addEntry(transactionEntry);
+			provenances.add(buildPDRProvenance(entry, transactionEntry.getFullUrl(), patientInternalId, theHeader));
+		}
+		
+		// Provenance is written in the same transaction, after the entries 
+		// in the same order, see getTransactionResponseProvenanceEntry
+		for(Provenance provenance : provenances) {
+			transaction.addEntry()
+				.setFullUrl("urn:uuid:" + UUID.randomUUID())
+				.setResource(provenance)
+				.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Provenance");
 		}
 		
-		return (Bundle)myTransactionProcessor.transaction((RequestDetails)null, (IBaseBundle)transaction, true);		
+		Bundle response = (Bundle)myTransactionProcessor.transaction((RequestDetails)null, (IBaseBundle)transaction, true);
+		// response entries are in request order, Provenance is looked up by position
+		if(response.getEntry().size() != transaction.getEntry().size()) {
+			throw new InternalErrorException("Unexpected PDR transaction response size " + response.getEntry().size());
+		}
+		return response;
 	}
 	
+	/**
+	 * Creates the PDR List for the source message on first receipt, then
+	 * appends the stored resources and their Provenance to the PDR ledger.
+	 * The List resource itself is not updated, its entries are materialized
+	 * from the ledger on read.
+	 */
 	public static final ListResource createPDRList(
 			@NotNull Bundle transactionRequest, @NotNull Bundle transactionResponse, 
 			@NotNull String patientInternalId, @NotNull String rawBundleId,
-			@NotNull MessageHeader theHeader, @NotNull DaoRegistry daoRegistry) {
+			@NotNull MessageHeader theHeader, @NotNull DaoRegistry daoRegistry,
+			@Nullable PdrSourceIdentityService sourceIdentityService,
+			@NotNull PdrLedgerService ledgerService) {
+		ListResource list = findOrCreatePDRList(patientInternalId, rawBundleId, theHeader, daoRegistry, ledgerService);
+		appendPDRListRawBundle(list, patientInternalId, rawBundleId, ledgerService);
+		appendPDRListEntries(list, transactionRequest, transactionResponse, patientInternalId, theHeader, 
+				sourceIdentityService, ledgerService);
+		return list;
+	}
+	
+	public static final ListResource findOrCreatePDRList(
+			@NotNull String patientInternalId, @NotNull String rawBundleId,
+			@NotNull MessageHeader theHeader, @NotNull DaoRegistry daoRegistry,
+			@NotNull PdrLedgerService ledgerService) {
 		//find existing pdr list or create new
-		ListResource list = findPDRList(patientInternalId, theHeader, daoRegistry);
+		ListResource list = findPDRList(patientInternalId, theHeader, daoRegistry, ledgerService);
 		if(list == null) {
 			list = new ListResource();
 			list.setStatus(ListStatus.CURRENT);
@@ -120,104 +189,167 @@ public class PatientDataReceiptService {
 			
 			list.getEntry().add(new ListEntryComponent()
 					.setItem(new Reference(new IdType("Bundle",rawBundleId))));
+			
+			// save list
+			IFhirResourceDao<ListResource> listDao = daoRegistry.getResourceDao(ListResource.class);
+			DaoMethodOutcome outcome = listDao.create(list);
+			try {
+				outcome.getResource().getIdElement().getIdPart();
+			} catch (Exception ex) {
+				throw new InternalErrorException("Failed to create PDR list resource.");
+			}
+			list = (ListResource) outcome.getResource();
+			Identifier messageIdentifier = getSourceMessageHeaderIdentifier(theHeader);
+			if(messageIdentifier != null) {
+				ledgerService.indexListId(patientInternalId, messageIdentifier, list.getIdElement().getIdPart());
+			}
 		}			
 		
-		// add new or update existing entries
+		return list;
+	}
+	
+	/**
+	 * Appends the raw bundle to a PDR List created for an earlier bundle with
+	 * the same MessageHeader, such as another window of a streamed message.
+	 */
+	public static final void appendPDRListRawBundle(@NotNull ListResource list,
+			@NotNull String patientInternalId, @NotNull String rawBundleId,
+			@NotNull PdrLedgerService ledgerService) {
+		IdType rawBundle = new IdType("Bundle", rawBundleId);
+		ledgerService.materialize(list);
+		boolean listed = list.getEntry().stream()
+				.anyMatch(entry -> rawBundle.getValue().equals(entry.getItem().getReferenceElement().toUnqualifiedVersionless().getValue()));
+		if(!listed) {
+			ledgerService.append(list.getIdElement().getIdPart(), 
+					Collections.singletonList(new PdrLedgerEntry(list.getIdElement().getIdPart(), patientInternalId, rawBundle, false)));
+		}
+	}
+	
+	/**
+	 * Appends the resources and Provenance written by one transaction to the
+	 * ledger of the PDR List.
+	 */
+	public static final void appendPDRListEntries(@NotNull ListResource list,
+			@NotNull Bundle transactionRequest, @NotNull Bundle transactionResponse, 
+			@NotNull String patientInternalId, @NotNull MessageHeader theHeader,
+			@Nullable PdrSourceIdentityService sourceIdentityService,
+			@NotNull PdrLedgerService ledgerService) {
+		// append new or updated entries
+		String listId = list.getIdElement().getIdPart();
+		List<PdrLedgerEntry> ledgerEntries = new ArrayList<>();
 		for (int i = 0; i < transactionRequest.getEntry().size(); i++) {
 			BundleEntryComponent requestEntry = transactionRequest.getEntry().get(i);
 			BundleEntryComponent responseEntry = transactionResponse.getEntry().get(i);
-			ListResource.ListEntryComponent entry = null;
 			IdType responseId = getTransactionResponseEntryResourceId(responseEntry);
-			if(responseId != null) {
-				for(ListEntryComponent existingEntry : list.getEntry()) {
-					// .equals(responseId) includes history version
-					if(existingEntry.getItem().getReferenceElement().equals(responseId)) {
-						entry = existingEntry;
-						break;
-					}
-				}
-			}
-			if(entry == null) {				
-				entry = list.addEntry();			
-			}
-			
-			entry.setDate(new Date());
-
-			if(requestEntry.getRequest().getMethod().equals(Bundle.HTTPVerb.DELETE)){
-				entry.setDeleted(true);
-			}
-			// add created fhir id as entry.item.reference
 			if(responseId != null) {
 				// configured to include history version in item.reference
-				entry.setItem(new Reference(responseId));	
-				Provenance provenance = createPDRProvenance(requestEntry, responseEntry, patientInternalId, theHeader, daoRegistry);
-				list.addEntry().setItem(new Reference(provenance.getIdElement()));
+				boolean deleted = requestEntry.getRequest().getMethod().equals(Bundle.HTTPVerb.DELETE);
+				ledgerEntries.add(new PdrLedgerEntry(listId, patientInternalId, responseId, deleted));
+				IdType provenanceId = getTransactionResponseEntryResourceId(
+						getTransactionResponseProvenanceEntry(transactionRequest, transactionResponse, i));
+				if(provenanceId == null || provenanceId.isEmpty() || !"Provenance".equals(provenanceId.getResourceType())) {
+					throw new InternalErrorException("Failed to create Provenance resource.");
+				}
+				ledgerEntries.add(new PdrLedgerEntry(listId, patientInternalId, provenanceId, false));
+				IdType sourceId = getTransactionRequestEntryResourceId(requestEntry, theHeader);
+				if(sourceId != null && sourceIdentityService != null) {
+					sourceIdentityService.recordTargetResourceId(patientInternalId, sourceId, responseId);
+				}
 			}							
 		}
-
-		// save list
-		IFhirResourceDao<ListResource> listDao = daoRegistry.getResourceDao(ListResource.class);
-		DaoMethodOutcome outcome = null;
-		if(list.getId() != null && !list.getId().isEmpty()) {
-			 outcome = listDao.update(list);
-		} else {
-			 outcome = listDao.create(list);
-		}		
-		try {
-			outcome.getResource().getIdElement().getIdPart();
-		} catch (Exception ex) {
-			throw new InternalErrorException("Failed to create PDR list resource.");
+		ledgerService.append(listId, ledgerEntries);
+	}
+	
+	/**
+	 * Appends the current versions of resources the PDR re-sent unchanged to
+	 * the ledger of the PDR List, the PDR lists them without writing them.
+	 */
+	public static final void appendPDRListUnchangedEntries(@NotNull ListResource list,
+			@NotNull List<String> currentIds, @NotNull String patientInternalId,
+			@NotNull PdrLedgerService ledgerService) {
+		String listId = list.getIdElement().getIdPart();
+		List<PdrLedgerEntry> ledgerEntries = new ArrayList<>(currentIds.size());
+		for(String currentId : currentIds) {
+			ledgerEntries.add(new PdrLedgerEntry(listId, patientInternalId, new IdType(currentId), false));
 		}
-		
-		return (ListResource) outcome.getResource();
+		ledgerService.append(listId, ledgerEntries);
 	}
 	
+	/**
+	 * Finds the PDR List of the source message, by the List id cached in the
+	 * ledger or else by the newest List with the message identifier. Only 
+	 * the List returned is loaded.
+	 */
 	public static final ListResource findPDRList(@NotNull String patientInternalId,
-			@NotNull MessageHeader theHeader, @NotNull DaoRegistry daoRegistry) {
-		SearchParameterMap theParams = new SearchParameterMap();
-		theParams.add("patient", new ReferenceParam(new IdType("Patient", patientInternalId)));				
-		theParams.add("code", new TokenParam(PDR_CODE));
-		if(theHeader.getSource() != null && theHeader.getSource().getEndpoint() != null
-				&& theHeader.getIdElement() != null && theHeader.getIdElement().getIdPart() != null) 
-		{
-			theParams.add("identifier", new TokenParam()
-					.setSystem(theHeader.getSource().getEndpoint())
-					.setValue(theHeader.getIdElement().getIdPart()));	
-			IFhirResourceDao<ListResource> listDao = daoRegistry.getResourceDao(ListResource.class);
-			theParams.setSort(new SortSpec().setOrder(SortOrderEnum.DESC).setParamName("date"));
-			IBundleProvider lists = listDao.search(theParams);
-			if(!lists.isEmpty()){
-				return (ListResource) lists.getAllResources().get(0);
+			@NotNull MessageHeader theHeader, @NotNull DaoRegistry daoRegistry,
+			@NotNull PdrLedgerService ledgerService) {
+		Identifier messageIdentifier = getSourceMessageHeaderIdentifier(theHeader);
+		if(messageIdentifier == null) {
+			// no message header id
+			return null;
+		}
+		IFhirResourceDao<ListResource> listDao = daoRegistry.getResourceDao(ListResource.class);
+		String listId = ledgerService.findListId(patientInternalId, messageIdentifier);
+		if(listId != null) {
+			try {
+				ListResource list = listDao.read(new IdType("List", listId));
+				if(isPDRListOf(list, patientInternalId, messageIdentifier)) {
+					return list;
+				}
+			} catch (ResourceNotFoundException | ResourceGoneException e) {
+				// deleted without going through the ledger
 			}
+			ledgerService.invalidateListId(listId);
 		}
 		
-		// no message header id or no matching identifier
-		return null;		
+		SearchParameterMap theParams = SearchParameterMap.newSynchronous();
+		theParams.add("patient", new ReferenceParam(new IdType("Patient", patientInternalId)));				
+		theParams.add("code", new TokenParam(PDR_CODE));
+		theParams.add("identifier", new TokenParam()
+				.setSystem(messageIdentifier.getSystem())
+				.setValue(messageIdentifier.getValue()));	
+		theParams.setSort(new SortSpec().setOrder(SortOrderEnum.DESC).setParamName("date"));
+		theParams.setLoadSynchronousUpTo(1);
+		List<IBaseResource> lists = listDao.search(theParams).getResources(0, 1);
+		if(lists.isEmpty()) {
+			// no matching identifier
+			return null;
+		}
+		ListResource list = (ListResource) lists.get(0);
+		ledgerService.indexListId(patientInternalId, messageIdentifier, list.getIdElement().getIdPart());
+		return list;
+	}
+	
+	private static boolean isPDRListOf(ListResource list, String patientInternalId, Identifier messageIdentifier) {
+		return patientInternalId.equals(list.getSubject().getReferenceElement().getIdPart())
+				&& list.getIdentifier().stream().anyMatch(identifier -> 
+						Objects.equals(identifier.getSystem(), messageIdentifier.getSystem())
+						&& Objects.equals(identifier.getValue(), messageIdentifier.getValue()));
 	}
 	
-	public static final Provenance createPDRProvenance(@NotNull BundleEntryComponent requestEntry, 
-			@NotNull BundleEntryComponent responseEntry,
+	/**
+	 * Builds the Provenance of a PDR entry. The target references the 
+	 * entry by its transaction fullUrl, which the transaction resolves.
+	 */
+	public static final Provenance buildPDRProvenance(@NotNull BundleEntryComponent requestEntry, 
+			@NotNull String targetFullUrl,
 			@NotNull String patientInternalId,
-			@NotNull MessageHeader theHeader, @NotNull DaoRegistry daoRegistry) {
-		IdType responseId = getTransactionResponseEntryResourceId(responseEntry);
-		if(responseId == null) {
-			// cannot correlate resource ids
-			return null;
-		}
-		
+			@NotNull MessageHeader theHeader) {
 		Provenance provenance = new Provenance();		
 		provenance.getTarget()
 			.add(new Reference(new IdType("Patient", patientInternalId)));
 		provenance.getTarget()
-			.add(new Reference(responseId));
+			.add(new Reference(getTransactionReference(targetFullUrl)));
 		provenance.setRecorded(new Date());
 		
 		IdType sourceId = getTransactionRequestEntryResourceId(requestEntry, theHeader);
 		Reference source = null;
 		if(sourceId == null) {
 			// cannot correlate resources by source id, add contained resource			
+			Resource contained = requestEntry.getResource().copy();
+			contained.setId((String) null);
 			source = new Reference();
-			source.setResource(requestEntry.getResource());
+			source.setResource(contained);
 		} else {
 			source = new Reference(sourceId);
 			// add source fhir id as meta.source
@@ -229,17 +361,41 @@ public class PatientDataReceiptService {
 				.setRole(Provenance.ProvenanceEntityRole.SOURCE)
 				.setWhat(source));
 		
-		// save Provenance
-		IFhirResourceDao<Provenance> dao = daoRegistry.getResourceDao(Provenance.class);
-		DaoMethodOutcome outcome = null;
-		outcome = dao.create(provenance);		
-		try {
-			outcome.getResource().getIdElement().getIdPart();
-		} catch (Exception ex) {
-			throw new InternalErrorException("Failed to create Provenance resource.");
-		}
 		return provenance;
 	}
+	
+	/**
+	 * Reference to an entry of the same transaction. HAPI replaces urn 
+	 * placeholders as they are, other fullUrls only in their relative 
+	 * versionless form.
+	 */
+	private static String getTransactionReference(String fullUrl) {
+		if(fullUrl.startsWith("urn:")) {
+			return fullUrl;
+		}
+		IdType fullUrlId = new IdType(fullUrl);
+		return fullUrlId.hasResourceType() && fullUrlId.hasIdPart() ? fullUrlId.toUnqualifiedVersionless().getValue() : fullUrl;
+	}
+	
+	/**
+	 * Response entry of the Provenance written for request entry {@code i}
+	 * by {@link #storeIndividualPDREntries}.
+	 */
+	public static final BundleEntryComponent getTransactionResponseProvenanceEntry(@NotNull Bundle transactionRequest,
+			@NotNull Bundle transactionResponse, int i) {
+		int index = transactionRequest.getEntry().size() + i;
+		return index < transactionResponse.getEntry().size() ? transactionResponse.getEntry().get(index) : new BundleEntryComponent();
+	}
+
+	public static final String getProvenanceSource(@NotNull Provenance provenance) {
+		String source = provenance.getMeta().getSource();
+		if(source == null) {
+			return null;
+		}
+		// HAPI appends the request id to meta.source
+		int requestIdIndex = source.indexOf('#');
+		return requestIdIndex >= 0 ? source.substring(0, requestIdIndex) : source;
+	}
 
 	public static final boolean isGUID(@Nullable String theId) {		
 		try {
@@ -262,6 +418,11 @@ public class PatientDataReceiptService {
 	
 	public static final IdType getTransactionRequestEntryResourceId(@NotNull BundleEntryComponent requestEntry,
 			@NotNull MessageHeader theHeader) {
+		Object sourceId = requestEntry.getUserData(SOURCE_ID);
+		if (sourceId instanceof IdType) {
+			// resolved before the resource was stored
+			return ((IdType) sourceId).isEmpty() ? null : (IdType) sourceId;
+		}
 		if (requestEntry.getResource() != null && requestEntry.getResource().getIdElement() != null
 				&& !StringUtils.isNullOrEmpty(requestEntry.getResource().getIdElement().getIdPart())
 				&& !StringUtils.isNullOrEmpty(theHeader.getSource().getEndpoint())) {
@@ -0,0 +1,223 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Bounds the number of Patient Data Receipts processed at the same time,
+ * globally and per patient. Messages over either limit wait in a bounded
+ * queue, messages that find the queue full or wait too long are rejected
+ * with a 429 and a Retry-After estimated from recent processing times.
+ */
+@Service
+public class PdrAdmissionController {
+	public static final String IN_FLIGHT_GAUGE = "pdr.admission.in.flight";
+	public static final String QUEUED_GAUGE = "pdr.admission.queued";
+	public static final String REJECTED_COUNTER = "pdr.admission.rejected";
+	public static final String WAIT_TIMER = "pdr.admission.wait";
+
+	private static final Permit NO_PERMIT = () -> {};
+
+	private final Logger log = LoggerFactory.getLogger(PdrAdmissionController.class);
+
+	private final boolean enabled;
+	private final int maxInFlight;
+	private final int maxInFlightPerPatient;
+	private final int maxQueued;
+	private final long queueTimeoutNanos;
+	private final long maxRetryAfterSeconds;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	// guarded by lock
+	private int inFlight;
+	private int queued;
+	private final Map<String, Integer> inFlightByPatient = new HashMap<>();
+	private double averageMillis;
+
+	private final Counter queueFullCounter;
+	private final Counter timeoutCounter;
+	private final Timer waitTimer;
+
+	@Autowired
+	public PdrAdmissionController(ApplicationProperties applicationProperties, MeterRegistry meterRegistry) {
+		ApplicationProperties.Pdr.Admission admission = applicationProperties.getPdr().getAdmission();
+		this.enabled = admission.isEnabled();
+		this.maxInFlight = Math.max(1, admission.getMaxInFlight());
+		this.maxInFlightPerPatient = Math.max(1, admission.getMaxInFlightPerPatient());
+		this.maxQueued = Math.max(0, admission.getMaxQueued());
+		this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(admission.getQueueTimeoutMillis());
+		this.maxRetryAfterSeconds = Math.max(1, admission.getMaxRetryAfterSeconds());
+
+		Gauge.builder(IN_FLIGHT_GAUGE, this, PdrAdmissionController::getInFlight)
+			.description("Patient Data Receipts being processed")
+			.register(meterRegistry);
+		Gauge.builder(QUEUED_GAUGE, this, PdrAdmissionController::getQueued)
+			.description("Patient Data Receipts waiting to be processed")
+			.register(meterRegistry);
+		this.queueFullCounter = Counter.builder(REJECTED_COUNTER)
+			.description("Patient Data Receipts rejected by admission control")
+			.tag("reason", "queue-full")
+			.register(meterRegistry);
+		this.timeoutCounter = Counter.builder(REJECTED_COUNTER)
+			.description("Patient Data Receipts rejected by admission control")
+			.tag("reason", "timeout")
+			.register(meterRegistry);
+		this.waitTimer = Timer.builder(WAIT_TIMER)
+			.description("Time Patient Data Receipts wait for admission")
+			.register(meterRegistry);
+	}
+
+	/**
+	 * Waits until the message may be processed. The returned permit must be
+	 * closed once processing completes.
+	 */
+	public Permit admit(@NotNull IBaseBundle theMessage) {
+		if(!enabled) {
+			return NO_PERMIT;
+		}
+		String patientId = getPatientId(theMessage);
+		long start = System.nanoTime();
+		lock.lock();
+		try {
+			if(!canStart(patientId)) {
+				if(queued >= maxQueued) {
+					queueFullCounter.increment();
+					throw reject("Too many Patient Data Receipts in progress");
+				}
+				queued++;
+				try {
+					long remaining = queueTimeoutNanos;
+					while(!canStart(patientId)) {
+						if(remaining <= 0) {
+							timeoutCounter.increment();
+							throw reject("Timed out waiting for Patient Data Receipts in progress");
+						}
+						remaining = released.awaitNanos(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					timeoutCounter.increment();
+					throw reject("Interrupted waiting for Patient Data Receipts in progress");
+				} finally {
+					queued--;
+				}
+			}
+			inFlight++;
+			if(patientId != null) {
+				inFlightByPatient.merge(patientId, 1, Integer::sum);
+			}
+		} finally {
+			lock.unlock();
+		}
+		waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+		long admitted = System.nanoTime();
+		return () -> release(patientId, System.nanoTime() - admitted);
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getQueued() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean canStart(String patientId) {
+		return inFlight < maxInFlight
+				&& (patientId == null || inFlightByPatient.getOrDefault(patientId, 0) < maxInFlightPerPatient);
+	}
+
+	private void release(String patientId, long elapsedNanos) {
+		lock.lock();
+		try {
+			inFlight--;
+			if(patientId != null) {
+				inFlightByPatient.computeIfPresent(patientId, (k, count) -> count > 1 ? count - 1 : null);
+			}
+			double millis = elapsedNanos / 1e6;
+			averageMillis = averageMillis == 0 ? millis : 0.8 * averageMillis + 0.2 * millis;
+			// waiters may be blocked on different patients
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Estimates how long the messages ahead of a new one take to drain,
+	 * called with the lock held.
+	 */
+	private BaseServerResponseException reject(String message) {
+		double seconds = averageMillis * (queued + 1) / maxInFlight / 1000;
+		long retryAfter = Math.min(maxRetryAfterSeconds, Math.max(1, (long) Math.ceil(seconds)));
+		log.warn("{}, {} in flight, {} queued, retry after {}s", message, inFlight, queued, retryAfter);
+		return new TooManyRequestsException(message, retryAfter);
+	}
+
+	private static String getPatientId(IBaseBundle theMessage) {
+		if(!(theMessage instanceof Bundle)) {
+			return null;
+		}
+		try {
+			MessageHeader header = ProcessMessageService.getMessageHeader((Bundle) theMessage);
+			return header.hasFocus() ? header.getFocusFirstRep().getReferenceElement().getIdPart() : null;
+		} catch (BaseServerResponseException e) {
+			// rejected by the flow
+			return null;
+		}
+	}
+
+	/**
+	 * Admission of a message, closing it lets the next message in.
+	 */
+	@FunctionalInterface
+	public interface Permit extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	/**
+	 * 429 Too Many Requests, HAPI has no exception for it.
+	 */
+	public static class TooManyRequestsException extends BaseServerResponseException {
+		public static final int STATUS_CODE = 429;
+		private static final long serialVersionUID = 1L;
+
+		public TooManyRequestsException(String message, long retryAfterSeconds) {
+			super(STATUS_CODE, message);
+			addResponseHeader("Retry-After", Long.toString(retryAfterSeconds));
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+
+/**
+ * Limits the entries of one split message in flight on the entry executor
+ * channel, so a large PDR can not take up the whole shared pool. The
+ * splitting thread waits for a permit of its message before sending the
+ * next entry, the permit is returned once the entry has been handled.
+ */
+public class PdrEntryLimiter implements ExecutorChannelInterceptor {
+	private final int limit;
+	// permits of the messages being split, by correlation id
+	private final Map<Object, Permits> permits = new ConcurrentHashMap<>();
+
+	public PdrEntryLimiter(int limit) {
+		this.limit = limit;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Number of messages with entries in flight.
+	 */
+	public int getMessageCount() {
+		return permits.size();
+	}
+
+	@Override
+	public Message<?> preSend(Message<?> message, MessageChannel channel) {
+		Permits entryPermits = getPermits(message);
+		if(entryPermits != null) {
+			entryPermits.semaphore.acquireUninterruptibly();
+			entryPermits.inFlight.add(message.getHeaders().getId());
+		}
+		return message;
+	}
+
+	@Override
+	public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+		if(!sent || ex != null) {
+			release(message);
+		}
+	}
+
+	@Override
+	public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+		release(message);
+	}
+
+	private Permits getPermits(Message<?> message) {
+		IntegrationMessageHeaderAccessor accessor = new IntegrationMessageHeaderAccessor(message);
+		Object correlationId = accessor.getCorrelationId();
+		if(limit <= 0 || correlationId == null) {
+			return null;
+		}
+		return permits.computeIfAbsent(correlationId, id -> new Permits(limit, accessor.getSequenceSize()));
+	}
+
+	private void release(Message<?> message) {
+		Object correlationId = new IntegrationMessageHeaderAccessor(message).getCorrelationId();
+		Permits entryPermits = correlationId != null ? permits.get(correlationId) : null;
+		// a failed send of an entry run by the caller is reported twice
+		if(entryPermits == null || !entryPermits.inFlight.remove(message.getHeaders().getId())) {
+			return;
+		}
+		entryPermits.semaphore.release();
+		if(entryPermits.remaining.decrementAndGet() <= 0) {
+			permits.remove(correlationId, entryPermits);
+		}
+	}
+
+	private static class Permits {
+		private final Semaphore semaphore;
+		private final AtomicInteger remaining;
+		private final Set<UUID> inFlight = ConcurrentHashMap.newKeySet();
+
+		private Permits(int limit, int sequenceSize) {
+			this.semaphore = new Semaphore(limit);
+			this.remaining = new AtomicInteger(sequenceSize);
+		}
+	}
+}
@@ -8,7 +8,31 @@ import org.springframework.messaging.handler.annotation.Header;
 @MessagingGateway(errorChannel = "errorChannel")
 public interface PdrGateway {
 
-	@Gateway(requestChannel = "processMessageChannel", replyTimeout=1000)
+	@Gateway(requestChannel = "processMessageChannel", replyTimeout=120000)
 	public IBaseBundle processMessage(IBaseBundle theMessage, @Header("fhirServerBase") String fhirServerBase);
 
+	/**
+	 * Processes a message the flow reports the response of under
+	 * {@code jobId}, returns null if the flow is still running after
+	 * {@code replyTimeout} milliseconds.
+	 */
+	@Gateway(requestChannel = "processMessageChannel", replyTimeoutExpression = "args[3]")
+	public IBaseBundle processMessage(IBaseBundle theMessage, @Header("fhirServerBase") String fhirServerBase,
+			@Header(PdrJobService.JOB_ID_HEADER) String jobId, @Header(PdrJobService.REPLY_TIMEOUT_HEADER) long replyTimeout);
+
+	/**
+	 * Processes a message whose raw bundle was stored by an earlier, 
+	 * interrupted run, continuing after its last committed chunk.
+	 */
+	@Gateway(requestChannel = "processMessageChannel", replyTimeout=300000)
+	public IBaseBundle resumeMessage(IBaseBundle theMessage, @Header("fhirServerBase") String fhirServerBase,
+			@Header("rawBundleId") String rawBundleId);
+
+	/**
+	 * Resumes a PDR of an async job.
+	 */
+	@Gateway(requestChannel = "processMessageChannel", replyTimeout=300000)
+	public IBaseBundle resumeMessage(IBaseBundle theMessage, @Header("fhirServerBase") String fhirServerBase,
+			@Header("rawBundleId") String rawBundleId, @Header(PdrJobService.JOB_ID_HEADER) String jobId);
+
 }
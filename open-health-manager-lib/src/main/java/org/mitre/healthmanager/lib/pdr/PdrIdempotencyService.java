@@ -0,0 +1,229 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Short-circuits re-submitted Patient Data Receipts. Messages are keyed by
+ * source endpoint, MessageHeader id and a digest of the message, a repeat 
+ * of a message that was processed successfully, or is still processing, 
+ * gets the original response instead of being stored again. Messages that
+ * are not replayed pass through {@link PdrAdmissionController}. A message 
+ * still running when the gateway stops waiting for its reply keeps its key,
+ * the flow reports its response through {@link #finished(String, IBaseBundle)}.
+ */
+@Service
+public class PdrIdempotencyService {
+	public static final long DEFAULT_REPLY_TIMEOUT = 120000;
+	
+	private final Logger log = LoggerFactory.getLogger(PdrIdempotencyService.class);
+	
+	private final PdrGateway pdrGateway;
+	private final PdrAdmissionController admissionController;
+	private final FhirContext myFhirContext;
+	private final boolean enabled;
+	
+	// only successful or in progress responses are kept
+	private final Cache<String, CompletableFuture<IBaseBundle>> responses;
+	// responses of messages in the flow by job id, until the flow reports them
+	private final Cache<String, Pending> running;
+	
+	@Autowired
+	public PdrIdempotencyService(PdrGateway pdrGateway, PdrAdmissionController admissionController,
+			FhirContext theFhirContext, ApplicationProperties applicationProperties) {
+		ApplicationProperties.Pdr.Idempotency idempotency = applicationProperties.getPdr().getIdempotency();
+		this.pdrGateway = pdrGateway;
+		this.admissionController = admissionController;
+		this.myFhirContext = theFhirContext;
+		this.enabled = idempotency.isEnabled();
+		this.responses = Caffeine.newBuilder()
+				.maximumSize(idempotency.getMaximumSize())
+				.expireAfterWrite(Duration.ofMinutes(idempotency.getTtlMinutes()))
+				.build();
+		this.running = Caffeine.newBuilder()
+				.expireAfterWrite(Duration.ofMinutes(idempotency.getTtlMinutes()))
+				.build();
+	}
+	
+	/**
+	 * Processes a message, returns null if it is still running after the
+	 * default reply timeout.
+	 */
+	public IBaseBundle processMessage(@NotNull IBaseBundle theMessage, String fhirServerBase) {
+		CompletableFuture<IBaseBundle> response = submit(theMessage, fhirServerBase, 
+				UUID.randomUUID().toString(), DEFAULT_REPLY_TIMEOUT);
+		return response.isDone() ? join(response) : null;
+	}
+	
+	/**
+	 * Processes a message the flow reports under {@code jobId}. The response
+	 * is not done yet if the message, or the original it replays, is still
+	 * running after {@code replyTimeout} milliseconds.
+	 */
+	public CompletableFuture<IBaseBundle> submit(@NotNull IBaseBundle theMessage, String fhirServerBase, 
+			@NotNull String jobId, long replyTimeout) {
+		String key = getKey(theMessage);
+		CompletableFuture<IBaseBundle> response = new CompletableFuture<>();
+		if(key != null) {
+			CompletableFuture<IBaseBundle> original = responses.asMap().putIfAbsent(key, response);
+			if(original != null) {
+				log.info("Replaying response to PDR {}", key);
+				await(original, replyTimeout);
+				return original;
+			}
+		}
+		
+		// registered up front, the flow reports before the gateway gets the reply
+		running.put(jobId, new Pending(key, response));
+		try {
+			IBaseBundle result = process(theMessage, fhirServerBase, jobId, replyTimeout);
+			if(result != null) {
+				running.invalidate(jobId);
+				complete(key, response, result);
+			} else {
+				log.info("PDR {} still running after {}ms", jobId, replyTimeout);
+			}
+			return response;
+		} catch (RuntimeException e) {
+			running.invalidate(jobId);
+			if(key != null) {
+				responses.asMap().remove(key, response);
+			}
+			response.completeExceptionally(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Completes the response of a message with the response reported by the
+	 * flow, if it is still waited for.
+	 */
+	public void finished(@NotNull String jobId, IBaseBundle result) {
+		Pending pending = running.asMap().remove(jobId);
+		if(pending != null) {
+			complete(pending.key, pending.response, result);
+		}
+	}
+	
+	private IBaseBundle process(IBaseBundle theMessage, String fhirServerBase, String jobId, long replyTimeout) {
+		try (PdrAdmissionController.Permit permit = admissionController.admit(theMessage)) {
+			return pdrGateway.processMessage(theMessage, fhirServerBase, jobId, replyTimeout);
+		}
+	}
+	
+	/**
+	 * Returns source endpoint, MessageHeader id and message digest, or null 
+	 * when the message does not identify itself.
+	 */
+	public String getKey(@NotNull IBaseBundle theMessage) {
+		if(!enabled || !(theMessage instanceof Bundle)) {
+			return null;
+		}
+		MessageHeader header;
+		try {
+			header = ProcessMessageService.getMessageHeader((Bundle) theMessage);
+		} catch (BaseServerResponseException e) {
+			// rejected by the flow
+			return null;
+		}
+		if(header.getSource() == null || header.getSource().getEndpoint() == null 
+				|| header.getIdElement() == null || header.getIdElement().getIdPart() == null) {
+			return null;
+		}
+		return header.getSource().getEndpoint() + '|' + header.getIdElement().getIdPart() + '|' + digest(theMessage);
+	}
+	
+	private String digest(IBaseBundle theMessage) {
+		// stream the canonical JSON through the digest instead of building a string
+		MessageDigest digest = DigestUtils.getSha256Digest();
+		try (Writer writer = new OutputStreamWriter(new DigestOutputStream(OutputStream.nullOutputStream(), digest), StandardCharsets.UTF_8)) {
+			myFhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToWriter(theMessage, writer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+	
+	private void complete(String key, CompletableFuture<IBaseBundle> response, IBaseBundle result) {
+		if(key != null && !isSuccess(result)) {
+			// let the client retry failed messages
+			responses.asMap().remove(key, response);
+		}
+		response.complete(result);
+	}
+	
+	private static boolean isSuccess(IBaseBundle result) {
+		if(!(result instanceof Bundle) || ((Bundle) result).getEntry().isEmpty() 
+				|| !(((Bundle) result).getEntryFirstRep().getResource() instanceof MessageHeader)) {
+			return false;
+		}
+		MessageHeader header = (MessageHeader) ((Bundle) result).getEntryFirstRep().getResource();
+		return header.getResponse().getCode() == MessageHeader.ResponseType.OK;
+	}
+	
+	private static void await(CompletableFuture<IBaseBundle> response, long timeout) {
+		try {
+			response.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException e) {
+			// reported through the response
+		}
+	}
+	
+	/**
+	 * Returns a completed response, rethrows the exception of a failed one.
+	 */
+	public static IBaseBundle join(CompletableFuture<IBaseBundle> response) {
+		try {
+			return response.join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	private static class Pending {
+		private final String key;
+		private final CompletableFuture<IBaseBundle> response;
+		
+		private Pending(String key, CompletableFuture<IBaseBundle> response) {
+			this.key = key;
+			this.response = response;
+		}
+	}
+}
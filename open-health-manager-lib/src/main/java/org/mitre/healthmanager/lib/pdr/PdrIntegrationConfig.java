@@ -1,28 +1,45 @@
 package org.mitre.healthmanager.lib.pdr;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.validation.constraints.NotNull;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.MessageHeader;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.UnsignedIntType;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.data.DataTransformerRegistry;
+import org.mitre.healthmanager.lib.pdr.index.PdrSourceIdentityService;
+import org.mitre.healthmanager.lib.pdr.ledger.PdrLedgerService;
+import org.mitre.healthmanager.lib.pdr.metrics.PdrFlowMetrics;
+import org.mitre.healthmanager.lib.pdr.progress.PdrChunkedWriteService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
 import org.springframework.integration.annotation.Aggregator;
 import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.integration.annotation.Splitter;
+import org.springframework.integration.channel.QueueChannel;
 import org.springframework.integration.dsl.IntegrationFlow;
 import org.springframework.integration.dsl.IntegrationFlows;
 import org.springframework.integration.dsl.MessageChannels;
-import org.springframework.integration.router.HeaderValueRouter;
+import org.springframework.integration.dsl.Pollers;
+import org.springframework.integration.dsl.RouterSpec;
+import org.springframework.integration.router.MethodInvokingRouter;
+import org.springframework.integration.store.MessageGroupStore;
 import org.springframework.integration.support.MutableMessageBuilder;
 import org.springframework.integration.transformer.HeaderEnricher;
 import org.springframework.integration.transformer.support.HeaderValueMessageProcessor;
@@ -33,8 +50,9 @@ import org.springframework.messaging.MessagingException;
 import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.Headers;
 import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
@@ -46,11 +64,22 @@ import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 
 @Component
 public class PdrIntegrationConfig {
+	public static final String SKIPPED_ENTRY_COUNT = "skippedEntryCount";
+	public static final String SKIPPED_ENTRY_IDS = "skippedEntryIds";
+	public static final String LEDGER_INCOMPLETE = "pdrLedgerIncomplete";
+	public static final String SKIPPED_ENTRY_COUNT_EXTENSION = "urn:mitre:healthmanager:pdr:skipped-entry-count";
+	
+	// outlives the longest gateway reply timeout
+	private static final long HEADER_CHANNEL_TTL_MILLIS = 300000;
+	
 	private final Logger log = LoggerFactory.getLogger(PdrIntegrationConfig.class);
 	
 	@Autowired
 	AppProperties appProperties;
 	
+	@Autowired
+	ApplicationProperties applicationProperties;
+	
 	@Autowired
 	DaoRegistry daoRegistry;
 	
@@ -63,30 +92,143 @@ public class PdrIntegrationConfig {
 	@Autowired 
 	RecordMatchService recordMatchService;
 	
+	@Autowired
+	PdrSourceIdentityService sourceIdentityService;
+	
+	@Autowired
+	PdrLedgerService ledgerService;
+	
+	@Autowired
+	ChangeDetectionService changeDetectionService;
+	
+	@Autowired
+	PdrChunkedWriteService chunkedWriteService;
+	
+	@Autowired
+	DataTransformerRegistry dataTransformerRegistry;
+	
+	@Autowired
+	PdrRecoveryService recoveryService;
+	
+	@Autowired
+	PdrJobService pdrJobService;
+	
+	@Autowired
+	PdrFlowMetrics flowMetrics;
+	
     @Bean
-    public IntegrationFlow pdrFlow() {
+    public IntegrationFlow pdrFlow(@Qualifier("pdrEntryExecutor") ThreadPoolTaskExecutor pdrEntryExecutor,
+    		@Qualifier("pdrEntryLimiter") PdrEntryLimiter pdrEntryLimiter,
+    		@Qualifier("pdrLanes") PdrLanes pdrLanes,
+    		@Qualifier("pdrAggregateMessageStore") MessageGroupStore pdrAggregateMessageStore,
+    		PlatformTransactionManager transactionManager) {
       return IntegrationFlows.from("processMessageChannel")
-    		  .handle(this, "validateMessage")    		  
-    		  .transform(getMessageHeaders())
-    		  .handle(this, "processRawBundle")
-    		  .handle(this, "patientMatch")
-    		  .split(this, "splitBundle")
-    		  .gateway(sourceEndpointRouterFlow())
-    		  .handle(this, "recordMatch")
-    		  .aggregate(this)
-    		  .handle(this, "writeData")
-    		  .handle(this, "successMessage")
+    		  // entries may be persisted by the aggregator, reply and error channels are kept by name
+    		  .enrichHeaders(h -> h.headerChannelsToString(String.valueOf(HEADER_CHANNEL_TTL_MILLIS))
+    				  .headerFunction(PdrFlowMetrics.TRACE_ID_HEADER, message -> flowMetrics.start()))
+    		  .handle(this, "validateMessage", e -> e.advice(flowMetrics.stage("validateMessage")))
+    		  .transform(getMessageHeaders(), "transform", e -> e.advice(flowMetrics.stage("messageHeaders")))
+    		  .handle(this, "processRawBundle", e -> e.advice(flowMetrics.stage("processRawBundle")))
+    		  .handle(this, "patientMatch", e -> e.advice(flowMetrics.stage("patientMatch")))
+    		  .split(this, "splitBundle", e -> e.advice(flowMetrics.splitStage("splitBundle")))
+    		  .channel(MessageChannels.executor("pdrEntryChannel", pdrEntryExecutor).interceptor(pdrEntryLimiter))
+    		  .handle(this, "transformEntry", e -> e.advice(flowMetrics.stage("transformEntry")))
+    		  .aggregate(a -> a.processor(this, "aggregatingMethod")
+    				  .messageStore(pdrAggregateMessageStore)
+    				  .groupTimeout(applicationProperties.getPdr().getAggregationTimeoutMillis())
+    				  .expireGroupsUponTimeout(true)
+    				  .expireGroupsUponCompletion(true)
+    				  .transactional(transactionManager))
+    		  .handle(this, "transformAggregate", e -> e.advice(flowMetrics.stage("transformAggregate")))
+    		  // PDRs of the same patient match and write one at a time, the lane
+    		  // is picked before the message is handed to its executor
+    		  .route(Message.class, message -> pdrLanes.getLane(message), (RouterSpec<Integer, MethodInvokingRouter> r) -> {
+    			  for(int i = 0; i < pdrLanes.getLaneCount(); i++) {
+    				  Executor lane = pdrLanes.getExecutor(i);
+    				  r.subFlowMapping(i, sf -> sf.channel(MessageChannels.executor(lane)).channel("pdrLaneChannel"));
+    			  }
+    		  })
               .get();
     }
     
     @Bean
-    public IntegrationFlow sourceEndpointRouterFlow() {
-        return f -> f.routeToRecipients(r -> r
-        		.recipientMessageSelector("healthKitChannel", m ->
-                	m.getHeaders().get("sourceEndpoint").equals("urn:apple:health-kit"))
-        		.requiresReply(true)
-        		.defaultOutputToParentFlow()
-        );
+    public IntegrationFlow pdrLaneFlow() {
+      // runs on the lane of the patient
+      return IntegrationFlows.from("pdrLaneChannel")
+    		  .handle(this, "recordMatch", e -> e.advice(flowMetrics.stage("recordMatch")))
+    		  .handle(this, "transformMatched", e -> e.advice(flowMetrics.stage("transformMatched")))
+    		  .handle(this, "skipUnchanged", e -> e.advice(flowMetrics.stage("skipUnchanged")))
+    		  .handle(this, "writeData", e -> e.advice(flowMetrics.stage("writeData")))
+    		  .handle(this, "successMessage", e -> e.advice(flowMetrics.lastStage("successMessage")))
+              .get();
+    }
+    
+    @Bean
+    public IntegrationFlow pdrIngestFlow(@Qualifier("pdrIngestChannel") QueueChannel pdrIngestChannel,
+    		@Qualifier("pdrAsyncExecutor") ThreadPoolTaskExecutor pdrAsyncExecutor, PlatformTransactionManager transactionManager) {
+    	ApplicationProperties.Pdr.MessageStore messageStore = applicationProperties.getPdr().getMessageStore();
+    	// a message leaves the queue in the transaction claiming its job
+    	return IntegrationFlows.from(pdrIngestChannel)
+    			.handle(pdrJobService, "claim", e -> e.poller(Pollers.fixedDelay(messageStore.getIngestPollIntervalMillis())
+    					.maxMessagesPerPoll(messageStore.getIngestMaxMessagesPerPoll())
+    					.transactional(transactionManager)))
+    			.channel(MessageChannels.executor("pdrIngestExecutorChannel", pdrAsyncExecutor))
+    			.handle(pdrJobService, "process")
+    			.get();
+    }
+    
+    @Bean
+    public ThreadPoolTaskExecutor pdrAsyncExecutor() {
+    	ApplicationProperties.Pdr.Async async = applicationProperties.getPdr().getAsync();
+    	ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    	executor.setCorePoolSize(async.getCorePoolSize());
+    	executor.setMaxPoolSize(async.getMaxPoolSize());
+    	executor.setQueueCapacity(async.getQueueCapacity());
+    	executor.setThreadNamePrefix("pdr-async-");
+    	return executor;
+    }
+	
+    @Bean
+    public ThreadPoolTaskExecutor pdrEntryExecutor() {
+    	ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    	executor.setCorePoolSize(applicationProperties.getPdr().getEntryParallelism());
+    	executor.setMaxPoolSize(applicationProperties.getPdr().getEntryParallelism());
+    	executor.setQueueCapacity(applicationProperties.getPdr().getEntryQueueCapacity());
+    	// splitting thread processes entries itself once the queue is full
+    	executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+    	executor.setThreadNamePrefix("pdr-entry-");
+    	return executor;
+    }
+	
+    @Bean
+    public PdrEntryLimiter pdrEntryLimiter() {
+    	// the entries of one PDR leave room in the shared pool for others
+    	return new PdrEntryLimiter(applicationProperties.getPdr().getEntryParallelismPerMessage());
+    }
+	
+    @Bean
+    public PdrLanes pdrLanes() {
+    	return new PdrLanes("internalPatientId", applicationProperties.getPdr().getLaneCount(), "pdr-lane-");
+    }
+	
+    @Bean
+    public ThreadPoolTaskExecutor pdrMaintenanceExecutor() {
+    	// long running rebuild jobs, run one at a time
+    	ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    	executor.setCorePoolSize(1);
+    	executor.setMaxPoolSize(1);
+    	executor.setThreadNamePrefix("pdr-maintenance-");
+    	return executor;
+    }
+	
+    @Bean
+    public ThreadPoolTaskExecutor pdrRebuildExecutor() {
+    	// sources of account rebuilds replaying their raw bundles
+    	ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    	executor.setCorePoolSize(applicationProperties.getPdr().getRebuild().getParallelism());
+    	executor.setMaxPoolSize(applicationProperties.getPdr().getRebuild().getParallelism());
+    	executor.setThreadNamePrefix("pdr-rebuild-");
+    	return executor;
     }
 	
     @Bean
@@ -99,6 +241,11 @@ public class PdrIntegrationConfig {
     @ServiceActivator(inputChannel = "errorChannel")
     public Bundle handleFailedPdr(Message<MessagingException> message) {
     	log.error(message.getPayload().getMessage(), message.getPayload());
+    	Message<?> failedMessage = message.getPayload().getFailedMessage();
+    	String rawBundleId = failedMessage != null ? failedMessage.getHeaders().get("rawBundleId", String.class) : null;
+    	if(failedMessage != null) {
+    		flowMetrics.completed(failedMessage, false);
+    	}
 		String serverAddress = appProperties.getServer_address() != null ? appProperties.getServer_address(): (String) message.getHeaders().get("fhirServerBase");
 		Bundle response = new Bundle();
 		response.setType(Bundle.BundleType.MESSAGE);		
@@ -119,11 +266,23 @@ public class PdrIntegrationConfig {
 		newHeader.setResponse(headerResponse);
 		response.addEntry().setResource(newHeader);
 
+		// the job is done with before the in-flight record goes
+		String jobId = failedMessage != null ? failedMessage.getHeaders().get(PdrJobService.JOB_ID_HEADER, String.class) : null;
+		if(jobId != null) {
+			pdrJobService.finish(jobId, response);
+		}
+    	if(rawBundleId != null) {
+    		recoveryService.failed(rawBundleId, message.getPayload());
+    	}
 		return response;
     }
 	
 	@ServiceActivator
-	public Bundle successMessage(@Payload Bundle theMessage, @Header("messageHeader") MessageHeader messageHeader, @Header String fhirServerBase) {
+	public Bundle successMessage(@Payload Bundle theMessage, @Header("messageHeader") MessageHeader messageHeader, @Header String fhirServerBase,
+			@Header(name = SKIPPED_ENTRY_COUNT, required = false) Integer skippedEntryCount,
+			@Header(name = "rawBundleId", required = false) String rawBundleId,
+			@Header(name = PdrJobService.JOB_ID_HEADER, required = false) String jobId,
+			@Header(name = LEDGER_INCOMPLETE, required = false) Boolean ledgerIncomplete) {
 		// NOTE: this line is the reason the provider doesn't do this itself
 		// -- it doesn't know its own address (HapiProperties is JPA server only)
 		String serverAddress = appProperties.getServer_address() != null ? appProperties.getServer_address(): fhirServerBase;
@@ -138,49 +297,109 @@ public class PdrIntegrationConfig {
 		if(messageHeader.getIdElement() != null && messageHeader.getIdElement().getIdPart() != null) {
 			headerResponse.setIdentifier(messageHeader.getIdElement().getIdPart());
 		}
+		if(skippedEntryCount != null) {
+			headerResponse.addExtension(SKIPPED_ENTRY_COUNT_EXTENSION, new UnsignedIntType(skippedEntryCount));
+		}
 		newHeader.setResponse(headerResponse);
 		response.addEntry().setResource(newHeader);
 
+		// the job is done with before the in-flight record goes
+		if(jobId != null) {
+			pdrJobService.finish(jobId, response);
+		}
+		if(rawBundleId != null && Boolean.TRUE.equals(ledgerIncomplete)) {
+			// stored, resumed once stale to append its List entries again
+			log.warn("PDR {} is missing List entries, it will be resumed", rawBundleId);
+		} else if(rawBundleId != null) {
+			recoveryService.completed(rawBundleId);
+		}
 		return response;
 	}
 	
 	@ServiceActivator
-	@Transactional
-	public Bundle writeData(@Payload Bundle theMessage, @Header("messageHeader") MessageHeader messageHeader,
+	public Message<Bundle> skipUnchanged(Message<Bundle> message) {
+		List<String> skipped = new ArrayList<>();
+		// a resumed PDR rewrites all its entries, the ledger may be missing
+		// the ones stored before it failed
+		if(applicationProperties.getPdr().isSkipUnchangedEntries() 
+				&& !Boolean.TRUE.equals(message.getHeaders().get(PdrRecoveryService.RESUMED_HEADER))) {
+			changeDetectionService.removeUnchanged(message.getPayload(), daoRegistry)
+				.forEach(currentId -> skipped.add(currentId.getValue()));
+		}
+		return MutableMessageBuilder.fromMessage(message)
+				.setHeader(SKIPPED_ENTRY_COUNT, skipped.size())
+				.setHeader(SKIPPED_ENTRY_IDS, skipped)
+				.build();
+	}
+	
+	/**
+	 * Writes the entries and appends them to the PDR List ledger. A ledger
+	 * append that failed after the resources were committed is flagged for
+	 * {@link #successMessage}, which keeps the PDR to be resumed.
+	 */
+	@ServiceActivator
+	public Message<Bundle> writeData(Message<Bundle> message, @Header("messageHeader") MessageHeader messageHeader,
 			@Header("internalPatientId") @NotNull String internalPatientId,
-			@Header("rawBundleId") @NotNull String rawBundleId) {	    	    	   
-	    Bundle transactionResponse = PatientDataReceiptService.storeIndividualPDREntries(theMessage, internalPatientId, myTransactionProcessor, messageHeader, daoRegistry);
-	    PatientDataReceiptService.createPDRList(theMessage, transactionResponse, internalPatientId, rawBundleId, messageHeader, daoRegistry);
-		return theMessage;		
+			@Header("rawBundleId") @NotNull String rawBundleId,
+			@Header(name = SKIPPED_ENTRY_IDS, required = false) List<String> skippedEntryIds) {	    	    	   
+		Bundle theMessage = message.getPayload();
+		int chunkSize = applicationProperties.getPdr().getTransactionChunkSize();
+		ListResource list;
+		if(chunkSize > 0 && theMessage.getEntry().size() > chunkSize) {
+			list = chunkedWriteService.write(theMessage, chunkSize, internalPatientId, rawBundleId, messageHeader, 
+					myTransactionProcessor, daoRegistry, sourceIdentityService, ledgerService);
+		} else {
+		    Bundle transactionResponse = PatientDataReceiptService.storeIndividualPDREntries(theMessage, internalPatientId, myTransactionProcessor, messageHeader, daoRegistry);
+		    list = PatientDataReceiptService.createPDRList(theMessage, transactionResponse, internalPatientId, rawBundleId, messageHeader, daoRegistry, sourceIdentityService, ledgerService);
+		}
+		if(skippedEntryIds != null && !skippedEntryIds.isEmpty()) {
+			PatientDataReceiptService.appendPDRListUnchangedEntries(list, skippedEntryIds, internalPatientId, ledgerService);
+		}
+		return MutableMessageBuilder.fromMessage(message)
+				.setHeader(LEDGER_INCOMPLETE, !ledgerService.checkAppended(list.getIdElement().getIdPart()))
+				.build();
 	}
 	
 	@Aggregator
-	public Bundle aggregatingMethod(List<BundleEntryComponent> items) {
+	public Bundle aggregatingMethod(List<Message<BundleEntryComponent>> items) {
+		// entries are processed in parallel, restore original bundle order
 	    Bundle result = new Bundle();
-		for(BundleEntryComponent item: items) {
-			result.addEntry(item);
-	    }
+	    items.stream()
+	    	.sorted(Comparator.comparingInt(item -> new IntegrationMessageHeaderAccessor(item).getSequenceNumber()))
+	    	.forEachOrdered(item -> {
+	    		// position in the raw bundle, tracked by chunked writes
+	    		item.getPayload().setUserData(PdrChunkedWriteService.ENTRY_INDEX, new IntegrationMessageHeaderAccessor(item).getSequenceNumber());
+	    		result.addEntry(item.getPayload());
+	    	});
 		return result;
 	}
 	
 	@ServiceActivator
-	public BundleEntryComponent recordMatch(@Payload BundleEntryComponent entry, @Header("messageHeader") MessageHeader messageHeader,
+	public Bundle transformAggregate(@Payload Bundle theMessage, @Header("sourceEndpoint") String sourceEndpoint) {
+		return dataTransformerRegistry.transformAggregate(theMessage, sourceEndpoint);
+	}
+	
+	@ServiceActivator
+	public Bundle transformMatched(@Payload Bundle theMessage, @Header("sourceEndpoint") String sourceEndpoint) {
+		return dataTransformerRegistry.transformMatched(theMessage, sourceEndpoint, daoRegistry);
+	}
+	
+	@ServiceActivator
+	public Bundle recordMatch(@Payload Bundle theMessage, @Header("messageHeader") MessageHeader messageHeader,
 			@Header("internalPatientId") @NotNull String internalPatientId) {
-		return recordMatchService.recordMatch(entry, internalPatientId, messageHeader, daoRegistry);		
+		return recordMatchService.recordMatch(theMessage, internalPatientId, messageHeader, daoRegistry);		
 	}
 		
 	@ServiceActivator
-	public HeaderValueRouter sourceEndpointRouter() {
-	    HeaderValueRouter router = new HeaderValueRouter("sourceEndpoint");
-	    router.setResolutionRequired(false);	    
-	    router.setChannelMapping("urn:apple:health-kit", "healthKitChannel");
-	    return router;
+	public BundleEntryComponent transformEntry(@Payload BundleEntryComponent entry, @Header("sourceEndpoint") String sourceEndpoint,
+			@Header("internalPatientId") @NotNull String internalPatientId) {
+		return dataTransformerRegistry.transform(entry, sourceEndpoint, internalPatientId);
 	}
 	  
 	@Splitter
 	public List<BundleEntryComponent> splitBundle(@Payload Bundle theMessage) {
-		// skip message header entry
-	    return theMessage.getEntry().stream().skip(1).collect(Collectors.toList());
+		// skip message header entry, entries are passed on without copying
+	    return theMessage.getEntry().subList(1, theMessage.getEntry().size());
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -197,11 +416,16 @@ public class PdrIntegrationConfig {
 	@ServiceActivator
 	public Message<Bundle> processRawBundle(Message<Bundle> message, @Headers Map<String,Object> headers) {
 		PatientDataReceiptService.validatePDR(message.getPayload());
+		if(headers.get("rawBundleId") != null) {
+			// resuming a PDR whose raw bundle is already stored
+			return MutableMessageBuilder.fromMessage(message).setHeader(PdrRecoveryService.RESUMED_HEADER, true).build();
+		}
 		@SuppressWarnings("unchecked")
 		IFhirResourceDao<Bundle> bundleDao = daoRegistry.getDaoOrThrowException(Bundle.class);
 		String rawBundleId = PatientDataReceiptService.storePDRAsRawBundle(message.getPayload(), 
 				(@NotNull String) headers.get("internalPatientId"), 
 				bundleDao);
+		recoveryService.started(rawBundleId, (String) headers.get("fhirServerBase"), (String) headers.get(PdrJobService.JOB_ID_HEADER));
 		return MutableMessageBuilder.fromMessage(message).copyHeaders(headers).setHeader("rawBundleId", rawBundleId).build();
 	}
 
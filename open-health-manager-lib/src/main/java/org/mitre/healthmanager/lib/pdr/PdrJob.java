@@ -0,0 +1,158 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+import org.hibernate.annotations.Type;
+
+/**
+ * A Patient Data Receipt submitted with {@code Prefer: respond-async}. Jobs 
+ * are stored next to the queued message, so a job replayed after a restart 
+ * can still be polled.
+ */
+@Entity
+@Table(name = "pdr_job", indexes = {
+		@Index(name = "idx_pdr_job_completed", columnList = "completed") })
+public class PdrJob implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public enum Status { IN_PROGRESS, COMPLETE, FAILED }
+
+	@Id
+	@Column(name = "id", length = 64)
+	private String id;
+
+	/**
+	 * Patient of the user who submitted the message, null when submitted by
+	 * a user not linked to a patient.
+	 */
+	@Column(name = "patient_id", length = 64)
+	private String patientId;
+
+	@NotNull
+	@Enumerated(EnumType.STRING)
+	@Column(name = "status", nullable = false, length = 16)
+	private Status status;
+
+	@NotNull
+	@Column(name = "submitted", nullable = false)
+	private Instant submitted;
+
+	@Column(name = "completed")
+	private Instant completed;
+
+	/**
+	 * JSON response bundle of a complete job.
+	 */
+	@Lob
+	@Type(type = "org.hibernate.type.TextType")
+	@Column(name = "response")
+	private String response;
+
+	@Column(name = "error_status")
+	private Integer errorStatus;
+
+	@Column(name = "error", length = 1000)
+	private String error;
+
+	protected PdrJob() {
+	}
+
+	public PdrJob(String id, String patientId) {
+		this.id = id;
+		this.patientId = patientId;
+		this.status = Status.IN_PROGRESS;
+		this.submitted = Instant.now();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public Instant getSubmitted() {
+		return submitted;
+	}
+
+	public Instant getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Response bundle of the finished pipeline run as JSON, either the success
+	 * message or the fatal error message produced by the error channel. Null 
+	 * unless the job is complete.
+	 */
+	public String getResponse() {
+		return response;
+	}
+
+	/**
+	 * HTTP status of the failure, null unless the job failed.
+	 */
+	public Integer getErrorStatus() {
+		return errorStatus;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public PdrJob completed(String response) {
+		this.status = Status.COMPLETE;
+		this.response = response;
+		this.completed = Instant.now();
+		return this;
+	}
+
+	public PdrJob failed(int errorStatus, String error) {
+		this.status = Status.FAILED;
+		this.errorStatus = errorStatus;
+		this.error = error != null && error.length() > 1000 ? error.substring(0, 1000) : error;
+		this.completed = Instant.now();
+		return this;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PdrJob)) {
+			return false;
+		}
+		return id != null && id.equals(((PdrJob) o).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return getClass().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "PdrJob{" +
+			"id='" + getId() + "'" +
+			", status='" + getStatus() + "'" +
+			", submitted='" + getSubmitted() + "'" +
+			", completed='" + getCompleted() + "'" +
+			"}";
+	}
+}
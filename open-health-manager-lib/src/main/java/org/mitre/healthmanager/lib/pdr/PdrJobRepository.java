@@ -0,0 +1,21 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.time.Instant;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Spring Data SQL repository for the PdrJob entity.
+ */
+@Repository
+public interface PdrJobRepository extends JpaRepository<PdrJob, String> {
+	@Modifying
+	@Transactional
+	@Query("delete from PdrJob j where j.completed < :cutoff")
+	int deleteAllCompletedBefore(@Param("cutoff") Instant cutoff);
+}
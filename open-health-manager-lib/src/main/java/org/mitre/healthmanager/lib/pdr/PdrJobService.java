@@ -0,0 +1,285 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.jdbc.store.JdbcMessageStore;
+import org.springframework.integration.store.MessageGroup;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Tracks Patient Data Receipts submitted with {@code Prefer: respond-async} so
+ * clients can poll for the response bundle. Submitted messages are queued in
+ * the JDBC backed ingest channel shared by all nodes and jobs are stored
+ * alongside, both survive a restart. A node taking a message off the queue
+ * claims its job in the same transaction, the claim is handed over to the
+ * in-flight record of {@link PdrRecoveryService} once the raw bundle is
+ * stored. Claims left behind by a node that stopped are requeued. The flow
+ * reports responses under the job id, synchronous requests still running
+ * when they stop waiting become jobs as well.
+ */
+@Service
+public class PdrJobService {
+	public static final String JOB_ID_HEADER = "pdrJobId";
+	public static final String REPLY_TIMEOUT_HEADER = "pdrReplyTimeout";
+	
+	private final Logger log = LoggerFactory.getLogger(PdrJobService.class);
+
+	@Autowired
+	PdrJobRepository repository;
+
+	@Autowired
+	PdrIdempotencyService pdrIdempotencyService;
+
+	@Autowired
+	ApplicationProperties applicationProperties;
+	
+	@Autowired
+	FhirContext myFhirContext;
+	
+	@Autowired
+	@Qualifier("pdrIngestChannel")
+	QueueChannel pdrIngestChannel;
+	
+	@Autowired
+	@Qualifier("pdrJobMessageStore")
+	JdbcMessageStore jobStore;
+	
+	@Autowired
+	@Qualifier("taskScheduler")
+	TaskScheduler taskScheduler;
+	
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	/**
+	 * Queues a message for processing on behalf of {@code patientId}, the
+	 * only non-admin user allowed to poll the job.
+	 */
+	public PdrJob submit(@NotNull IBaseBundle theMessage, String fhirServerBase, String patientId) {
+		evictExpiredJobs();
+		PdrJob job = repository.save(new PdrJob(UUID.randomUUID().toString(), patientId));
+		Message<IBaseBundle> message = MessageBuilder.withPayload(theMessage)
+				.setHeader("fhirServerBase", fhirServerBase)
+				.setHeader(JOB_ID_HEADER, job.getId())
+				.build();
+		// the ingest channel store writes through the HAPI datasource, which does not auto-commit
+		new TransactionTemplate(transactionManager).executeWithoutResult(status -> pdrIngestChannel.send(message));
+		return job;
+	}
+
+	/**
+	 * Tracks a message a synchronous request stopped waiting for as a job
+	 * completed by {@code response}.
+	 */
+	public PdrJob track(@NotNull String jobId, String patientId, CompletableFuture<IBaseBundle> response) {
+		evictExpiredJobs();
+		PdrJob job = repository.save(new PdrJob(jobId, patientId));
+		response.whenComplete((result, e) -> finish(jobId, result, e));
+		return job;
+	}
+
+	public PdrJob getJob(String jobId) {
+		return jobId != null ? repository.findById(jobId).orElse(null) : null;
+	}
+	
+	/**
+	 * Claims the job of a message taken off the ingest channel for this node,
+	 * runs in the transaction of the ingest poller.
+	 */
+	public Message<IBaseBundle> claim(Message<IBaseBundle> message) {
+		Message<IBaseBundle> claim = MessageBuilder.fromMessage(message)
+				.setHeader(PdrRecoveryService.NODE_HEADER, PdrMessageStoreConfig.getNodeId(applicationProperties))
+				.build();
+		jobStore.addMessageToGroup(message.getHeaders().get(JOB_ID_HEADER, String.class), claim);
+		return claim;
+	}
+	
+	/**
+	 * Removes the claim of a job, joins the current transaction if any.
+	 */
+	public void release(@NotNull String jobId) {
+		new TransactionTemplate(transactionManager).executeWithoutResult(status -> jobStore.removeMessageGroup(jobId));
+	}
+	
+	/**
+	 * Processes a claimed message. Messages turned away by admission control
+	 * go back on the queue once their Retry-After has passed, a message still
+	 * running after the reply timeout is finished by the flow.
+	 */
+	public void process(Message<IBaseBundle> message) {
+		String fhirServerBase = message.getHeaders().get("fhirServerBase", String.class);
+		String jobId = message.getHeaders().get(JOB_ID_HEADER, String.class);
+		CompletableFuture<IBaseBundle> response;
+		try {
+			response = pdrIdempotencyService.submit(message.getPayload(), fhirServerBase, jobId, 
+					PdrIdempotencyService.DEFAULT_REPLY_TIMEOUT);
+		} catch (PdrAdmissionController.TooManyRequestsException e) {
+			long retryAfter = getRetryAfterSeconds(e);
+			log.debug("Requeueing PDR job {} in {}s", jobId, retryAfter);
+			// stays claimed until it is back on the queue
+			taskScheduler.schedule(() -> requeue(message), Instant.now().plusSeconds(retryAfter));
+			return;
+		} catch (RuntimeException e) {
+			finish(jobId, null, e);
+			release(jobId);
+			return;
+		}
+		if(!response.isDone()) {
+			log.info("PDR job {} is still running", jobId);
+		}
+		response.whenComplete((result, e) -> {
+			finish(jobId, result, e);
+			release(jobId);
+		});
+	}
+	
+	/**
+	 * Stores the response of a job still in progress, a null response fails
+	 * it.
+	 */
+	public void finish(@NotNull String jobId, IBaseBundle result) {
+		updateJob(jobId, job -> result != null 
+				? job.completed(myFhirContext.newJsonParser().encodeResourceToString(result))
+				: job.failed(Constants.STATUS_HTTP_500_INTERNAL_ERROR, null));
+		pdrIdempotencyService.finished(jobId, result);
+	}
+	
+	private void finish(String jobId, IBaseBundle result, Throwable error) {
+		if(error == null) {
+			finish(jobId, result);
+			return;
+		}
+		Throwable e = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+		log.error("PDR job {} failed", jobId, e);
+		int status = e instanceof BaseServerResponseException 
+				? ((BaseServerResponseException) e).getStatusCode() : Constants.STATUS_HTTP_500_INTERNAL_ERROR;
+		updateJob(jobId, job -> job.failed(status, e.getMessage()));
+	}
+	
+	@EventListener(ApplicationReadyEvent.class)
+	public void requeueIncomplete() {
+		requeueClaims(true);
+		Duration interval = Duration.ofMinutes(applicationProperties.getPdr().getMessageStore().getResumeStaleAfterMinutes());
+		taskScheduler.scheduleWithFixedDelay(() -> requeueClaims(false), Instant.now().plus(interval), interval);
+	}
+	
+	/**
+	 * Puts the jobs of claims not handed over yet back on the queue, the
+	 * claims of this node on startup and stale claims of any node.
+	 */
+	void requeueClaims(boolean ownClaims) {
+		String nodeId = PdrMessageStoreConfig.getNodeId(applicationProperties);
+		long staleBefore = System.currentTimeMillis() 
+				- TimeUnit.MINUTES.toMillis(applicationProperties.getPdr().getMessageStore().getResumeStaleAfterMinutes());
+		List<Message<?>> claims = new ArrayList<>();
+		Iterator<MessageGroup> groups = jobStore.iterator();
+		while(groups.hasNext()) {
+			MessageGroup group = groups.next();
+			Message<?> claim = group.getOne();
+			if(claim == null) {
+				continue;
+			}
+			long lastModified = group.getLastModified() > 0 ? group.getLastModified() : group.getTimestamp();
+			if((ownClaims && nodeId.equals(claim.getHeaders().get(PdrRecoveryService.NODE_HEADER))) || lastModified < staleBefore) {
+				claims.add(claim);
+			}
+		}
+		claims.forEach(this::requeueClaim);
+	}
+	
+	private void requeueClaim(Message<?> claim) {
+		String jobId = claim.getHeaders().get(JOB_ID_HEADER, String.class);
+		int maxAttempts = applicationProperties.getPdr().getMessageStore().getMaxResumeAttempts();
+		PdrJob job = getJob(jobId);
+		Integer attempt = new TransactionTemplate(transactionManager).execute(status -> {
+			// only one node removes the claim
+			if(jobStore.removeMessage(claim.getHeaders().getId()) == null) {
+				return null;
+			}
+			jobStore.removeMessageGroup(jobId);
+			if(job == null || job.getStatus() != PdrJob.Status.IN_PROGRESS) {
+				return null;
+			}
+			Integer attempts = claim.getHeaders().get(PdrRecoveryService.ATTEMPTS_HEADER, Integer.class);
+			int next = (attempts != null ? attempts : 0) + 1;
+			if(next <= maxAttempts) {
+				pdrIngestChannel.send(MessageBuilder.fromMessage(claim)
+						.removeHeader(PdrRecoveryService.NODE_HEADER)
+						.setHeader(PdrRecoveryService.ATTEMPTS_HEADER, next)
+						.build());
+			}
+			return next;
+		});
+		if(attempt == null) {
+			return;
+		}
+		if(attempt > maxAttempts) {
+			log.error("Giving up on PDR job {} after {} attempts", jobId, maxAttempts);
+			updateJob(jobId, j -> j.failed(Constants.STATUS_HTTP_500_INTERNAL_ERROR, "Gave up after " + maxAttempts + " attempts"));
+		} else {
+			log.info("Requeued PDR job {}", jobId);
+		}
+	}
+	
+	private void requeue(Message<IBaseBundle> message) {
+		String jobId = message.getHeaders().get(JOB_ID_HEADER, String.class);
+		Message<IBaseBundle> retry = MessageBuilder.fromMessage(message)
+				.removeHeader(PdrRecoveryService.NODE_HEADER)
+				.build();
+		new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+			pdrIngestChannel.send(retry);
+			jobStore.removeMessageGroup(jobId);
+		});
+	}
+	
+	private static long getRetryAfterSeconds(BaseServerResponseException e) {
+		List<String> retryAfter = e.getResponseHeaders().get(Constants.HEADER_RETRY_AFTER);
+		try {
+			return retryAfter != null && !retryAfter.isEmpty() ? Math.max(1, Long.parseLong(retryAfter.get(0))) : 1;
+		} catch (NumberFormatException ex) {
+			return 1;
+		}
+	}
+	
+	private void updateJob(String jobId, UnaryOperator<PdrJob> update) {
+		PdrJob job = getJob(jobId);
+		// a job is finished once, by the flow or by the request waiting for it
+		if(job != null && job.getStatus() == PdrJob.Status.IN_PROGRESS) {
+			repository.save(update.apply(job));
+		}
+	}
+
+	private void evictExpiredJobs() {
+		long retention = TimeUnit.MINUTES.toMillis(applicationProperties.getPdr().getAsync().getJobRetentionMinutes());
+		repository.deleteAllCompletedBefore(Instant.now().minusMillis(retention));
+	}
+}
@@ -0,0 +1,60 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Fixed set of single threaded lanes that run the messages of a patient one
+ * at a time, in the order they are sent. Patients are hashed on a header to
+ * a lane before the message is handed to the executor channel of that lane,
+ * different patients run in parallel unless they share a lane.
+ */
+public class PdrLanes implements DisposableBean {
+	private final String keyHeader;
+	private final ThreadPoolTaskExecutor[] lanes;
+	// messages without a key are spread over the lanes
+	private final AtomicInteger next = new AtomicInteger();
+
+	public PdrLanes(String keyHeader, int laneCount, String threadNamePrefix) {
+		this.keyHeader = keyHeader;
+		this.lanes = new ThreadPoolTaskExecutor[Math.max(1, laneCount)];
+		for(int i = 0; i < lanes.length; i++) {
+			ThreadPoolTaskExecutor lane = new ThreadPoolTaskExecutor();
+			lane.setCorePoolSize(1);
+			lane.setMaxPoolSize(1);
+			lane.setThreadNamePrefix(threadNamePrefix + i + "-");
+			lane.initialize();
+			lanes[i] = lane;
+		}
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	public Executor getExecutor(int lane) {
+		return lanes[lane];
+	}
+
+	/**
+	 * Lane of the message, picked from its key header.
+	 */
+	public int getLane(Message<?> message) {
+		Object key = message.getHeaders().get(keyHeader);
+		if(key == null) {
+			return Math.floorMod(next.getAndIncrement(), lanes.length);
+		}
+		return Math.floorMod(key.hashCode(), lanes.length);
+	}
+
+	@Override
+	public void destroy() {
+		for(ThreadPoolTaskExecutor lane : lanes) {
+			lane.shutdown();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.DatabaseMetaData;
+
+import javax.sql.DataSource;
+
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.dsl.MessageChannels;
+import org.springframework.integration.jdbc.store.JdbcChannelMessageStore;
+import org.springframework.integration.jdbc.store.JdbcMessageStore;
+import org.springframework.integration.jdbc.store.channel.ChannelMessageStoreQueryProvider;
+import org.springframework.integration.jdbc.store.channel.DerbyChannelMessageStoreQueryProvider;
+import org.springframework.integration.jdbc.store.channel.H2ChannelMessageStoreQueryProvider;
+import org.springframework.integration.jdbc.store.channel.HsqlChannelMessageStoreQueryProvider;
+import org.springframework.integration.jdbc.store.channel.MySqlChannelMessageStoreQueryProvider;
+import org.springframework.integration.jdbc.store.channel.OracleChannelMessageStoreQueryProvider;
+import org.springframework.integration.jdbc.store.channel.PostgresChannelMessageStoreQueryProvider;
+import org.springframework.integration.jdbc.store.channel.SqlServerChannelMessageStoreQueryProvider;
+import org.springframework.integration.store.MessageGroupStore;
+import org.springframework.integration.store.SimpleMessageStore;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+/**
+ * Message stores of the PDR pipeline, JDBC stores are kept in the HAPI
+ * database. The INT_ tables are created by
+ * spring.integration.jdbc.initialize-schema.
+ */
+@Configuration
+public class PdrMessageStoreConfig {
+	public static final String AGGREGATE_REGION = "PDR_AGGREGATE";
+	public static final String IN_FLIGHT_REGION = "PDR_IN_FLIGHT";
+	public static final String INGEST_REGION = "PDR_INGEST";
+	public static final String JOB_REGION = "PDR_JOB";
+	public static final String INGEST_GROUP = "pdr-ingest";
+
+	/**
+	 * Entries of split PDRs waiting for the rest of their PDR. Kept in memory
+	 * unless configured otherwise, a PDR interrupted mid-aggregation is
+	 * resumed from its raw bundle, so a JDBC store only adds an insert and a
+	 * delete per entry.
+	 */
+	@Bean
+	public MessageGroupStore pdrAggregateMessageStore(@Qualifier("dataSource") DataSource dataSource,
+			ApplicationProperties applicationProperties) {
+		if(applicationProperties.getPdr().getMessageStore().getAggregateStore() == ApplicationProperties.Pdr.MessageStore.AggregateStore.JDBC) {
+			JdbcMessageStore messageStore = new JdbcMessageStore(dataSource);
+			messageStore.setRegion(AGGREGATE_REGION);
+			return messageStore;
+		}
+		return new SimpleMessageStore();
+	}
+
+	/**
+	 * One group per PDR whose raw bundle is stored but whose entries are not
+	 * written yet, see {@link PdrRecoveryService}.
+	 */
+	@Bean
+	public JdbcMessageStore pdrInFlightMessageStore(@Qualifier("dataSource") DataSource dataSource) {
+		JdbcMessageStore messageStore = new JdbcMessageStore(dataSource);
+		messageStore.setRegion(IN_FLIGHT_REGION);
+		return messageStore;
+	}
+
+	/**
+	 * One group per async job taken off the ingest queue whose raw bundle is
+	 * not stored yet, see {@link PdrJobService}.
+	 */
+	@Bean
+	public JdbcMessageStore pdrJobMessageStore(@Qualifier("dataSource") DataSource dataSource) {
+		JdbcMessageStore messageStore = new JdbcMessageStore(dataSource);
+		messageStore.setRegion(JOB_REGION);
+		return messageStore;
+	}
+
+	@Bean
+	public JdbcChannelMessageStore pdrIngestMessageStore(@Qualifier("dataSource") DataSource dataSource) {
+		JdbcChannelMessageStore messageStore = new JdbcChannelMessageStore(dataSource);
+		messageStore.setRegion(INGEST_REGION);
+		messageStore.setChannelMessageStoreQueryProvider(getQueryProvider(dataSource));
+		return messageStore;
+	}
+
+	/**
+	 * Queue of PDRs submitted with {@code Prefer: respond-async}, shared by
+	 * all nodes. Each message is polled by one node, without blocking the
+	 * other nodes on databases supporting SKIP LOCKED.
+	 */
+	@Bean
+	public QueueChannel pdrIngestChannel(JdbcChannelMessageStore pdrIngestMessageStore) {
+		return MessageChannels.queue("pdrIngestChannel", pdrIngestMessageStore, INGEST_GROUP)
+				.get();
+	}
+
+	public static String getNodeId(ApplicationProperties applicationProperties) {
+		String nodeId = applicationProperties.getPdr().getMessageStore().getNodeId();
+		if(nodeId != null) {
+			return nodeId;
+		}
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
+
+	private static ChannelMessageStoreQueryProvider getQueryProvider(DataSource dataSource) {
+		String databaseName;
+		try {
+			databaseName = JdbcUtils.commonDatabaseName(
+					JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName));
+		} catch (MetaDataAccessException e) {
+			throw new IllegalStateException("Unable to determine the database of the PDR message store", e);
+		}
+		switch(String.valueOf(databaseName)) {
+			case "H2":
+				return new H2ChannelMessageStoreQueryProvider();
+			case "PostgreSQL":
+				return new PostgresChannelMessageStoreQueryProvider();
+			case "MySQL":
+			case "MariaDB":
+				return new MySqlChannelMessageStoreQueryProvider();
+			case "Oracle":
+				return new OracleChannelMessageStoreQueryProvider();
+			case "Microsoft SQL Server":
+				return new SqlServerChannelMessageStoreQueryProvider();
+			case "Apache Derby":
+				return new DerbyChannelMessageStoreQueryProvider();
+			case "HSQL Database Engine":
+				return new HsqlChannelMessageStoreQueryProvider();
+			default:
+				throw new IllegalStateException("No PDR message store queries for database " + databaseName);
+		}
+	}
+}
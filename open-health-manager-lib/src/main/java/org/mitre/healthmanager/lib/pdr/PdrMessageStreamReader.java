@@ -0,0 +1,165 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.MessageHeader;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+/**
+ * Reads a JSON message Bundle one entry at a time. The MessageHeader entry
+ * is read first, the remaining entries are handed out in windows so that
+ * only one window of entries is held in memory. Bundle.type must precede
+ * Bundle.entry, other Bundle level elements are skipped.
+ */
+public class PdrMessageStreamReader implements Closeable {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final String ENTRY_BUNDLE_START = "{\"resourceType\":\"Bundle\",\"type\":\"message\",\"entry\":[";
+	private static final String ENTRY_BUNDLE_END = "]}";
+
+	private final JsonParser myJsonParser;
+	private final IParser myFhirParser;
+	private BundleEntryComponent myHeaderEntry;
+	private boolean myEntriesDone;
+
+	public PdrMessageStreamReader(@NotNull InputStream theInputStream, @NotNull FhirContext theFhirContext) {
+		try {
+			this.myJsonParser = MAPPER.getFactory().createParser(theInputStream);
+		} catch (IOException e) {
+			throw new InvalidRequestException("Failed to read message: " + e.getMessage());
+		}
+		this.myFhirParser = theFhirContext.newJsonParser();
+	}
+
+	/**
+	 * Reads up to and including the first entry, which must be the
+	 * MessageHeader.
+	 */
+	public MessageHeader readMessageHeader() {
+		if(myHeaderEntry == null) {
+			try {
+				readToEntries();
+				myHeaderEntry = myEntriesDone ? null : readEntry();
+			} catch (IOException e) {
+				throw new InvalidRequestException("Failed to read message: " + e.getMessage());
+			}
+			if(myHeaderEntry == null) {
+				throw new UnprocessableEntityException("message Bundle must have at least a MessageHeader entry");
+			}
+			if(!(myHeaderEntry.getResource() instanceof MessageHeader)) {
+				throw new UnprocessableEntityException(
+						"First entry of the message Bundle must be a MessageHeader instance");
+			}
+		}
+		return (MessageHeader) myHeaderEntry.getResource();
+	}
+
+	/**
+	 * Returns a message Bundle holding the MessageHeader entry followed by
+	 * at most {@code windowSize} of the next entries, or null once all
+	 * entries have been read.
+	 */
+	public Bundle nextWindow(int windowSize) {
+		readMessageHeader();
+		if(myEntriesDone) {
+			return null;
+		}
+		Bundle window = new Bundle();
+		window.setType(Bundle.BundleType.MESSAGE);
+		window.addEntry(myHeaderEntry.copy());
+		try {
+			while(window.getEntry().size() <= Math.max(1, windowSize)) {
+				BundleEntryComponent entry = readEntry();
+				if(entry == null) {
+					break;
+				}
+				window.addEntry(entry);
+			}
+		} catch (IOException e) {
+			throw new InvalidRequestException("Failed to read message: " + e.getMessage());
+		}
+		return window.getEntry().size() > 1 ? window : null;
+	}
+
+	@Override
+	public void close() {
+		try {
+			myJsonParser.close();
+		} catch (IOException e) {
+			// the request input stream is closed by the container
+		}
+	}
+
+	private void readToEntries() throws IOException {
+		if(myJsonParser.nextToken() != JsonToken.START_OBJECT) {
+			throw new InvalidRequestException("Message must be a JSON Bundle");
+		}
+		String resourceType = null;
+		String type = null;
+		while(myJsonParser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = myJsonParser.getCurrentName();
+			JsonToken value = myJsonParser.nextToken();
+			if("resourceType".equals(field)) {
+				resourceType = myJsonParser.getValueAsString();
+			} else if("type".equals(field)) {
+				type = myJsonParser.getValueAsString();
+			} else if("entry".equals(field)) {
+				if(!"Bundle".equals(resourceType)) {
+					throw new UnprocessableEntityException("bundle not provided to $process-message");
+				}
+				if(!Bundle.BundleType.MESSAGE.toCode().equals(type)) {
+					throw new UnprocessableEntityException("$process-message bundle must have type 'message'");
+				}
+				if(value != JsonToken.START_ARRAY) {
+					throw new InvalidRequestException("Bundle.entry must be an array");
+				}
+				return;
+			} else {
+				myJsonParser.skipChildren();
+			}
+		}
+		// no entries
+		myEntriesDone = true;
+	}
+
+	private BundleEntryComponent readEntry() throws IOException {
+		if(myEntriesDone) {
+			return null;
+		}
+		if(myJsonParser.nextToken() != JsonToken.START_OBJECT) {
+			// end of the entry array, the rest of the Bundle is not needed
+			myEntriesDone = true;
+			return null;
+		}
+		// parse a single entry Bundle, the entry is copied token by token as
+		// the only element held as text
+		StringBuilderWriter entryBundle = new StringBuilderWriter();
+		entryBundle.write(ENTRY_BUNDLE_START);
+		try (JsonGenerator generator = MAPPER.getFactory().createGenerator(entryBundle)) {
+			generator.copyCurrentStructure(myJsonParser);
+		}
+		entryBundle.write(ENTRY_BUNDLE_END);
+		try {
+			return myFhirParser.parseResource(Bundle.class, new CharSequenceReader(entryBundle.getBuilder())).getEntryFirstRep();
+		} catch (DataFormatException e) {
+			throw new InvalidRequestException("Failed to parse message entry: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.io.input.CharSequenceReader;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+/**
+ * Reads newline delimited JSON FHIR resources and hands them out as
+ * message Bundles of a given MessageHeader, so that only one window of
+ * resources is held in memory. Blank lines are skipped.
+ */
+public class PdrNdjsonReader implements Closeable {
+	private final BufferedReader myReader;
+	private final IParser myFhirParser;
+	private final MessageHeader myHeader;
+	private final StringBuilder myLine = new StringBuilder();
+	private int myLineNumber;
+	private boolean myDone;
+
+	public PdrNdjsonReader(@NotNull InputStream theInputStream, @NotNull FhirContext theFhirContext,
+			@NotNull MessageHeader theHeader) {
+		this.myReader = new BufferedReader(new InputStreamReader(theInputStream, StandardCharsets.UTF_8));
+		this.myFhirParser = theFhirContext.newJsonParser();
+		this.myHeader = theHeader;
+	}
+
+	/**
+	 * Returns a message Bundle holding the MessageHeader followed by at most
+	 * {@code windowSize} of the next resources, or null once all lines have
+	 * been read.
+	 */
+	public Bundle nextWindow(int windowSize) {
+		if(myDone) {
+			return null;
+		}
+		Bundle window = new Bundle();
+		window.setType(Bundle.BundleType.MESSAGE);
+		window.addEntry().setResource(myHeader.copy());
+		try {
+			while(window.getEntry().size() <= Math.max(1, windowSize)) {
+				Resource resource = readResource();
+				if(resource == null) {
+					break;
+				}
+				window.addEntry().setResource(resource);
+			}
+		} catch (IOException e) {
+			throw new InvalidRequestException("Failed to read resources: " + e.getMessage());
+		}
+		return window.getEntry().size() > 1 ? window : null;
+	}
+
+	@Override
+	public void close() {
+		try {
+			myReader.close();
+		} catch (IOException e) {
+			// the request input stream is closed by the container
+		}
+	}
+
+	private Resource readResource() throws IOException {
+		do {
+			if(!readLine()) {
+				myDone = true;
+				return null;
+			}
+			myLineNumber++;
+		} while(isBlank(myLine));
+
+		IBaseResource resource;
+		try {
+			// parsed from the line buffer, without a String copy per line
+			resource = myFhirParser.parseResource(new CharSequenceReader(myLine));
+		} catch (DataFormatException e) {
+			throw new InvalidRequestException("Failed to parse line " + myLineNumber + ": " + e.getMessage());
+		}
+		if(resource instanceof MessageHeader || !(resource instanceof Resource)) {
+			throw new UnprocessableEntityException("Line " + myLineNumber + " is not a resource to import");
+		}
+		return (Resource) resource;
+	}
+
+	/**
+	 * Reads the next line into the line buffer, false at the end of input.
+	 */
+	private boolean readLine() throws IOException {
+		myLine.setLength(0);
+		int c;
+		while((c = myReader.read()) != -1) {
+			if(c == '\n') {
+				return true;
+			}
+			if(c != '\r') {
+				myLine.append((char) c);
+			}
+		}
+		return myLine.length() > 0;
+	}
+
+	private static boolean isBlank(CharSequence line) {
+		for(int i = 0; i < line.length(); i++) {
+			if(!Character.isWhitespace(line.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
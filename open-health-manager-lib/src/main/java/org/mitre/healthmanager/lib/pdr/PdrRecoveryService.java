@@ -0,0 +1,216 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.integration.jdbc.store.JdbcMessageStore;
+import org.springframework.integration.store.MessageGroup;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Keeps a record, keyed by rawBundleId, of every PDR whose raw bundle has
+ * been stored until its entries are written. Records left behind by a node
+ * that stopped mid-PDR are resumed from the raw bundle on startup, by the
+ * same node or, once stale, by any other node. Stale records are looked
+ * for periodically, so PDRs of a node that does not come back are resumed.
+ * The record of an async job carries the job id, the resumed flow stores
+ * the response on the job.
+ */
+@Service
+public class PdrRecoveryService {
+	public static final String NODE_HEADER = "pdrNode";
+	public static final String ATTEMPTS_HEADER = "pdrResumeAttempts";
+	public static final String RESUMED_HEADER = "pdrResumed";
+
+	private final Logger log = LoggerFactory.getLogger(PdrRecoveryService.class);
+
+	private final JdbcMessageStore inFlightStore;
+	private final TransactionTemplate transactionTemplate;
+	private final PdrGateway pdrGateway;
+	private final DaoRegistry daoRegistry;
+	private final Executor executor;
+	private final TaskScheduler taskScheduler;
+	private final PdrJobService jobService;
+	private final String nodeId;
+	private final long staleMillis;
+	private final int maxAttempts;
+
+	@Autowired
+	public PdrRecoveryService(@Qualifier("pdrInFlightMessageStore") JdbcMessageStore inFlightStore,
+			PlatformTransactionManager transactionManager, PdrGateway pdrGateway, DaoRegistry daoRegistry,
+			@Lazy @Qualifier("pdrMaintenanceExecutor") Executor executor, @Lazy @Qualifier("taskScheduler") TaskScheduler taskScheduler,
+			@Lazy PdrJobService jobService, ApplicationProperties applicationProperties) {
+		ApplicationProperties.Pdr.MessageStore messageStore = applicationProperties.getPdr().getMessageStore();
+		this.inFlightStore = inFlightStore;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.pdrGateway = pdrGateway;
+		this.daoRegistry = daoRegistry;
+		this.executor = executor;
+		this.taskScheduler = taskScheduler;
+		this.jobService = jobService;
+		this.nodeId = PdrMessageStoreConfig.getNodeId(applicationProperties);
+		this.staleMillis = TimeUnit.MINUTES.toMillis(messageStore.getResumeStaleAfterMinutes());
+		this.maxAttempts = messageStore.getMaxResumeAttempts();
+	}
+
+	public void started(@NotNull String rawBundleId, String fhirServerBase) {
+		started(rawBundleId, fhirServerBase, null);
+	}
+
+	/**
+	 * Records a PDR of the async job {@code jobId}, if not null, taking over
+	 * the claim of the job.
+	 */
+	public void started(@NotNull String rawBundleId, String fhirServerBase, String jobId) {
+		Message<String> record = MessageBuilder.withPayload(rawBundleId)
+				.setHeader("fhirServerBase", fhirServerBase)
+				.setHeader(NODE_HEADER, nodeId)
+				.setHeader(ATTEMPTS_HEADER, 0)
+				.setHeader(PdrJobService.JOB_ID_HEADER, jobId)
+				.build();
+		transactionTemplate.executeWithoutResult(status -> {
+			inFlightStore.addMessageToGroup(rawBundleId, record);
+			if(jobId != null) {
+				jobService.release(jobId);
+			}
+		});
+	}
+
+	public void completed(@NotNull String rawBundleId) {
+		transactionTemplate.executeWithoutResult(status -> inFlightStore.removeMessageGroup(rawBundleId));
+	}
+
+	/**
+	 * Rejected PDRs are done with, other failures are resumed on the next
+	 * startup.
+	 */
+	public void failed(@NotNull String rawBundleId, Throwable cause) {
+		for(Throwable t = cause; t != null; t = t.getCause()) {
+			if(t instanceof BaseServerResponseException && ((BaseServerResponseException) t).getStatusCode() < 500) {
+				completed(rawBundleId);
+				return;
+			}
+		}
+		log.warn("PDR {} failed, it will be resumed on the next startup", rawBundleId);
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void resumeIncomplete() {
+		resumeIncomplete(true);
+		Duration interval = Duration.ofMillis(staleMillis);
+		taskScheduler.scheduleWithFixedDelay(() -> resumeIncomplete(false), Instant.now().plus(interval), interval);
+	}
+
+	/**
+	 * Resumes the stale records of any node, and the records of this node 
+	 * when {@code ownRecords} is set on startup.
+	 */
+	void resumeIncomplete(boolean ownRecords) {
+		List<Message<?>> claimed = new ArrayList<>();
+		long staleBefore = System.currentTimeMillis() - staleMillis;
+		Iterator<MessageGroup> groups = inFlightStore.iterator();
+		while(groups.hasNext()) {
+			MessageGroup group = groups.next();
+			Message<?> record = group.getOne();
+			if(record == null) {
+				continue;
+			}
+			long lastModified = group.getLastModified() > 0 ? group.getLastModified() : group.getTimestamp();
+			if((ownRecords && nodeId.equals(record.getHeaders().get(NODE_HEADER))) || lastModified < staleBefore) {
+				Message<?> claim = claim(group.getGroupId().toString(), record);
+				if(claim != null) {
+					claimed.add(claim);
+				}
+			}
+		}
+
+		if(!claimed.isEmpty()) {
+			log.info("Resuming {} incomplete PDRs", claimed.size());
+		}
+		for(Message<?> claim : claimed) {
+			executor.execute(() -> resume((String) claim.getPayload(), (String) claim.getHeaders().get("fhirServerBase"),
+					claim.getHeaders().get(PdrJobService.JOB_ID_HEADER, String.class)));
+		}
+	}
+
+	/**
+	 * Takes the record over for this node, returns null when another node
+	 * claimed it first or it has been resumed too often.
+	 */
+	private Message<?> claim(String rawBundleId, Message<?> record) {
+		return transactionTemplate.execute(status -> {
+			// only one node deletes the record
+			if(inFlightStore.removeMessage(record.getHeaders().getId()) == null) {
+				return null;
+			}
+			inFlightStore.removeMessageGroup(rawBundleId);
+			Integer attempts = record.getHeaders().get(ATTEMPTS_HEADER, Integer.class);
+			int attempt = (attempts != null ? attempts : 0) + 1;
+			if(attempt > maxAttempts) {
+				log.error("Giving up on PDR {} after {} resume attempts", rawBundleId, maxAttempts);
+				String jobId = record.getHeaders().get(PdrJobService.JOB_ID_HEADER, String.class);
+				if(jobId != null) {
+					jobService.finish(jobId, null);
+				}
+				return null;
+			}
+			Message<?> claim = MessageBuilder.fromMessage(record)
+					.setHeader(NODE_HEADER, nodeId)
+					.setHeader(ATTEMPTS_HEADER, attempt)
+					.build();
+			inFlightStore.addMessageToGroup(rawBundleId, claim);
+			return claim;
+		});
+	}
+
+	private void resume(String rawBundleId, String fhirServerBase, String jobId) {
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Bundle> bundleDao = daoRegistry.getDaoOrThrowException(Bundle.class);
+		Bundle rawBundle;
+		try {
+			rawBundle = bundleDao.read(new IdType(rawBundleId));
+		} catch (ResourceNotFoundException | ResourceGoneException e) {
+			log.warn("Raw bundle of incomplete PDR {} no longer exists", rawBundleId);
+			completed(rawBundleId);
+			if(jobId != null) {
+				jobService.finish(jobId, null);
+			}
+			return;
+		}
+		log.info("Resuming PDR {}", rawBundleId);
+		// the flow reports the outcome through completed or failed, and on the job
+		if(jobId != null) {
+			pdrGateway.resumeMessage(rawBundle, fhirServerBase, rawBundleId, jobId);
+		} else {
+			pdrGateway.resumeMessage(rawBundle, fhirServerBase, rawBundleId);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.UnsignedIntType;
+import org.hl7.fhir.r4.model.UriType;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * Processes Patient Data Receipts too large to parse into a single Bundle.
+ * The message is read as a stream and submitted in windows of entries, each
+ * window a message of its own with the original MessageHeader, so that the
+ * windows append to the same PDR List. Placeholder references must resolve
+ * within a window. Newline delimited resources imported for a patient go
+ * through the same windows under a MessageHeader of their own.
+ */
+@Service
+public class PdrStreamingService {
+	private final Logger log = LoggerFactory.getLogger(PdrStreamingService.class);
+
+	private final PdrIdempotencyService pdrIdempotencyService;
+	private final FhirContext myFhirContext;
+	private final int windowSize;
+	private final Path importDirectory;
+
+	@Autowired
+	public PdrStreamingService(PdrIdempotencyService pdrIdempotencyService, FhirContext theFhirContext,
+			ApplicationProperties applicationProperties) {
+		this.pdrIdempotencyService = pdrIdempotencyService;
+		this.myFhirContext = theFhirContext;
+		this.windowSize = applicationProperties.getPdr().getStreaming().getWindowSize();
+		String directory = applicationProperties.getPdr().getBulkImport().getDirectory();
+		this.importDirectory = directory != null ? Paths.get(directory).toAbsolutePath().normalize() : null;
+	}
+
+	public IBaseBundle processMessage(@NotNull InputStream theInputStream, String fhirServerBase) {
+		try (PdrMessageStreamReader reader = new PdrMessageStreamReader(theInputStream, myFhirContext)) {
+			MessageHeader header = reader.readMessageHeader();
+			return processWindows(header, () -> reader.nextWindow(windowSize), fhirServerBase);
+		}
+	}
+
+	/**
+	 * Imports newline delimited resources for a patient as a single PDR
+	 * received from {@code sourceEndpoint}.
+	 */
+	public IBaseBundle importResources(@NotNull InputStream theInputStream, @NotNull String patientId,
+			@NotNull String sourceEndpoint, String fhirServerBase) {
+		MessageHeader header = new MessageHeader();
+		header.setId(UUID.randomUUID().toString());
+		header.setEvent(new UriType(PatientDataReceiptService.PDR_EVENT));
+		header.getSource().setEndpoint(sourceEndpoint);
+		header.addFocus(new Reference("Patient/" + patientId));
+		try (PdrNdjsonReader reader = new PdrNdjsonReader(theInputStream, myFhirContext, header)) {
+			return processWindows(header, () -> reader.nextWindow(windowSize), fhirServerBase);
+		}
+	}
+
+	/**
+	 * Imports a newline delimited file from the configured import directory,
+	 * see {@link #importResources(InputStream, String, String, String)}.
+	 */
+	public IBaseBundle importFile(@NotNull String fileName, @NotNull String patientId,
+			@NotNull String sourceEndpoint, String fhirServerBase) {
+		if(importDirectory == null) {
+			throw new InvalidRequestException("Import from a local file is not enabled");
+		}
+		Path file = importDirectory.resolve(fileName).normalize();
+		if(!file.startsWith(importDirectory) || !Files.isRegularFile(file)) {
+			throw new InvalidRequestException("Unknown import file " + fileName);
+		}
+		try (InputStream inputStream = Files.newInputStream(file)) {
+			return importResources(inputStream, patientId, sourceEndpoint, fhirServerBase);
+		} catch (IOException e) {
+			throw new InvalidRequestException("Failed to read import file " + fileName + ": " + e.getMessage());
+		}
+	}
+
+	private IBaseBundle processWindows(MessageHeader header, Supplier<Bundle> windows, String fhirServerBase) {
+		Bundle window = windows.get();
+		if(window == null) {
+			// nothing beside the MessageHeader, rejected by the flow
+			Bundle message = new Bundle();
+			message.setType(Bundle.BundleType.MESSAGE);
+			message.addEntry().setResource(header);
+			return pdrIdempotencyService.processMessage(message, fhirServerBase);
+		}
+
+		IBaseBundle response = null;
+		int count = 0;
+		int skippedEntryCount = 0;
+		while(window != null) {
+			response = pdrIdempotencyService.processMessage(window, fhirServerBase);
+			count++;
+			MessageHeader responseHeader = getResponseHeader(response);
+			if(responseHeader == null || responseHeader.getResponse().getCode() != MessageHeader.ResponseType.OK) {
+				// earlier windows stay committed, a re-submit replays them
+				log.warn("Streamed PDR {} failed in window {}", header.getIdElement().getIdPart(), count);
+				return response;
+			}
+			skippedEntryCount += getSkippedEntryCount(responseHeader);
+			window = windows.get();
+		}
+
+		log.debug("Streamed PDR {} processed in {} windows", header.getIdElement().getIdPart(), count);
+		// report the entries skipped across all windows, without touching the replayable response
+		Bundle result = ((Bundle) response).copy();
+		Extension skipped = getResponseHeader(result).getResponse()
+				.getExtensionByUrl(PdrIntegrationConfig.SKIPPED_ENTRY_COUNT_EXTENSION);
+		if(skipped != null) {
+			skipped.setValue(new UnsignedIntType(skippedEntryCount));
+		}
+		return result;
+	}
+
+	private static MessageHeader getResponseHeader(IBaseBundle response) {
+		if(response instanceof Bundle && ((Bundle) response).getEntryFirstRep().getResource() instanceof MessageHeader) {
+			return (MessageHeader) ((Bundle) response).getEntryFirstRep().getResource();
+		}
+		return null;
+	}
+
+	private static int getSkippedEntryCount(MessageHeader responseHeader) {
+		Extension skipped = responseHeader.getResponse().getExtensionByUrl(PdrIntegrationConfig.SKIPPED_ENTRY_COUNT_EXTENSION);
+		return skipped != null && skipped.getValue() instanceof UnsignedIntType
+				? ((UnsignedIntType) skipped.getValue()).getValue() : 0;
+	}
+}
@@ -1,7 +1,19 @@
 package org.mitre.healthmanager.lib.pdr;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 import javax.validation.constraints.NotNull;
 
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
@@ -10,6 +22,8 @@ import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.MessageHeader;
 import org.hl7.fhir.r4.model.Provenance;
 import org.hl7.fhir.r4.model.Resource;
+import org.mitre.healthmanager.lib.pdr.index.PdrSourceIdentityService;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
@@ -20,74 +34,235 @@ import ca.uhn.fhir.rest.api.SortOrderEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
 
 @Service
 public class RecordMatchService {
+	// number of source ids OR'ed together in a single Provenance search
+	public static final int SOURCE_ID_CHUNK_SIZE = 100;
+	// Provenance loaded at a time while looking for the latest of each source
+	public static final int PROVENANCE_PAGE_SIZE = 200;
+	
+	@Autowired
+	PdrSourceIdentityService sourceIdentityService;
+	
 	public BundleEntryComponent recordMatch(BundleEntryComponent entry, 
 			@NotNull String internalPatientId,
 			@NotNull MessageHeader theHeader, @NotNull DaoRegistry daoRegistry) {
-		Resource resource = entry.getResource();
-		BundleEntryRequestComponent request = entry.getRequest();
-		
 		IdType sourceId = PatientDataReceiptService.getTransactionRequestEntryResourceId(entry, theHeader);
 		IdType targetId = null;
 		if(sourceId != null) {
-			targetId = (IdType) findExistingTargetResourceId(internalPatientId, sourceId, daoRegistry);
-			if(targetId != null) {
-				// existing resource update
-	    		request.setUrl(targetId.getResourceType() + '/' + targetId.getIdPart());
-	    		request.setMethod(Bundle.HTTPVerb.PUT);
+			IIdType existing = findExistingTargetResourceId(internalPatientId, sourceId, daoRegistry);
+			if(existing != null) {
+				Map<String, IIdType> targetIds = new HashMap<>(Collections.singletonMap(sourceId.getValue(), existing));
+				removeDeletedTargets(targetIds, daoRegistry);
+				targetId = (IdType) targetIds.get(sourceId.getValue());
+			}
+		}
+		return applyTargetId(entry, targetId);
+	}
+	
+	/**
+	 * Record match all entries of a PDR resolving existing target resources 
+	 * with chunked Provenance searches instead of one search per entry.
+	 */
+	public Bundle recordMatch(Bundle theBundle, 
+			@NotNull String internalPatientId,
+			@NotNull MessageHeader theHeader, @NotNull DaoRegistry daoRegistry) {
+		Map<BundleEntryComponent, IdType> sourceIds = new IdentityHashMap<>();
+		for(BundleEntryComponent entry : theBundle.getEntry()) {
+			IdType sourceId = PatientDataReceiptService.getTransactionRequestEntryResourceId(entry, theHeader);
+			if(sourceId != null) {
+				sourceIds.put(entry, sourceId);
 			}
 		}
-			
-		if(targetId == null) {
-			// new resource
-			targetId = new IdType(resource.getResourceType().name(), resource.getIdElement().getIdPart());
-	    	request.setUrl(targetId.getResourceType());
-	    	request.setMethod(Bundle.HTTPVerb.POST);		
-		}		
 		
-		String fullUrl;
-		if (targetId.getIdPart() == null) {
-			fullUrl = "";
-		} else if (PatientDataReceiptService.isGUID(targetId.getIdPart())) {
-			fullUrl = "urn:uuid:" + targetId.getIdPart();
-		} else if (!targetId.getIdPart().equals("")) {
-			fullUrl = new StringBuilder()
-					.append(resource.getResourceType())
-					.append('/')
-					.append(targetId.getIdPart()).toString();	          
-		} else {
-			fullUrl = "";
+		Map<String, IIdType> targetIds = findExistingTargetResourceIds(internalPatientId, sourceIds.values(), daoRegistry);
+		for(BundleEntryComponent entry : theBundle.getEntry()) {
+			IdType sourceId = sourceIds.get(entry);
+			IdType targetId = null;
+			if(sourceId != null) {
+				targetId = isPatientSource(sourceId) ? new IdType("Patient", internalPatientId)
+						: (IdType) targetIds.get(sourceId.getValue());
+			}
+			applyTargetId(entry, targetId);
+		}
+		
+		return theBundle;
+	}
+	
+	/**
+	 * Returns a map of source id value to the current target resource id 
+	 * for all source ids that were previously stored for the patient.
+	 * The source identity index is consulted first, misses fall back to 
+	 * Provenance searches unless the index is authoritative. Targets that
+	 * no longer exist, e.g. deleted with their PDR, are left out.
+	 */
+	public Map<String, IIdType> findExistingTargetResourceIds(@NotNull String patientInternalId,
+			@NotNull Iterable<IdType> sourceIds, @NotNull DaoRegistry daoRegistry) {
+		Map<String, IdType> sources = new LinkedHashMap<>();
+		for(IdType sourceId : sourceIds) {
+			if(!isPatientSource(sourceId)) {
+				sources.put(sourceId.getValue(), sourceId);
+			}
+		}
+		
+		Map<String, IIdType> targetIds = new HashMap<>(
+				sourceIdentityService.findTargetResourceIds(patientInternalId, sources.values()));
+		if(sourceIdentityService.isAuthoritative()) {
+			removeDeletedTargets(targetIds, daoRegistry);
+			return targetIds;
+		}
+		
+		IFhirResourceDao<Provenance> dao = daoRegistry.getResourceDao(Provenance.class);
+		List<String> chunk = new ArrayList<>(SOURCE_ID_CHUNK_SIZE);
+		for(String source : sources.keySet()) {
+			if(targetIds.containsKey(source)) {
+				continue;
+			}
+			chunk.add(source);
+			if(chunk.size() == SOURCE_ID_CHUNK_SIZE) {
+				findTargetResourceIds(patientInternalId, chunk, dao, targetIds);
+				chunk.clear();
+			}
+		}
+		if(!chunk.isEmpty()) {
+			findTargetResourceIds(patientInternalId, chunk, dao, targetIds);
+		}
+		
+		removeDeletedTargets(targetIds, daoRegistry);
+		return targetIds;
+	}
+	
+	/**
+	 * Removes the targets that are deleted or expunged, a source pointing
+	 * at one is stored as a new resource instead of updating the old id.
+	 */
+	private void removeDeletedTargets(@NotNull Map<String, IIdType> targetIds, @NotNull DaoRegistry daoRegistry) {
+		Map<String, List<String>> idPartsByType = targetIds.values().stream()
+				.collect(Collectors.groupingBy(IIdType::getResourceType,
+						Collectors.mapping(IIdType::getIdPart, Collectors.toList())));
+		Set<String> existing = new HashSet<>();
+		idPartsByType.forEach((resourceType, idParts) -> {
+			for(int from = 0; from < idParts.size(); from += SOURCE_ID_CHUNK_SIZE) {
+				List<String> chunk = idParts.subList(from, Math.min(from + SOURCE_ID_CHUNK_SIZE, idParts.size()));
+				SearchParameterMap theParams = SearchParameterMap.newSynchronous();
+				theParams.add("_id", new TokenOrListParam(null, chunk.toArray(new String[0])));
+				for(IBaseResource resource : daoRegistry.getResourceDao(resourceType).search(theParams).getAllResources()) {
+					existing.add(resource.getIdElement().toUnqualifiedVersionless().getValue());
+				}
+			}
+		});
+		targetIds.values().removeIf(targetId -> !existing.contains(targetId.toUnqualifiedVersionless().getValue()));
+	}
+	
+	private void findTargetResourceIds(@NotNull String patientInternalId, @NotNull List<String> sources,
+			@NotNull IFhirResourceDao<Provenance> dao, @NotNull Map<String, IIdType> targetIds) {
+		StringOrListParam sourceParam = new StringOrListParam();
+		sources.forEach(source -> sourceParam.addOr(new StringParam(source)));
+		
+		SearchParameterMap theParams = new SearchParameterMap();
+		theParams.add("patient", new ReferenceParam(new IdType("Patient", patientInternalId)));
+		theParams.add(Constants.PARAM_SOURCE, sourceParam);
+		theParams.setSort(new SortSpec().setOrder(SortOrderEnum.DESC).setParamName(Constants.PARAM_LASTUPDATED));
+		
+		// newest first, stop paging once every source has its latest Provenance
+		IBundleProvider results = dao.search(theParams);
+		Set<String> pending = new HashSet<>(sources);
+		int from = 0;
+		while(!pending.isEmpty()) {
+			List<IBaseResource> page = results.getResources(from, from + PROVENANCE_PAGE_SIZE);
+			if(page.isEmpty()) {
+				break;
+			}
+			for(IBaseResource resource : page) {
+				Provenance provenance = (Provenance) resource;
+				String source = PatientDataReceiptService.getProvenanceSource(provenance);
+				if(source != null && provenance.getTarget().size() > 1 && pending.remove(source)) {
+					IIdType targetId = provenance.getTarget().get(1).getReferenceElement();
+					targetIds.put(source, targetId);
+					// backfill entries stored before the index existed
+					sourceIdentityService.recordTargetResourceId(patientInternalId, new IdType(source), targetId);
+				}
+			}
+			from += page.size();
 		}
-		entry.setFullUrl(fullUrl);	
-
-		return entry;
 	}
 	
 	private IIdType findExistingTargetResourceId(@NotNull String patientInternalId,
 			@NotNull IdType sourceId, @NotNull DaoRegistry daoRegistry) {		
-		if(sourceId.getResourceType().equals("Patient")) {
+		if(isPatientSource(sourceId)) {
 			// update own patient record
 			return new IdType("Patient", patientInternalId);
 		}
 		
+		IIdType indexed = sourceIdentityService.findTargetResourceIds(patientInternalId, Collections.singletonList(sourceId))
+				.get(sourceId.getValue());
+		if(indexed != null || sourceIdentityService.isAuthoritative()) {
+			return indexed;
+		}
+		
 		SearchParameterMap theParams = new SearchParameterMap();
 		theParams.add("patient", new ReferenceParam(new IdType("Patient", patientInternalId)));			
 		theParams.add(Constants.PARAM_SOURCE, new StringParam(sourceId.getValue()));	
 		theParams.setSort(new SortSpec().setOrder(SortOrderEnum.DESC).setParamName("recorded"));
+		theParams.setCount(1);
 		
 		IFhirResourceDao<Provenance> dao = daoRegistry.getResourceDao(Provenance.class);
 		IBundleProvider results = dao.search(theParams);
-		if(!results.isEmpty()){
-			Provenance provenance = (Provenance) results.getAllResources().get(0);
+		List<IBaseResource> first = results.getResources(0, 1);
+		if(!first.isEmpty()){
+			Provenance provenance = (Provenance) first.get(0);
 			if(provenance.getTarget().size() > 1) {
-				return provenance.getTarget().get(1).getReferenceElement();
+				IIdType targetId = provenance.getTarget().get(1).getReferenceElement();
+				sourceIdentityService.recordTargetResourceId(patientInternalId, sourceId, targetId);
+				return targetId;
 			}
 		}
 		
 		return null;
 	}
+	
+	private BundleEntryComponent applyTargetId(BundleEntryComponent entry, IdType targetId) {
+		Resource resource = entry.getResource();
+		BundleEntryRequestComponent request = entry.getRequest();
+		
+		if(targetId != null) {
+			// existing resource update
+    		request.setUrl(targetId.getResourceType() + '/' + targetId.getIdPart());
+    		request.setMethod(Bundle.HTTPVerb.PUT);
+		} else {
+			// new resource
+			targetId = new IdType(resource.getResourceType().name(), resource.getIdElement().getIdPart());
+	    	request.setUrl(targetId.getResourceType());
+	    	request.setMethod(Bundle.HTTPVerb.POST);		
+		}		
+		
+		entry.setFullUrl(getFullUrl(resource.getResourceType().name(), targetId.getIdPart()));	
+
+		return entry;
+	}
+	
+	/**
+	 * Transaction fullUrl given to an entry of the resource type and id, 
+	 * empty when there is no id.
+	 */
+	public static String getFullUrl(@NotNull String resourceType, String idPart) {
+		if (idPart == null || idPart.equals("")) {
+			return "";
+		} else if (PatientDataReceiptService.isGUID(idPart)) {
+			return "urn:uuid:" + idPart;
+		}
+		return new StringBuilder()
+				.append(resourceType)
+				.append('/')
+				.append(idPart).toString();
+	}
+	
+	private static boolean isPatientSource(@NotNull IdType sourceId) {
+		return "Patient".equals(sourceId.getResourceType());
+	}
 
 }
@@ -1,13 +1,18 @@
 package org.mitre.healthmanager.lib.pdr.data;
 
-import java.util.Base64;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.validation.constraints.NotNull;
 
-import org.hl7.fhir.convertors.factory.VersionConvertorFactory_10_40;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.AllergyIntolerance;
-import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
@@ -18,35 +23,143 @@ import org.hl7.fhir.r4.model.Immunization;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Procedure;
-import org.hl7.fhir.r4.model.Property;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
-import org.springframework.integration.annotation.Transformer;
-import org.springframework.messaging.handler.annotation.Header;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.gargoylesoftware.htmlunit.util.MimeType;
 import com.mysql.cj.util.StringUtils;
 
-import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 
 @Service
 public class AppleHealthKitService extends DataTransformer {
+	public static final String SOURCE_ENDPOINT = "urn:apple:health-kit";
 	public static final Coding PREGNANCY_CODING = new Coding().setCode("77386006").setSystem("http://snomed.info/sct");
 	
-	private static final FhirContext fhirContextforDstu2Hl7Org = FhirContext.forDstu2Hl7Org();
+	// thread safe, shared by all entries
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	
+	// sampleType -> converter
+	private final Map<String, HealthKitSampleConverter> converters = new ConcurrentHashMap<>();
+	
+	private final HealthKitSamplePacker packer;
+	
+	private final Dstu2ConversionService dstu2ConversionService;
+	
+	public AppleHealthKitService() {
+		this(new ApplicationProperties(), new Dstu2ConversionService());
+	}
+	
+	@Autowired
+	public AppleHealthKitService(ApplicationProperties applicationProperties, Dstu2ConversionService dstu2ConversionService) {
+		this.dstu2ConversionService = dstu2ConversionService;
+		ApplicationProperties.Pdr.HealthKit healthKit = applicationProperties.getPdr().getHealthKit();
+		this.packer = healthKit.isPackSamples() 
+				? new HealthKitSamplePacker(TimeUnit.MINUTES.toMillis(healthKit.getPackWindowMinutes()), 
+						TimeUnit.SECONDS.toMillis(healthKit.getPackPeriodSeconds()))
+				: null;
+		
+		registerConverter("HKCategoryTypeIdentifierPregnancy", this::convertPregnancy);
+		registerConverter("HKQuantityTypeIdentifierHeartRate", new QuantitySampleConverter(
+				loinc("8867-4", "Heart rate"), QuantitySampleConverter.VITAL_SIGNS, "/min", 1, HealthKitSamplePacker.Aggregation.MEAN));
+		registerConverter("HKQuantityTypeIdentifierRespiratoryRate", new QuantitySampleConverter(
+				loinc("9279-1", "Respiratory rate"), QuantitySampleConverter.VITAL_SIGNS, "/min", 1, HealthKitSamplePacker.Aggregation.MEAN));
+		registerConverter("HKQuantityTypeIdentifierOxygenSaturation", new QuantitySampleConverter(
+				loinc("2708-6", "Oxygen saturation in Arterial blood"), QuantitySampleConverter.VITAL_SIGNS, "%", 100, HealthKitSamplePacker.Aggregation.MEAN));
+		registerConverter("HKQuantityTypeIdentifierStepCount", new QuantitySampleConverter(
+				loinc("55423-8", "Number of steps"), QuantitySampleConverter.ACTIVITY, "{steps}", 1, HealthKitSamplePacker.Aggregation.SUM));
+		registerConverter("HKQuantityTypeIdentifierBodyMass", new QuantitySampleConverter(
+				loinc("29463-7", "Body weight"), QuantitySampleConverter.VITAL_SIGNS, "kg", 1, null));
+		
+		// clinical records reference the provider's encounters and practitioners
+		addReferenceRule(Observation.class, (observation, patient) -> {
+			observation.getSubject().setReference(patient);
+			observation.setEncounter((Reference) null);
+		});
+		addReferenceRule(Procedure.class, (procedure, patient) -> {
+			procedure.getSubject().setReference(patient);
+			procedure.setEncounter((Reference) null);
+			procedure.getPerformer().clear();
+		});
+		addReferenceRule(Condition.class, (condition, patient) -> {
+			condition.getSubject().setReference(patient);
+			condition.setAsserter((Reference) null);
+		});
+		addReferenceRule(AllergyIntolerance.class, (allergy, patient) -> allergy.getPatient().setReference(patient));
+		addReferenceRule(Immunization.class, (immunization, patient) -> {
+			immunization.getPatient().setReference(patient);
+			immunization.setEncounter((Reference) null);
+			immunization.getPerformer().clear();
+		});
+	}
+	
+	/**
+	 * Registers the converter of a HealthKit sampleType, replacing any 
+	 * converter registered before.
+	 */
+	public void registerConverter(@NotNull String sampleType, @NotNull HealthKitSampleConverter converter) {
+		converters.put(sampleType, converter);
+	}
+	
+	/**
+	 * Packs the high frequency samples of a transformed PDR, returns the 
+	 * number of entries removed.
+	 */
+	public int packSamples(@NotNull Bundle theMessage) {
+		return packer != null ? packer.pack(theMessage) : 0;
+	}
+	
+	@Override
+	public Bundle transformAggregate(@NotNull Bundle theMessage) {
+		packSamples(theMessage);
+		return theMessage;
+	}
+	
+	/**
+	 * Merges packed windows updating a stored window with its samples.
+	 */
+	@Override
+	public Bundle transformMatched(@NotNull Bundle theMessage, @NotNull DaoRegistry daoRegistry) {
+		if(packer == null) {
+			return theMessage;
+		}
+		for(BundleEntryComponent entry : theMessage.getEntry()) {
+			if(entry.getRequest().getMethod() != Bundle.HTTPVerb.PUT || !HealthKitSamplePacker.isPacked(entry.getResource())) {
+				continue;
+			}
+			IdType targetId = new IdType(entry.getRequest().getUrl());
+			try {
+				IBaseResource stored = daoRegistry.getResourceDao(targetId.getResourceType()).read(targetId);
+				if(stored instanceof Observation) {
+					packer.merge((Observation) entry.getResource(), (Observation) stored);
+				}
+			} catch (ResourceNotFoundException | ResourceGoneException e) {
+				// stored anew
+			}
+		}
+		return theMessage;
+	}
 	
 	public BundleEntryComponent transformBundleEntry(BundleEntryComponent entry, String internalPatientId) {
 		return transform(entry, internalPatientId);
 	}
 	
-	@Transformer(inputChannel = "healthKitChannel")
-	BundleEntryComponent transform(BundleEntryComponent entry, @Header("internalPatientId") @NotNull String internalPatientId) {
+	@Override
+	public Set<String> getSourceEndpoints() {
+		return Collections.singleton(SOURCE_ENDPOINT);
+	}
+	
+	@Override
+	public BundleEntryComponent transform(@NotNull BundleEntryComponent entry, @NotNull String internalPatientId) {
 		Resource resource = entry.getResource();
         if (resource instanceof Binary) {
         	resource = convertBinary((Binary)resource, internalPatientId);
@@ -57,30 +170,35 @@ public class AppleHealthKitService extends DataTransformer {
 	}
 	
 	private Resource convertBinary(Binary binary, String internalPatientId) {
+		if(!binary.hasData()) {
+			throw new UnprocessableEntityException("Unprocessable binary resource data.");
+		}
 		if(binary.getContentType().equals(MimeType.APPLICATION_JSON)) {
-			String jsonStringBase64 = binary.getDataElement().getValueAsString();
-			String jsonString = new String(Base64.getDecoder().decode(jsonStringBase64));
-			ObjectMapper mapper = new ObjectMapper();
-			JsonNode node = null;
-			try {
-				node = mapper.readTree(jsonString);
-			} catch (JsonProcessingException e) {
-				throw new UnprocessableEntityException("Unprocessable binary resource data.");
-			}
-			String sampleType = node.get("sampleType").asText();
-			if(sampleType.equals("HKCategoryTypeIdentifierPregnancy")){
-				return convertPregnancy(node);
+			HealthKitSample sample = readSample(binary);
+			HealthKitSampleConverter converter = sample.getSampleType() != null ? converters.get(sample.getSampleType()) : null;
+			if(converter == null) {
+				throw new UnprocessableEntityException("Unsupported HealthKit sample type: " + sample.getSampleType());
 			}
+			return converter.convert(sample);
 		} else if(binary.getContentType().equals(Constants.CT_FHIR_JSON_NEW)){
-			return convertDstu2(binary);
+			return dstu2ConversionService.convert(binary);
 		}
 		throw new UnprocessableEntityException("Unprocessable binary resource content type.");	
 	}
 	
-	private Condition convertPregnancy(JsonNode node) {
-		String uuid = node.get("uuid").asText();
-		String startDateString = node.get("startDate").asText();
-		String endDateString = node.get("endDate").asText();
+	HealthKitSample readSample(Binary binary) {
+		// the parsed Binary already holds the decoded bytes
+		try (JsonParser parser = jsonFactory.createParser(binary.getData())) {
+			return HealthKitSample.read(parser);
+		} catch (IOException e) {
+			throw new UnprocessableEntityException("Unprocessable binary resource data.");
+		}
+	}
+	
+	private Condition convertPregnancy(HealthKitSample sample) {
+		String uuid = sample.getUuid();
+		String startDateString = sample.getStartDate();
+		String endDateString = sample.getEndDate();
 		
 		Condition condition = new Condition();
 		condition.setId(new IdType("HKCategoryTypeIdentifierPregnancy", uuid));
@@ -102,70 +220,7 @@ public class AppleHealthKitService extends DataTransformer {
 		return condition;
 	}
 	
-	private Resource convertDstu2(Binary binary) {				
-		String jsonStringBase64 = binary.getDataElement().getValueAsString();
-		String jsonString = new String(Base64.getDecoder().decode(jsonStringBase64));
-		org.hl7.fhir.dstu2.model.Resource input = 
-				(org.hl7.fhir.dstu2.model.Resource) fhirContextforDstu2Hl7Org.newJsonParser().parseResource(jsonString);
-		
-		if(VersionConvertorFactory_10_40.convertsResource(input.getResourceType().name())) {
-			return VersionConvertorFactory_10_40.convertResource(input);
-		}
-		throw new UnprocessableEntityException("Unprocessable binary resource fhir type: " + input.getResourceType().name());			
-	}
-	
-	private void fixReferences(Resource resource, String internalPatientId) {
-		for(Property child : resource.children()) {
-			if(child.getTypeCode().startsWith("Reference")) {
-				for(Base value : child.getValues()) {
-					Reference reference = (Reference) value;
-					if(isPatientReference(child)) {
-						if(child.getName().equals("patient") || child.getName().equals("subject")) {
-							reference.setReference("Patient/" + internalPatientId);
-						}
-						else if(reference.getReferenceElement() != null
-								&& reference.getReferenceElement().getResourceType() != null
-								&& reference.getReferenceElement().getResourceType().equals("Patient")) {
-							// clear performer, asserter, etc
-							reference.setReference(null);
-						}							
-					}
-				}
-			}
-		}
-				
-        if (resource instanceof Observation) {
-        	((Observation)resource).getSubject().setReference("Patient/" + internalPatientId);
-           ((Observation)resource).setEncounter((Reference)null);
-        } else if (resource instanceof Procedure) {
-        	((Procedure)resource).getSubject().setReference("Patient/" + internalPatientId);
-           ((Procedure)resource).setEncounter((Reference)null);
-           ((Procedure)resource).getPerformer().clear();
-        } else if (resource instanceof Condition) {
-        	((Condition)resource).getSubject().setReference("Patient/" + internalPatientId);
-           ((Condition)resource).setAsserter((Reference)null);
-        } else if (resource instanceof AllergyIntolerance) {
-        	((AllergyIntolerance)resource).getPatient().setReference("Patient/" + internalPatientId);
-        } else if (resource instanceof Immunization) {
-        	((Immunization)resource).getPatient().setReference("Patient/" + internalPatientId);
-           ((Immunization)resource).setEncounter((Reference)null);
-           ((Immunization)resource).getPerformer().clear();
-        }
-	}
-	
-	private boolean isPatientReference(Property child) {
-		if(!child.getTypeCode().startsWith("Reference(")) {
-			return false;
-		}
-		
-		if(child.getTypeCode().equals("Reference(Patient)")) {
-			return true;
-		} else if(child.getTypeCode().contains("(Patient|")
-				|| child.getTypeCode().contains("|Patient|")
-				|| child.getTypeCode().contains("|Patient)")) {
-			return true;			
-		}
-		
-		return false;
+	private static Coding loinc(String code, String display) {
+		return new Coding().setSystem("http://loinc.org").setCode(code).setDisplay(display);
 	}
 }
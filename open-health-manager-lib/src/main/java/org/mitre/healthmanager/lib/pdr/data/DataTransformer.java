@@ -1,10 +1,83 @@
 package org.mitre.healthmanager.lib.pdr.data;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
 import javax.validation.constraints.NotNull;
 
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
-import org.springframework.messaging.handler.annotation.Header;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.util.ClassUtils;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 
+/**
+ * Converts the entries of Patient Data Receipts from the source endpoints it
+ * declares. Transformer beans are registered with the 
+ * {@link DataTransformerRegistry}, entries from other sources are stored 
+ * as received.
+ */
 public abstract class DataTransformer {
-	abstract BundleEntryComponent transform(BundleEntryComponent entry, @Header("internalPatientId") @NotNull String internalPatientId);
+	// resource type -> source specific reference fixes, applied after the plan
+	private final Map<Class<? extends Resource>, BiConsumer<Resource, String>> referenceRules = new ConcurrentHashMap<>();
+	
+	/**
+	 * MessageHeader source endpoints of the messages handled by this transformer.
+	 */
+	public abstract Set<String> getSourceEndpoints();
+	
+	/**
+	 * Transforms a single entry, entries of a PDR are transformed in parallel.
+	 */
+	public abstract BundleEntryComponent transform(@NotNull BundleEntryComponent entry, @NotNull String internalPatientId);
+	
+	/**
+	 * Called with all transformed entries of a PDR, in their original order,
+	 * before record matching. Does nothing by default.
+	 */
+	public Bundle transformAggregate(@NotNull Bundle theMessage) {
+		return theMessage;
+	}
+	
+	/**
+	 * Called with the record matched entries of a PDR on the lane of its
+	 * patient, before unchanged entries are skipped. Entries updating a 
+	 * stored resource may be merged with it. Does nothing by default.
+	 */
+	public Bundle transformMatched(@NotNull Bundle theMessage, @NotNull DaoRegistry daoRegistry) {
+		return theMessage;
+	}
+	
+	/**
+	 * Name of the transformer in metrics and logs.
+	 */
+	public String getName() {
+		return ClassUtils.getUserClass(this).getSimpleName();
+	}
+	
+	/**
+	 * Adds a fix for the references of one resource type, called with the
+	 * resource and the internal patient reference.
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T extends Resource> void addReferenceRule(@NotNull Class<T> type, @NotNull BiConsumer<T, String> rule) {
+		referenceRules.merge(type, (BiConsumer<Resource, String>) rule, BiConsumer::andThen);
+	}
+	
+	/**
+	 * Points patient and subject references at the internal patient and
+	 * clears other references to a Patient, then applies the rules added 
+	 * for the resource type.
+	 */
+	protected void fixReferences(@NotNull Resource resource, @NotNull String internalPatientId) {
+		String patientReference = "Patient/" + internalPatientId;
+		PatientReferencePlan.of(resource).apply(resource, patientReference);
+		BiConsumer<Resource, String> rule = referenceRules.get(resource.getClass());
+		if(rule != null) {
+			rule.accept(resource, patientReference);
+		}
+	}
 }
@@ -0,0 +1,101 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Routes PDR entries to the {@link DataTransformer} registered for the
+ * source endpoint of their message. Every transformer gets timers of its
+ * entry and aggregate transforms, tagged with the transformer name.
+ */
+@Service
+public class DataTransformerRegistry {
+	public static final String ENTRY_TIMER = "pdr.transform.entry";
+	public static final String AGGREGATE_TIMER = "pdr.transform.aggregate";
+
+	private final Logger log = LoggerFactory.getLogger(DataTransformerRegistry.class);
+
+	// source endpoint -> transformer
+	private final Map<String, Registration> registrations = new HashMap<>();
+
+	@Autowired
+	public DataTransformerRegistry(List<DataTransformer> transformers, MeterRegistry meterRegistry) {
+		for(DataTransformer transformer : transformers) {
+			Registration registration = new Registration(transformer, meterRegistry);
+			for(String sourceEndpoint : transformer.getSourceEndpoints()) {
+				Registration existing = registrations.putIfAbsent(sourceEndpoint, registration);
+				if(existing != null) {
+					throw new IllegalStateException("Source endpoint " + sourceEndpoint + " is handled by both "
+							+ existing.transformer.getName() + " and " + transformer.getName());
+				}
+			}
+			log.info("Registered PDR transformer {} for {}", transformer.getName(), transformer.getSourceEndpoints());
+		}
+	}
+
+	public DataTransformer getTransformer(String sourceEndpoint) {
+		Registration registration = sourceEndpoint != null ? registrations.get(sourceEndpoint) : null;
+		return registration != null ? registration.transformer : null;
+	}
+
+	/**
+	 * Transforms the entry with the transformer of the source endpoint,
+	 * returns the entry as is if there is none.
+	 */
+	public BundleEntryComponent transform(@NotNull BundleEntryComponent entry, String sourceEndpoint,
+			@NotNull String internalPatientId) {
+		Registration registration = sourceEndpoint != null ? registrations.get(sourceEndpoint) : null;
+		if(registration == null) {
+			return entry;
+		}
+		return registration.entryTimer.record(() -> registration.transformer.transform(entry, internalPatientId));
+	}
+
+	public Bundle transformAggregate(@NotNull Bundle theMessage, String sourceEndpoint) {
+		Registration registration = sourceEndpoint != null ? registrations.get(sourceEndpoint) : null;
+		if(registration == null) {
+			return theMessage;
+		}
+		return registration.aggregateTimer.record(() -> registration.transformer.transformAggregate(theMessage));
+	}
+
+	public Bundle transformMatched(@NotNull Bundle theMessage, String sourceEndpoint, @NotNull DaoRegistry daoRegistry) {
+		Registration registration = sourceEndpoint != null ? registrations.get(sourceEndpoint) : null;
+		if(registration == null) {
+			return theMessage;
+		}
+		return registration.transformer.transformMatched(theMessage, daoRegistry);
+	}
+
+	private static class Registration {
+		private final DataTransformer transformer;
+		private final Timer entryTimer;
+		private final Timer aggregateTimer;
+
+		Registration(DataTransformer transformer, MeterRegistry meterRegistry) {
+			this.transformer = transformer;
+			this.entryTimer = Timer.builder(ENTRY_TIMER)
+					.description("Time to transform a single PDR entry")
+					.tag("transformer", transformer.getName())
+					.register(meterRegistry);
+			this.aggregateTimer = Timer.builder(AGGREGATE_TIMER)
+					.description("Time to transform the aggregated entries of a PDR")
+					.tag("transformer", transformer.getName())
+					.register(meterRegistry);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_10_40;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+/**
+ * Converts DSTU2 resources sent as FHIR JSON Binaries to R4. Parsers are
+ * reused per thread and whether a resource type can be converted is looked
+ * up once per type.
+ */
+@Service
+public class Dstu2ConversionService {
+	private static final FhirContext fhirContextforDstu2Hl7Org = FhirContext.forDstu2Hl7Org();
+
+	// HAPI parsers are not thread safe, keep one per thread
+	private static final ThreadLocal<IParser> dstu2Parser = ThreadLocal.withInitial(() -> fhirContextforDstu2Hl7Org.newJsonParser());
+
+	// resource type name -> convertible
+	private final Map<String, Boolean> convertible = new ConcurrentHashMap<>();
+
+	public Resource convert(@NotNull Binary binary) {
+		if(!binary.hasData()) {
+			throw new UnprocessableEntityException("Unprocessable binary resource data.");
+		}
+		org.hl7.fhir.dstu2.model.Resource input = (org.hl7.fhir.dstu2.model.Resource) dstu2Parser.get()
+				.parseResource(new InputStreamReader(new ByteArrayInputStream(binary.getData()), StandardCharsets.UTF_8));
+
+		String resourceType = input.getResourceType().name();
+		if(convertible.computeIfAbsent(resourceType, VersionConvertorFactory_10_40::convertsResource)) {
+			return VersionConvertorFactory_10_40.convertResource(input);
+		}
+		throw new UnprocessableEntityException("Unprocessable binary resource fhir type: " + resourceType);
+	}
+}
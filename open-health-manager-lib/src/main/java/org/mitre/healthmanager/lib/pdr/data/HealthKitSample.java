@@ -0,0 +1,82 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The top level fields of an exported HealthKit sample, read in a single
+ * pass with the streaming API. Nested objects such as metadata are skipped.
+ */
+public final class HealthKitSample {
+	private String sampleType;
+	private String uuid;
+	private String value;
+	private String unit;
+	private String startDate;
+	private String endDate;
+
+	static HealthKitSample read(JsonParser parser) throws IOException {
+		if(parser.nextToken() != JsonToken.START_OBJECT) {
+			throw new IOException("HealthKit sample must be a JSON object");
+		}
+		HealthKitSample sample = new HealthKitSample();
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if(token.isStructStart()) {
+				parser.skipChildren();
+				continue;
+			}
+			String text = token == JsonToken.VALUE_NULL ? null : parser.getText();
+			switch(field) {
+			case "sampleType":
+				sample.sampleType = text;
+				break;
+			case "uuid":
+				sample.uuid = text;
+				break;
+			case "value":
+				sample.value = text;
+				break;
+			case "unit":
+				sample.unit = text;
+				break;
+			case "startDate":
+				sample.startDate = text;
+				break;
+			case "endDate":
+				sample.endDate = text;
+				break;
+			default:
+				break;
+			}
+		}
+		return sample;
+	}
+
+	public String getSampleType() {
+		return sampleType;
+	}
+
+	public String getUuid() {
+		return uuid;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public String getStartDate() {
+		return startDate;
+	}
+
+	public String getEndDate() {
+		return endDate;
+	}
+}
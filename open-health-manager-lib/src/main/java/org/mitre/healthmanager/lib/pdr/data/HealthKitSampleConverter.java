@@ -0,0 +1,12 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Converts the exported HealthKit samples of one sampleType, registered
+ * with {@link AppleHealthKitService#registerConverter}.
+ */
+@FunctionalInterface
+public interface HealthKitSampleConverter {
+	Resource convert(HealthKitSample sample);
+}
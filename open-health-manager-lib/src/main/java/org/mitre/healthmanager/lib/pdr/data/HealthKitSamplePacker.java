@@ -0,0 +1,227 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.SampledData;
+import org.hl7.fhir.r4.model.StringType;
+
+/**
+ * Packs high frequency samples into SampledData. Observations marked by a
+ * converter are grouped by patient, code and time window, each window 
+ * becomes a single Observation holding one value per sampling period, E for
+ * periods without samples. The id of a window only depends on patient, code
+ * and window start, and the packed samples are kept as extensions so that
+ * samples of later syncs are merged into the stored window.
+ */
+public class HealthKitSamplePacker {
+	/**
+	 * Observation user data holding the {@link Aggregation} of a packable sample.
+	 */
+	public static final String PACKING = HealthKitSamplePacker.class.getName() + ".packing";
+	
+	/**
+	 * Extension of a packed Observation per sample, "uuid start-millis value".
+	 */
+	public static final String SAMPLE_EXTENSION = "urn:mitre:healthmanager:pdr:packed-sample";
+
+	/**
+	 * How the samples falling into the same sampling period are combined.
+	 */
+	public enum Aggregation {
+		MEAN, SUM
+	}
+
+	private final long windowMillis;
+	private final long periodMillis;
+
+	public HealthKitSamplePacker(long windowMillis, long periodMillis) {
+		this.windowMillis = windowMillis;
+		this.periodMillis = periodMillis;
+	}
+
+	/**
+	 * Replaces the packable Observations of the bundle with their packed
+	 * windows, returns the number of entries removed.
+	 */
+	public int pack(Bundle theBundle) {
+		Map<String, List<BundleEntryComponent>> windows = new LinkedHashMap<>();
+		for(BundleEntryComponent entry : theBundle.getEntry()) {
+			if(entry.getResource() instanceof Observation && entry.getResource().getUserData(PACKING) != null) {
+				Observation sample = (Observation) entry.getResource();
+				Date start = getStart(sample);
+				if(start == null || !sample.hasValueQuantity()) {
+					continue;
+				}
+				Coding code = sample.getCode().getCodingFirstRep();
+				String key = sample.getSubject().getReference() + '|' + code.getSystem() + '|' + code.getCode()
+						+ '|' + sample.getIdElement().getResourceType() + '|' + windowStart(start);
+				windows.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+			}
+		}
+
+		Set<BundleEntryComponent> packed = Collections.newSetFromMap(new IdentityHashMap<>());
+		for(List<BundleEntryComponent> window : windows.values()) {
+			// a single sample is packed too, later syncs may add to its window
+			window.get(0).setResource(packWindow(window.stream()
+					.map(entry -> (Observation) entry.getResource())
+					.collect(Collectors.toList())));
+			packed.addAll(window.subList(1, window.size()));
+		}
+		theBundle.getEntry().removeIf(packed::contains);
+		return packed.size();
+	}
+	
+	/**
+	 * True for Observations packed by this PDR.
+	 */
+	public static boolean isPacked(Resource resource) {
+		return resource instanceof Observation && resource.getUserData(PACKING) != null
+				&& ((Observation) resource).hasExtension(SAMPLE_EXTENSION);
+	}
+	
+	/**
+	 * Adds the samples of the stored window that the packed window does not
+	 * have, a sample sent again is only counted once.
+	 */
+	public void merge(Observation packed, Observation stored) {
+		Map<String, Sample> samples = getSamples(packed);
+		for(Sample sample : getSamples(stored).values()) {
+			samples.putIfAbsent(sample.uuid, sample);
+		}
+		setSamples(packed, samples.values());
+	}
+
+	private Observation packWindow(List<Observation> window) {
+		Observation first = window.get(0);
+		long windowStart = windowStart(getStart(first));
+		Map<String, Sample> samples = new LinkedHashMap<>();
+		for(Observation sample : window) {
+			samples.put(sample.getIdElement().getIdPart(), new Sample(sample.getIdElement().getIdPart(), 
+					getStart(sample).getTime(), sample.getValueQuantity().getValue()));
+		}
+
+		// stable source id of the window, see record matching
+		Coding code = first.getCode().getCodingFirstRep();
+		String digest = DigestUtils.sha256Hex(first.getSubject().getReference() + '|' + code.getSystem() + '|' + code.getCode())
+				.substring(0, 32);
+		Quantity unit = first.getValueQuantity();
+		Observation observation = new Observation();
+		observation.setId(new IdType(first.getIdElement().getResourceType(), (windowStart / 1000) + "-" + digest));
+		observation.setUserData(PACKING, first.getUserData(PACKING));
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.setCategory(first.getCategory());
+		observation.setCode(first.getCode());
+		observation.setSubject(first.getSubject());
+		observation.setEffective(new Period()
+				.setStart(new Date(windowStart))
+				.setEnd(new Date(windowStart + windowMillis)));
+		observation.setValue(new SampledData()
+				.setOrigin(new Quantity().setValue(0).setSystem(unit.getSystem()).setCode(unit.getCode()).setUnit(unit.getUnit()))
+				.setPeriod(periodMillis)
+				.setDimensions(1));
+		setSamples(observation, samples.values());
+		return observation;
+	}
+	
+	/**
+	 * Sets the sample extensions, ordered by time, and the data of the window.
+	 */
+	private void setSamples(Observation observation, Collection<Sample> samples) {
+		List<Sample> ordered = new ArrayList<>(samples);
+		ordered.sort(Comparator.comparingLong((Sample sample) -> sample.start).thenComparing(sample -> sample.uuid));
+		Aggregation aggregation = (Aggregation) observation.getUserData(PACKING);
+		long windowStart = observation.getEffectivePeriod().getStart().getTime();
+		int periods = (int) Math.max(1, windowMillis / periodMillis);
+		BigDecimal[] sums = new BigDecimal[periods];
+		int[] counts = new int[periods];
+		observation.getExtension().removeIf(extension -> SAMPLE_EXTENSION.equals(extension.getUrl()));
+		for(Sample sample : ordered) {
+			int period = (int) Math.max(0, Math.min(periods - 1, (sample.start - windowStart) / periodMillis));
+			sums[period] = sums[period] == null ? sample.value : sums[period].add(sample.value);
+			counts[period]++;
+			observation.addExtension(SAMPLE_EXTENSION, new StringType(sample.toString()));
+		}
+
+		StringBuilder data = new StringBuilder();
+		for(int i = 0; i < periods; i++) {
+			if(i > 0) {
+				data.append(' ');
+			}
+			if(counts[i] == 0) {
+				data.append('E');
+			} else {
+				BigDecimal value = aggregation == Aggregation.SUM ? sums[i]
+						: sums[i].divide(BigDecimal.valueOf(counts[i]), MathContext.DECIMAL64);
+				data.append(value.stripTrailingZeros().toPlainString());
+			}
+		}
+		observation.getValueSampledData().setData(data.toString());
+	}
+	
+	private static Map<String, Sample> getSamples(Observation observation) {
+		Map<String, Sample> samples = new LinkedHashMap<>();
+		for(Extension extension : observation.getExtensionsByUrl(SAMPLE_EXTENSION)) {
+			String[] parts = extension.getValue() != null ? extension.getValue().primitiveValue().split(" ") : new String[0];
+			if(parts.length == 3) {
+				try {
+					samples.put(parts[0], new Sample(parts[0], Long.parseLong(parts[1]), new BigDecimal(parts[2])));
+				} catch (NumberFormatException e) {
+					// not written by this packer
+				}
+			}
+		}
+		return samples;
+	}
+
+	private long windowStart(Date start) {
+		return Math.floorDiv(start.getTime(), windowMillis) * windowMillis;
+	}
+
+	private static Date getStart(Observation sample) {
+		if(sample.hasEffectiveDateTimeType()) {
+			return sample.getEffectiveDateTimeType().getValue();
+		} else if(sample.hasEffectivePeriod()) {
+			return sample.getEffectivePeriod().getStart();
+		}
+		return null;
+	}
+	
+	private static class Sample {
+		private final String uuid;
+		private final long start;
+		private final BigDecimal value;
+		
+		Sample(String uuid, long start, BigDecimal value) {
+			this.uuid = uuid;
+			this.start = start;
+			this.value = value;
+		}
+		
+		@Override
+		public String toString() {
+			return uuid + ' ' + start + ' ' + value.toPlainString();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * The top level references of a resource type that can point to a Patient,
+ * computed once per type. patient and subject references are rewritten to
+ * the internal patient, other references to a Patient (performer, asserter,
+ * etc) are cleared. Values are read through the generated property switch
+ * of the model classes instead of building the reflective children list.
+ */
+final class PatientReferencePlan {
+	private static final Map<Class<? extends Resource>, PatientReferencePlan> plans = new ConcurrentHashMap<>();
+
+	private final String[] rewriteNames;
+	private final int[] rewriteHashes;
+	private final String[] clearNames;
+	private final int[] clearHashes;
+
+	static PatientReferencePlan of(Resource resource) {
+		return plans.computeIfAbsent(resource.getClass(), type -> compile(resource));
+	}
+
+	private static PatientReferencePlan compile(Resource resource) {
+		List<String> rewrite = new ArrayList<>();
+		List<String> clear = new ArrayList<>();
+		for(Property child : resource.children()) {
+			if(isPatientReference(child.getTypeCode())) {
+				if(child.getName().equals("patient") || child.getName().equals("subject")) {
+					rewrite.add(child.getName());
+				} else {
+					clear.add(child.getName());
+				}
+			}
+		}
+		return new PatientReferencePlan(rewrite, clear);
+	}
+
+	private PatientReferencePlan(List<String> rewrite, List<String> clear) {
+		this.rewriteNames = rewrite.toArray(new String[0]);
+		this.rewriteHashes = rewrite.stream().mapToInt(String::hashCode).toArray();
+		this.clearNames = clear.toArray(new String[0]);
+		this.clearHashes = clear.stream().mapToInt(String::hashCode).toArray();
+	}
+
+	void apply(Resource resource, String patientReference) {
+		for(int i = 0; i < rewriteNames.length; i++) {
+			for(Base value : resource.getProperty(rewriteHashes[i], rewriteNames[i], false)) {
+				((Reference) value).setReference(patientReference);
+			}
+		}
+		for(int i = 0; i < clearNames.length; i++) {
+			for(Base value : resource.getProperty(clearHashes[i], clearNames[i], false)) {
+				Reference reference = (Reference) value;
+				if("Patient".equals(reference.getReferenceElement().getResourceType())) {
+					reference.setReference(null);
+				}
+			}
+		}
+	}
+
+	private static boolean isPatientReference(String typeCode) {
+		if(!typeCode.startsWith("Reference(")) {
+			return false;
+		}
+		String targets = "|" + typeCode.substring("Reference(".length(), typeCode.length() - 1) + "|";
+		return targets.contains("|Patient|");
+	}
+}
@@ -0,0 +1,84 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.math.BigDecimal;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Resource;
+
+import com.mysql.cj.util.StringUtils;
+
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+/**
+ * Converts HealthKit quantity samples to Observations with a UCUM value.
+ * Packed samples are marked for {@link HealthKitSamplePacker}, which merges
+ * the samples of a time window into one Observation.
+ */
+public class QuantitySampleConverter implements HealthKitSampleConverter {
+	public static final String UCUM_SYSTEM = "http://unitsofmeasure.org";
+	public static final Coding VITAL_SIGNS = new Coding()
+			.setSystem("http://terminology.hl7.org/CodeSystem/observation-category").setCode("vital-signs");
+	public static final Coding ACTIVITY = new Coding()
+			.setSystem("http://terminology.hl7.org/CodeSystem/observation-category").setCode("activity");
+
+	private final Coding code;
+	private final Coding category;
+	private final String unit;
+	private final BigDecimal scale;
+	private final HealthKitSamplePacker.Aggregation packing;
+
+	/**
+	 * @param unit UCUM unit code of the Observation value
+	 * @param scale factor applied to the HealthKit value, e.g. 100 for fractions reported as %
+	 * @param packing how samples sharing a packed slot are combined, null to keep one Observation per sample
+	 */
+	public QuantitySampleConverter(Coding code, Coding category, String unit, double scale,
+			HealthKitSamplePacker.Aggregation packing) {
+		this.code = code;
+		this.category = category;
+		this.unit = unit;
+		this.scale = BigDecimal.valueOf(scale);
+		this.packing = packing;
+	}
+
+	@Override
+	public Resource convert(HealthKitSample sample) {
+		if(StringUtils.isNullOrEmpty(sample.getValue()) || StringUtils.isNullOrEmpty(sample.getStartDate())) {
+			throw new UnprocessableEntityException("Unprocessable " + sample.getSampleType() + " sample.");
+		}
+		BigDecimal value;
+		try {
+			value = new BigDecimal(sample.getValue()).multiply(scale);
+		} catch (NumberFormatException e) {
+			throw new UnprocessableEntityException("Unprocessable " + sample.getSampleType() + " sample value.");
+		}
+
+		Observation observation = new Observation();
+		observation.setId(new IdType(sample.getSampleType(), sample.getUuid()));
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.addCategory(new CodeableConcept().addCoding(category.copy()));
+		observation.setCode(new CodeableConcept().addCoding(code.copy()));
+		if(StringUtils.isNullOrEmpty(sample.getEndDate()) || sample.getEndDate().equals(sample.getStartDate())) {
+			observation.setEffective(new DateTimeType(sample.getStartDate()));
+		} else {
+			observation.setEffective(new Period()
+					.setStartElement(new DateTimeType(sample.getStartDate()))
+					.setEndElement(new DateTimeType(sample.getEndDate())));
+		}
+		observation.setValue(new Quantity()
+				.setValue(value)
+				.setSystem(UCUM_SYSTEM)
+				.setCode(unit)
+				.setUnit(unit));
+		if(packing != null) {
+			observation.setUserData(HealthKitSamplePacker.PACKING, packing);
+		}
+		return observation;
+	}
+}
@@ -0,0 +1,121 @@
+package org.mitre.healthmanager.lib.pdr.deletion;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+/**
+ * One resource to delete in a deletion job. Items are deleted in sequence
+ * order, resources still referenced by others are retried in a later pass.
+ */
+@Entity
+@Table(name = "pdr_deletion_item", indexes = {
+		@Index(name = "idx_pdr_deletion_item_job", columnList = "job_id, sequence_number") })
+public class PdrDeletionItem implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "sequenceGenerator")
+	@SequenceGenerator(name = "sequenceGenerator")
+	@Column(name = "id")
+	private Long id;
+
+	@NotNull
+	@Column(name = "job_id", nullable = false, length = 64)
+	private String jobId;
+
+	@Column(name = "sequence_number", nullable = false)
+	private int sequenceNumber;
+
+	/**
+	 * Unqualified versionless id of the resource, e.g. Observation/123.
+	 */
+	@NotNull
+	@Column(name = "resource_id", nullable = false, length = 128)
+	private String resourceId;
+
+	@Column(name = "deleted", nullable = false)
+	private boolean deleted;
+
+	@Column(name = "expunged", nullable = false)
+	private boolean expunged;
+
+	protected PdrDeletionItem() {
+	}
+
+	public PdrDeletionItem(String jobId, int sequenceNumber, String resourceId) {
+		this.jobId = jobId;
+		this.sequenceNumber = sequenceNumber;
+		this.resourceId = resourceId;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public int getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	public String getResourceId() {
+		return resourceId;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public boolean isExpunged() {
+		return expunged;
+	}
+
+	public PdrDeletionItem deleted() {
+		this.deleted = true;
+		return this;
+	}
+
+	public PdrDeletionItem expunged() {
+		this.expunged = true;
+		return this;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PdrDeletionItem)) {
+			return false;
+		}
+		return id != null && id.equals(((PdrDeletionItem) o).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return getClass().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "PdrDeletionItem{" +
+			"id=" + getId() +
+			", jobId='" + getJobId() + "'" +
+			", sequenceNumber=" + getSequenceNumber() +
+			", resourceId='" + getResourceId() + "'" +
+			", deleted=" + isDeleted() +
+			", expunged=" + isExpunged() +
+			"}";
+	}
+}
@@ -0,0 +1,23 @@
+package org.mitre.healthmanager.lib.pdr.deletion;
+
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Spring Data SQL repository for the PdrDeletionItem entity.
+ */
+@Repository
+public interface PdrDeletionItemRepository extends JpaRepository<PdrDeletionItem, Long> {
+	List<PdrDeletionItem> findAllByJobIdAndDeletedFalseAndSequenceNumberGreaterThanOrderBySequenceNumberAsc(
+			String jobId, int sequenceNumber, Pageable pageable);
+
+	List<PdrDeletionItem> findAllByJobIdAndDeletedTrueAndExpungedFalseAndSequenceNumberGreaterThanOrderBySequenceNumberAsc(
+			String jobId, int sequenceNumber, Pageable pageable);
+
+	long countByJobIdAndDeletedTrue(String jobId);
+
+	long countByJobIdAndExpungedTrue(String jobId);
+}
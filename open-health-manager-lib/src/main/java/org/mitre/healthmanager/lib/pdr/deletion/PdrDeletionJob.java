@@ -0,0 +1,204 @@
+package org.mitre.healthmanager.lib.pdr.deletion;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+/**
+ * A background deletion of a patient account or PDR. The resources to
+ * delete are planned as {@link PdrDeletionItem}s before anything is deleted,
+ * deleted and expunged items are the checkpoints a deletion resumes from.
+ */
+@Entity
+@Table(name = "pdr_deletion_job", indexes = {
+		@Index(name = "idx_pdr_deletion_job_target", columnList = "target") })
+public class PdrDeletionJob implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public enum Status {
+		RUNNING, COMPLETE, FAILED
+	}
+
+	@Id
+	@Column(name = "id", length = 64)
+	private String id;
+
+	/**
+	 * Reference to the deleted resource, e.g. Patient/123.
+	 */
+	@NotNull
+	@Column(name = "target", nullable = false, length = 128)
+	private String target;
+
+	@NotNull
+	@Column(name = "patient_id", nullable = false, length = 64)
+	private String patientId;
+
+	@NotNull
+	@Enumerated(EnumType.STRING)
+	@Column(name = "status", nullable = false, length = 16)
+	private Status status;
+
+	@Column(name = "expunge", nullable = false)
+	private boolean expunge;
+
+	/**
+	 * Set once every resource to delete has been recorded as an item.
+	 */
+	@Column(name = "planned", nullable = false)
+	private boolean planned;
+
+	@Column(name = "total_resources", nullable = false)
+	private int totalResources;
+
+	@Column(name = "deleted_resources", nullable = false)
+	private int deletedResources;
+
+	@Column(name = "expunged_resources", nullable = false)
+	private int expungedResources;
+
+	@NotNull
+	@Column(name = "started", nullable = false)
+	private Instant started;
+
+	@NotNull
+	@Column(name = "updated", nullable = false)
+	private Instant updated;
+
+	@Column(name = "error", length = 1000)
+	private String error;
+
+	protected PdrDeletionJob() {
+	}
+
+	public PdrDeletionJob(String id, String target, String patientId, boolean expunge) {
+		this.id = id;
+		this.target = target;
+		this.patientId = patientId;
+		this.expunge = expunge;
+		this.status = Status.RUNNING;
+		this.started = Instant.now();
+		this.updated = started;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isExpunge() {
+		return expunge;
+	}
+
+	public boolean isPlanned() {
+		return planned;
+	}
+
+	public int getTotalResources() {
+		return totalResources;
+	}
+
+	public int getDeletedResources() {
+		return deletedResources;
+	}
+
+	public int getExpungedResources() {
+		return expungedResources;
+	}
+
+	public Instant getStarted() {
+		return started;
+	}
+
+	public Instant getUpdated() {
+		return updated;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public PdrDeletionJob planned(int totalResources) {
+		this.planned = true;
+		this.totalResources = totalResources;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	public PdrDeletionJob progress(int deletedResources, int expungedResources) {
+		this.deletedResources = deletedResources;
+		this.expungedResources = expungedResources;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	public PdrDeletionJob resumed() {
+		this.status = Status.RUNNING;
+		this.error = null;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	public PdrDeletionJob completed() {
+		this.status = Status.COMPLETE;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	public PdrDeletionJob failed(String error) {
+		this.status = Status.FAILED;
+		this.error = error != null && error.length() > 1000 ? error.substring(0, 1000) : error;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PdrDeletionJob)) {
+			return false;
+		}
+		return id != null && id.equals(((PdrDeletionJob) o).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return getClass().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "PdrDeletionJob{" +
+			"id='" + getId() + "'" +
+			", target='" + getTarget() + "'" +
+			", status='" + getStatus() + "'" +
+			", expunge=" + isExpunge() +
+			", totalResources=" + getTotalResources() +
+			", deletedResources=" + getDeletedResources() +
+			", expungedResources=" + getExpungedResources() +
+			", started='" + getStarted() + "'" +
+			", updated='" + getUpdated() + "'" +
+			"}";
+	}
+}
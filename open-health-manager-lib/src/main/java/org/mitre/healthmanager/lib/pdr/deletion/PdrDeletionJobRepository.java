@@ -0,0 +1,14 @@
+package org.mitre.healthmanager.lib.pdr.deletion;
+
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Spring Data SQL repository for the PdrDeletionJob entity.
+ */
+@Repository
+public interface PdrDeletionJobRepository extends JpaRepository<PdrDeletionJob, String> {
+	Optional<PdrDeletionJob> findFirstByTargetAndStatusNotOrderByStartedDesc(String target, PdrDeletionJob.Status status);
+}
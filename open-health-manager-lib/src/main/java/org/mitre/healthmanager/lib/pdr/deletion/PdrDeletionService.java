@@ -0,0 +1,493 @@
+package org.mitre.healthmanager.lib.pdr.deletion;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.ListResource.ListEntryComponent;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mitre.healthmanager.lib.pdr.index.PdrSourceIdentityService;
+import org.mitre.healthmanager.lib.pdr.ledger.PdrLedgerService;
+import org.mitre.healthmanager.lib.pdr.progress.PdrWriteProgressRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.model.ExpungeOptions;
+import ca.uhn.fhir.jpa.dao.TransactionProcessor;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+
+/**
+ * Deletes patient accounts and PDRs in the background. For an account every
+ * resource in the patient compartment, the raw bundles of the PDR Lists and
+ * finally the Patient are planned as items, for a PDR its List and the
+ * resources it references other than the Patient. Items are then deleted
+ * in transactions of at most chunkSize resources. Resources still
+ * referenced by resources of a later chunk are retried in further passes
+ * until no pass makes progress. Deleted resources are then expunged in
+ * chunks of the same size. Starting the deletion of an
+ * account or PDR whose last deletion did not complete resumes it.
+ */
+@Service
+public class PdrDeletionService {
+	private final Logger log = LoggerFactory.getLogger(PdrDeletionService.class);
+
+	// compartment types deleted first, they reference most of the others
+	private static final List<String> FIRST_TYPES = List.of("Provenance", "List");
+
+	// deletions running on this node by target
+	private final Map<String, PdrDeletionJob> running = new ConcurrentHashMap<>();
+
+	@Autowired
+	PdrDeletionJobRepository jobRepository;
+
+	@Autowired
+	PdrDeletionItemRepository itemRepository;
+
+	@Autowired
+	PdrWriteProgressRepository writeProgressRepository;
+
+	@Autowired
+	PdrLedgerService ledgerService;
+
+	@Autowired
+	PdrSourceIdentityService sourceIdentityService;
+
+	@Autowired
+	DaoRegistry daoRegistry;
+
+	@Autowired
+	FhirContext myFhirContext;
+
+	@Autowired
+	TransactionProcessor myTransactionProcessor;
+
+	@Autowired
+	ApplicationProperties applicationProperties;
+
+	@Autowired
+	@Lazy
+	@Qualifier("pdrMaintenanceExecutor")
+	Executor maintenanceExecutor;
+
+	/**
+	 * Starts or resumes the deletion of the patient account, expunging the
+	 * deleted resources when configured to.
+	 */
+	public PdrDeletionJob deleteAccount(@NotNull String patientId) {
+		return deleteAccount(patientId, applicationProperties.getPdr().getDeletion().isExpunge());
+	}
+
+	/**
+	 * Starts or resumes the deletion of the patient account, returns the
+	 * deletion already running for the patient if there is one. When called
+	 * inside a transaction the deletion only starts once that transaction
+	 * commits.
+	 */
+	public synchronized PdrDeletionJob deleteAccount(@NotNull String patientId, boolean expunge) {
+		String target = "Patient/" + patientId;
+		PdrDeletionJob job = resume(target);
+		return job != null ? job : start(new PdrDeletionJob(UUID.randomUUID().toString(), target, patientId, expunge));
+	}
+
+	/**
+	 * Starts or resumes the deletion of a PDR List with the resources it
+	 * references other than the Patient. A new deletion is planned up front
+	 * and rejected while resources outside of the PDR still reference its
+	 * resources, so that it does not fail after deleting the List.
+	 */
+	public synchronized PdrDeletionJob deletePdr(@NotNull String listId, @NotNull String patientId, boolean expunge) {
+		String target = "List/" + listId;
+		PdrDeletionJob job = resume(target);
+		if(job != null) {
+			return job;
+		}
+		job = new PdrDeletionJob(UUID.randomUUID().toString(), target, patientId, expunge);
+		return start(job.planned(saveItems(job, planPdr(job))));
+	}
+
+	/**
+	 * Resumes the deletion of a PDR List that did not complete, returns null
+	 * if there is none. The List itself may already be deleted.
+	 */
+	public synchronized PdrDeletionJob resumePdrDeletion(@NotNull String listId) {
+		return resume("List/" + listId);
+	}
+
+	public PdrDeletionJob getJob(String jobId) {
+		return jobId != null ? jobRepository.findById(jobId).orElse(null) : null;
+	}
+
+	private PdrDeletionJob resume(String target) {
+		PdrDeletionJob current = running.get(target);
+		if(current != null) {
+			return current;
+		}
+		return jobRepository
+				.findFirstByTargetAndStatusNotOrderByStartedDesc(target, PdrDeletionJob.Status.COMPLETE)
+				.map(job -> start(job.resumed()))
+				.orElse(null);
+	}
+
+	private PdrDeletionJob start(PdrDeletionJob job) {
+		PdrDeletionJob started = jobRepository.save(job);
+		running.put(started.getTarget(), started);
+		if(TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					if(status == STATUS_COMMITTED) {
+						maintenanceExecutor.execute(() -> run(started));
+					} else {
+						running.remove(started.getTarget());
+					}
+				}
+			});
+		} else {
+			maintenanceExecutor.execute(() -> run(started));
+		}
+		return started;
+	}
+
+	private void run(PdrDeletionJob job) {
+		boolean account = isAccount(job);
+		try {
+			if(!job.isPlanned()) {
+				job = jobRepository.save(job.planned(account ? planAccount(job) : saveItems(job, planPdr(job))));
+			}
+			// items saved before a failure may be ahead of the job counts
+			job = jobRepository.save(job.progress((int) itemRepository.countByJobIdAndDeletedTrue(job.getId()),
+					(int) itemRepository.countByJobIdAndExpungedTrue(job.getId())));
+			job = delete(job);
+			if(account) {
+				sourceIdentityService.deletePatient(job.getPatientId());
+			}
+			if(job.isExpunge()) {
+				job = expunge(job);
+			}
+			job = jobRepository.save(job.completed());
+			log.info("Deletion {} of {} finished: {} resources deleted, {} expunged", job.getId(), job.getTarget(),
+					job.getDeletedResources(), job.getExpungedResources());
+		} catch (RuntimeException e) {
+			log.error("Deletion {} of {} failed", job.getId(), job.getTarget(), e);
+			jobRepository.save(job.failed(e.getMessage()));
+		} finally {
+			running.remove(job.getTarget());
+		}
+	}
+
+	/**
+	 * Records the resources of the patient compartment, the raw bundles of
+	 * the PDR Lists and the Patient as items.
+	 */
+	private int planAccount(PdrDeletionJob job) {
+		String patientId = job.getPatientId();
+		Set<String> resourceIds = new LinkedHashSet<>();
+		for(String resourceType : getCompartmentTypes()) {
+			for(RuntimeSearchParam param : myFhirContext.getResourceDefinition(resourceType).getSearchParamsForCompartmentName("Patient")) {
+				SearchParameterMap theParams = new SearchParameterMap();
+				theParams.add(param.getName(), new ReferenceParam(new IdType("Patient", patientId)));
+				try {
+					forEachResource(resourceType, theParams,
+							resource -> resourceIds.add(resourceType + "/" + resource.getIdElement().getIdPart()));
+				} catch (InvalidRequestException e) {
+					log.debug("Skipping {}:{} in deletion of patient {}: {}", resourceType, param.getName(), patientId, e.getMessage());
+				}
+			}
+		}
+
+		// raw bundles are only referenced by the PDR Lists
+		SearchParameterMap theParams = new SearchParameterMap();
+		theParams.add("patient", new ReferenceParam(new IdType("Patient", patientId)));
+		theParams.add("code", new TokenParam(PatientDataReceiptService.PDR_CODE));
+		forEachResource("List", theParams, resource -> {
+			ListResource list = (ListResource) resource;
+			ledgerService.materialize(list);
+			for(ListEntryComponent entry : list.getEntry()) {
+				IIdType item = entry.getItem().getReferenceElement();
+				if(!entry.getDeleted() && "Bundle".equals(item.getResourceType())) {
+					resourceIds.add("Bundle/" + item.getIdPart());
+				}
+			}
+		});
+		resourceIds.add("Patient/" + patientId);
+		return saveItems(job, resourceIds);
+	}
+
+	/**
+	 * Returns the PDR List and the resources it references other than the
+	 * Patient, the List first as it references all of them. A resource is
+	 * left out when its current version is not the latest one the List
+	 * references, it has since been updated by another PDR, or when another
+	 * PDR lists the same version. Throws a 409
+	 * when other resources still reference any of them.
+	 */
+	private Set<String> planPdr(PdrDeletionJob job) {
+		IdType listId = new IdType(job.getTarget());
+		ListResource list = daoRegistry.getResourceDao(ListResource.class).read(listId);
+		ledgerService.materialize(list);
+		// latest listed version by resource, entries are in the order written
+		Map<String, IIdType> listed = new LinkedHashMap<>();
+		for(ListEntryComponent entry : list.getEntry()) {
+			IIdType item = entry.getItem().getReferenceElement();
+			if(!entry.getDeleted() && item.getResourceType() != null && !"Patient".equals(item.getResourceType())) {
+				listed.put(item.toUnqualifiedVersionless().getValue(), item);
+			}
+		}
+		Map<String, String> currentVersions = new HashMap<>();
+		forEachById(listed.keySet(), false, resource -> currentVersions.put(
+				resource.getIdElement().toUnqualifiedVersionless().getValue(), resource.getIdElement().getVersionIdPart()));
+		
+		// versions other PDRs of the patient listed, e.g. as re-sent unchanged
+		Set<String> listedByOthers = ledgerService.findListedByOtherLists(job.getPatientId(), listId.getIdPart(), 
+				listed.values().stream().filter(IIdType::hasVersionIdPart).map(IIdType::getValue).collect(Collectors.toList()));
+		
+		Set<String> resourceIds = new LinkedHashSet<>();
+		resourceIds.add(listId.toUnqualifiedVersionless().getValue());
+		listed.forEach((resourceId, item) -> {
+			String currentVersion = currentVersions.get(resourceId);
+			if(currentVersion == null) {
+				// already deleted
+				return;
+			}
+			if(item.hasVersionIdPart() && !item.getVersionIdPart().equals(currentVersion)) {
+				log.debug("Deletion {} of {} keeps {}, updated since to version {}", job.getId(), job.getTarget(), 
+						item.getValue(), currentVersion);
+			} else if(listedByOthers.contains(item.getValue())) {
+				log.debug("Deletion {} of {} keeps {}, listed by another PDR", job.getId(), job.getTarget(), item.getValue());
+			} else {
+				resourceIds.add(resourceId);
+			}
+		});
+		
+		// resources returned other than the ones searched reference them
+		Set<String> referencingIds = new HashSet<>();
+		forEachById(resourceIds, true, resource -> {
+			String resourceId = resource.getIdElement().toUnqualifiedVersionless().getValue();
+			if(!resourceIds.contains(resourceId)) {
+				referencingIds.add(resourceId);
+			}
+		});
+		if(!referencingIds.isEmpty()) {
+			throw new ResourceVersionConflictException(String.format(
+					"Resources of %s are still referenced by %d other resources, e.g. %s", 
+					job.getTarget(), referencingIds.size(), referencingIds.iterator().next()));
+		}
+		return resourceIds;
+	}
+
+	/**
+	 * Searches the resources by id, one search per resource type and chunk.
+	 * Deleted resources are not found, with revInclude the resources
+	 * referencing them are returned as well.
+	 */
+	private void forEachById(Set<String> resourceIds, boolean revInclude, Consumer<IBaseResource> consumer) {
+		int chunkSize = applicationProperties.getPdr().getDeletion().getChunkSize();
+		Map<String, List<String>> idPartsByType = resourceIds.stream()
+				.map(IdType::new)
+				.collect(Collectors.groupingBy(IdType::getResourceType, LinkedHashMap::new,
+						Collectors.mapping(IdType::getIdPart, Collectors.toList())));
+		idPartsByType.forEach((resourceType, idParts) -> {
+			for(int from = 0; from < idParts.size(); from += chunkSize) {
+				List<String> chunk = idParts.subList(from, Math.min(from + chunkSize, idParts.size()));
+				SearchParameterMap theParams = SearchParameterMap.newSynchronous();
+				theParams.add("_id", new TokenOrListParam(null, chunk.toArray(new String[0])));
+				if(revInclude) {
+					theParams.addRevInclude(new Include("*"));
+				}
+				daoRegistry.getResourceDao(resourceType).search(theParams).getAllResources().forEach(consumer);
+			}
+		});
+	}
+
+	private int saveItems(PdrDeletionJob job, Set<String> resourceIds) {
+		int chunkSize = applicationProperties.getPdr().getDeletion().getChunkSize();
+		List<PdrDeletionItem> items = new ArrayList<>(chunkSize);
+		int sequenceNumber = 0;
+		for(String resourceId : resourceIds) {
+			items.add(new PdrDeletionItem(job.getId(), sequenceNumber++, resourceId));
+			if(items.size() == chunkSize) {
+				itemRepository.saveAll(items);
+				items.clear();
+			}
+		}
+		itemRepository.saveAll(items);
+		log.info("Deletion {} of {} planned {} resources", job.getId(), job.getTarget(), resourceIds.size());
+		return resourceIds.size();
+	}
+
+	/**
+	 * Deletes the items not deleted yet one chunk per transaction, in passes
+	 * until every item is deleted or a pass deletes nothing.
+	 */
+	private PdrDeletionJob delete(PdrDeletionJob job) {
+		int chunkSize = applicationProperties.getPdr().getDeletion().getChunkSize();
+		while(true) {
+			int deferred = 0;
+			int deletedInPass = 0;
+			int after = -1;
+			List<PdrDeletionItem> chunk;
+			while(!(chunk = itemRepository.findAllByJobIdAndDeletedFalseAndSequenceNumberGreaterThanOrderBySequenceNumberAsc(
+					job.getId(), after, PageRequest.of(0, chunkSize))).isEmpty()) {
+				after = chunk.get(chunk.size() - 1).getSequenceNumber();
+				List<PdrDeletionItem> deleted = deleteChunk(chunk);
+				deleted.forEach(PdrDeletionItem::deleted);
+				itemRepository.saveAll(deleted);
+				cleanUp(job, deleted);
+				deletedInPass += deleted.size();
+				deferred += chunk.size() - deleted.size();
+				job = jobRepository.save(job.progress(job.getDeletedResources() + deleted.size(), job.getExpungedResources()));
+			}
+			if(deferred == 0) {
+				return job;
+			}
+			if(deletedInPass == 0) {
+				throw new IllegalStateException(deferred + " resources of " + job.getTarget() + " are still referenced by other resources");
+			}
+			log.debug("Deletion {} of {} retrying {} referenced resources", job.getId(), job.getTarget(), deferred);
+		}
+	}
+
+	/**
+	 * Deletes the chunk in one transaction. When that fails the resources
+	 * are deleted one at a time, returns the ones that were deleted.
+	 */
+	private List<PdrDeletionItem> deleteChunk(List<PdrDeletionItem> chunk) {
+		Bundle transaction = new Bundle();
+		transaction.setType(Bundle.BundleType.TRANSACTION);
+		for(PdrDeletionItem item : chunk) {
+			transaction.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl(item.getResourceId());
+		}
+		try {
+			myTransactionProcessor.transaction(null, transaction, false);
+			return new ArrayList<>(chunk);
+		} catch (ResourceVersionConflictException | ResourceNotFoundException | ResourceGoneException e) {
+			log.debug("Deleting chunk of {} resources failed, deleting them one at a time: {}", chunk.size(), e.getMessage());
+		}
+
+		List<PdrDeletionItem> deleted = new ArrayList<>();
+		for(PdrDeletionItem item : chunk) {
+			IdType id = new IdType(item.getResourceId());
+			try {
+				daoRegistry.getResourceDao(id.getResourceType()).delete(id, null);
+				deleted.add(item);
+			} catch (ResourceNotFoundException | ResourceGoneException e) {
+				deleted.add(item);
+			} catch (ResourceVersionConflictException e) {
+				// still referenced, retried in the next pass
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Removes the PDR state kept outside of the FHIR resources for deleted
+	 * Lists and raw bundles, and the source identities of deleted resources.
+	 */
+	private void cleanUp(PdrDeletionJob job, List<PdrDeletionItem> deleted) {
+		sourceIdentityService.deleteTargets(job.getPatientId(), deleted.stream()
+				.map(item -> new IdType(item.getResourceId()).toUnqualifiedVersionless().getValue())
+				.collect(Collectors.toList()));
+		for(PdrDeletionItem item : deleted) {
+			IdType id = new IdType(item.getResourceId());
+			if("List".equals(id.getResourceType())) {
+				ledgerService.deleteList(id.getIdPart());
+			} else if("Bundle".equals(id.getResourceType()) && writeProgressRepository.existsById(id.getIdPart())) {
+				writeProgressRepository.deleteById(id.getIdPart());
+			}
+		}
+	}
+
+	/**
+	 * Expunges the deleted items one chunk at a time, every resource in its
+	 * own transaction.
+	 */
+	private PdrDeletionJob expunge(PdrDeletionJob job) {
+		int chunkSize = applicationProperties.getPdr().getDeletion().getChunkSize();
+		ExpungeOptions options = new ExpungeOptions()
+				.setExpungeDeletedResources(true)
+				.setExpungeOldVersions(true);
+		int after = -1;
+		List<PdrDeletionItem> chunk;
+		while(!(chunk = itemRepository.findAllByJobIdAndDeletedTrueAndExpungedFalseAndSequenceNumberGreaterThanOrderBySequenceNumberAsc(
+				job.getId(), after, PageRequest.of(0, chunkSize))).isEmpty()) {
+			after = chunk.get(chunk.size() - 1).getSequenceNumber();
+			for(PdrDeletionItem item : chunk) {
+				IdType id = new IdType(item.getResourceId());
+				daoRegistry.getResourceDao(id.getResourceType()).expunge(id, options, null);
+				item.expunged();
+			}
+			itemRepository.saveAll(chunk);
+			job = jobRepository.save(job.progress(job.getDeletedResources(), job.getExpungedResources() + chunk.size()));
+		}
+		return job;
+	}
+
+	/**
+	 * Resource types with a DAO that can belong to a patient compartment,
+	 * other than Patient itself.
+	 */
+	private List<String> getCompartmentTypes() {
+		return myFhirContext.getResourceTypes().stream()
+				.filter(resourceType -> !"Patient".equals(resourceType))
+				.filter(daoRegistry::isResourceTypeSupported)
+				.filter(resourceType -> !myFhirContext.getResourceDefinition(resourceType)
+						.getSearchParamsForCompartmentName("Patient").isEmpty())
+				.sorted(Comparator.comparing((String resourceType) -> FIRST_TYPES.contains(resourceType) ? FIRST_TYPES.indexOf(resourceType) : FIRST_TYPES.size())
+						.thenComparing(Comparator.naturalOrder()))
+				.collect(Collectors.toList());
+	}
+
+	private static boolean isAccount(PdrDeletionJob job) {
+		return job.getTarget().startsWith("Patient/");
+	}
+
+	private void forEachResource(String resourceType, SearchParameterMap theParams, Consumer<IBaseResource> consumer) {
+		int pageSize = applicationProperties.getPdr().getDeletion().getSearchPageSize();
+		IBundleProvider results = daoRegistry.getResourceDao(resourceType).search(theParams);
+		for(int from = 0; ; from += pageSize) {
+			List<IBaseResource> page = results.getResources(from, from + pageSize);
+			if(page.isEmpty()) {
+				break;
+			}
+			page.forEach(consumer);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package org.mitre.healthmanager.lib.pdr.index;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+
+/**
+ * Maps a resource id sent by a PDR source to the id of the resource 
+ * stored for the patient. Derived from the PDR Provenance resources and 
+ * used to record match incoming entries without searching Provenance.
+ */
+@Entity
+@Table(name = "pdr_source_identity")
+public class PdrSourceIdentity implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@EmbeddedId
+	private PdrSourceIdentityId id;
+
+	@NotNull
+	@Column(name = "target_resource_id", nullable = false, length = 200)
+	private String targetResourceId;
+
+	@Column(name = "target_version_id", length = 64)
+	private String targetVersionId;
+
+	@NotNull
+	@Column(name = "updated", nullable = false)
+	private Instant updated;
+
+	protected PdrSourceIdentity() {
+	}
+
+	public PdrSourceIdentity(PdrSourceIdentityId id, IIdType targetId) {
+		this.id = id;
+		this.targetResourceId = targetId.toUnqualifiedVersionless().getValue();
+		this.targetVersionId = targetId.getVersionIdPart();
+		this.updated = Instant.now();
+	}
+
+	public PdrSourceIdentityId getId() {
+		return id;
+	}
+
+	public String getTargetResourceId() {
+		return targetResourceId;
+	}
+
+	public String getTargetVersionId() {
+		return targetVersionId;
+	}
+
+	public Instant getUpdated() {
+		return updated;
+	}
+	
+	public IdType getTargetId() {
+		IdType targetId = new IdType(targetResourceId);
+		return targetVersionId != null ? targetId.withVersion(targetVersionId) : targetId;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PdrSourceIdentity)) {
+			return false;
+		}
+		return id != null && id.equals(((PdrSourceIdentity) o).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return getClass().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "PdrSourceIdentity{" +
+			"id=" + getId() +
+			", targetResourceId='" + getTargetResourceId() + "'" +
+			", targetVersionId='" + getTargetVersionId() + "'" +
+			"}";
+	}
+}
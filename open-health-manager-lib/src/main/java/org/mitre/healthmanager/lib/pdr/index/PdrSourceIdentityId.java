@@ -0,0 +1,98 @@
+package org.mitre.healthmanager.lib.pdr.index;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.r4.model.IdType;
+
+/**
+ * Primary key of a {@link PdrSourceIdentity}: the patient, the endpoint that
+ * sent the resource and the resource id used by that endpoint.
+ */
+@Embeddable
+public class PdrSourceIdentityId implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	public static final int MAX_SOURCE_RESOURCE_ID_LENGTH = 255;
+	public static final int MAX_SOURCE_ENDPOINT_LENGTH = 200;
+
+	@NotNull
+	@Column(name = "patient_id", nullable = false, length = 64)
+	private String patientId;
+
+	@NotNull
+	@Column(name = "source_endpoint", nullable = false, length = MAX_SOURCE_ENDPOINT_LENGTH)
+	private String sourceEndpoint;
+
+	@NotNull
+	@Column(name = "source_resource_id", nullable = false, length = MAX_SOURCE_RESOURCE_ID_LENGTH)
+	private String sourceResourceId;
+
+	protected PdrSourceIdentityId() {
+	}
+
+	public PdrSourceIdentityId(String patientId, String sourceEndpoint, String sourceResourceId) {
+		this.patientId = patientId;
+		this.sourceEndpoint = sourceEndpoint;
+		this.sourceResourceId = sourceResourceId;
+	}
+	
+	/**
+	 * Builds the key for a source id as computed by 
+	 * {@code PatientDataReceiptService.getTransactionRequestEntryResourceId}.
+	 * Returns null when the id does not fit the index columns.
+	 */
+	public static PdrSourceIdentityId of(@NotNull String patientId, @NotNull IdType sourceId) {
+		String sourceEndpoint = sourceId.hasBaseUrl() ? sourceId.getBaseUrl() : "";
+		String sourceResourceId = sourceId.toUnqualified().getValue();
+		if (sourceResourceId == null || sourceResourceId.length() > MAX_SOURCE_RESOURCE_ID_LENGTH
+				|| sourceEndpoint.length() > MAX_SOURCE_ENDPOINT_LENGTH) {
+			return null;
+		}
+		return new PdrSourceIdentityId(patientId, sourceEndpoint, sourceResourceId);
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public String getSourceEndpoint() {
+		return sourceEndpoint;
+	}
+
+	public String getSourceResourceId() {
+		return sourceResourceId;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PdrSourceIdentityId)) {
+			return false;
+		}
+		PdrSourceIdentityId other = (PdrSourceIdentityId) o;
+		return Objects.equals(patientId, other.patientId) 
+				&& Objects.equals(sourceEndpoint, other.sourceEndpoint)
+				&& Objects.equals(sourceResourceId, other.sourceResourceId);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(patientId, sourceEndpoint, sourceResourceId);
+	}
+
+	@Override
+	public String toString() {
+		return "PdrSourceIdentityId{" +
+			"patientId='" + patientId + "'" +
+			", sourceEndpoint='" + sourceEndpoint + "'" +
+			", sourceResourceId='" + sourceResourceId + "'" +
+			"}";
+	}
+}
@@ -0,0 +1,34 @@
+package org.mitre.healthmanager.lib.pdr.index;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Spring Data SQL repository for the PdrSourceIdentity entity.
+ */
+@Repository
+public interface PdrSourceIdentityRepository extends JpaRepository<PdrSourceIdentity, PdrSourceIdentityId> {
+	@Query("select i from PdrSourceIdentity i where i.id.patientId = :patientId"
+			+ " and i.id.sourceEndpoint = :sourceEndpoint and i.id.sourceResourceId in :sourceResourceIds")
+	List<PdrSourceIdentity> findAllBySourceResourceIds(@Param("patientId") String patientId, 
+			@Param("sourceEndpoint") String sourceEndpoint,
+			@Param("sourceResourceIds") Collection<String> sourceResourceIds);
+
+	@Modifying
+	@Transactional
+	@Query("delete from PdrSourceIdentity i where i.id.patientId = :patientId")
+	int deleteAllByPatientId(@Param("patientId") String patientId);
+
+	@Modifying
+	@Transactional
+	@Query("delete from PdrSourceIdentity i where i.id.patientId = :patientId and i.targetResourceId in :targetResourceIds")
+	int deleteAllByTargetResourceIds(@Param("patientId") String patientId,
+			@Param("targetResourceIds") Collection<String> targetResourceIds);
+}
@@ -0,0 +1,185 @@
+package org.mitre.healthmanager.lib.pdr.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Provenance;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * Maintains the PDR source identity index, a primary-key lookup from
+ * (patient, source endpoint, source resource id) to the stored resource.
+ * The index lives in the application database and is written after the
+ * HAPI transaction storing the Provenance commits, so it can miss entries.
+ * Provenance stays the source of truth: unless the index is authoritative,
+ * record matching searches Provenance on a miss and backfills the index.
+ */
+@Service
+public class PdrSourceIdentityService {
+	private final Logger log = LoggerFactory.getLogger(PdrSourceIdentityService.class);
+	
+	// bound on the number of values in a single IN clause
+	private static final int LOOKUP_CHUNK_SIZE = 500;
+	
+	@Autowired
+	PdrSourceIdentityRepository repository;
+	
+	@Autowired
+	ApplicationProperties applicationProperties;
+	
+	/**
+	 * When true, a source id missing from the index is a new resource and
+	 * record matching does not fall back to searching Provenance.
+	 */
+	public boolean isAuthoritative() {
+		return applicationProperties.getPdr().getIdentityIndex().isAuthoritative();
+	}
+	
+	/**
+	 * Returns a map of source id value to the indexed target resource id.
+	 */
+	public Map<String, IIdType> findTargetResourceIds(@NotNull String patientInternalId, @NotNull Iterable<IdType> sourceIds) {
+		Map<PdrSourceIdentityId, String> keys = new HashMap<>();
+		for(IdType sourceId : sourceIds) {
+			PdrSourceIdentityId key = PdrSourceIdentityId.of(patientInternalId, sourceId);
+			if(key != null) {
+				keys.put(key, sourceId.getValue());
+			}
+		}
+		
+		Map<String, List<String>> sourceResourceIdsByEndpoint = keys.keySet().stream()
+				.collect(Collectors.groupingBy(PdrSourceIdentityId::getSourceEndpoint,
+						Collectors.mapping(PdrSourceIdentityId::getSourceResourceId, Collectors.toList())));
+		
+		Map<String, IIdType> targetIds = new HashMap<>();
+		sourceResourceIdsByEndpoint.forEach((sourceEndpoint, sourceResourceIds) -> {
+			for(int from = 0; from < sourceResourceIds.size(); from += LOOKUP_CHUNK_SIZE) {
+				List<String> chunk = sourceResourceIds.subList(from, Math.min(from + LOOKUP_CHUNK_SIZE, sourceResourceIds.size()));
+				for(PdrSourceIdentity identity : repository.findAllBySourceResourceIds(patientInternalId, sourceEndpoint, chunk)) {
+					targetIds.put(keys.get(identity.getId()), identity.getTargetId());
+				}
+			}
+		});
+		
+		return targetIds;
+	}
+	
+	/**
+	 * Records the current target of a source id. When called inside a
+	 * transaction the index is only updated once that transaction commits.
+	 */
+	public void recordTargetResourceId(@NotNull String patientInternalId, @NotNull IdType sourceId, @NotNull IIdType targetId) {
+		PdrSourceIdentityId key = PdrSourceIdentityId.of(patientInternalId, sourceId);
+		if(key == null) {
+			return;
+		}
+		PdrSourceIdentity identity = new PdrSourceIdentity(key, targetId);
+		if(TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					save(identity);
+				}
+			});
+		} else {
+			save(identity);
+		}
+	}
+	
+	private void save(PdrSourceIdentity identity) {
+		try {
+			repository.save(identity);
+		} catch (RuntimeException e) {
+			// index is derived from Provenance, record matching falls back to searching
+			log.warn("Failed to update PDR source identity index for {}", identity.getId(), e);
+		}
+	}
+	
+	/**
+	 * Removes the identities pointing at the given versionless target ids,
+	 * so that a source re-sent after its resource was deleted is stored anew.
+	 */
+	public int deleteTargets(@NotNull String patientInternalId, @NotNull List<String> targetResourceIds) {
+		int deleted = 0;
+		for(int from = 0; from < targetResourceIds.size(); from += LOOKUP_CHUNK_SIZE) {
+			deleted += repository.deleteAllByTargetResourceIds(patientInternalId,
+					targetResourceIds.subList(from, Math.min(from + LOOKUP_CHUNK_SIZE, targetResourceIds.size())));
+		}
+		return deleted;
+	}
+	
+	/**
+	 * Removes the identities of all resources of the patient.
+	 */
+	public int deletePatient(@NotNull String patientInternalId) {
+		return repository.deleteAllByPatientId(patientInternalId);
+	}
+	
+	/**
+	 * Backfills the index from the PDR Provenance resources, oldest first so 
+	 * that the most recent target of a source id wins.
+	 */
+	public long rebuild(@NotNull DaoRegistry daoRegistry) {
+		int pageSize = applicationProperties.getPdr().getIdentityIndex().getRebuildPageSize();
+		IFhirResourceDao<Provenance> dao = daoRegistry.getResourceDao(Provenance.class);
+		SearchParameterMap theParams = new SearchParameterMap();
+		theParams.setSort(new SortSpec().setOrder(SortOrderEnum.ASC).setParamName("recorded"));
+		IBundleProvider results = dao.search(theParams);
+		
+		long indexed = 0;
+		for(int from = 0; ; from += pageSize) {
+			List<IBaseResource> page = results.getResources(from, from + pageSize);
+			if(page.isEmpty()) {
+				break;
+			}
+			Map<PdrSourceIdentityId, PdrSourceIdentity> identities = new LinkedHashMap<>();
+			for(IBaseResource resource : page) {
+				PdrSourceIdentity identity = toSourceIdentity((Provenance) resource);
+				if(identity != null) {
+					identities.put(identity.getId(), identity);
+				}
+			}
+			repository.saveAll(new ArrayList<>(identities.values()));
+			indexed += identities.size();
+			log.info("PDR source identity index rebuild: {} Provenance resources read, {} identities indexed", from + page.size(), indexed);
+		}
+		
+		return indexed;
+	}
+	
+	private static PdrSourceIdentity toSourceIdentity(Provenance provenance) {
+		String source = PatientDataReceiptService.getProvenanceSource(provenance);
+		if(source == null || provenance.getTarget().size() < 2) {
+			return null;
+		}
+		IIdType patientId = provenance.getTarget().get(0).getReferenceElement();
+		if(patientId == null || !"Patient".equals(patientId.getResourceType())) {
+			return null;
+		}
+		PdrSourceIdentityId key = PdrSourceIdentityId.of(patientId.getIdPart(), new IdType(source));
+		return key != null ? new PdrSourceIdentity(key, provenance.getTarget().get(1).getReferenceElement()) : null;
+	}
+}
@@ -0,0 +1,116 @@
+package org.mitre.healthmanager.lib.pdr.ledger;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+/**
+ * One entry of a PDR List. Entries are only ever appended, the List 
+ * resource itself is stored once and its entries are materialized from 
+ * the ledger when it is read.
+ */
+@Entity
+@Table(name = "pdr_ledger_entry", indexes = {
+		@Index(name = "idx_pdr_ledger_entry_list", columnList = "list_id"),
+		@Index(name = "idx_pdr_ledger_entry_patient", columnList = "patient_id") })
+public class PdrLedgerEntry implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "sequenceGenerator")
+	@SequenceGenerator(name = "sequenceGenerator")
+	@Column(name = "id")
+	private Long id;
+
+	@NotNull
+	@Column(name = "list_id", nullable = false, length = 64)
+	private String listId;
+
+	@NotNull
+	@Column(name = "patient_id", nullable = false, length = 64)
+	private String patientId;
+
+	@NotNull
+	@Column(name = "item_reference", nullable = false, length = 255)
+	private String itemReference;
+
+	@Column(name = "deleted", nullable = false)
+	private boolean deleted;
+
+	@NotNull
+	@Column(name = "recorded", nullable = false)
+	private Instant recorded;
+
+	protected PdrLedgerEntry() {
+	}
+
+	public PdrLedgerEntry(String listId, String patientId, IIdType item, boolean deleted) {
+		this.listId = listId;
+		this.patientId = patientId;
+		this.itemReference = item.toUnqualified().getValue();
+		this.deleted = deleted;
+		this.recorded = Instant.now();
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getListId() {
+		return listId;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public String getItemReference() {
+		return itemReference;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public Instant getRecorded() {
+		return recorded;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PdrLedgerEntry)) {
+			return false;
+		}
+		return id != null && id.equals(((PdrLedgerEntry) o).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return getClass().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "PdrLedgerEntry{" +
+			"id=" + getId() +
+			", listId='" + getListId() + "'" +
+			", itemReference='" + getItemReference() + "'" +
+			", deleted=" + isDeleted() +
+			", recorded='" + getRecorded() + "'" +
+			"}";
+	}
+}
@@ -0,0 +1,29 @@
+package org.mitre.healthmanager.lib.pdr.ledger;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Spring Data SQL repository for the PdrLedgerEntry entity.
+ */
+@Repository
+public interface PdrLedgerEntryRepository extends JpaRepository<PdrLedgerEntry, Long> {
+	List<PdrLedgerEntry> findAllByListIdOrderByIdAsc(String listId);
+
+	@Query("select distinct e.itemReference from PdrLedgerEntry e where e.patientId = :patientId and e.listId <> :listId "
+			+ "and e.deleted = false and e.itemReference in :itemReferences")
+	List<String> findItemReferencesOfOtherLists(@Param("patientId") String patientId, @Param("listId") String listId,
+			@Param("itemReferences") Collection<String> itemReferences);
+
+	@Modifying
+	@Transactional
+	@Query("delete from PdrLedgerEntry e where e.listId = :listId")
+	int deleteAllByListId(@Param("listId") String listId);
+}
@@ -0,0 +1,199 @@
+package org.mitre.healthmanager.lib.pdr.ledger;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.ListResource;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Append-only storage for PDR List entries. A PDR List resource is created
+ * once per source message and never updated, each PDR appends its resource
+ * and Provenance references to the ledger instead. PDR List ids are cached
+ * by source message so that a PDR finds its List without a search.
+ * <p>
+ * The ledger lives in the application database, not the FHIR one, so it
+ * does not commit with the resources it lists. Appends are saved once the
+ * resources are committed, an append that fails does not fail the PDR but 
+ * is reported by {@link #checkAppended(String)}, the PDR is then resumed
+ * later to append its entries again. Lists are only materialized for reads
+ * of the List through the FHIR server, internal reads through a DAO call
+ * {@link #materialize(ListResource)} themselves. Searches do not see the
+ * ledger, {@code List?item=} and {@code _has:List:item} only match the raw
+ * bundles kept in the List resource.
+ */
+@Service
+public class PdrLedgerService {
+	public static final String MATERIALIZED = PdrLedgerService.class.getName() + ".materialized";
+	
+	// item references per IN clause
+	private static final int QUERY_CHUNK_SIZE = 500;
+	
+	private final Logger log = LoggerFactory.getLogger(PdrLedgerService.class);
+	
+	private final PdrLedgerEntryRepository repository;
+	
+	// Lists with appends that failed to save, until checked
+	private final Set<String> failedListIds = ConcurrentHashMap.newKeySet();
+	
+	// ledger entries indexed per List, weighed by entry count
+	private final Cache<String, PdrListEntryIndex> entryCache;
+	
+	// PDR List id per patient, source endpoint and MessageHeader id
+	private final Cache<List<String>, String> listIdCache;
+	
+	@Autowired
+	public PdrLedgerService(PdrLedgerEntryRepository repository, ApplicationProperties applicationProperties) {
+		ApplicationProperties.Pdr.Ledger ledger = applicationProperties.getPdr().getLedger();
+		this.repository = repository;
+		this.entryCache = Caffeine.newBuilder()
+				.maximumWeight(ledger.getCacheMaximumEntries())
+				.<String, PdrListEntryIndex>weigher((listId, index) -> Math.max(1, index.size()))
+				.expireAfterAccess(Duration.ofMinutes(ledger.getCacheExpireMinutes()))
+				.build();
+		this.listIdCache = Caffeine.newBuilder()
+				.maximumSize(ledger.getListIndexMaximumSize())
+				.build();
+	}
+	
+	/**
+	 * Appends entries to the ledger of a PDR List. When called inside a
+	 * transaction the entries are only saved once that transaction commits,
+	 * so the ledger never lists resources that were rolled back.
+	 */
+	public void append(@NotNull String listId, @NotNull List<PdrLedgerEntry> entries) {
+		if(TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					save(listId, entries);
+				}
+			});
+		} else {
+			save(listId, entries);
+		}
+	}
+	
+	/**
+	 * Returns false if an append to the ledger of the List failed since the
+	 * last check.
+	 */
+	public boolean checkAppended(@NotNull String listId) {
+		return !failedListIds.remove(listId);
+	}
+	
+	/**
+	 * Returns the given item references that other PDR Lists of the patient
+	 * list as well.
+	 */
+	public Set<String> findListedByOtherLists(@NotNull String patientInternalId, @NotNull String listId, 
+			@NotNull List<String> itemReferences) {
+		Set<String> listed = new HashSet<>();
+		for(int from = 0; from < itemReferences.size(); from += QUERY_CHUNK_SIZE) {
+			listed.addAll(repository.findItemReferencesOfOtherLists(patientInternalId, listId, 
+					itemReferences.subList(from, Math.min(from + QUERY_CHUNK_SIZE, itemReferences.size()))));
+		}
+		return listed;
+	}
+	
+	public int deleteList(@NotNull String listId) {
+		int deleted = repository.deleteAllByListId(listId);
+		entryCache.invalidate(listId);
+		invalidateListId(listId);
+		return deleted;
+	}
+	
+	/**
+	 * Id of the PDR List cached for the source message identifier, null when
+	 * unknown. The List may have changed since, callers check it.
+	 */
+	public String findListId(@NotNull String patientInternalId, @NotNull Identifier messageIdentifier) {
+		return listIdCache.getIfPresent(getListKey(patientInternalId, messageIdentifier));
+	}
+	
+	/**
+	 * Caches the PDR List of the source message identifier. When called
+	 * inside a transaction the List is only cached once that transaction
+	 * commits.
+	 */
+	public void indexListId(@NotNull String patientInternalId, @NotNull Identifier messageIdentifier, @NotNull String listId) {
+		List<String> key = getListKey(patientInternalId, messageIdentifier);
+		if(TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					listIdCache.put(key, listId);
+				}
+			});
+		} else {
+			listIdCache.put(key, listId);
+		}
+	}
+	
+	public void invalidateListId(@NotNull String listId) {
+		listIdCache.asMap().values().removeIf(listId::equals);
+	}
+	
+	/**
+	 * Adds the ledger entries to the given PDR Lists. Lists already 
+	 * materialized are left untouched, as are Lists that are not PDRs.
+	 */
+	public void materialize(@NotNull List<ListResource> lists) {
+		for(ListResource list : lists) {
+			materialize(list);
+		}
+	}
+	
+	public void materialize(@NotNull ListResource list) {
+		if(list.getUserData(MATERIALIZED) != null || !isPDRList(list)) {
+			return;
+		}
+		PdrListEntryIndex ledger = entryCache.get(list.getIdElement().getIdPart(), 
+				listId -> PdrListEntryIndex.of(repository.findAllByListIdOrderByIdAsc(listId)));
+		list.setEntry(PdrListEntryIndex.of(list.getEntry(), ledger).toListEntries());
+		list.setUserData(MATERIALIZED, Boolean.TRUE);
+	}
+	
+	// pending evictions, run by the cache in the background
+	void cleanUp() {
+		entryCache.cleanUp();
+	}
+	
+	private void save(String listId, List<PdrLedgerEntry> entries) {
+		try {
+			repository.saveAll(entries);
+		} catch (RuntimeException e) {
+			// the resources are committed already
+			log.error("Failed to append {} entries to the ledger of List {}", entries.size(), listId, e);
+			failedListIds.add(listId);
+			return;
+		}
+		// invalidation waits for a load of the List in progress
+		entryCache.invalidate(listId);
+	}
+	
+	private static List<String> getListKey(String patientInternalId, Identifier messageIdentifier) {
+		return List.of(patientInternalId, messageIdentifier.getSystem(), messageIdentifier.getValue());
+	}
+	
+	private static boolean isPDRList(ListResource list) {
+		return list.getIdElement().getIdPart() != null
+				&& list.getCode().getCoding().stream().anyMatch(coding -> coding.equalsShallow(PatientDataReceiptService.PDR_CODE));
+	}
+}
@@ -0,0 +1,79 @@
+package org.mitre.healthmanager.lib.pdr.ledger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.ListResource.ListEntryComponent;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Entries of a PDR List keyed by versioned item reference, in the order 
+ * they were first recorded. A later entry for the same item version 
+ * replaces the date of the earlier one, deletes are sticky.
+ */
+public final class PdrListEntryIndex {
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+	
+	public static PdrListEntryIndex of(List<PdrLedgerEntry> ledgerEntries) {
+		PdrListEntryIndex index = new PdrListEntryIndex();
+		for(PdrLedgerEntry ledgerEntry : ledgerEntries) {
+			index.add(ledgerEntry.getItemReference(), Date.from(ledgerEntry.getRecorded()), ledgerEntry.isDeleted());
+		}
+		return index;
+	}
+	
+	public static PdrListEntryIndex of(List<ListEntryComponent> listEntries, PdrListEntryIndex ledger) {
+		PdrListEntryIndex index = new PdrListEntryIndex();
+		for(ListEntryComponent listEntry : listEntries) {
+			String key = listEntry.getItem().getReference();
+			index.add(key != null ? key : "#" + index.size(), listEntry.getDate(), listEntry.getDeleted());
+		}
+		for(Entry entry : ledger.entries.values()) {
+			index.add(entry.itemReference, entry.date, entry.deleted);
+		}
+		return index;
+	}
+	
+	public void add(String itemReference, Date date, boolean deleted) {
+		Entry existing = entries.get(itemReference);
+		entries.put(itemReference, new Entry(itemReference, date, deleted || (existing != null && existing.deleted)));
+	}
+	
+	public boolean contains(String itemReference) {
+		return entries.containsKey(itemReference);
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	public List<ListEntryComponent> toListEntries() {
+		List<ListEntryComponent> listEntries = new ArrayList<>(entries.size());
+		for(Entry entry : entries.values()) {
+			ListEntryComponent listEntry = new ListEntryComponent().setDate(entry.date);
+			if(!entry.itemReference.startsWith("#")) {
+				listEntry.setItem(new Reference(entry.itemReference));
+			}
+			if(entry.deleted) {
+				listEntry.setDeleted(true);
+			}
+			listEntries.add(listEntry);
+		}
+		return listEntries;
+	}
+	
+	private static final class Entry {
+		private final String itemReference;
+		private final Date date;
+		private final boolean deleted;
+		
+		private Entry(String itemReference, Date date, boolean deleted) {
+			this.itemReference = itemReference;
+			this.date = date;
+			this.deleted = deleted;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package org.mitre.healthmanager.lib.pdr.metrics;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.data.DataTransformerRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.integration.handler.advice.AbstractRequestHandlerAdvice;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Times the handlers of pdrFlow. Every stage gets a timer tagged with the
+ * source endpoint and outcome, every PDR a {@link PdrTrace} of its stages.
+ * The most recent completed traces are kept for {@link PdrTimingsEndpoint}.
+ */
+@Service
+public class PdrFlowMetrics {
+	public static final String TRACE_ID_HEADER = "pdrTraceId";
+	public static final String STAGE_TIMER = "pdr.flow.stage";
+	public static final String MESSAGE_TIMER = "pdr.flow.message";
+	public static final String ENTRIES_SUMMARY = "pdr.flow.entries";
+
+	// source endpoints without a transformer are not tagged individually
+	private static final String OTHER_SOURCE = "other";
+
+	private final MeterRegistry meterRegistry;
+	private final DataTransformerRegistry dataTransformerRegistry;
+	private final int recentCapacity;
+
+	private final Cache<String, PdrTrace> active;
+	// guarded by itself
+	private final Deque<PdrTrace> recent = new ArrayDeque<>();
+
+	@Autowired
+	public PdrFlowMetrics(MeterRegistry meterRegistry, DataTransformerRegistry dataTransformerRegistry,
+			ApplicationProperties applicationProperties) {
+		this.meterRegistry = meterRegistry;
+		this.dataTransformerRegistry = dataTransformerRegistry;
+		this.recentCapacity = applicationProperties.getPdr().getMetrics().getRecentCapacity();
+		this.active = Caffeine.newBuilder()
+				.expireAfterAccess(Duration.ofMillis(2 * applicationProperties.getPdr().getAggregationTimeoutMillis()))
+				.build();
+	}
+
+	/**
+	 * Starts the trace of a PDR entering pdrFlow, returns its id.
+	 */
+	public String start() {
+		String traceId = UUID.randomUUID().toString();
+		active.put(traceId, new PdrTrace(traceId));
+		return traceId;
+	}
+
+	/**
+	 * Advice timing a pdrFlow handler as the given stage.
+	 */
+	public AbstractRequestHandlerAdvice stage(String stage) {
+		return new StageAdvice(stage, false, false);
+	}
+
+	/**
+	 * Advice timing the handler splitting a PDR into its entries, also
+	 * tracks the number of entries per PDR.
+	 */
+	public AbstractRequestHandlerAdvice splitStage(String stage) {
+		return new StageAdvice(stage, true, false);
+	}
+
+	/**
+	 * Advice timing the last handler of pdrFlow, completes the trace when the
+	 * handler succeeds. Failures complete it from the error channel.
+	 */
+	public AbstractRequestHandlerAdvice lastStage(String stage) {
+		return new StageAdvice(stage, false, true);
+	}
+
+	/**
+	 * Completes the trace of a PDR that reached the end of the flow or the
+	 * error channel.
+	 */
+	public void completed(Message<?> message, boolean success) {
+		String traceId = message.getHeaders().get(TRACE_ID_HEADER, String.class);
+		PdrTrace trace = traceId != null ? active.asMap().remove(traceId) : null;
+		if(trace == null) {
+			return;
+		}
+		String outcome = success ? "success" : "error";
+		updateTrace(trace, message);
+		trace.complete(outcome);
+		Timer.builder(MESSAGE_TIMER)
+			.description("Time to process a Patient Data Receipt")
+			.tag("source", getSourceTag(trace.getSourceEndpoint()))
+			.tag("outcome", outcome)
+			.register(meterRegistry)
+			.record(trace.getDurationNanos(), TimeUnit.NANOSECONDS);
+		synchronized(recent) {
+			if(recent.size() >= recentCapacity) {
+				recent.removeFirst();
+			}
+			recent.addLast(trace);
+		}
+	}
+
+	/**
+	 * Slowest of the recently completed PDRs, slowest first.
+	 */
+	public List<PdrTrace> getSlowest(int limit) {
+		List<PdrTrace> traces;
+		synchronized(recent) {
+			traces = new ArrayList<>(recent);
+		}
+		return traces.stream()
+				.sorted(Comparator.comparingDouble(PdrTrace::getDurationMillis).reversed())
+				.limit(limit)
+				.collect(Collectors.toList());
+	}
+
+	private void record(String stage, Message<?> message, long nanos, String outcome) {
+		String sourceEndpoint = message.getHeaders().get("sourceEndpoint", String.class);
+		Timer.builder(STAGE_TIMER)
+			.description("Time spent in a pdrFlow handler")
+			.tag("stage", stage)
+			.tag("source", getSourceTag(sourceEndpoint))
+			.tag("outcome", outcome)
+			.register(meterRegistry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+
+		String traceId = message.getHeaders().get(TRACE_ID_HEADER, String.class);
+		PdrTrace trace = traceId != null ? active.getIfPresent(traceId) : null;
+		if(trace != null) {
+			updateTrace(trace, message);
+			trace.recordStage(stage, nanos);
+		}
+	}
+
+	private void recordEntries(Message<?> message) {
+		if(!(message.getPayload() instanceof Bundle)) {
+			return;
+		}
+		// less the MessageHeader
+		int entries = Math.max(0, ((Bundle) message.getPayload()).getEntry().size() - 1);
+		DistributionSummary.builder(ENTRIES_SUMMARY)
+			.description("Entries per Patient Data Receipt")
+			.baseUnit("entries")
+			.tag("source", getSourceTag(message.getHeaders().get("sourceEndpoint", String.class)))
+			.register(meterRegistry)
+			.record(entries);
+		String traceId = message.getHeaders().get(TRACE_ID_HEADER, String.class);
+		PdrTrace trace = traceId != null ? active.getIfPresent(traceId) : null;
+		if(trace != null) {
+			trace.setEntries(entries);
+		}
+	}
+
+	private static void updateTrace(PdrTrace trace, Message<?> message) {
+		if(trace.getSourceEndpoint() == null) {
+			trace.setSourceEndpoint(message.getHeaders().get("sourceEndpoint", String.class));
+		}
+		if(trace.getRawBundleId() == null) {
+			trace.setRawBundleId(message.getHeaders().get("rawBundleId", String.class));
+		}
+	}
+
+	private String getSourceTag(String sourceEndpoint) {
+		if(sourceEndpoint == null) {
+			return "unknown";
+		}
+		return dataTransformerRegistry.getTransformer(sourceEndpoint) != null ? sourceEndpoint : OTHER_SOURCE;
+	}
+
+	private class StageAdvice extends AbstractRequestHandlerAdvice {
+		private final String stage;
+		private final boolean countEntries;
+		private final boolean last;
+
+		StageAdvice(String stage, boolean countEntries, boolean last) {
+			this.stage = stage;
+			this.countEntries = countEntries;
+			this.last = last;
+		}
+
+		@Override
+		protected Object doInvoke(ExecutionCallback callback, Object target, Message<?> message) {
+			long start = System.nanoTime();
+			String outcome = "error";
+			try {
+				Object result = callback.execute();
+				outcome = "success";
+				return result;
+			} finally {
+				record(stage, message, System.nanoTime() - start, outcome);
+				if(countEntries && "success".equals(outcome)) {
+					recordEntries(message);
+				}
+				if(last && "success".equals(outcome)) {
+					completed(message, true);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package org.mitre.healthmanager.lib.pdr.metrics;
+
+import java.util.List;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint listing the slowest recent Patient Data Receipts with
+ * the time spent in each stage of pdrFlow.
+ */
+@Component
+@Endpoint(id = "pdrtimings")
+public class PdrTimingsEndpoint {
+	private static final int DEFAULT_LIMIT = 20;
+
+	private final PdrFlowMetrics flowMetrics;
+
+	public PdrTimingsEndpoint(PdrFlowMetrics flowMetrics) {
+		this.flowMetrics = flowMetrics;
+	}
+
+	@ReadOperation
+	public List<PdrTrace> slowest(@Nullable Integer limit) {
+		return flowMetrics.getSlowest(limit != null && limit > 0 ? limit : DEFAULT_LIMIT);
+	}
+}
@@ -0,0 +1,130 @@
+package org.mitre.healthmanager.lib.pdr.metrics;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stage breakdown of a single Patient Data Receipt run through pdrFlow.
+ * Stages run per entry (transformEntry) add up the time of all entries.
+ */
+public class PdrTrace {
+	private final String traceId;
+	private final Instant started;
+	private final long startNanos;
+	private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+	private final AtomicInteger stageOrder = new AtomicInteger();
+	private volatile String sourceEndpoint;
+	private volatile String rawBundleId;
+	private volatile int entries;
+	private volatile String outcome;
+	private volatile long durationNanos;
+
+	PdrTrace(String traceId) {
+		this.traceId = traceId;
+		this.started = Instant.now();
+		this.startNanos = System.nanoTime();
+	}
+
+	void recordStage(String stage, long nanos) {
+		stages.computeIfAbsent(stage, name -> new Stage(stageOrder.getAndIncrement())).add(nanos);
+	}
+
+	void complete(String outcome) {
+		this.outcome = outcome;
+		this.durationNanos = System.nanoTime() - startNanos;
+	}
+
+	void setSourceEndpoint(String sourceEndpoint) {
+		this.sourceEndpoint = sourceEndpoint;
+	}
+
+	void setRawBundleId(String rawBundleId) {
+		this.rawBundleId = rawBundleId;
+	}
+
+	void setEntries(int entries) {
+		this.entries = entries;
+	}
+
+	public String getTraceId() {
+		return traceId;
+	}
+
+	public Instant getStarted() {
+		return started;
+	}
+
+	public String getSourceEndpoint() {
+		return sourceEndpoint;
+	}
+
+	public String getRawBundleId() {
+		return rawBundleId;
+	}
+
+	public int getEntries() {
+		return entries;
+	}
+
+	public String getOutcome() {
+		return outcome;
+	}
+
+	public double getDurationMillis() {
+		return durationNanos / 1e6;
+	}
+
+	long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * Stages in the order they first ran.
+	 */
+	public Map<String, Stage> getStages() {
+		Map<String, Stage> ordered = new LinkedHashMap<>();
+		stages.entrySet().stream()
+			.sorted(Comparator.comparingInt(entry -> entry.getValue().order))
+			.forEachOrdered(entry -> ordered.put(entry.getKey(), entry.getValue()));
+		return ordered;
+	}
+
+	public static class Stage {
+		private final int order;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+
+		Stage(int order) {
+			this.order = order;
+		}
+
+		void add(long stageNanos) {
+			count.incrementAndGet();
+			nanos.addAndGet(stageNanos);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public double getTotalMillis() {
+			return nanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PdrTrace{" +
+			"traceId='" + traceId + "'" +
+			", rawBundleId='" + rawBundleId + "'" +
+			", outcome='" + outcome + "'" +
+			", durationMillis=" + getDurationMillis() +
+			"}";
+	}
+}
@@ -0,0 +1,173 @@
+package org.mitre.healthmanager.lib.pdr.progress;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Reference;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mitre.healthmanager.lib.pdr.RecordMatchService;
+import org.mitre.healthmanager.lib.pdr.index.PdrSourceIdentityService;
+import org.mitre.healthmanager.lib.pdr.ledger.PdrLedgerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.dao.TransactionProcessor;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Writes a PDR as a series of transactions of a bounded number of entries.
+ * Each chunk commits on its own and appends to the PDR List, progress is
+ * recorded against the raw bundle id so that processing the same raw 
+ * bundle again skips the chunks already committed. References to entries
+ * of earlier chunks are rewritten to the stored ids, a chunk referencing
+ * an entry created further on is extended up to that entry.
+ */
+@Service
+public class PdrChunkedWriteService {
+	private final Logger log = LoggerFactory.getLogger(PdrChunkedWriteService.class);
+	
+	/**
+	 * Entry user data holding the 1-based position of the entry in the raw bundle.
+	 */
+	public static final String ENTRY_INDEX = PdrChunkedWriteService.class.getName() + ".entryIndex";
+	
+	@Autowired
+	PdrWriteProgressRepository repository;
+	
+	@Autowired
+	FhirContext myFhirContext;
+	
+	public ListResource write(@NotNull Bundle theMessage, int chunkSize,
+			@NotNull String patientInternalId, @NotNull String rawBundleId, @NotNull MessageHeader theHeader,
+			@NotNull TransactionProcessor myTransactionProcessor, @NotNull DaoRegistry daoRegistry,
+			PdrSourceIdentityService sourceIdentityService, @NotNull PdrLedgerService ledgerService) {
+		PdrWriteProgress progress = repository.findById(rawBundleId).orElseGet(() -> new PdrWriteProgress(rawBundleId));
+		ListResource list = PatientDataReceiptService.findOrCreatePDRList(patientInternalId, rawBundleId, theHeader, daoRegistry, ledgerService);
+		PatientDataReceiptService.appendPDRListRawBundle(list, patientInternalId, rawBundleId, ledgerService);
+		FhirTerser terser = myFhirContext.newTerser();
+		// placeholder fullUrl -> stored id of entries created by earlier chunks
+		Map<String, String> idSubstitutions = new HashMap<>();
+		
+		List<BundleEntryComponent> entries = theMessage.getEntry();
+		int[] lastReferenced = getLastReferencedEntries(entries, terser);
+		for(int from = 0, to; from < entries.size(); from = to) {
+			to = Math.min(from + chunkSize, entries.size());
+			for(int i = from; i < to; i++) {
+				to = Math.max(to, lastReferenced[i] + 1);
+			}
+			Bundle chunk = new Bundle();
+			int lastEntryIndex = 0;
+			for(BundleEntryComponent entry : entries.subList(from, to)) {
+				int entryIndex = getEntryIndex(entry);
+				if(entryIndex > 0 && entryIndex <= progress.getCommittedEntryIndex()) {
+					// committed before the PDR was interrupted
+					collectCommittedIdSubstitution(entry, idSubstitutions);
+					continue;
+				}
+				lastEntryIndex = Math.max(lastEntryIndex, entryIndex);
+				substituteReferences(entry, idSubstitutions, terser);
+				chunk.addEntry(entry);
+			}
+			if(chunk.getEntry().isEmpty()) {
+				continue;
+			}
+			
+			Bundle transactionResponse = PatientDataReceiptService.storeIndividualPDREntries(chunk, patientInternalId, 
+					myTransactionProcessor, theHeader, daoRegistry);
+			PatientDataReceiptService.appendPDRListEntries(list, chunk, transactionResponse, patientInternalId, theHeader, 
+					sourceIdentityService, ledgerService);
+			collectIdSubstitutions(chunk, transactionResponse, idSubstitutions);
+			progress = repository.save(progress.chunkCommitted(lastEntryIndex));
+			log.debug("PDR {} committed chunk {} up to entry {}", rawBundleId, progress.getCommittedChunks(), lastEntryIndex);
+		}
+		
+		// finished, processing the raw bundle again starts over
+		if(repository.existsById(rawBundleId)) {
+			repository.deleteById(rawBundleId);
+		}
+		return list;
+	}
+	
+	private static int getEntryIndex(BundleEntryComponent entry) {
+		Object entryIndex = entry.getUserData(ENTRY_INDEX);
+		return entryIndex instanceof Integer ? (Integer) entryIndex : 0;
+	}
+	
+	/**
+	 * Returns for every entry the position of the last entry created under a
+	 * fullUrl it references, its own position when there is none.
+	 */
+	private static int[] getLastReferencedEntries(List<BundleEntryComponent> entries, FhirTerser terser) {
+		Map<String, Integer> positions = new HashMap<>();
+		for(int i = 0; i < entries.size(); i++) {
+			BundleEntryComponent entry = entries.get(i);
+			if(entry.getRequest().getMethod() == Bundle.HTTPVerb.POST && entry.hasFullUrl()) {
+				positions.put(entry.getFullUrl(), i);
+			}
+		}
+		int[] lastReferenced = new int[entries.size()];
+		for(int i = 0; i < entries.size(); i++) {
+			lastReferenced[i] = i;
+			if(positions.isEmpty() || entries.get(i).getResource() == null) {
+				continue;
+			}
+			for(Reference reference : terser.getAllPopulatedChildElementsOfType(entries.get(i).getResource(), Reference.class)) {
+				Integer position = reference.getReference() != null ? positions.get(reference.getReference()) : null;
+				if(position != null) {
+					lastReferenced[i] = Math.max(lastReferenced[i], position);
+				}
+			}
+		}
+		return lastReferenced;
+	}
+	
+	private static void substituteReferences(BundleEntryComponent entry, Map<String, String> idSubstitutions, FhirTerser terser) {
+		if(idSubstitutions.isEmpty() || entry.getResource() == null) {
+			return;
+		}
+		for(Reference reference : terser.getAllPopulatedChildElementsOfType(entry.getResource(), Reference.class)) {
+			String substitution = reference.getReference() != null ? idSubstitutions.get(reference.getReference()) : null;
+			if(substitution != null) {
+				reference.setReference(substitution);
+			}
+		}
+	}
+	
+	/**
+	 * Entries committed before a resume were matched to their stored resource
+	 * by record matching, map the fullUrl they were created under to it.
+	 */
+	private static void collectCommittedIdSubstitution(BundleEntryComponent entry, Map<String, String> idSubstitutions) {
+		if(entry.getRequest().getMethod() != Bundle.HTTPVerb.PUT || entry.getResource() == null) {
+			return;
+		}
+		String fullUrl = RecordMatchService.getFullUrl(entry.getResource().fhirType(), entry.getResource().getIdElement().getIdPart());
+		if(!fullUrl.isEmpty()) {
+			idSubstitutions.put(fullUrl, entry.getRequest().getUrl());
+		}
+	}
+	
+	private static void collectIdSubstitutions(Bundle chunk, Bundle transactionResponse, Map<String, String> idSubstitutions) {
+		for(int i = 0; i < chunk.getEntry().size(); i++) {
+			BundleEntryComponent requestEntry = chunk.getEntry().get(i);
+			if(requestEntry.getRequest().getMethod() == Bundle.HTTPVerb.POST && requestEntry.hasFullUrl()) {
+				IdType responseId = PatientDataReceiptService.getTransactionResponseEntryResourceId(transactionResponse.getEntry().get(i));
+				if(responseId != null && !responseId.isEmpty()) {
+					idSubstitutions.put(requestEntry.getFullUrl(), responseId.toUnqualifiedVersionless().getValue());
+				}
+			}
+		}
+	}
+}
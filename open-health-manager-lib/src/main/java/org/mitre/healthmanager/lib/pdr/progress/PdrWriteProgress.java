@@ -0,0 +1,95 @@
+package org.mitre.healthmanager.lib.pdr.progress;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Entries of a raw PDR bundle that have been committed by chunked writes,
+ * so that an interrupted PDR can resume after the last committed chunk.
+ */
+@Entity
+@Table(name = "pdr_write_progress")
+public class PdrWriteProgress implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name = "raw_bundle_id", length = 64)
+	private String rawBundleId;
+
+	/**
+	 * Highest entry index, in raw bundle order, committed so far.
+	 */
+	@Column(name = "committed_entry_index", nullable = false)
+	private int committedEntryIndex;
+
+	@Column(name = "committed_chunks", nullable = false)
+	private int committedChunks;
+
+	@NotNull
+	@Column(name = "updated", nullable = false)
+	private Instant updated;
+
+	protected PdrWriteProgress() {
+	}
+
+	public PdrWriteProgress(String rawBundleId) {
+		this.rawBundleId = rawBundleId;
+		this.committedEntryIndex = 0;
+		this.updated = Instant.now();
+	}
+
+	public String getRawBundleId() {
+		return rawBundleId;
+	}
+
+	public int getCommittedEntryIndex() {
+		return committedEntryIndex;
+	}
+
+	public int getCommittedChunks() {
+		return committedChunks;
+	}
+
+	public Instant getUpdated() {
+		return updated;
+	}
+
+	public PdrWriteProgress chunkCommitted(int entryIndex) {
+		this.committedEntryIndex = Math.max(committedEntryIndex, entryIndex);
+		this.committedChunks++;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PdrWriteProgress)) {
+			return false;
+		}
+		return rawBundleId != null && rawBundleId.equals(((PdrWriteProgress) o).rawBundleId);
+	}
+
+	@Override
+	public int hashCode() {
+		return getClass().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "PdrWriteProgress{" +
+			"rawBundleId='" + getRawBundleId() + "'" +
+			", committedEntryIndex=" + getCommittedEntryIndex() +
+			", committedChunks=" + getCommittedChunks() +
+			", updated='" + getUpdated() + "'" +
+			"}";
+	}
+}
@@ -0,0 +1,11 @@
+package org.mitre.healthmanager.lib.pdr.progress;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Spring Data SQL repository for the PdrWriteProgress entity.
+ */
+@Repository
+public interface PdrWriteProgressRepository extends JpaRepository<PdrWriteProgress, String> {
+}
@@ -0,0 +1,167 @@
+package org.mitre.healthmanager.lib.pdr.rebuild;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+/**
+ * A rebuild of the derived resources of a patient from their raw PDR
+ * bundles. The bundles to replay are planned as {@link PdrAccountRebuildStep}s
+ * before anything is wiped, replayed steps are the checkpoints a rebuild
+ * resumes from.
+ */
+@Entity
+@Table(name = "pdr_account_rebuild", indexes = {
+		@Index(name = "idx_pdr_account_rebuild_patient", columnList = "patient_id") })
+public class PdrAccountRebuild implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public enum Status {
+		RUNNING, COMPLETE, FAILED
+	}
+
+	@Id
+	@Column(name = "id", length = 64)
+	private String id;
+
+	@NotNull
+	@Column(name = "patient_id", nullable = false, length = 64)
+	private String patientId;
+
+	@NotNull
+	@Enumerated(EnumType.STRING)
+	@Column(name = "status", nullable = false, length = 16)
+	private Status status;
+
+	/**
+	 * Set once the derived resources of the patient have been deleted.
+	 */
+	@Column(name = "wiped", nullable = false)
+	private boolean wiped;
+
+	@Column(name = "total_bundles", nullable = false)
+	private int totalBundles;
+
+	@NotNull
+	@Column(name = "started", nullable = false)
+	private Instant started;
+
+	@NotNull
+	@Column(name = "updated", nullable = false)
+	private Instant updated;
+
+	@Column(name = "error", length = 1000)
+	private String error;
+
+	protected PdrAccountRebuild() {
+	}
+
+	public PdrAccountRebuild(String id, String patientId) {
+		this.id = id;
+		this.patientId = patientId;
+		this.status = Status.RUNNING;
+		this.started = Instant.now();
+		this.updated = started;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isWiped() {
+		return wiped;
+	}
+
+	public int getTotalBundles() {
+		return totalBundles;
+	}
+
+	public Instant getStarted() {
+		return started;
+	}
+
+	public Instant getUpdated() {
+		return updated;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public PdrAccountRebuild planned(int totalBundles) {
+		this.totalBundles = totalBundles;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	public PdrAccountRebuild wiped() {
+		this.wiped = true;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	public PdrAccountRebuild resumed() {
+		this.status = Status.RUNNING;
+		this.error = null;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	public PdrAccountRebuild completed() {
+		this.status = Status.COMPLETE;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	public PdrAccountRebuild failed(String error) {
+		this.status = Status.FAILED;
+		this.error = error != null && error.length() > 1000 ? error.substring(0, 1000) : error;
+		this.updated = Instant.now();
+		return this;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PdrAccountRebuild)) {
+			return false;
+		}
+		return id != null && id.equals(((PdrAccountRebuild) o).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return getClass().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "PdrAccountRebuild{" +
+			"id='" + getId() + "'" +
+			", patientId='" + getPatientId() + "'" +
+			", status='" + getStatus() + "'" +
+			", wiped=" + isWiped() +
+			", totalBundles=" + getTotalBundles() +
+			", started='" + getStarted() + "'" +
+			", updated='" + getUpdated() + "'" +
+			"}";
+	}
+}
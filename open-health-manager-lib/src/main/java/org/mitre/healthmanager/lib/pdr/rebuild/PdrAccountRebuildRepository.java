@@ -0,0 +1,14 @@
+package org.mitre.healthmanager.lib.pdr.rebuild;
+
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Spring Data SQL repository for the PdrAccountRebuild entity.
+ */
+@Repository
+public interface PdrAccountRebuildRepository extends JpaRepository<PdrAccountRebuild, String> {
+	Optional<PdrAccountRebuild> findFirstByPatientIdAndStatusNotOrderByStartedDesc(String patientId, PdrAccountRebuild.Status status);
+}
@@ -0,0 +1,335 @@
+package org.mitre.healthmanager.lib.pdr.rebuild;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+import javax.validation.constraints.NotNull;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.ListResource.ListEntryComponent;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mitre.healthmanager.lib.pdr.PdrGateway;
+import org.mitre.healthmanager.lib.pdr.ProcessMessageService;
+import org.mitre.healthmanager.lib.pdr.index.PdrSourceIdentityService;
+import org.mitre.healthmanager.lib.pdr.ledger.PdrLedgerService;
+import org.mitre.healthmanager.lib.pdr.progress.PdrWriteProgressRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Service;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.TransactionProcessor;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Rebuilds the derived resources of a patient from the raw PDR bundles kept
+ * by the PDR Lists. The raw bundles are planned in the order they were
+ * received, the PDR Lists and everything they reference other than the
+ * Patient and the raw bundles are deleted, then the raw bundles are replayed
+ * through pdrFlow. Sources replay in parallel on the rebuild executor, the
+ * bundles of a source one at a time. Starting the rebuild of a patient
+ * whose last rebuild did not complete resumes it after the last replayed
+ * bundle of each source.
+ */
+@Service
+public class PdrAccountRebuildService {
+	private final Logger log = LoggerFactory.getLogger(PdrAccountRebuildService.class);
+
+	// rebuilds running on this node by patient id
+	private final Map<String, PdrAccountRebuild> running = new ConcurrentHashMap<>();
+
+	@Autowired
+	PdrAccountRebuildRepository rebuildRepository;
+
+	@Autowired
+	PdrAccountRebuildStepRepository stepRepository;
+
+	@Autowired
+	PdrWriteProgressRepository writeProgressRepository;
+
+	@Autowired
+	PdrLedgerService ledgerService;
+
+	@Autowired
+	PdrSourceIdentityService sourceIdentityService;
+
+	@Autowired
+	PdrGateway pdrGateway;
+
+	@Autowired
+	DaoRegistry daoRegistry;
+
+	@Autowired
+	TransactionProcessor myTransactionProcessor;
+
+	@Autowired
+	ApplicationProperties applicationProperties;
+
+	@Autowired
+	@Lazy
+	@Qualifier("pdrMaintenanceExecutor")
+	Executor maintenanceExecutor;
+
+	@Autowired
+	@Lazy
+	@Qualifier("pdrRebuildExecutor")
+	Executor rebuildExecutor;
+
+	/**
+	 * Starts or resumes the rebuild of the patient, returns the rebuild
+	 * already running for the patient if there is one.
+	 */
+	public synchronized PdrAccountRebuild start(@NotNull String patientId, String fhirServerBase) {
+		PdrAccountRebuild current = running.get(patientId);
+		if(current != null) {
+			return current;
+		}
+		PdrAccountRebuild rebuild = rebuildRepository
+				.findFirstByPatientIdAndStatusNotOrderByStartedDesc(patientId, PdrAccountRebuild.Status.COMPLETE)
+				.map(PdrAccountRebuild::resumed)
+				.orElseGet(() -> new PdrAccountRebuild(UUID.randomUUID().toString(), patientId));
+		PdrAccountRebuild started = rebuildRepository.save(rebuild);
+		running.put(patientId, started);
+		maintenanceExecutor.execute(() -> run(started, fhirServerBase));
+		return started;
+	}
+
+	public PdrAccountRebuild getRebuild(String rebuildId) {
+		return rebuildId != null ? rebuildRepository.findById(rebuildId).orElse(null) : null;
+	}
+
+	public long getReplayedBundles(@NotNull String rebuildId) {
+		return stepRepository.countByRebuildIdAndReplayedTrue(rebuildId);
+	}
+
+	private void run(PdrAccountRebuild rebuild, String fhirServerBase) {
+		String patientId = rebuild.getPatientId();
+		try {
+			if(!rebuild.isWiped()) {
+				if(stepRepository.countByRebuildId(rebuild.getId()) == 0) {
+					rebuild = rebuildRepository.save(rebuild.planned(plan(rebuild)));
+				}
+				wipe(rebuild);
+				rebuild = rebuildRepository.save(rebuild.wiped());
+			}
+			String error = replay(rebuild, fhirServerBase);
+			rebuild = rebuildRepository.save(error == null ? rebuild.completed() : rebuild.failed(error));
+			log.info("Account rebuild {} of patient {} finished: {}", rebuild.getId(), patientId, rebuild.getStatus());
+		} catch (RuntimeException e) {
+			log.error("Account rebuild {} of patient {} failed", rebuild.getId(), patientId, e);
+			rebuildRepository.save(rebuild.failed(e.getMessage()));
+		} finally {
+			running.remove(patientId);
+		}
+	}
+
+	/**
+	 * Records the raw bundles of the patient's PDR Lists as steps, before
+	 * the Lists are deleted.
+	 */
+	private int plan(PdrAccountRebuild rebuild) {
+		IFhirResourceDao<ListResource> listDao = daoRegistry.getResourceDao(ListResource.class);
+		List<PlannedBundle> planned = new ArrayList<>();
+		Set<String> rawBundleIds = new LinkedHashSet<>();
+		for(String listId : findPDRListIds(rebuild.getPatientId(), SortOrderEnum.ASC)) {
+			ListResource list = listDao.read(new IdType("List", listId));
+			ledgerService.materialize(list);
+			// the List identifier is the source endpoint and MessageHeader id
+			String sourceEndpoint = list.getIdentifierFirstRep().getSystem();
+			for(ListEntryComponent entry : list.getEntry()) {
+				IIdType item = entry.getItem().getReferenceElement();
+				if(entry.getDeleted() || !"Bundle".equals(item.getResourceType()) || !rawBundleIds.add(item.getIdPart())) {
+					continue;
+				}
+				String rawBundleSource = sourceEndpoint != null ? sourceEndpoint : readSourceEndpoint(item.getIdPart());
+				if(rawBundleSource != null) {
+					planned.add(new PlannedBundle(item.getIdPart(), rawBundleSource, entry.hasDate() ? entry.getDate() : list.getDate()));
+				}
+			}
+		}
+
+		// stable, bundles received at the same time keep their List order
+		planned.sort(Comparator.comparing(bundle -> bundle.received, Comparator.nullsFirst(Comparator.naturalOrder())));
+		List<PdrAccountRebuildStep> steps = new ArrayList<>(planned.size());
+		for(PlannedBundle bundle : planned) {
+			steps.add(new PdrAccountRebuildStep(rebuild.getId(), steps.size(), bundle.sourceEndpoint, bundle.rawBundleId));
+		}
+		stepRepository.saveAll(steps);
+		log.info("Account rebuild {} of patient {} planned {} raw bundles", rebuild.getId(), rebuild.getPatientId(), steps.size());
+		return steps.size();
+	}
+
+	/**
+	 * Deletes the PDR Lists of the patient with the resources they reference,
+	 * one List per transaction and newest first so that resources referenced
+	 * by later PDRs go after them.
+	 */
+	private void wipe(PdrAccountRebuild rebuild) {
+		IFhirResourceDao<ListResource> listDao = daoRegistry.getResourceDao(ListResource.class);
+		List<String> listIds = findPDRListIds(rebuild.getPatientId(), SortOrderEnum.DESC);
+		for(String listId : listIds) {
+			ListResource list = listDao.read(new IdType("List", listId));
+			ledgerService.materialize(list);
+
+			Bundle transaction = new Bundle();
+			transaction.setType(Bundle.BundleType.TRANSACTION);
+			transaction.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl("List/" + listId);
+			Set<String> items = new LinkedHashSet<>();
+			for(ListEntryComponent entry : list.getEntry()) {
+				IIdType item = entry.getItem().getReferenceElement();
+				// the Patient and the raw bundles are kept
+				if(!entry.getDeleted() && item.getResourceType() != null
+						&& !"Patient".equals(item.getResourceType()) && !"Bundle".equals(item.getResourceType())) {
+					items.add(item.toUnqualifiedVersionless().getValue());
+				}
+			}
+			for(String item : items) {
+				transaction.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl(item);
+			}
+			myTransactionProcessor.transaction(null, transaction, false);
+			ledgerService.deleteList(listId);
+		}
+		sourceIdentityService.deletePatient(rebuild.getPatientId());
+		// replays write every chunk again
+		for(PdrAccountRebuildStep step : stepRepository.findAllByRebuildIdAndReplayedFalseOrderBySequenceNumberAsc(rebuild.getId())) {
+			if(writeProgressRepository.existsById(step.getRawBundleId())) {
+				writeProgressRepository.deleteById(step.getRawBundleId());
+			}
+		}
+		log.info("Account rebuild {} of patient {} deleted {} PDR Lists", rebuild.getId(), rebuild.getPatientId(), listIds.size());
+	}
+
+	/**
+	 * Replays the steps not replayed yet, returns a description of the
+	 * sources that failed or null.
+	 */
+	private String replay(PdrAccountRebuild rebuild, String fhirServerBase) {
+		Map<String, List<PdrAccountRebuildStep>> stepsBySource = stepRepository
+				.findAllByRebuildIdAndReplayedFalseOrderBySequenceNumberAsc(rebuild.getId()).stream()
+				.collect(Collectors.groupingBy(PdrAccountRebuildStep::getSourceEndpoint, LinkedHashMap::new, Collectors.toList()));
+		List<CompletableFuture<String>> sources = stepsBySource.values().stream()
+				.map(steps -> CompletableFuture.supplyAsync(() -> replaySource(steps, fhirServerBase), rebuildExecutor))
+				.collect(Collectors.toList());
+		CompletableFuture.allOf(sources.toArray(new CompletableFuture[0])).join();
+
+		String errors = sources.stream()
+				.map(CompletableFuture::join)
+				.filter(Objects::nonNull)
+				.collect(Collectors.joining("; "));
+		return errors.isEmpty() ? null : errors;
+	}
+
+	/**
+	 * Replays the steps of one source in order, stopping at the first
+	 * failure so that later bundles of the source are not applied out of
+	 * order.
+	 */
+	private String replaySource(List<PdrAccountRebuildStep> steps, String fhirServerBase) {
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Bundle> bundleDao = daoRegistry.getDaoOrThrowException(Bundle.class);
+		for(PdrAccountRebuildStep step : steps) {
+			Bundle rawBundle;
+			try {
+				rawBundle = bundleDao.read(new IdType("Bundle", step.getRawBundleId()));
+			} catch (ResourceNotFoundException | ResourceGoneException e) {
+				log.warn("Raw bundle {} of account rebuild {} no longer exists", step.getRawBundleId(), step.getRebuildId());
+				stepRepository.save(step.replayed());
+				continue;
+			}
+			try {
+				IBaseBundle response = pdrGateway.resumeMessage(rawBundle, fhirServerBase, step.getRawBundleId());
+				if(!isSuccess(response)) {
+					return "raw bundle " + step.getRawBundleId() + " of " + step.getSourceEndpoint() + " failed";
+				}
+			} catch (RuntimeException e) {
+				log.error("Replay of raw bundle {} in account rebuild {} failed", step.getRawBundleId(), step.getRebuildId(), e);
+				return "raw bundle " + step.getRawBundleId() + " of " + step.getSourceEndpoint() + " failed: " + e.getMessage();
+			}
+			stepRepository.save(step.replayed());
+		}
+		return null;
+	}
+
+	private List<String> findPDRListIds(String patientId, SortOrderEnum order) {
+		int pageSize = applicationProperties.getPdr().getRebuild().getListPageSize();
+		SearchParameterMap theParams = new SearchParameterMap();
+		theParams.add("patient", new ReferenceParam(new IdType("Patient", patientId)));
+		theParams.add("code", new TokenParam(PatientDataReceiptService.PDR_CODE));
+		theParams.setSort(new SortSpec().setOrder(order).setParamName("date"));
+		IBundleProvider results = daoRegistry.getResourceDao(ListResource.class).search(theParams);
+
+		List<String> listIds = new ArrayList<>();
+		for(int from = 0; ; from += pageSize) {
+			List<IBaseResource> page = results.getResources(from, from + pageSize);
+			if(page.isEmpty()) {
+				break;
+			}
+			for(IBaseResource list : page) {
+				listIds.add(list.getIdElement().getIdPart());
+			}
+		}
+		return listIds;
+	}
+
+	private String readSourceEndpoint(String rawBundleId) {
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Bundle> bundleDao = daoRegistry.getDaoOrThrowException(Bundle.class);
+		try {
+			MessageHeader messageHeader = ProcessMessageService.getMessageHeader(bundleDao.read(new IdType("Bundle", rawBundleId)));
+			return messageHeader.getSource().getEndpoint();
+		} catch (ResourceNotFoundException | ResourceGoneException e) {
+			log.warn("Raw bundle {} no longer exists and is not rebuilt", rawBundleId);
+			return null;
+		}
+	}
+
+	private static boolean isSuccess(IBaseBundle response) {
+		if(!(response instanceof Bundle) || !(((Bundle) response).getEntryFirstRep().getResource() instanceof MessageHeader)) {
+			return false;
+		}
+		MessageHeader messageHeader = (MessageHeader) ((Bundle) response).getEntryFirstRep().getResource();
+		return messageHeader.getResponse().getCode() == MessageHeader.ResponseType.OK;
+	}
+
+	private static final class PlannedBundle {
+		private final String rawBundleId;
+		private final String sourceEndpoint;
+		private final Date received;
+
+		private PlannedBundle(String rawBundleId, String sourceEndpoint, Date received) {
+			this.rawBundleId = rawBundleId;
+			this.sourceEndpoint = sourceEndpoint;
+			this.received = received;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package org.mitre.healthmanager.lib.pdr.rebuild;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+/**
+ * One raw PDR bundle to replay in an account rebuild. Steps of the same 
+ * source endpoint replay one after the other in sequence order.
+ */
+@Entity
+@Table(name = "pdr_account_rebuild_step", indexes = {
+		@Index(name = "idx_pdr_account_rebuild_step_rebuild", columnList = "rebuild_id") })
+public class PdrAccountRebuildStep implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "sequenceGenerator")
+	@SequenceGenerator(name = "sequenceGenerator")
+	@Column(name = "id")
+	private Long id;
+
+	@NotNull
+	@Column(name = "rebuild_id", nullable = false, length = 64)
+	private String rebuildId;
+
+	/**
+	 * Position of the raw bundle in the order it was received.
+	 */
+	@Column(name = "sequence_number", nullable = false)
+	private int sequenceNumber;
+
+	@NotNull
+	@Column(name = "source_endpoint", nullable = false, length = 255)
+	private String sourceEndpoint;
+
+	@NotNull
+	@Column(name = "raw_bundle_id", nullable = false, length = 64)
+	private String rawBundleId;
+
+	@Column(name = "replayed", nullable = false)
+	private boolean replayed;
+
+	@Column(name = "replayed_at")
+	private Instant replayedAt;
+
+	protected PdrAccountRebuildStep() {
+	}
+
+	public PdrAccountRebuildStep(String rebuildId, int sequenceNumber, String sourceEndpoint, String rawBundleId) {
+		this.rebuildId = rebuildId;
+		this.sequenceNumber = sequenceNumber;
+		this.sourceEndpoint = sourceEndpoint;
+		this.rawBundleId = rawBundleId;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getRebuildId() {
+		return rebuildId;
+	}
+
+	public int getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	public String getSourceEndpoint() {
+		return sourceEndpoint;
+	}
+
+	public String getRawBundleId() {
+		return rawBundleId;
+	}
+
+	public boolean isReplayed() {
+		return replayed;
+	}
+
+	public Instant getReplayedAt() {
+		return replayedAt;
+	}
+
+	public PdrAccountRebuildStep replayed() {
+		this.replayed = true;
+		this.replayedAt = Instant.now();
+		return this;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PdrAccountRebuildStep)) {
+			return false;
+		}
+		return id != null && id.equals(((PdrAccountRebuildStep) o).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return getClass().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "PdrAccountRebuildStep{" +
+			"id=" + getId() +
+			", rebuildId='" + getRebuildId() + "'" +
+			", sequenceNumber=" + getSequenceNumber() +
+			", sourceEndpoint='" + getSourceEndpoint() + "'" +
+			", rawBundleId='" + getRawBundleId() + "'" +
+			", replayed=" + isReplayed() +
+			"}";
+	}
+}
@@ -0,0 +1,18 @@
+package org.mitre.healthmanager.lib.pdr.rebuild;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Spring Data SQL repository for the PdrAccountRebuildStep entity.
+ */
+@Repository
+public interface PdrAccountRebuildStepRepository extends JpaRepository<PdrAccountRebuildStep, Long> {
+	List<PdrAccountRebuildStep> findAllByRebuildIdAndReplayedFalseOrderBySequenceNumberAsc(String rebuildId);
+
+	long countByRebuildId(String rebuildId);
+
+	long countByRebuildIdAndReplayedTrue(String rebuildId);
+}
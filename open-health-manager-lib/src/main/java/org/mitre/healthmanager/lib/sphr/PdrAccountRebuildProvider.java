@@ -0,0 +1,46 @@
+package org.mitre.healthmanager.lib.sphr;
+
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mitre.healthmanager.lib.pdr.rebuild.PdrAccountRebuild;
+import org.mitre.healthmanager.lib.pdr.rebuild.PdrAccountRebuildService;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Admin operation rebuilding the derived resources of a patient from their
+ * raw PDR bundles in the background. Invoking it again reports the progress
+ * of the running rebuild, or resumes one that did not complete.
+ */
+public class PdrAccountRebuildProvider {
+	public static final String OPERATION_NAME = "$rebuild-account";
+	
+	private final PdrAccountRebuildService myRebuildService;
+	private final DaoRegistry myDaoRegistry;
+	
+	public PdrAccountRebuildProvider(PdrAccountRebuildService theRebuildService, DaoRegistry theDaoRegistry) {
+		this.myRebuildService = theRebuildService;
+		this.myDaoRegistry = theDaoRegistry;
+	}
+	
+	@Operation(name = OPERATION_NAME, type = Patient.class)
+	public OperationOutcome rebuildAccount(@IdParam IdType thePatientId, RequestDetails theRequestDetails) {
+		// unknown patients are a 404
+		PatientDataReceiptService.getPatient(thePatientId.getIdPart(), myDaoRegistry.getResourceDao(Patient.class));
+		PdrAccountRebuild rebuild = myRebuildService.start(thePatientId.getIdPart(), theRequestDetails.getFhirServerBase());
+		
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue()
+			.setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+			.setCode(OperationOutcome.IssueType.INFORMATIONAL)
+			.setDiagnostics(String.format("Account rebuild %s of Patient/%s started at %s: %d of %d raw bundles replayed",
+					rebuild.getId(), rebuild.getPatientId(), rebuild.getStarted(),
+					myRebuildService.getReplayedBundles(rebuild.getId()), rebuild.getTotalBundles()));
+		return outcome;
+	}
+}
@@ -0,0 +1,88 @@
+package org.mitre.healthmanager.lib.sphr;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.mitre.healthmanager.lib.auth.AuthFetcher;
+import org.mitre.healthmanager.lib.pdr.deletion.PdrDeletionJob;
+import org.mitre.healthmanager.lib.pdr.deletion.PdrDeletionService;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Polling endpoint for PDR and account deletions running in the background.
+ * Responds 202 while the deletion is running and 200 once it has completed
+ * or failed, with its progress as an OperationOutcome. Patients may only
+ * poll deletions of their own data.
+ */
+public class PdrDeletionStatusProvider {
+	public static final String OPERATION_NAME = "$pdr-deletion-status";
+	public static final String PARAM_JOB_ID = "_jobId";
+
+	private final FhirContext myFhirContext;
+	private final PdrDeletionService myPdrDeletionService;
+
+	public PdrDeletionStatusProvider(FhirContext theFhirContext, PdrDeletionService thePdrDeletionService) {
+		this.myFhirContext = theFhirContext;
+		this.myPdrDeletionService = thePdrDeletionService;
+	}
+
+	@Operation(name = OPERATION_NAME, idempotent = true, manualResponse = true)
+	public void deletionStatus(@OperationParam(name = PARAM_JOB_ID, typeName = "string", min = 1, max = 1) IPrimitiveType<String> theJobId,
+			ServletRequestDetails theRequestDetails) throws IOException {
+		PdrDeletionJob job = myPdrDeletionService.getJob(theJobId != null ? theJobId.getValueAsString() : null);
+		if (job == null) {
+			throw new ResourceNotFoundException("Unknown deletion job");
+		}
+		if (!AuthFetcher.canAccessPatient(job.getPatientId())) {
+			throw new ForbiddenOperationException("Access denied to deletion job " + job.getId());
+		}
+
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		if (job.getStatus() == PdrDeletionJob.Status.RUNNING) {
+			response.addHeader(Constants.HEADER_X_PROGRESS, job.getDeletedResources() + " of " + job.getTotalResources() + " deleted");
+			writeResponse(response, Constants.STATUS_HTTP_202_ACCEPTED, statusOutcome(job));
+		} else {
+			writeResponse(response, Constants.STATUS_HTTP_200_OK, statusOutcome(job));
+		}
+	}
+
+	public static String getStatusLocation(String fhirServerBase, String jobId) {
+		return fhirServerBase + "/" + OPERATION_NAME + "?" + PARAM_JOB_ID + "=" + jobId;
+	}
+
+	public static OperationOutcome statusOutcome(PdrDeletionJob job) {
+		OperationOutcome outcome = new OperationOutcome();
+		String diagnostics = String.format("Deletion %s of %s started at %s is %s: %d of %d resources deleted, %d expunged",
+				job.getId(), job.getTarget(), job.getStarted(), job.getStatus(),
+				job.getDeletedResources(), job.getTotalResources(), job.getExpungedResources());
+		if (job.getStatus() == PdrDeletionJob.Status.FAILED) {
+			outcome.addIssue()
+				.setSeverity(OperationOutcome.IssueSeverity.ERROR)
+				.setCode(OperationOutcome.IssueType.PROCESSING)
+				.setDiagnostics(diagnostics + ": " + job.getError());
+		} else {
+			outcome.addIssue()
+				.setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+				.setCode(OperationOutcome.IssueType.INFORMATIONAL)
+				.setDiagnostics(diagnostics);
+		}
+		return outcome;
+	}
+
+	private void writeResponse(HttpServletResponse response, int status, OperationOutcome outcome) throws IOException {
+		response.setStatus(status);
+		response.setContentType(Constants.CT_FHIR_JSON_NEW);
+		myFhirContext.newJsonParser().encodeResourceToWriter(outcome, response.getWriter());
+		response.getWriter().close();
+	}
+}
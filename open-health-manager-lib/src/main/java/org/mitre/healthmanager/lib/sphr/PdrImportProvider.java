@@ -0,0 +1,62 @@
+package org.mitre.healthmanager.lib.sphr;
+
+import java.io.IOException;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mitre.healthmanager.lib.pdr.PdrStreamingService;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Admin operation importing newline delimited FHIR resources for a patient
+ * as one Patient Data Receipt from the {@code source} endpoint. Resources
+ * are read from the request body, or from {@code file} in the configured
+ * import directory, and processed in windows, see {@link PdrStreamingService}.
+ */
+public class PdrImportProvider {
+	public static final String OPERATION_NAME = "$import";
+	public static final String PARAM_SOURCE = "source";
+	public static final String PARAM_FILE = "file";
+
+	private final PdrStreamingService myPdrStreamingService;
+	private final DaoRegistry myDaoRegistry;
+
+	public PdrImportProvider(PdrStreamingService thePdrStreamingService, DaoRegistry theDaoRegistry) {
+		this.myPdrStreamingService = thePdrStreamingService;
+		this.myDaoRegistry = theDaoRegistry;
+	}
+
+	@Operation(name = OPERATION_NAME, type = Patient.class, manualRequest = true)
+	public IBaseBundle importResources(@IdParam IdType thePatientId, ServletRequestDetails theRequestDetails) {
+		String source = getParameter(theRequestDetails, PARAM_SOURCE);
+		if (source == null) {
+			throw new InvalidRequestException("$import requires a " + PARAM_SOURCE + " endpoint");
+		}
+		// unknown patients are a 404
+		PatientDataReceiptService.getPatient(thePatientId.getIdPart(), myDaoRegistry.getResourceDao(Patient.class));
+
+		String file = getParameter(theRequestDetails, PARAM_FILE);
+		if (file != null) {
+			return myPdrStreamingService.importFile(file, thePatientId.getIdPart(), source,
+					theRequestDetails.getFhirServerBase());
+		}
+		try {
+			return myPdrStreamingService.importResources(theRequestDetails.getServletRequest().getInputStream(),
+					thePatientId.getIdPart(), source, theRequestDetails.getFhirServerBase());
+		} catch (IOException e) {
+			throw new InvalidRequestException("Failed to read resources: " + e.getMessage());
+		}
+	}
+
+	private static String getParameter(ServletRequestDetails theRequestDetails, String name) {
+		String[] values = theRequestDetails.getParameters().get(name);
+		return values != null && values.length > 0 && !values[0].isBlank() ? values[0] : null;
+	}
+}
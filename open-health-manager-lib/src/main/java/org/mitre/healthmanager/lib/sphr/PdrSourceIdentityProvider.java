@@ -0,0 +1,50 @@
+package org.mitre.healthmanager.lib.sphr;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.mitre.healthmanager.lib.pdr.index.PdrSourceIdentityService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskExecutor;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.annotation.Operation;
+
+/**
+ * Admin operation rebuilding the PDR source identity index from the
+ * Provenance resources in the background.
+ */
+public class PdrSourceIdentityProvider {
+	private static final Logger log = LoggerFactory.getLogger(PdrSourceIdentityProvider.class);
+	
+	public static final String OPERATION_NAME = "$rebuild-pdr-source-index";
+	
+	private final PdrSourceIdentityService mySourceIdentityService;
+	private final DaoRegistry myDaoRegistry;
+	private final TaskExecutor myTaskExecutor;
+	
+	public PdrSourceIdentityProvider(PdrSourceIdentityService theSourceIdentityService, DaoRegistry theDaoRegistry,
+			TaskExecutor theTaskExecutor) {
+		this.mySourceIdentityService = theSourceIdentityService;
+		this.myDaoRegistry = theDaoRegistry;
+		this.myTaskExecutor = theTaskExecutor;
+	}
+	
+	@Operation(name = OPERATION_NAME)
+	public OperationOutcome rebuildSourceIndex() {
+		myTaskExecutor.execute(() -> {
+			try {
+				long indexed = mySourceIdentityService.rebuild(myDaoRegistry);
+				log.info("PDR source identity index rebuilt with {} identities", indexed);
+			} catch (RuntimeException e) {
+				log.error("PDR source identity index rebuild failed", e);
+			}
+		});
+		
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue()
+			.setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+			.setCode(OperationOutcome.IssueType.INFORMATIONAL)
+			.setDiagnostics("PDR source identity index rebuild started");
+		return outcome;
+	}
+}
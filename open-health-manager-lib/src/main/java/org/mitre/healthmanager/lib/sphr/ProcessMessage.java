@@ -1,17 +1,66 @@
 package org.mitre.healthmanager.lib.sphr;
 
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import org.hl7.fhir.instance.model.api.IBaseBundle;
-import org.mitre.healthmanager.lib.pdr.PdrGateway;
+import org.hl7.fhir.r4.model.Bundle;
+import org.mitre.healthmanager.lib.auth.AuthFetcher;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.PdrIdempotencyService;
+import org.mitre.healthmanager.lib.pdr.PdrJob;
+import org.mitre.healthmanager.lib.pdr.PdrJobService;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.jpa.dao.r4.FhirSystemDaoR4;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 public class ProcessMessage extends FhirSystemDaoR4 {
+	public static final String ASYNC_JOB_ID = ProcessMessage.class.getName() + ".asyncJobId";
+	
+	@Autowired
+	PdrIdempotencyService pdrIdempotencyService;
+	
+	@Autowired
+	PdrJobService pdrJobService;
+	
 	@Autowired
-	PdrGateway pdrGateway;
+	ApplicationProperties applicationProperties;
 	
 	public IBaseBundle processMessage(RequestDetails theRequestDetails, IBaseBundle theMessage) {
-		return pdrGateway.processMessage(theMessage, theRequestDetails.getFhirServerBase());
+		if (isRespondAsync(theRequestDetails)) {
+			PdrJob job = pdrJobService.submit(theMessage, theRequestDetails.getFhirServerBase(), AuthFetcher.getPatientId());
+			return accepted(theRequestDetails, job);
+		}
+		String jobId = UUID.randomUUID().toString();
+		long timeout = TimeUnit.SECONDS.toMillis(applicationProperties.getPdr().getAsync().getSyncTimeoutSeconds());
+		CompletableFuture<IBaseBundle> response = pdrIdempotencyService.submit(theMessage, 
+				theRequestDetails.getFhirServerBase(), jobId, timeout);
+		if (response.isDone()) {
+			return PdrIdempotencyService.join(response);
+		}
+		// still running, the client polls for the response
+		return accepted(theRequestDetails, pdrJobService.track(jobId, AuthFetcher.getPatientId(), response));
+	}
+	
+	private static IBaseBundle accepted(RequestDetails theRequestDetails, PdrJob job) {
+		// status code and Content-Location are set by RequestInterceptor
+		theRequestDetails.getUserData().put(ASYNC_JOB_ID, job.getId());
+		
+		Bundle accepted = new Bundle();
+		accepted.setId(job.getId());
+		accepted.setType(Bundle.BundleType.COLLECTION);
+		accepted.addEntry().setResource(ProcessMessageStatusProvider.inProgressOutcome(job));
+		return accepted;
+	}
+	
+	private static boolean isRespondAsync(RequestDetails theRequestDetails) {
+		if (theRequestDetails == null) {
+			return false;
+		}
+		String prefer = theRequestDetails.getHeader(Constants.HEADER_PREFER);
+		return prefer != null && prefer.contains(Constants.HEADER_PREFER_RESPOND_ASYNC);
 	}
 }
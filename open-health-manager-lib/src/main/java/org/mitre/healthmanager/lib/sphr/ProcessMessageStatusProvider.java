@@ -0,0 +1,97 @@
+package org.mitre.healthmanager.lib.sphr;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.mitre.healthmanager.lib.auth.AuthFetcher;
+import org.mitre.healthmanager.lib.pdr.PdrJob;
+import org.mitre.healthmanager.lib.pdr.PdrJobService;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Polling endpoint for Patient Data Receipts submitted asynchronously.
+ * Responds 202 while the message is still being processed and 200 with the
+ * $process-message response bundle once it has finished. Jobs that threw or
+ * ended without a response are reported as a fatal OperationOutcome. Only
+ * admins and the patient who submitted the message may poll a job.
+ */
+public class ProcessMessageStatusProvider {
+	public static final String OPERATION_NAME = "$process-message-status";
+	public static final String PARAM_JOB_ID = "_jobId";
+	
+	private final FhirContext myFhirContext;
+	private final PdrJobService myPdrJobService;
+	
+	public ProcessMessageStatusProvider(FhirContext theFhirContext, PdrJobService thePdrJobService) {
+		this.myFhirContext = theFhirContext;
+		this.myPdrJobService = thePdrJobService;
+	}
+	
+	@Operation(name = OPERATION_NAME, idempotent = true, manualResponse = true)
+	public void processMessageStatus(@OperationParam(name = PARAM_JOB_ID, typeName = "string", min = 1, max = 1) IPrimitiveType<String> theJobId,
+			ServletRequestDetails theRequestDetails) throws IOException {
+		PdrJob job = myPdrJobService.getJob(theJobId != null ? theJobId.getValueAsString() : null);
+		if (job == null) {
+			throw new ResourceNotFoundException("Unknown $process-message job");
+		}
+		if (!AuthFetcher.canAccessPatient(job.getPatientId())) {
+			throw new ForbiddenOperationException("Access denied to $process-message job " + job.getId());
+		}
+		
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		if (job.getStatus() == PdrJob.Status.COMPLETE) {
+			writeResponse(response, Constants.STATUS_HTTP_200_OK, job.getResponse());
+		} else if (job.getStatus() == PdrJob.Status.FAILED) {
+			int status = job.getErrorStatus() != null ? job.getErrorStatus() : Constants.STATUS_HTTP_500_INTERNAL_ERROR;
+			writeResponse(response, status, encode(failedOutcome(job)));
+		} else {
+			response.addHeader(Constants.HEADER_X_PROGRESS, "in-progress");
+			writeResponse(response, Constants.STATUS_HTTP_202_ACCEPTED, encode(inProgressOutcome(job)));
+		}
+	}
+	
+	public static String getStatusLocation(String fhirServerBase, String jobId) {
+		return fhirServerBase + "/" + OPERATION_NAME + "?" + PARAM_JOB_ID + "=" + jobId;
+	}
+	
+	public static OperationOutcome inProgressOutcome(PdrJob job) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue()
+			.setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+			.setCode(OperationOutcome.IssueType.INFORMATIONAL)
+			.setDiagnostics("$process-message job " + job.getId() + " accepted at " + job.getSubmitted() + " is in progress");
+		return outcome;
+	}
+	
+	public static OperationOutcome failedOutcome(PdrJob job) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue()
+			.setSeverity(OperationOutcome.IssueSeverity.FATAL)
+			.setCode(OperationOutcome.IssueType.EXCEPTION)
+			.setDiagnostics("$process-message job " + job.getId() + " accepted at " + job.getSubmitted() + " failed: "
+					+ (job.getError() != null ? job.getError() : "no response"));
+		return outcome;
+	}
+	
+	private String encode(IBaseResource resource) {
+		return myFhirContext.newJsonParser().encodeResourceToString(resource);
+	}
+	
+	private void writeResponse(HttpServletResponse response, int status, String body) throws IOException {
+		response.setStatus(status);
+		response.setContentType(Constants.CT_FHIR_JSON_NEW);
+		response.getWriter().write(body);
+		response.getWriter().close();
+	}
+}
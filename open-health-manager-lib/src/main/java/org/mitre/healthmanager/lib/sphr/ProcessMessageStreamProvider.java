@@ -0,0 +1,41 @@
+package org.mitre.healthmanager.lib.sphr;
+
+import java.io.IOException;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.mitre.healthmanager.lib.pdr.PdrStreamingService;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * $process-message for very large JSON Patient Data Receipts. The request
+ * body is read as a stream instead of being parsed into a Bundle up front,
+ * see {@link PdrStreamingService}.
+ */
+public class ProcessMessageStreamProvider {
+	public static final String OPERATION_NAME = "$process-message-stream";
+
+	private final PdrStreamingService myPdrStreamingService;
+
+	public ProcessMessageStreamProvider(PdrStreamingService thePdrStreamingService) {
+		this.myPdrStreamingService = thePdrStreamingService;
+	}
+
+	@Operation(name = OPERATION_NAME, manualRequest = true)
+	public IBaseBundle processMessageStream(ServletRequestDetails theRequestDetails) {
+		EncodingEnum encoding = EncodingEnum.forContentType(theRequestDetails.getServletRequest().getContentType());
+		if (encoding != EncodingEnum.JSON) {
+			throw new UnprocessableEntityException("streamed $process-message requires a JSON message");
+		}
+		try {
+			return myPdrStreamingService.processMessage(theRequestDetails.getServletRequest().getInputStream(),
+					theRequestDetails.getFhirServerBase());
+		} catch (IOException e) {
+			throw new InvalidRequestException("Failed to read message: " + e.getMessage());
+		}
+	}
+}
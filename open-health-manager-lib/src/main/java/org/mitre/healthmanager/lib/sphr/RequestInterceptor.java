@@ -1,5 +1,7 @@
 package org.mitre.healthmanager.lib.sphr;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
@@ -12,9 +14,11 @@ import javax.validation.constraints.NotNull;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.ListResource;
-import org.hl7.fhir.r4.model.ListResource.ListEntryComponent;
 import org.hl7.fhir.r4.model.Patient;
 import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mitre.healthmanager.lib.pdr.deletion.PdrDeletionJob;
+import org.mitre.healthmanager.lib.pdr.deletion.PdrDeletionService;
+import org.mitre.healthmanager.lib.pdr.ledger.PdrLedgerService;
 
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Interceptor;
@@ -22,10 +26,13 @@ import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDaoPatient;
-import ca.uhn.fhir.jpa.dao.TransactionProcessor;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IPreResourceShowDetails;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
@@ -33,21 +40,25 @@ import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 @Interceptor
 public final class RequestInterceptor {
 	public static final String FHIR_LOGIN_SYSTEM = "urn:mitre:healthmanager:account:username";
+	// DELETE List/x?_expunge=true also expunges the deleted PDR
+	public static final String PARAM_EXPUNGE = "_expunge";
 	
 	private final IFhirResourceDaoPatient<Patient> myPatientDaoR4;
 	private final IFhirResourceDao<Bundle> myBundleDaoR4;
 	private final IFhirResourceDao<ListResource> myListDaoR4;
-	private final TransactionProcessor myTransactionProcessor;
 	private final DaoRegistry myDaoRegistry;
+	private final PdrLedgerService myPdrLedgerService;
+	private final PdrDeletionService myPdrDeletionService;
 
 	public RequestInterceptor(IFhirResourceDaoPatient myPatientDaoR4, IFhirResourceDao myBundleDaoR4,
-			IFhirResourceDao<ListResource> myListDaoR4, TransactionProcessor myTransactionProcessor,
-			DaoRegistry myDaoRegistry) {
+			IFhirResourceDao<ListResource> myListDaoR4, DaoRegistry myDaoRegistry, 
+			PdrLedgerService myPdrLedgerService, PdrDeletionService myPdrDeletionService) {
 		this.myPatientDaoR4 = myPatientDaoR4;
 		this.myBundleDaoR4 = myBundleDaoR4;
 		this.myListDaoR4 = myListDaoR4;
-		this.myTransactionProcessor = myTransactionProcessor;
 		this.myDaoRegistry = myDaoRegistry;				
+		this.myPdrLedgerService = myPdrLedgerService;
+		this.myPdrDeletionService = myPdrDeletionService;
 	}
 	
 	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
@@ -99,6 +110,32 @@ public final class RequestInterceptor {
         }
     }
 	
+    @Hook(Pointcut.STORAGE_PRESHOW_RESOURCES)
+    public void preShowResources(IPreResourceShowDetails theDetails) {
+    	// PDR List entries are kept in the ledger
+    	List<ListResource> lists = new ArrayList<>();
+    	for (int i = 0; i < theDetails.size(); i++) {
+    		if (theDetails.getResource(i) instanceof ListResource) {
+    			lists.add((ListResource) theDetails.getResource(i));
+    		}
+    	}
+    	if (!lists.isEmpty()) {
+    		myPdrLedgerService.materialize(lists);
+    	}
+    }
+	
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public boolean outgoingResponse(RequestDetails requestDetails, ResponseDetails responseDetails) {
+    	// asynchronous $process-message kick-off
+    	Object jobId = requestDetails.getUserData().get(ProcessMessage.ASYNC_JOB_ID);
+    	if (jobId != null) {
+    		responseDetails.setResponseCode(Constants.STATUS_HTTP_202_ACCEPTED);
+    		requestDetails.getResponse().addHeader(Constants.HEADER_CONTENT_LOCATION, 
+    				ProcessMessageStatusProvider.getStatusLocation(requestDetails.getFhirServerBase(), (String) jobId));
+    	}
+    	return true;
+    }
+	
 	@SuppressWarnings("unchecked")
 	private boolean updatePatient(RequestDetails requestDetails) {
 		// check patient exists
@@ -129,42 +166,33 @@ public final class RequestInterceptor {
 	}
 	
 	private boolean deletePdr(RequestDetails requestDetails, HttpServletResponse theResponse) {
-		// check that this is actually a PDR
-        ListResource targetList = myListDaoR4.read(requestDetails.getId());
-        if(targetList.getCode().getCodingFirstRep() != null &&
-        		targetList.getCode().getCodingFirstRep().equalsShallow(PatientDataReceiptService.PDR_CODE)) {
-            // delete PDR logic
-
-            Bundle updateTxBundle = new Bundle();
-            updateTxBundle.setType(Bundle.BundleType.TRANSACTION);
-            
-            // add entry to delete the list
-            updateTxBundle.addEntry(new Bundle.BundleEntryComponent()
-                .setRequest(new Bundle.BundleEntryRequestComponent()
-                    .setMethod(Bundle.HTTPVerb.DELETE)
-                    .setUrl("List/" + targetList.getIdElement().getIdPart())));
-            
-            for(ListEntryComponent entry : targetList.getEntry()) {
-            	// disallow patient resource delete
-            	if(entry.getItem() != null && !entry.getDeleted() 
-            			&& entry.getItem().getReferenceElement() != null
-            			&& !entry.getItem().getReferenceElement().getResourceType().equals("Patient"))
-                updateTxBundle.addEntry(new Bundle.BundleEntryComponent()
-                	.setRequest(new Bundle.BundleEntryRequestComponent()
-                    .setMethod(Bundle.HTTPVerb.DELETE)
-                    .setUrl(entry.getItem().getReferenceElement().getValueAsString()))); // this is version specific delete
-            }
-            
-            // process the transaction
-            myTransactionProcessor.transaction(null, updateTxBundle, false);
+		String listId = requestDetails.getId().getIdPart();
+		// an unfinished deletion of the PDR is resumed, its List may already be gone
+		PdrDeletionJob job = myPdrDeletionService.resumePdrDeletion(listId);
+		if(job == null) {
+			// check that this is actually a PDR
+			ListResource targetList = myListDaoR4.read(requestDetails.getId());
+			if(targetList.getCode().getCodingFirstRep() == null ||
+					!targetList.getCode().getCodingFirstRep().equalsShallow(PatientDataReceiptService.PDR_CODE)) {
+				return true;
+			}
+			String[] expunge = requestDetails.getParameters().get(PARAM_EXPUNGE);
+			job = myPdrDeletionService.deletePdr(listId, targetList.getSubject().getReferenceElement().getIdPart(),
+					expunge != null && expunge.length > 0 && Boolean.parseBoolean(expunge[0]));
+		}
 
-            // setup the response
-            //todo: return a operation outcome like standard HAPI FHIR
-            theResponse.setStatus(204); // no content returned, but successful
-            
-            return false;
-        }   
-        
-       return true;
+		// the List and its resources are deleted in the background
+		theResponse.setStatus(Constants.STATUS_HTTP_202_ACCEPTED);
+		theResponse.addHeader(Constants.HEADER_CONTENT_LOCATION,
+				PdrDeletionStatusProvider.getStatusLocation(requestDetails.getFhirServerBase(), job.getId()));
+		theResponse.setContentType(Constants.CT_FHIR_JSON_NEW);
+		try {
+			requestDetails.getFhirContext().newJsonParser()
+				.encodeResourceToWriter(PdrDeletionStatusProvider.statusOutcome(job), theResponse.getWriter());
+			theResponse.getWriter().close();
+		} catch (IOException e) {
+			throw new InternalErrorException("Failed to write the PDR deletion response", e);
+		}
+		return false;
 	}
 }
@@ -0,0 +1,46 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.Date;
+
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+class ChangeDetectionServiceTest {
+	private ChangeDetectionService changeDetectionService = new ChangeDetectionService(FhirContext.forR4Cached());
+	
+	@Test
+	void testContentHashIgnoresServerAssignedElements() {
+		Observation incoming = observation();
+		incoming.setId("source-id");
+		
+		Observation stored = observation();
+		stored.setId(new IdType("Observation", "123", "4"));
+		stored.getMeta().setVersionId("4").setLastUpdated(new Date()).setSource("urn:source#request-id");
+		stored.setSubject(new Reference("Patient/pat1/_history/2"));
+		
+		Assertions.assertEquals(changeDetectionService.contentHash(incoming), changeDetectionService.contentHash(stored));
+	}
+	
+	@Test
+	void testContentHashDetectsChanges() {
+		Observation incoming = observation();
+		Observation stored = observation();
+		stored.getValueQuantity().setValue(72);
+		
+		Assertions.assertNotEquals(changeDetectionService.contentHash(incoming), changeDetectionService.contentHash(stored));
+	}
+	
+	private static Observation observation() {
+		Observation observation = new Observation();
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+		observation.setSubject(new Reference("Patient/pat1"));
+		observation.getValueQuantity().setValue(70).setUnit("beats/minute");
+		return observation;
+	}
+}
@@ -0,0 +1,86 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class PdrAdmissionControllerTest {
+	private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	
+	@Test
+	void testQueuesOverPatientLimit() throws Exception {
+		PdrAdmissionController controller = controller(1, 5000);
+		PdrAdmissionController.Permit first = controller.admit(message("user-1"));
+		// other patients are not held up
+		controller.admit(message("user-2")).close();
+		
+		CompletableFuture<PdrAdmissionController.Permit> second = CompletableFuture.supplyAsync(() -> controller.admit(message("user-1")));
+		waitForQueued(controller, 1);
+		Assertions.assertFalse(second.isDone());
+		
+		first.close();
+		second.get(5, TimeUnit.SECONDS).close();
+		Assertions.assertEquals(0, controller.getInFlight());
+		Assertions.assertEquals(0.0, meterRegistry.get(PdrAdmissionController.QUEUED_GAUGE).gauge().value());
+	}
+	
+	@Test
+	void testRejectsWhenQueueIsFull() {
+		PdrAdmissionController controller = controller(0, 5000);
+		PdrAdmissionController.Permit permit = controller.admit(message("user-1"));
+		
+		PdrAdmissionController.TooManyRequestsException e = Assertions.assertThrows(PdrAdmissionController.TooManyRequestsException.class,
+				() -> controller.admit(message("user-1")));
+		Assertions.assertEquals(429, e.getStatusCode());
+		Assertions.assertEquals("1", e.getResponseHeaders().get("Retry-After").get(0));
+		Assertions.assertEquals(1.0, meterRegistry.get(PdrAdmissionController.REJECTED_COUNTER)
+				.tag("reason", "queue-full").counter().count());
+		permit.close();
+	}
+	
+	@Test
+	void testRejectsAfterQueueTimeout() {
+		PdrAdmissionController controller = controller(1, 50);
+		PdrAdmissionController.Permit permit = controller.admit(message("user-1"));
+		
+		Assertions.assertThrows(PdrAdmissionController.TooManyRequestsException.class, () -> controller.admit(message("user-1")));
+		Assertions.assertEquals(1.0, meterRegistry.get(PdrAdmissionController.REJECTED_COUNTER)
+				.tag("reason", "timeout").counter().count());
+		Assertions.assertEquals(0, controller.getQueued());
+		permit.close();
+	}
+	
+	private PdrAdmissionController controller(int maxQueued, long queueTimeoutMillis) {
+		ApplicationProperties applicationProperties = new ApplicationProperties();
+		ApplicationProperties.Pdr.Admission admission = applicationProperties.getPdr().getAdmission();
+		admission.setMaxInFlight(4);
+		admission.setMaxInFlightPerPatient(1);
+		admission.setMaxQueued(maxQueued);
+		admission.setQueueTimeoutMillis(queueTimeoutMillis);
+		return new PdrAdmissionController(applicationProperties, meterRegistry);
+	}
+	
+	private static void waitForQueued(PdrAdmissionController controller, int queued) throws InterruptedException {
+		for(int i = 0; i < 500 && controller.getQueued() < queued; i++) {
+			Thread.sleep(10);
+		}
+		Assertions.assertEquals(queued, controller.getQueued());
+	}
+	
+	private static Bundle message(String patientId) {
+		MessageHeader header = new MessageHeader();
+		header.addFocus(new Reference("Patient/" + patientId));
+		Bundle message = new Bundle();
+		message.setType(Bundle.BundleType.MESSAGE);
+		message.addEntry().setResource(header);
+		return message;
+	}
+}
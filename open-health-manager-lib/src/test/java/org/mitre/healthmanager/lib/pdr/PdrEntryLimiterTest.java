@@ -0,0 +1,89 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.integration.channel.ExecutorChannel;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+class PdrEntryLimiterTest {
+
+	@Test
+	void testLimitsEntriesOfOneMessage() throws InterruptedException {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(8);
+		executor.setMaxPoolSize(8);
+		executor.initialize();
+		try {
+			PdrEntryLimiter limiter = new PdrEntryLimiter(2);
+			ExecutorChannel channel = new ExecutorChannel(executor);
+			channel.addInterceptor(limiter);
+			channel.setBeanFactory(new DefaultListableBeanFactory());
+			channel.afterPropertiesSet();
+			AtomicInteger running = new AtomicInteger();
+			AtomicInteger maxRunning = new AtomicInteger();
+			CountDownLatch done = new CountDownLatch(20);
+			channel.subscribe(message -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+				done.countDown();
+			});
+
+			UUID correlationId = UUID.randomUUID();
+			for(int i = 1; i <= 20; i++) {
+				channel.send(entry(correlationId, i, 20));
+			}
+			Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+			Assertions.assertTrue(maxRunning.get() <= 2);
+			// permits of a message are dropped with its last entry
+			Thread.sleep(50);
+			Assertions.assertEquals(0, limiter.getMessageCount());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void testMessagesDoNotShareTheLimit() {
+		PdrEntryLimiter limiter = new PdrEntryLimiter(1);
+		UUID first = UUID.randomUUID();
+		UUID second = UUID.randomUUID();
+		// would block if the second message waited on the first
+		limiter.preSend(entry(first, 1, 2), null);
+		limiter.preSend(entry(second, 1, 2), null);
+		Assertions.assertEquals(2, limiter.getMessageCount());
+	}
+
+	@Test
+	void testFailedSendReturnsPermitOnce() {
+		PdrEntryLimiter limiter = new PdrEntryLimiter(1);
+		UUID correlationId = UUID.randomUUID();
+		Message<String> entry = entry(correlationId, 1, 2);
+		limiter.preSend(entry, null);
+		limiter.afterMessageHandled(entry, null, null, new IllegalStateException());
+		limiter.afterSendCompletion(entry, null, true, new IllegalStateException());
+		// the second entry gets the only permit, and is the last one
+		Message<String> last = entry(correlationId, 2, 2);
+		limiter.preSend(last, null);
+		limiter.afterMessageHandled(last, null, null, null);
+		Assertions.assertEquals(0, limiter.getMessageCount());
+	}
+
+	private static Message<String> entry(UUID correlationId, int sequenceNumber, int sequenceSize) {
+		return MessageBuilder.withPayload("entry")
+				.pushSequenceDetails(correlationId, sequenceNumber, sequenceSize)
+				.build();
+	}
+}
@@ -1,16 +1,35 @@
 package org.mitre.healthmanager.lib.pdr;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
 import org.assertj.core.api.Assertions;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Provenance;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.UriType;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mitre.healthmanager.TestApplication;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.integration.channel.AbstractMessageChannel;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.ChannelInterceptor;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.transaction.annotation.Transactional;
@@ -37,6 +56,13 @@ class PdrGatewayIT extends BasePdrIT {
     @LocalServerPort
     private int port = 0;       
     
+    @Autowired
+    PdrRecoveryService recoveryService;
+    
+    @Autowired
+    @Qualifier("pdrLaneChannel")
+    AbstractMessageChannel pdrLaneChannel;
+    
 	@BeforeEach
 	private void addPatient() {
 		initClient(port);
@@ -62,6 +88,28 @@ class PdrGatewayIT extends BasePdrIT {
 		assertExistsList(testMessage, response);
 	}
 	
+	@Test
+	@Transactional
+	void testResumeIncompleteMessage() throws InterruptedException {
+		Bundle testMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream("BundleMessage_valid.json")
+        );
+		// raw bundle stored by a node that stopped before writing the entries
+		String rawBundleId = testClient.create().resource(testMessage).execute().getId().getIdPart();
+		recoveryService.started(rawBundleId, "http://localhost:" + port + "/fhir");
+		
+		recoveryService.resumeIncomplete();
+		
+		for(int i = 0; i < 300; i++) {
+			Bundle lists = testClient.search().byUrl("List?subject=Patient/pat1").returnBundle(Bundle.class).execute();
+			if(!lists.getEntry().isEmpty()) {
+				break;
+			}
+			Thread.sleep(100);
+		}
+		assertExistsList(testMessage, null);
+	}
+	
 	@Test
 	@Transactional
 	void testProcessMessageUnsupportedMessageEvent() {
@@ -110,5 +158,140 @@ class PdrGatewayIT extends BasePdrIT {
 		Assertions.assertThat(listSizePost).isEqualTo(listSizePre);
 	}
 	
-
+	@Test
+	@Transactional
+	void testProvenanceTargetsWrittenResource() {
+		String sourceEndpoint = "http://example.org/provenance-target/";
+		MessageHeader header = new MessageHeader();
+		header.setId(UUID.randomUUID().toString());
+		header.setEvent(new UriType(PatientDataReceiptService.PDR_EVENT));
+		header.getSource().setEndpoint(sourceEndpoint);
+		header.addFocus(new Reference("Patient/pat1"));
+		Bundle testMessage = new Bundle();
+		testMessage.setType(Bundle.BundleType.MESSAGE);
+		testMessage.addEntry().setFullUrl("urn:uuid:" + header.getId()).setResource(header);
+		// placeholder, absolute and missing fullUrls
+		testMessage.addEntry().setFullUrl("urn:uuid:" + UUID.randomUUID()).setResource(observation("obs-urn"));
+		testMessage.addEntry().setFullUrl("http://example.org/fhir/Observation/obs-absolute").setResource(observation("obs-absolute"));
+		testMessage.addEntry().setResource(observation("obs-none"));
+		
+		Bundle response = processMessage(testMessage);
+		assertSuccessResponse(response);
+		
+		Bundle provenances = testClient.search()
+				.byUrl("Provenance?patient=Patient/pat1&_count=1000")
+				.returnBundle(Bundle.class).execute();
+		int matched = 0;
+		for(Bundle.BundleEntryComponent entry : provenances.getEntry()) {
+			Provenance provenance = (Provenance) entry.getResource();
+			String source = PatientDataReceiptService.getProvenanceSource(provenance);
+			if(source == null || !source.startsWith(sourceEndpoint)) {
+				continue;
+			}
+			Assertions.assertThat(provenance.getTarget()).hasSize(2);
+			Assertions.assertThat(provenance.getTarget().get(0).getReference()).isEqualTo("Patient/pat1");
+			IdType targetId = new IdType(provenance.getTarget().get(1).getReference());
+			Assertions.assertThat(targetId.hasBaseUrl()).isFalse();
+			Observation target = testClient.read().resource(Observation.class).withId(targetId.toVersionless()).execute();
+			// the written resource is the one of the Provenance source id
+			Assertions.assertThat(source).endsWith("/Observation/" + target.getCode().getText());
+			matched++;
+		}
+		Assertions.assertThat(matched).isEqualTo(3);
+	}
+	
+	@Test
+	@Transactional
+	void testListSearchOnlySeesRawBundle() {
+		MessageHeader header = new MessageHeader();
+		header.setId(UUID.randomUUID().toString());
+		header.setEvent(new UriType(PatientDataReceiptService.PDR_EVENT));
+		header.getSource().setEndpoint("http://example.org/list-search/");
+		header.addFocus(new Reference("Patient/pat1"));
+		Bundle testMessage = new Bundle();
+		testMessage.setType(Bundle.BundleType.MESSAGE);
+		testMessage.addEntry().setFullUrl("urn:uuid:" + header.getId()).setResource(header);
+		testMessage.addEntry().setFullUrl("urn:uuid:" + UUID.randomUUID()).setResource(observation("obs-listed"));
+		
+		Bundle response = processMessage(testMessage);
+		assertSuccessResponse(response);
+		
+		Bundle lists = testClient.search()
+				.byUrl("List?subject=Patient/pat1&identifier=" + header.getSource().getEndpoint() + "|" + header.getId())
+				.returnBundle(Bundle.class).execute();
+		Assertions.assertThat(lists.getEntry()).hasSize(1);
+		// reads materialize the ledger
+		ListResource list = (ListResource) lists.getEntryFirstRep().getResource();
+		String rawBundle = null;
+		String observation = null;
+		for(ListResource.ListEntryComponent entry : list.getEntry()) {
+			String type = entry.getItem().getReferenceElement().getResourceType();
+			if("Bundle".equals(type)) {
+				rawBundle = entry.getItem().getReferenceElement().toUnqualifiedVersionless().getValue();
+			} else if("Observation".equals(type)) {
+				observation = entry.getItem().getReferenceElement().toUnqualifiedVersionless().getValue();
+			}
+		}
+		Assertions.assertThat(rawBundle).isNotNull();
+		Assertions.assertThat(observation).isNotNull();
+		
+		// searches only index the raw bundle kept in the List resource
+		Assertions.assertThat(testClient.search().byUrl("List?item=" + rawBundle)
+				.returnBundle(Bundle.class).execute().getEntry()).hasSize(1);
+		Assertions.assertThat(testClient.search().byUrl("List?item=" + observation)
+				.returnBundle(Bundle.class).execute().getEntry()).isEmpty();
+	}
+	
+	@Test
+	void testPdrsOfAPatientRunOneAfterTheOther() throws Exception {
+		// start and end of each PDR on the lane, with its thread
+		List<long[]> runs = new CopyOnWriteArrayList<>();
+		List<String> threads = new CopyOnWriteArrayList<>();
+		ThreadLocal<Long> started = new ThreadLocal<>();
+		ChannelInterceptor interceptor = new ChannelInterceptor() {
+			@Override
+			public Message<?> preSend(Message<?> message, MessageChannel channel) {
+				started.set(System.nanoTime());
+				threads.add(Thread.currentThread().getName());
+				return message;
+			}
+			
+			@Override
+			public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+				runs.add(new long[] {started.get(), System.nanoTime()});
+			}
+		};
+		pdrLaneChannel.addInterceptor(interceptor);
+		try {
+			List<CompletableFuture<Bundle>> responses = new ArrayList<>();
+			for(int i = 0; i < 2; i++) {
+				Bundle testMessage = ourCtx.newJsonParser().parseResource(
+						Bundle.class, this.getClass().getResourceAsStream("BundleMessage_valid.json"));
+				String messageId = UUID.randomUUID().toString();
+				testMessage.getEntryFirstRep().setFullUrl("urn:uuid:" + messageId);
+				testMessage.getEntryFirstRep().getResource().setId(messageId);
+				responses.add(CompletableFuture.supplyAsync(() -> processMessage(testMessage)));
+			}
+			for(CompletableFuture<Bundle> response : responses) {
+				assertSuccessResponse(response.get(120, TimeUnit.SECONDS));
+			}
+		} finally {
+			pdrLaneChannel.removeInterceptor(interceptor);
+		}
+		
+		Assertions.assertThat(runs).hasSize(2);
+		Assertions.assertThat(threads).hasSize(2);
+		Assertions.assertThat(threads.get(0)).isEqualTo(threads.get(1));
+		runs.sort(Comparator.comparingLong(run -> run[0]));
+		Assertions.assertThat(runs.get(1)[0]).isGreaterThanOrEqualTo(runs.get(0)[1]);
+	}
+	
+	private static Observation observation(String sourceId) {
+		Observation observation = new Observation();
+		observation.setId(sourceId);
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.getCode().setText(sourceId);
+		observation.setSubject(new Reference("Patient/pat1"));
+		return observation;
+	}
 }
@@ -0,0 +1,131 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mockito.Mockito;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+class PdrIdempotencyServiceTest {
+	private static final String BASE = "http://localhost/fhir";
+	
+	private PdrGateway pdrGateway;
+	private PdrAdmissionController admissionController;
+	private PdrIdempotencyService idempotencyService;
+	
+	@BeforeEach
+	void setUp() {
+		pdrGateway = Mockito.mock(PdrGateway.class);
+		admissionController = Mockito.mock(PdrAdmissionController.class);
+		Mockito.when(admissionController.admit(Mockito.any())).thenReturn(Mockito.mock(PdrAdmissionController.Permit.class));
+		idempotencyService = new PdrIdempotencyService(pdrGateway, admissionController, 
+				FhirContext.forR4Cached(), new ApplicationProperties());
+	}
+	
+	@Test
+	void testResubmittedMessageIsReplayed() {
+		Bundle response = response(MessageHeader.ResponseType.OK);
+		Mockito.when(pdrGateway.processMessage(Mockito.any(), Mockito.eq(BASE), Mockito.anyString(), Mockito.anyLong())).thenReturn(response);
+		
+		Assertions.assertSame(response, idempotencyService.processMessage(message("header-1", "obs-1"), BASE));
+		// an equal message parsed again
+		Assertions.assertSame(response, idempotencyService.processMessage(message("header-1", "obs-1"), BASE));
+		Mockito.verify(pdrGateway, Mockito.times(1)).processMessage(Mockito.any(), Mockito.any(), Mockito.anyString(), Mockito.anyLong());
+		Mockito.verify(admissionController, Mockito.times(1)).admit(Mockito.any());
+	}
+	
+	@Test
+	void testFailedMessageIsProcessedAgain() {
+		Bundle response = response(MessageHeader.ResponseType.OK);
+		Mockito.when(pdrGateway.processMessage(Mockito.any(), Mockito.eq(BASE), Mockito.anyString(), Mockito.anyLong()))
+			.thenThrow(new InternalErrorException("failed"))
+			.thenReturn(response(MessageHeader.ResponseType.FATALERROR))
+			.thenReturn(response);
+		
+		Assertions.assertThrows(InternalErrorException.class, 
+				() -> idempotencyService.processMessage(message("header-1", "obs-1"), BASE));
+		// error responses are not kept either
+		Assertions.assertNotSame(response, idempotencyService.processMessage(message("header-1", "obs-1"), BASE));
+		Assertions.assertSame(response, idempotencyService.processMessage(message("header-1", "obs-1"), BASE));
+		Assertions.assertSame(response, idempotencyService.processMessage(message("header-1", "obs-1"), BASE));
+		Mockito.verify(pdrGateway, Mockito.times(3)).processMessage(Mockito.any(), Mockito.any(), Mockito.anyString(), Mockito.anyLong());
+	}
+	
+	@Test
+	void testDifferentPayloadsUnderSameHeaderId() {
+		Mockito.when(pdrGateway.processMessage(Mockito.any(), Mockito.eq(BASE), Mockito.anyString(), Mockito.anyLong()))
+			.thenReturn(response(MessageHeader.ResponseType.OK));
+		
+		Bundle first = message("header-1", "obs-1");
+		Bundle second = message("header-1", "obs-2");
+		Assertions.assertNotEquals(idempotencyService.getKey(first), idempotencyService.getKey(second));
+		
+		idempotencyService.processMessage(first, BASE);
+		idempotencyService.processMessage(second, BASE);
+		Mockito.verify(pdrGateway).processMessage(Mockito.eq(first), Mockito.eq(BASE), Mockito.anyString(), Mockito.anyLong());
+		Mockito.verify(pdrGateway).processMessage(Mockito.eq(second), Mockito.eq(BASE), Mockito.anyString(), Mockito.anyLong());
+	}
+	
+	@Test
+	void testMessageWithoutHeaderIdIsNotCached() {
+		Mockito.when(pdrGateway.processMessage(Mockito.any(), Mockito.eq(BASE), Mockito.anyString(), Mockito.anyLong()))
+			.thenReturn(response(MessageHeader.ResponseType.OK));
+		
+		Bundle message = message(null, "obs-1");
+		Assertions.assertNull(idempotencyService.getKey(message));
+		idempotencyService.processMessage(message, BASE);
+		idempotencyService.processMessage(message, BASE);
+		Mockito.verify(pdrGateway, Mockito.times(2)).processMessage(Mockito.eq(message), Mockito.eq(BASE), Mockito.anyString(), Mockito.anyLong());
+	}
+	
+	@Test
+	void testTimedOutMessageIsCompletedByFlow() {
+		Bundle response = response(MessageHeader.ResponseType.OK);
+		Mockito.when(pdrGateway.processMessage(Mockito.any(), Mockito.eq(BASE), Mockito.eq("job-1"), Mockito.anyLong()))
+			.thenReturn(null);
+		
+		CompletableFuture<IBaseBundle> running = idempotencyService.submit(message("header-1", "obs-1"), BASE, "job-1", 10);
+		Assertions.assertFalse(running.isDone());
+		// a retry waits for the original instead of processing it again
+		Assertions.assertSame(running, idempotencyService.submit(message("header-1", "obs-1"), BASE, "job-2", 10));
+		
+		idempotencyService.finished("job-1", response);
+		Assertions.assertSame(response, running.join());
+		Assertions.assertSame(response, idempotencyService.processMessage(message("header-1", "obs-1"), BASE));
+		Mockito.verify(pdrGateway, Mockito.times(1)).processMessage(Mockito.any(), Mockito.any(), Mockito.anyString(), Mockito.anyLong());
+	}
+	
+	private static Bundle message(String headerId, String observationId) {
+		MessageHeader header = new MessageHeader();
+		header.setId(headerId);
+		header.setEvent(new UriType(PatientDataReceiptService.PDR_EVENT));
+		header.getSource().setEndpoint("http://example.org/");
+		header.addFocus(new Reference("Patient/patient-1"));
+		Observation observation = new Observation();
+		observation.setId(observationId);
+		Bundle message = new Bundle();
+		message.setType(Bundle.BundleType.MESSAGE);
+		message.addEntry().setResource(header);
+		message.addEntry().setResource(observation);
+		return message;
+	}
+	
+	private static Bundle response(MessageHeader.ResponseType code) {
+		Bundle response = new Bundle();
+		response.setType(Bundle.BundleType.MESSAGE);
+		response.addEntry().setResource(new MessageHeader().setResponse(
+				new MessageHeader.MessageHeaderResponseComponent().setCode(code)));
+		return response;
+	}
+}
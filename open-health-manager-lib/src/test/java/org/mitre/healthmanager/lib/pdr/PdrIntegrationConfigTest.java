@@ -0,0 +1,63 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mockito.Mockito;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+
+class PdrIntegrationConfigTest {
+	private PdrIntegrationConfig pdrIntegrationConfig = new PdrIntegrationConfig();
+	
+	@Test
+	void testAggregateRestoresEntryOrder() {
+		List<Message<BundleEntryComponent>> items = new ArrayList<>();
+		for (int sequence : new int[] {3, 1, 4, 2}) {
+			BundleEntryComponent entry = new BundleEntryComponent().setFullUrl("urn:uuid:entry-" + sequence);
+			items.add(MessageBuilder.withPayload(entry)
+					.setSequenceNumber(sequence)
+					.setSequenceSize(4)
+					.build());
+		}
+		
+		Bundle result = pdrIntegrationConfig.aggregatingMethod(items);
+		
+		Assertions.assertEquals(4, result.getEntry().size());
+		for (int i = 0; i < 4; i++) {
+			Assertions.assertEquals("urn:uuid:entry-" + (i + 1), result.getEntry().get(i).getFullUrl());
+		}
+	}
+	
+	@Test
+	void testResumedMessageRewritesUnchangedEntries() {
+		pdrIntegrationConfig.applicationProperties = new ApplicationProperties();
+		pdrIntegrationConfig.applicationProperties.getPdr().setSkipUnchangedEntries(true);
+		pdrIntegrationConfig.changeDetectionService = Mockito.mock(ChangeDetectionService.class);
+		Mockito.when(pdrIntegrationConfig.changeDetectionService.removeUnchanged(Mockito.any(), Mockito.any()))
+			.thenReturn(Collections.singletonList(new IdType("Observation", "obs-1", "2")));
+		
+		Message<Bundle> message = pdrIntegrationConfig.skipUnchanged(MessageBuilder.withPayload(new Bundle()).build());
+		Assertions.assertEquals(1, message.getHeaders().get(PdrIntegrationConfig.SKIPPED_ENTRY_COUNT));
+		// listed by the PDR at their current version
+		Assertions.assertEquals(Collections.singletonList("Observation/obs-1/_history/2"), 
+				message.getHeaders().get(PdrIntegrationConfig.SKIPPED_ENTRY_IDS));
+		
+		// entries stored before a failure may be missing from the ledger
+		message = pdrIntegrationConfig.skipUnchanged(MessageBuilder.withPayload(new Bundle())
+				.setHeader(PdrRecoveryService.RESUMED_HEADER, true)
+				.build());
+		Assertions.assertEquals(0, message.getHeaders().get(PdrIntegrationConfig.SKIPPED_ENTRY_COUNT));
+		Mockito.verify(pdrIntegrationConfig.changeDetectionService, Mockito.times(1))
+			.removeUnchanged(Mockito.any(), Mockito.nullable(DaoRegistry.class));
+	}
+}
@@ -0,0 +1,169 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.jdbc.store.JdbcMessageStore;
+import org.springframework.integration.store.MessageGroup;
+import org.springframework.integration.store.SimpleMessageGroup;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.integration.transaction.PseudoTransactionManager;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.TaskScheduler;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+class PdrJobServiceTest {
+	private PdrJobService jobService;
+	private PdrJob job;
+	
+	@BeforeEach
+	void setUp() {
+		jobService = new PdrJobService();
+		jobService.repository = Mockito.mock(PdrJobRepository.class);
+		jobService.pdrIdempotencyService = Mockito.mock(PdrIdempotencyService.class);
+		jobService.myFhirContext = FhirContext.forR4Cached();
+		jobService.applicationProperties = new ApplicationProperties();
+		jobService.pdrIngestChannel = Mockito.mock(QueueChannel.class);
+		jobService.jobStore = Mockito.mock(JdbcMessageStore.class);
+		jobService.taskScheduler = Mockito.mock(TaskScheduler.class);
+		jobService.transactionManager = new PseudoTransactionManager();
+		// stored before a restart, the queued message is replayed
+		job = new PdrJob("job-1", "patient-1");
+		Mockito.when(jobService.repository.findById("job-1")).thenReturn(Optional.of(job));
+	}
+	
+	@Test
+	void testProcessStoresResponse() {
+		Bundle response = new Bundle();
+		response.setType(Bundle.BundleType.MESSAGE);
+		Mockito.when(jobService.pdrIdempotencyService.submit(Mockito.any(), Mockito.any(), Mockito.eq("job-1"), Mockito.anyLong()))
+			.thenReturn(CompletableFuture.completedFuture(response));
+		
+		jobService.process(message());
+		Assertions.assertEquals(PdrJob.Status.COMPLETE, job.getStatus());
+		Assertions.assertNotNull(job.getCompleted());
+		Assertions.assertTrue(job.getResponse().contains("\"type\":\"message\""));
+		Mockito.verify(jobService.repository).save(job);
+		Mockito.verify(jobService.jobStore).removeMessageGroup("job-1");
+	}
+	
+	@Test
+	void testProcessStoresFailure() {
+		Mockito.when(jobService.pdrIdempotencyService.submit(Mockito.any(), Mockito.any(), Mockito.eq("job-1"), Mockito.anyLong()))
+			.thenThrow(new UnprocessableEntityException("patient patient-1 does not exist"));
+		
+		jobService.process(message());
+		Assertions.assertEquals(PdrJob.Status.FAILED, job.getStatus());
+		Assertions.assertEquals(422, job.getErrorStatus());
+		Assertions.assertTrue(job.getError().contains("does not exist"));
+		Mockito.verify(jobService.repository).save(job);
+	}
+	
+	@Test
+	void testJobStillRunningIsFinishedLater() {
+		CompletableFuture<IBaseBundle> response = new CompletableFuture<>();
+		Mockito.when(jobService.pdrIdempotencyService.submit(Mockito.any(), Mockito.any(), Mockito.eq("job-1"), Mockito.anyLong()))
+			.thenReturn(response);
+		
+		jobService.process(message());
+		// the gateway stopped waiting, the flow is still running
+		Assertions.assertEquals(PdrJob.Status.IN_PROGRESS, job.getStatus());
+		Mockito.verify(jobService.repository, Mockito.never()).save(Mockito.any());
+		
+		Bundle result = new Bundle();
+		result.setType(Bundle.BundleType.MESSAGE);
+		jobService.finish("job-1", result);
+		response.complete(result);
+		Assertions.assertEquals(PdrJob.Status.COMPLETE, job.getStatus());
+		Mockito.verify(jobService.repository, Mockito.times(1)).save(job);
+		Mockito.verify(jobService.pdrIdempotencyService, Mockito.atLeastOnce()).finished("job-1", result);
+		Mockito.verify(jobService.jobStore).removeMessageGroup("job-1");
+	}
+	
+	@Test
+	void testTrackedRequestIsCompletedByResponse() {
+		Mockito.when(jobService.repository.save(Mockito.any())).thenAnswer(i -> i.getArgument(0));
+		CompletableFuture<IBaseBundle> response = new CompletableFuture<>();
+		PdrJob tracked = jobService.track("job-2", "patient-1", response);
+		Assertions.assertEquals(PdrJob.Status.IN_PROGRESS, tracked.getStatus());
+		Mockito.when(jobService.repository.findById("job-2")).thenReturn(Optional.of(tracked));
+		
+		response.completeExceptionally(new UnprocessableEntityException("patient patient-1 does not exist"));
+		Assertions.assertEquals(PdrJob.Status.FAILED, tracked.getStatus());
+		Assertions.assertEquals(422, tracked.getErrorStatus());
+	}
+	
+	@Test
+	void testRejectedJobIsRequeuedAfterRetryAfter() {
+		Mockito.when(jobService.pdrIdempotencyService.submit(Mockito.any(), Mockito.any(), Mockito.eq("job-1"), Mockito.anyLong()))
+			.thenThrow(new PdrAdmissionController.TooManyRequestsException("busy", 30));
+		
+		Instant before = Instant.now();
+		jobService.process(message());
+		ArgumentCaptor<Runnable> requeue = ArgumentCaptor.forClass(Runnable.class);
+		ArgumentCaptor<Instant> startTime = ArgumentCaptor.forClass(Instant.class);
+		Mockito.verify(jobService.taskScheduler).schedule(requeue.capture(), startTime.capture());
+		Assertions.assertFalse(startTime.getValue().isBefore(before.plusSeconds(30)));
+		// still claimed until it is back on the queue
+		Mockito.verifyNoInteractions(jobService.pdrIngestChannel, jobService.jobStore);
+		Assertions.assertEquals(PdrJob.Status.IN_PROGRESS, job.getStatus());
+		
+		requeue.getValue().run();
+		Mockito.verify(jobService.pdrIngestChannel).send(Mockito.argThat(m -> "job-1".equals(m.getHeaders().get(PdrJobService.JOB_ID_HEADER))));
+		Mockito.verify(jobService.jobStore).removeMessageGroup("job-1");
+	}
+	
+	@Test
+	void testClaimIsStoredForThisNode() {
+		jobService.applicationProperties.getPdr().getMessageStore().setNodeId("node-1");
+		jobService.claim(message());
+		Mockito.verify(jobService.jobStore).addMessageToGroup(Mockito.eq("job-1"),
+				Mockito.argThat(m -> "node-1".equals(m.getHeaders().get(PdrRecoveryService.NODE_HEADER))));
+	}
+	
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void testStaleClaimOfOtherNodeIsRequeued() {
+		jobService.applicationProperties.getPdr().getMessageStore().setNodeId("node-1");
+		Message<IBaseBundle> claim = MessageBuilder.fromMessage(message())
+				.setHeader(PdrRecoveryService.NODE_HEADER, "node-2")
+				.build();
+		MessageGroup stale = new SimpleMessageGroup(Collections.singletonList(claim), "job-1", 
+				System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1), false);
+		MessageGroup recent = new SimpleMessageGroup(Collections.singletonList(MessageBuilder.fromMessage(claim)
+				.setHeader(PdrJobService.JOB_ID_HEADER, "job-2").build()), "job-2");
+		Mockito.when(jobService.jobStore.iterator()).thenReturn(Arrays.asList(stale, recent).iterator());
+		Mockito.doReturn(claim).when(jobService.jobStore).removeMessage(claim.getHeaders().getId());
+		
+		jobService.requeueClaims(false);
+		ArgumentCaptor<Message<?>> requeued = (ArgumentCaptor) ArgumentCaptor.forClass(Message.class);
+		Mockito.verify(jobService.pdrIngestChannel, Mockito.times(1)).send(requeued.capture());
+		Assertions.assertEquals("job-1", requeued.getValue().getHeaders().get(PdrJobService.JOB_ID_HEADER));
+		Assertions.assertEquals(1, requeued.getValue().getHeaders().get(PdrRecoveryService.ATTEMPTS_HEADER));
+		Assertions.assertNull(requeued.getValue().getHeaders().get(PdrRecoveryService.NODE_HEADER));
+		Mockito.verify(jobService.jobStore).removeMessageGroup("job-1");
+		Mockito.verify(jobService.jobStore, Mockito.never()).removeMessageGroup("job-2");
+	}
+	
+	private static Message<IBaseBundle> message() {
+		return MessageBuilder.<IBaseBundle>withPayload(new Bundle())
+				.setHeader("fhirServerBase", "http://localhost/fhir")
+				.setHeader(PdrJobService.JOB_ID_HEADER, "job-1")
+				.build();
+	}
+}
@@ -0,0 +1,61 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+class PdrLanesTest {
+	
+	@Test
+	void testRunsPatientInOrderOnOneLane() throws InterruptedException {
+		PdrLanes lanes = new PdrLanes("internalPatientId", 4, "test-lane-");
+		try {
+			List<Integer> order = new CopyOnWriteArrayList<>();
+			List<String> threads = new CopyOnWriteArrayList<>();
+			CountDownLatch done = new CountDownLatch(50);
+			for(int i = 0; i < 50; i++) {
+				int n = i;
+				lanes.getExecutor(lanes.getLane(message("user-1"))).execute(() -> {
+					order.add(n);
+					threads.add(Thread.currentThread().getName());
+					done.countDown();
+				});
+			}
+			Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+			for(int i = 0; i < 50; i++) {
+				Assertions.assertEquals(i, order.get(i));
+			}
+			Assertions.assertEquals(1, threads.stream().distinct().count());
+		} finally {
+			lanes.destroy();
+		}
+	}
+	
+	@Test
+	void testSpreadsPatientsOverLanes() {
+		PdrLanes lanes = new PdrLanes("internalPatientId", 4, "test-lane-");
+		try {
+			Assertions.assertEquals(lanes.getLane(message("user-1")), lanes.getLane(message("user-1")));
+			long used = IntStream.range(0, 100)
+					.map(i -> lanes.getLane(message("user-" + i)))
+					.distinct().count();
+			Assertions.assertEquals(4, used);
+			// without a patient messages are spread round robin
+			Message<String> anonymous = MessageBuilder.withPayload("pdr").build();
+			Assertions.assertNotEquals(lanes.getLane(anonymous), lanes.getLane(anonymous));
+		} finally {
+			lanes.destroy();
+		}
+	}
+	
+	private static Message<String> message(String patientId) {
+		return MessageBuilder.withPayload("pdr").setHeader("internalPatientId", patientId).build();
+	}
+}
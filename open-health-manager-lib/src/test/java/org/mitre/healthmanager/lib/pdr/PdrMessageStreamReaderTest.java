@@ -0,0 +1,78 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+class PdrMessageStreamReaderTest {
+	private FhirContext fhirContext = FhirContext.forR4Cached();
+
+	@Test
+	void testReadsEntriesInWindows() {
+		PdrMessageStreamReader reader = new PdrMessageStreamReader(encode(message(5)), fhirContext);
+		Assertions.assertEquals("header-id", reader.readMessageHeader().getIdElement().getIdPart());
+
+		Bundle window = reader.nextWindow(2);
+		Assertions.assertEquals(Bundle.BundleType.MESSAGE, window.getType());
+		Assertions.assertEquals(3, window.getEntry().size());
+		Assertions.assertTrue(window.getEntry().get(0).getResource() instanceof MessageHeader);
+		Assertions.assertEquals("obs-0", window.getEntry().get(1).getResource().getIdElement().getIdPart());
+		Assertions.assertEquals(Bundle.HTTPVerb.POST, window.getEntry().get(1).getRequest().getMethod());
+
+		Assertions.assertEquals(3, reader.nextWindow(2).getEntry().size());
+		window = reader.nextWindow(2);
+		Assertions.assertEquals(2, window.getEntry().size());
+		Assertions.assertEquals("obs-4", window.getEntry().get(1).getResource().getIdElement().getIdPart());
+		Assertions.assertNull(reader.nextWindow(2));
+	}
+
+	@Test
+	void testRejectsMissingMessageHeader() {
+		Bundle message = message(1);
+		message.getEntry().remove(0);
+		PdrMessageStreamReader reader = new PdrMessageStreamReader(encode(message), fhirContext);
+		Assertions.assertThrows(UnprocessableEntityException.class, reader::readMessageHeader);
+	}
+
+	@Test
+	void testRejectsNonMessageBundle() {
+		Bundle message = message(1);
+		message.setType(Bundle.BundleType.TRANSACTION);
+		PdrMessageStreamReader reader = new PdrMessageStreamReader(encode(message), fhirContext);
+		Assertions.assertThrows(UnprocessableEntityException.class, reader::readMessageHeader);
+	}
+
+	private InputStream encode(Bundle message) {
+		return new ByteArrayInputStream(fhirContext.newJsonParser().encodeResourceToString(message).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Bundle message(int entries) {
+		Bundle message = new Bundle();
+		message.setType(Bundle.BundleType.MESSAGE);
+		MessageHeader header = new MessageHeader();
+		header.setId("header-id");
+		header.setEvent(new UriType(PatientDataReceiptService.PDR_EVENT));
+		header.getSource().setEndpoint("urn:test");
+		message.addEntry().setResource(header);
+		for(int i = 0; i < entries; i++) {
+			Observation observation = new Observation();
+			observation.setId("obs-" + i);
+			observation.setStatus(Observation.ObservationStatus.FINAL);
+			observation.setSubject(new Reference("Patient/pat1"));
+			message.addEntry().setResource(observation)
+				.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Observation");
+		}
+		return message;
+	}
+}
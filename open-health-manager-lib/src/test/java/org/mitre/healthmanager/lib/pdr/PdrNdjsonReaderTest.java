@@ -0,0 +1,88 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+class PdrNdjsonReaderTest {
+	private FhirContext fhirContext = FhirContext.forR4Cached();
+
+	@Test
+	void testReadsResourcesInWindows() {
+		StringBuilder ndjson = new StringBuilder();
+		for(int i = 0; i < 5; i++) {
+			ndjson.append(observation(i)).append(i == 2 ? "\n\n" : "\n");
+		}
+		PdrNdjsonReader reader = new PdrNdjsonReader(encode(ndjson.toString()), fhirContext, header());
+
+		Bundle window = reader.nextWindow(2);
+		Assertions.assertEquals(Bundle.BundleType.MESSAGE, window.getType());
+		Assertions.assertEquals(3, window.getEntry().size());
+		Assertions.assertEquals("header-id", window.getEntry().get(0).getResource().getIdElement().getIdPart());
+		Assertions.assertEquals("obs-0", window.getEntry().get(1).getResource().getIdElement().getIdPart());
+		Assertions.assertFalse(window.getEntry().get(1).hasRequest());
+
+		Assertions.assertEquals(3, reader.nextWindow(2).getEntry().size());
+		window = reader.nextWindow(2);
+		Assertions.assertEquals(2, window.getEntry().size());
+		Assertions.assertEquals("obs-4", window.getEntry().get(1).getResource().getIdElement().getIdPart());
+		Assertions.assertNull(reader.nextWindow(2));
+	}
+
+	@Test
+	void testReadsCarriageReturnsAndLastLineWithoutNewline() {
+		PdrNdjsonReader reader = new PdrNdjsonReader(encode(observation(0) + "\r\n \r\n" + observation(1)), fhirContext, header());
+
+		Bundle window = reader.nextWindow(5);
+		Assertions.assertEquals(3, window.getEntry().size());
+		Assertions.assertEquals("obs-1", window.getEntry().get(2).getResource().getIdElement().getIdPart());
+		Assertions.assertNull(reader.nextWindow(5));
+	}
+
+	@Test
+	void testRejectsInvalidLine() {
+		PdrNdjsonReader reader = new PdrNdjsonReader(encode(observation(0) + "\n{not json\n"), fhirContext, header());
+		InvalidRequestException e = Assertions.assertThrows(InvalidRequestException.class, () -> reader.nextWindow(10));
+		Assertions.assertTrue(e.getMessage().contains("line 2"));
+	}
+
+	@Test
+	void testRejectsMessageHeader() {
+		String line = fhirContext.newJsonParser().encodeResourceToString(header());
+		PdrNdjsonReader reader = new PdrNdjsonReader(encode(line), fhirContext, header());
+		Assertions.assertThrows(UnprocessableEntityException.class, () -> reader.nextWindow(10));
+	}
+
+	private InputStream encode(String ndjson) {
+		return new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private String observation(int i) {
+		Observation observation = new Observation();
+		observation.setId("obs-" + i);
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.setSubject(new Reference("Patient/pat1"));
+		return fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(observation);
+	}
+
+	private static MessageHeader header() {
+		MessageHeader header = new MessageHeader();
+		header.setId("header-id");
+		header.setEvent(new UriType(PatientDataReceiptService.PDR_EVENT));
+		header.getSource().setEndpoint("urn:test");
+		header.addFocus(new Reference("Patient/pat1"));
+		return header;
+	}
+}
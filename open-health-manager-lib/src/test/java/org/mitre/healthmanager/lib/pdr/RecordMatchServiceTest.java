@@ -0,0 +1,197 @@
+package org.mitre.healthmanager.lib.pdr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Provenance;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.pdr.index.PdrSourceIdentityService;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+class RecordMatchServiceTest {
+	private static final String SOURCE = "urn:test:source";
+
+	private RecordMatchService recordMatchService;
+	private DaoRegistry daoRegistry;
+	private IFhirResourceDao<Provenance> provenanceDao;
+	private Set<String> deletedObservations;
+
+	@BeforeEach
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void setUp() {
+		recordMatchService = new RecordMatchService();
+		recordMatchService.sourceIdentityService = Mockito.mock(PdrSourceIdentityService.class);
+		provenanceDao = Mockito.mock(IFhirResourceDao.class);
+		daoRegistry = Mockito.mock(DaoRegistry.class);
+		Mockito.when(daoRegistry.getResourceDao(Provenance.class)).thenReturn(provenanceDao);
+		
+		// every target exists unless deleted
+		deletedObservations = new HashSet<>();
+		IFhirResourceDao<Observation> observationDao = Mockito.mock(IFhirResourceDao.class);
+		Mockito.when(observationDao.search(Mockito.any(SearchParameterMap.class))).thenAnswer(invocation -> {
+			SearchParameterMap theParams = invocation.getArgument(0);
+			List<IBaseResource> found = new ArrayList<>();
+			for(List<IQueryParameterType> or : theParams.get("_id")) {
+				for(IQueryParameterType id : or) {
+					String idPart = ((TokenParam) id).getValue();
+					if(!deletedObservations.contains(idPart)) {
+						found.add(new Observation().setIdElement(new IdType("Observation", idPart)));
+					}
+				}
+			}
+			return new SimpleBundleProvider(found);
+		});
+		Mockito.when(daoRegistry.getResourceDao("Observation")).thenReturn((IFhirResourceDao) observationDao);
+	}
+
+	@Test
+	void testBatchMapsSourcesToLatestTarget() {
+		// newest first, as sorted by the search
+		SimpleBundleProvider results = Mockito.spy(new SimpleBundleProvider(Arrays.asList(
+				provenance("obs-a", "Observation/a2"),
+				provenance("obs-b", "Observation/b1"),
+				provenance("obs-a", "Observation/a1"))));
+		Mockito.when(provenanceDao.search(Mockito.any(SearchParameterMap.class))).thenReturn(results);
+
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(observation("obs-a"));
+		bundle.addEntry().setResource(observation("obs-b"));
+		bundle.addEntry().setResource(observation("obs-c"));
+		recordMatchService.recordMatch(bundle, "patient-1", header(), daoRegistry);
+
+		Assertions.assertEquals(Bundle.HTTPVerb.PUT, bundle.getEntry().get(0).getRequest().getMethod());
+		Assertions.assertEquals("Observation/a2", bundle.getEntry().get(0).getRequest().getUrl());
+		Assertions.assertEquals(Bundle.HTTPVerb.PUT, bundle.getEntry().get(1).getRequest().getMethod());
+		Assertions.assertEquals("Observation/b1", bundle.getEntry().get(1).getRequest().getUrl());
+		Assertions.assertEquals(Bundle.HTTPVerb.POST, bundle.getEntry().get(2).getRequest().getMethod());
+		Assertions.assertEquals("Observation", bundle.getEntry().get(2).getRequest().getUrl());
+
+		// one search for the whole chunk, sorted newest first
+		ArgumentCaptor<SearchParameterMap> params = ArgumentCaptor.forClass(SearchParameterMap.class);
+		Mockito.verify(provenanceDao, Mockito.times(1)).search(params.capture());
+		Assertions.assertEquals(Constants.PARAM_LASTUPDATED, params.getValue().getSort().getParamName());
+		Assertions.assertEquals(SortOrderEnum.DESC, params.getValue().getSort().getOrder());
+		Assertions.assertFalse(params.getValue().isLoadSynchronous());
+	}
+
+	@Test
+	void testBatchStopsPagingOnceAllSourcesAreFound() {
+		List<IBaseResource> provenances = new ArrayList<>();
+		provenances.add(provenance("obs-a", "Observation/a2"));
+		for(int i = 0; i < RecordMatchService.PROVENANCE_PAGE_SIZE * 2; i++) {
+			provenances.add(provenance("obs-a", "Observation/a1"));
+		}
+		SimpleBundleProvider results = Mockito.spy(new SimpleBundleProvider(provenances));
+		Mockito.when(provenanceDao.search(Mockito.any(SearchParameterMap.class))).thenReturn(results);
+
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(observation("obs-a"));
+		recordMatchService.recordMatch(bundle, "patient-1", header(), daoRegistry);
+
+		Assertions.assertEquals("Observation/a2", bundle.getEntry().get(0).getRequest().getUrl());
+		Mockito.verify(results, Mockito.times(1)).getResources(Mockito.anyInt(), Mockito.anyInt());
+	}
+
+	@Test
+	void testIndexHitSkipsProvenanceSearch() {
+		Mockito.when(recordMatchService.sourceIdentityService.findTargetResourceIds(Mockito.eq("patient-1"), Mockito.any()))
+			.thenReturn(Collections.singletonMap(SOURCE + "/Observation/obs-a", new IdType("Observation", "a2")));
+
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(observation("obs-a"));
+		recordMatchService.recordMatch(bundle, "patient-1", header(), daoRegistry);
+
+		Assertions.assertEquals("Observation/a2", bundle.getEntry().get(0).getRequest().getUrl());
+		Mockito.verifyNoInteractions(provenanceDao);
+	}
+
+	@Test
+	void testIndexMissFallsBackToProvenance() {
+		Mockito.when(provenanceDao.search(Mockito.any(SearchParameterMap.class)))
+			.thenReturn(new SimpleBundleProvider(Arrays.asList(provenance("obs-a", "Observation/a2"))));
+
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(observation("obs-a"));
+		recordMatchService.recordMatch(bundle, "patient-1", header(), daoRegistry);
+
+		Assertions.assertEquals("Observation/a2", bundle.getEntry().get(0).getRequest().getUrl());
+		// backfilled so the next lookup hits the index
+		ArgumentCaptor<IdType> sourceId = ArgumentCaptor.forClass(IdType.class);
+		Mockito.verify(recordMatchService.sourceIdentityService).recordTargetResourceId(Mockito.eq("patient-1"),
+				sourceId.capture(), Mockito.argThat(targetId -> "Observation/a2".equals(targetId.getValue())));
+		Assertions.assertEquals(SOURCE + "/Observation/obs-a", sourceId.getValue().getValue());
+	}
+
+	@Test
+	void testDeletedIndexTargetIsNewResource() {
+		Mockito.when(recordMatchService.sourceIdentityService.isAuthoritative()).thenReturn(true);
+		Mockito.when(recordMatchService.sourceIdentityService.findTargetResourceIds(Mockito.eq("patient-1"), Mockito.any()))
+			.thenReturn(Map.of(SOURCE + "/Observation/obs-a", new IdType("Observation", "a2"),
+					SOURCE + "/Observation/obs-b", new IdType("Observation", "b1")));
+		deletedObservations.add("a2");
+
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(observation("obs-a"));
+		bundle.addEntry().setResource(observation("obs-b"));
+		recordMatchService.recordMatch(bundle, "patient-1", header(), daoRegistry);
+
+		Assertions.assertEquals(Bundle.HTTPVerb.POST, bundle.getEntry().get(0).getRequest().getMethod());
+		Assertions.assertEquals(Bundle.HTTPVerb.PUT, bundle.getEntry().get(1).getRequest().getMethod());
+		Assertions.assertEquals("Observation/b1", bundle.getEntry().get(1).getRequest().getUrl());
+	}
+
+	@Test
+	void testAuthoritativeIndexMissIsNewResource() {
+		Mockito.when(recordMatchService.sourceIdentityService.isAuthoritative()).thenReturn(true);
+
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(observation("obs-a"));
+		recordMatchService.recordMatch(bundle, "patient-1", header(), daoRegistry);
+
+		Assertions.assertEquals(Bundle.HTTPVerb.POST, bundle.getEntry().get(0).getRequest().getMethod());
+		Mockito.verifyNoInteractions(provenanceDao);
+	}
+
+	private static MessageHeader header() {
+		MessageHeader header = new MessageHeader();
+		header.getSource().setEndpoint(SOURCE);
+		return header;
+	}
+
+	private static Observation observation(String id) {
+		Observation observation = new Observation();
+		observation.setIdElement(new IdType("Observation", id));
+		return observation;
+	}
+
+	private static Provenance provenance(String sourceId, String targetId) {
+		Provenance provenance = new Provenance();
+		provenance.getMeta().setSource(SOURCE + "/Observation/" + sourceId + "#request-id");
+		provenance.addTarget(new Reference("Bundle/raw"));
+		provenance.addTarget(new Reference(targetId));
+		return provenance;
+	}
+}
@@ -1,11 +1,14 @@
 package org.mitre.healthmanager.lib.pdr.data;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
 import org.hl7.fhir.r4.model.Binary;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Reference;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -33,4 +36,43 @@ class AppleHealthKitServiceTest {
 		Assertions.assertEquals(condition.getSubject().getReferenceElement().getIdPart(), "user-2");
 		Assertions.assertNull(condition.getAsserter().getReferenceElement().getValue());
 	}
+	
+	@Test
+	void testTransformPregnancySample() {
+		String sample = "{\"uuid\":\"24827DF1-BB01-4D39-A3C5-3F29A4C8FC5B\",\"value\":\"notApplicable\",\"metadata\":{\"HKWasUserEntered\":1},"
+				+ "\"startDate\":\"2022-09-03\",\"endDate\":\"4000-12-31\",\"sampleType\":\"HKCategoryTypeIdentifierPregnancy\"}";
+		
+		Binary binary = new Binary();
+		binary.setContentType("application/json");
+		binary.setData(sample.getBytes(StandardCharsets.UTF_8));
+		
+		Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+		entry.setResource(binary);
+		
+		Bundle.BundleEntryComponent result = ahk.transformBundleEntry(entry, "user-2");
+		
+		Assertions.assertTrue(result.getResource() instanceof Condition);
+		Condition condition = (Condition) result.getResource();
+		Assertions.assertEquals("24827DF1-BB01-4D39-A3C5-3F29A4C8FC5B", condition.getIdElement().getIdPart());
+		Assertions.assertEquals(AppleHealthKitService.PREGNANCY_CODING.getCode(), condition.getCode().getCodingFirstRep().getCode());
+		Assertions.assertNotNull(condition.getOnsetPeriod().getStart());
+		Assertions.assertNull(condition.getOnsetPeriod().getEnd());
+		Assertions.assertEquals("user-2", condition.getSubject().getReferenceElement().getIdPart());
+	}
+	
+	@Test
+	void testFixReferencesOfResourceWithoutRule() {
+		MedicationStatement statement = new MedicationStatement();
+		statement.setSubject(new Reference("Patient/source-patient"));
+		statement.setInformationSource(new Reference("Patient/source-patient"));
+		statement.addDerivedFrom(new Reference("Observation/source-observation"));
+		
+		Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+		entry.setResource(statement);
+		ahk.transformBundleEntry(entry, "user-2");
+		
+		Assertions.assertEquals("Patient/user-2", statement.getSubject().getReference());
+		Assertions.assertNull(statement.getInformationSource().getReference());
+		Assertions.assertEquals("Observation/source-observation", statement.getDerivedFromFirstRep().getReference());
+	}
 }
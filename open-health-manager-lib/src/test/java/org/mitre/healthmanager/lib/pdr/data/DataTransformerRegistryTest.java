@@ -0,0 +1,58 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DataTransformerRegistryTest {
+	private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	
+	@Test
+	void testRoutesBySourceEndpoint() {
+		DataTransformerRegistry registry = new DataTransformerRegistry(
+				Arrays.asList(new FixedTransformer("urn:source:a", "a"), new FixedTransformer("urn:source:b", "b")), meterRegistry);
+		
+		BundleEntryComponent entry = registry.transform(new BundleEntryComponent(), "urn:source:b", "user-2");
+		Assertions.assertEquals("b", entry.getFullUrl());
+		
+		BundleEntryComponent unrouted = new BundleEntryComponent();
+		Assertions.assertSame(unrouted, registry.transform(unrouted, "urn:source:c", "user-2"));
+		Assertions.assertNull(registry.getTransformer(null));
+		
+		Assertions.assertEquals(1, meterRegistry.get(DataTransformerRegistry.ENTRY_TIMER)
+				.tag("transformer", "FixedTransformer").timers().stream().mapToLong(timer -> timer.count()).sum());
+	}
+	
+	@Test
+	void testRejectsSourceEndpointHandledTwice() {
+		Assertions.assertThrows(IllegalStateException.class, () -> new DataTransformerRegistry(
+				Arrays.asList(new FixedTransformer("urn:source:a", "a"), new FixedTransformer("urn:source:a", "b")), meterRegistry));
+	}
+	
+	private static class FixedTransformer extends DataTransformer {
+		private final String sourceEndpoint;
+		private final String fullUrl;
+		
+		FixedTransformer(String sourceEndpoint, String fullUrl) {
+			this.sourceEndpoint = sourceEndpoint;
+			this.fullUrl = fullUrl;
+		}
+		
+		@Override
+		public Set<String> getSourceEndpoints() {
+			return Collections.singleton(sourceEndpoint);
+		}
+		
+		@Override
+		public BundleEntryComponent transform(BundleEntryComponent entry, String internalPatientId) {
+			return entry.setFullUrl(fullUrl).setResource(new Observation());
+		}
+	}
+}
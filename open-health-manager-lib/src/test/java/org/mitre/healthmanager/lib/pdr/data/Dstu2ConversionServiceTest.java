@@ -0,0 +1,34 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.io.IOException;
+
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Condition;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+class Dstu2ConversionServiceTest {
+	private Dstu2ConversionService dstu2ConversionService = new Dstu2ConversionService();
+	
+	@Test
+	void testConvertsDstu2Binary() throws IOException {
+		Binary binary = new Binary();
+		binary.setContentType(Constants.CT_FHIR_JSON_NEW);
+		binary.setData(this.getClass().getResourceAsStream("ConditionDstu2.json").readAllBytes());
+		
+		Assertions.assertTrue(dstu2ConversionService.convert(binary) instanceof Condition);
+		// converted again with the cached parser and convertible type
+		Assertions.assertTrue(dstu2ConversionService.convert(binary) instanceof Condition);
+	}
+	
+	@Test
+	void testRejectsBinaryWithoutData() {
+		Binary binary = new Binary();
+		binary.setContentType(Constants.CT_FHIR_JSON_NEW);
+		
+		Assertions.assertThrows(UnprocessableEntityException.class, () -> dstu2ConversionService.convert(binary));
+	}
+}
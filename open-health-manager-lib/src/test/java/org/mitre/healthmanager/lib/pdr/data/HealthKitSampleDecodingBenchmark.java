@@ -0,0 +1,75 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Binary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Cost of reading the sampleType of an exported HealthKit sample, comparing
+ * the former Base64 string round trip into a per entry ObjectMapper tree
+ * with the shared streaming parser. Run with the GC profiler to compare the
+ * allocation per entry (gc.alloc.rate.norm), for example with
+ * {@code java -cp <test classpath> ...HealthKitSampleDecodingBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HealthKitSampleDecodingBenchmark {
+	private static final String SAMPLE = "{\"uuid\":\"24827DF1-BB01-4D39-A3C5-3F29A4C8FC5B\",\"value\":72,\"unit\":\"count/min\","
+			+ "\"metadata\":{\"HKMetadataKeyHeartRateMotionContext\":0,\"HKDeviceName\":\"Apple Watch\"},"
+			+ "\"startDate\":\"2022-09-03T10:15:00-04:00\",\"endDate\":\"2022-09-03T10:15:00-04:00\","
+			+ "\"sampleType\":\"HKQuantityTypeIdentifierHeartRate\"}";
+
+	private AppleHealthKitService appleHealthKitService;
+	private Binary binary;
+
+	@Setup
+	public void setup() {
+		appleHealthKitService = new AppleHealthKitService();
+		binary = new Binary();
+		binary.setContentType("application/json");
+		binary.setContentAsBase64(Base64.getEncoder().encodeToString(SAMPLE.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Benchmark
+	public String stringTree() throws Exception {
+		String jsonString = new String(Base64.getDecoder().decode(binary.getDataElement().getValueAsString()));
+		ObjectMapper mapper = new ObjectMapper();
+		JsonNode node = mapper.readTree(jsonString);
+		return node.get("sampleType").asText();
+	}
+
+	@Benchmark
+	public String sharedStreaming() {
+		return appleHealthKitService.readSample(binary).getSampleType();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(HealthKitSampleDecodingBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
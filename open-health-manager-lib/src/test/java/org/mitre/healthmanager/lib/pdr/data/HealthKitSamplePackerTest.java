@@ -0,0 +1,122 @@
+package org.mitre.healthmanager.lib.pdr.data;
+
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+
+class HealthKitSamplePackerTest {
+	private AppleHealthKitService ahk = new AppleHealthKitService();
+
+	@Test
+	void testPacksSamplesOfTheSameWindow() {
+		Bundle bundle = new Bundle();
+		bundle.addEntry(transform(heartRate("A", "2022-09-03T10:00:10Z", 70)));
+		bundle.addEntry(transform(heartRate("B", "2022-09-03T10:00:40Z", 80)));
+		bundle.addEntry(transform(heartRate("C", "2022-09-03T10:02:00Z", 90)));
+		bundle.addEntry(transform(heartRate("D", "2022-09-03T11:30:00Z", 60)));
+
+		Assertions.assertEquals(2, ahk.packSamples(bundle));
+		Assertions.assertEquals(2, bundle.getEntry().size());
+
+		Observation packed = (Observation) bundle.getEntry().get(0).getResource();
+		Assertions.assertTrue(packed.hasValueSampledData());
+		Assertions.assertEquals(60000, packed.getValueSampledData().getPeriod().intValue());
+		Assertions.assertTrue(packed.getValueSampledData().getData().startsWith("75 E 90 E"));
+		Assertions.assertEquals(60, packed.getValueSampledData().getData().split(" ").length);
+		Assertions.assertEquals("/min", packed.getValueSampledData().getOrigin().getCode());
+		Assertions.assertEquals("Patient/user-2", packed.getSubject().getReference());
+		Assertions.assertEquals("HKQuantityTypeIdentifierHeartRate", packed.getIdElement().getResourceType());
+
+		// alone in its window, packed as later syncs may add to it
+		Observation single = (Observation) bundle.getEntry().get(1).getResource();
+		Assertions.assertTrue(single.getValueSampledData().getData().contains("60"));
+		Assertions.assertEquals(1, single.getExtensionsByUrl(HealthKitSamplePacker.SAMPLE_EXTENSION).size());
+	}
+
+	@Test
+	void testPackedIdIsStable() {
+		Bundle first = new Bundle();
+		first.addEntry(transform(heartRate("A", "2022-09-03T10:00:10Z", 70)));
+		first.addEntry(transform(heartRate("B", "2022-09-03T10:00:40Z", 80)));
+		ahk.packSamples(first);
+
+		Bundle second = new Bundle();
+		// a later sync adding to the window
+		second.addEntry(transform(heartRate("C", "2022-09-03T10:00:50Z", 90)));
+		ahk.packSamples(second);
+
+		Assertions.assertEquals(first.getEntryFirstRep().getResource().getIdElement().getValue(),
+				second.getEntryFirstRep().getResource().getIdElement().getValue());
+	}
+
+	@Test
+	void testMergeCountsResentSamplesOnce() {
+		Bundle first = new Bundle();
+		first.addEntry(transform(steps("A", "2022-09-03T10:00:10Z", 100)));
+		first.addEntry(transform(steps("B", "2022-09-03T10:00:40Z", 50)));
+		ahk.packSamples(first);
+		Observation stored = (Observation) first.getEntryFirstRep().getResource();
+		Assertions.assertTrue(stored.getValueSampledData().getData().startsWith("150 E"));
+
+		// B is sent again along with C
+		Bundle second = new Bundle();
+		second.addEntry(transform(steps("B", "2022-09-03T10:00:40Z", 50)));
+		second.addEntry(transform(steps("C", "2022-09-03T10:02:00Z", 30)));
+		ahk.packSamples(second);
+		Observation packed = (Observation) second.getEntryFirstRep().getResource();
+		Assertions.assertEquals(stored.getIdElement().getValue(), packed.getIdElement().getValue());
+
+		new HealthKitSamplePacker(3600000, 60000).merge(packed, stored);
+		Assertions.assertTrue(packed.getValueSampledData().getData().startsWith("150 E 30 E"));
+		Assertions.assertEquals(3, packed.getExtensionsByUrl(HealthKitSamplePacker.SAMPLE_EXTENSION).size());
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void testTransformMatchedMergesStoredWindow() {
+		Bundle first = new Bundle();
+		first.addEntry(transform(steps("A", "2022-09-03T10:00:10Z", 100)));
+		ahk.packSamples(first);
+		Observation stored = (Observation) first.getEntryFirstRep().getResource();
+
+		Bundle second = new Bundle();
+		second.addEntry(transform(steps("C", "2022-09-03T10:02:00Z", 30)));
+		ahk.packSamples(second);
+		// record matching found the stored window
+		second.getEntryFirstRep().getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl("Observation/stored-1");
+		IFhirResourceDao<Observation> dao = Mockito.mock(IFhirResourceDao.class);
+		Mockito.when(dao.read(Mockito.any(IIdType.class))).thenReturn(stored);
+		DaoRegistry daoRegistry = Mockito.mock(DaoRegistry.class);
+		Mockito.when(daoRegistry.getResourceDao("Observation")).thenReturn((IFhirResourceDao) dao);
+
+		ahk.transformMatched(second, daoRegistry);
+		Observation packed = (Observation) second.getEntryFirstRep().getResource();
+		Assertions.assertTrue(packed.getValueSampledData().getData().startsWith("100 E 30 E"));
+	}
+
+	private Bundle.BundleEntryComponent transform(String sample) {
+		Binary binary = new Binary();
+		binary.setContentType("application/json");
+		binary.setData(sample.getBytes(StandardCharsets.UTF_8));
+		return ahk.transformBundleEntry(new Bundle.BundleEntryComponent().setResource(binary), "user-2");
+	}
+
+	private static String steps(String uuid, String date, int value) {
+		return "{\"uuid\":\"" + uuid + "\",\"value\":" + value + ",\"unit\":\"count\",\"startDate\":\"" + date
+				+ "\",\"endDate\":\"" + date + "\",\"sampleType\":\"HKQuantityTypeIdentifierStepCount\"}";
+	}
+
+	private static String heartRate(String uuid, String date, int value) {
+		return "{\"uuid\":\"" + uuid + "\",\"value\":" + value + ",\"unit\":\"count/min\",\"startDate\":\"" + date
+				+ "\",\"endDate\":\"" + date + "\",\"sampleType\":\"HKQuantityTypeIdentifierHeartRate\"}";
+	}
+}
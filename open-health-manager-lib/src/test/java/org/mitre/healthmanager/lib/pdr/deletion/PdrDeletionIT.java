@@ -0,0 +1,292 @@
+package org.mitre.healthmanager.lib.pdr.deletion;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import org.assertj.core.api.Assertions;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mitre.healthmanager.TestApplication;
+import org.mitre.healthmanager.lib.pdr.BasePdrIT;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mitre.healthmanager.lib.sphr.PdrDeletionStatusProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes={TestApplication.class})
+@TestPropertySource(properties = {
+		"spring.batch.job.enabled=false",
+		"spring.jpa.properties.hibernate.dialect=ca.uhn.fhir.jpa.model.dialect.HapiFhirH2Dialect",
+		"hapi.fhir.enable_repository_validating_interceptor=true",
+		"hapi.fhir.fhir_version=r4",
+		"hapi.fhir.subscription.websocket_enabled=true",
+		"hapi.fhir.mdm_enabled=true",
+		// Override is currently required when using MDM as the construction of the MDM
+		// beans are ambiguous as they are constructed multiple places. This is evident
+		// when running in a spring boot environment
+		"spring.main.allow-bean-definition-overriding=true",
+		"hapi.fhir.allow_external_references=true",
+		"application.healthmanager.pdr.deletion.chunk-size=2"})
+class PdrDeletionIT extends BasePdrIT {
+	private static final String TEST_RESOURCES = "/healthmanager/dataMgr/DeleteAccountTests/";
+	
+    @LocalServerPort
+    private int port = 0;
+    
+    @Autowired
+    PdrDeletionService deletionService;
+    
+    @Autowired
+    PdrDeletionJobRepository jobRepository;
+
+	@Test
+	void testDeleteAccountSinglePDR() throws InterruptedException {
+		initClient(port);
+		Bundle patientTransaction = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "PatientOnlyBundleTransaction.json"));
+		Bundle patientResponse = testClient.transaction().withBundle(patientTransaction).execute();
+		String patientId = new IdType(patientResponse.getEntryFirstRep().getResponse().getLocation()).getIdPart();
+		
+		Bundle testMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "SinglePDRDelete.json"));
+		((MessageHeader) testMessage.getEntryFirstRep().getResource()).addFocus(new Reference("Patient/" + patientId));
+		assertSuccessResponse(processMessage(testMessage));
+		ListResource pdrList = findPDRList(patientId);
+		String rawBundleReference = pdrList.getEntry().stream()
+				.map(entry -> entry.getItem().getReference())
+				.filter(reference -> reference.startsWith("Bundle/"))
+				.findFirst().orElseThrow();
+		
+		PdrDeletionJob job = deletionService.deleteAccount(patientId, true);
+		for(int i = 0; i < 300 && job.getStatus() == PdrDeletionJob.Status.RUNNING; i++) {
+			Thread.sleep(100);
+			job = deletionService.getJob(job.getId());
+		}
+		Assertions.assertThat(job.getStatus()).isEqualTo(PdrDeletionJob.Status.COMPLETE);
+		Assertions.assertThat(job.getTotalResources()).isGreaterThan(4);
+		Assertions.assertThat(job.getDeletedResources()).isEqualTo(job.getTotalResources());
+		Assertions.assertThat(job.getExpungedResources()).isEqualTo(job.getTotalResources());
+		
+		// expunged resources are no longer known to the server
+		Assertions.assertThatThrownBy(() -> testClient.read().resource(Patient.class).withId(patientId).execute())
+			.isInstanceOf(ResourceNotFoundException.class);
+		Assertions.assertThatThrownBy(() -> testClient.read().resource(ListResource.class)
+				.withId(pdrList.getIdElement().toUnqualifiedVersionless()).execute())
+			.isInstanceOf(ResourceNotFoundException.class);
+		Assertions.assertThatThrownBy(() -> testClient.read().resource(Bundle.class).withId(new IdType(rawBundleReference)).execute())
+			.isInstanceOf(ResourceNotFoundException.class);
+		for(String resourceType : new String[] {"Encounter", "Procedure", "Provenance"}) {
+			Bundle remaining = testClient.search()
+					.byUrl(resourceType + "?patient=Patient/" + patientId)
+					.returnBundle(Bundle.class).execute();
+			Assertions.assertThat(remaining.getEntry()).as(resourceType).isEmpty();
+		}
+	}
+	
+	@Test
+	void testDeletePdr() throws InterruptedException {
+		initClient(port);
+		Bundle patientTransaction = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "PatientOnlyBundleTransaction.json"));
+		Bundle patientResponse = testClient.transaction().withBundle(patientTransaction).execute();
+		String patientId = new IdType(patientResponse.getEntryFirstRep().getResponse().getLocation()).getIdPart();
+		
+		Bundle testMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "SinglePDRDelete.json"));
+		((MessageHeader) testMessage.getEntryFirstRep().getResource()).addFocus(new Reference("Patient/" + patientId));
+		assertSuccessResponse(processMessage(testMessage));
+		ListResource pdrList = findPDRList(patientId);
+		String listId = pdrList.getIdElement().getIdPart();
+		
+		MethodOutcome outcome = testClient.delete().resourceById(new IdType("List", listId)).execute();
+		// 202 with the location of the deletion status
+		Assertions.assertThat(outcome.getResponseHeaders().entrySet().stream()
+				.filter(header -> header.getKey().equalsIgnoreCase("Content-Location"))
+				.flatMap(header -> header.getValue().stream()))
+			.anyMatch(location -> location.contains(PdrDeletionStatusProvider.OPERATION_NAME));
+		
+		Optional<PdrDeletionJob> job = Optional.empty();
+		for(int i = 0; i < 300 && !job.isPresent(); i++) {
+			Thread.sleep(100);
+			job = jobRepository.findFirstByTargetAndStatusNotOrderByStartedDesc("List/" + listId, PdrDeletionJob.Status.RUNNING);
+		}
+		Assertions.assertThat(job).isPresent();
+		Assertions.assertThat(job.get().getStatus()).isEqualTo(PdrDeletionJob.Status.COMPLETE);
+		Assertions.assertThat(job.get().getDeletedResources()).isEqualTo(job.get().getTotalResources());
+		Assertions.assertThat(job.get().getExpungedResources()).isZero();
+		
+		// deleted without expunge, the Patient is kept
+		Assertions.assertThatThrownBy(() -> testClient.read().resource(ListResource.class).withId(listId).execute())
+			.isInstanceOf(ResourceGoneException.class);
+		Assertions.assertThat(testClient.read().resource(Patient.class).withId(patientId).execute()).isNotNull();
+		Bundle encounters = testClient.search()
+				.byUrl("Encounter?patient=Patient/" + patientId)
+				.returnBundle(Bundle.class).execute();
+		Assertions.assertThat(encounters.getEntry()).isEmpty();
+	}
+	
+	@Test
+	void testDeletePdrsUpdatingTheSameResource() throws InterruptedException {
+		initClient(port);
+		Bundle patientTransaction = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "PatientOnlyBundleTransaction.json"));
+		Bundle patientResponse = testClient.transaction().withBundle(patientTransaction).execute();
+		String patientId = new IdType(patientResponse.getEntryFirstRep().getResponse().getLocation()).getIdPart();
+		
+		Bundle firstMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "SinglePDRDelete.json"));
+		((MessageHeader) firstMessage.getEntryFirstRep().getResource()).addFocus(new Reference("Patient/" + patientId));
+		assertSuccessResponse(processMessage(firstMessage));
+		String firstListId = findPDRList(patientId).getIdElement().getIdPart();
+		
+		// a second PDR from the same source updates the Encounter of the first
+		Bundle secondMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "SinglePDRDelete.json"));
+		String secondMessageId = UUID.randomUUID().toString();
+		secondMessage.getEntryFirstRep().setFullUrl("urn:uuid:" + secondMessageId);
+		secondMessage.getEntryFirstRep().getResource().setId(secondMessageId);
+		((MessageHeader) secondMessage.getEntryFirstRep().getResource()).addFocus(new Reference("Patient/" + patientId));
+		((Encounter) secondMessage.getEntry().get(2).getResource()).setStatus(Encounter.EncounterStatus.CANCELLED);
+		assertSuccessResponse(processMessage(secondMessage));
+		
+		Bundle encounters = testClient.search()
+				.byUrl("Encounter?patient=Patient/" + patientId)
+				.returnBundle(Bundle.class).execute();
+		Assertions.assertThat(encounters.getEntry()).hasSize(1);
+		IdType encounterId = encounters.getEntryFirstRep().getResource().getIdElement().toUnqualifiedVersionless();
+		
+		// the Encounter of the second PDR is still referenced by the Provenance of the first
+		String secondListId = findPDRList(patientId, secondMessageId).getIdElement().getIdPart();
+		Assertions.assertThatThrownBy(() -> testClient.delete().resourceById(new IdType("List", secondListId)).execute())
+			.isInstanceOf(ResourceVersionConflictException.class);
+		Assertions.assertThat(testClient.read().resource(ListResource.class).withId(secondListId).execute()).isNotNull();
+		Assertions.assertThat(jobRepository.findFirstByTargetAndStatusNotOrderByStartedDesc("List/" + secondListId, 
+				PdrDeletionJob.Status.COMPLETE)).isEmpty();
+		
+		PdrDeletionJob job = deletionService.deletePdr(firstListId, patientId, false);
+		for(int i = 0; i < 300 && job.getStatus() == PdrDeletionJob.Status.RUNNING; i++) {
+			Thread.sleep(100);
+			job = deletionService.getJob(job.getId());
+		}
+		Assertions.assertThat(job.getStatus()).isEqualTo(PdrDeletionJob.Status.COMPLETE);
+		
+		// the Encounter as updated by the second PDR is kept
+		Assertions.assertThatThrownBy(() -> testClient.read().resource(ListResource.class).withId(firstListId).execute())
+			.isInstanceOf(ResourceGoneException.class);
+		Encounter encounter = testClient.read().resource(Encounter.class).withId(encounterId).execute();
+		Assertions.assertThat(encounter.getStatus()).isEqualTo(Encounter.EncounterStatus.CANCELLED);
+		Assertions.assertThat(findPDRList(patientId)).isNotNull();
+	}
+	
+	@Test
+	void testDeletePdrKeepsResourcesResentUnchanged() throws InterruptedException {
+		initClient(port);
+		Bundle patientTransaction = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "PatientOnlyBundleTransaction.json"));
+		Bundle patientResponse = testClient.transaction().withBundle(patientTransaction).execute();
+		String patientId = new IdType(patientResponse.getEntryFirstRep().getResponse().getLocation()).getIdPart();
+		
+		Bundle firstMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "SinglePDRDelete.json"));
+		((MessageHeader) firstMessage.getEntryFirstRep().getResource()).addFocus(new Reference("Patient/" + patientId));
+		assertSuccessResponse(processMessage(firstMessage));
+		String firstListId = findPDRList(patientId).getIdElement().getIdPart();
+		
+		// the same data sent again in a new message, its entries are skipped as unchanged
+		Bundle secondMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "SinglePDRDelete.json"));
+		String secondMessageId = UUID.randomUUID().toString();
+		secondMessage.getEntryFirstRep().setFullUrl("urn:uuid:" + secondMessageId);
+		secondMessage.getEntryFirstRep().getResource().setId(secondMessageId);
+		((MessageHeader) secondMessage.getEntryFirstRep().getResource()).addFocus(new Reference("Patient/" + patientId));
+		assertSuccessResponse(processMessage(secondMessage));
+		
+		Bundle encounters = testClient.search()
+				.byUrl("Encounter?patient=Patient/" + patientId)
+				.returnBundle(Bundle.class).execute();
+		Assertions.assertThat(encounters.getEntry()).hasSize(1);
+		IdType encounterId = encounters.getEntryFirstRep().getResource().getIdElement().toUnqualifiedVersionless();
+		// the second PDR lists the Encounter it re-sent
+		ListResource secondList = findPDRList(patientId, secondMessageId);
+		Assertions.assertThat(secondList.getEntry())
+			.anyMatch(entry -> encounterId.getValue().equals(entry.getItem().getReferenceElement().toUnqualifiedVersionless().getValue()));
+		
+		PdrDeletionJob job = deletionService.deletePdr(firstListId, patientId, false);
+		for(int i = 0; i < 300 && job.getStatus() == PdrDeletionJob.Status.RUNNING; i++) {
+			Thread.sleep(100);
+			job = deletionService.getJob(job.getId());
+		}
+		Assertions.assertThat(job.getStatus()).isEqualTo(PdrDeletionJob.Status.COMPLETE);
+		Assertions.assertThat(testClient.read().resource(Encounter.class).withId(encounterId).execute()).isNotNull();
+	}
+	
+	@Test
+	void testResendAfterExpungedPdrDeletion() throws InterruptedException {
+		initClient(port);
+		Bundle patientTransaction = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "PatientOnlyBundleTransaction.json"));
+		Bundle patientResponse = testClient.transaction().withBundle(patientTransaction).execute();
+		String patientId = new IdType(patientResponse.getEntryFirstRep().getResponse().getLocation()).getIdPart();
+		
+		Bundle firstMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "SinglePDRDelete.json"));
+		((MessageHeader) firstMessage.getEntryFirstRep().getResource()).addFocus(new Reference("Patient/" + patientId));
+		assertSuccessResponse(processMessage(firstMessage));
+		
+		PdrDeletionJob job = deletionService.deletePdr(findPDRList(patientId).getIdElement().getIdPart(), patientId, true);
+		for(int i = 0; i < 300 && job.getStatus() == PdrDeletionJob.Status.RUNNING; i++) {
+			Thread.sleep(100);
+			job = deletionService.getJob(job.getId());
+		}
+		Assertions.assertThat(job.getStatus()).isEqualTo(PdrDeletionJob.Status.COMPLETE);
+		
+		// the source ids no longer match the expunged resources, stored anew
+		Bundle secondMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "SinglePDRDelete.json"));
+		String secondMessageId = UUID.randomUUID().toString();
+		secondMessage.getEntryFirstRep().setFullUrl("urn:uuid:" + secondMessageId);
+		secondMessage.getEntryFirstRep().getResource().setId(secondMessageId);
+		((MessageHeader) secondMessage.getEntryFirstRep().getResource()).addFocus(new Reference("Patient/" + patientId));
+		assertSuccessResponse(processMessage(secondMessage));
+		
+		Bundle encounters = testClient.search()
+				.byUrl("Encounter?patient=Patient/" + patientId)
+				.returnBundle(Bundle.class).execute();
+		Assertions.assertThat(encounters.getEntry()).hasSize(1);
+	}
+	
+	private ListResource findPDRList(String patientId, String messageId) {
+		Bundle lists = testClient.search()
+				.byUrl(String.format("List?subject=Patient/%s&code=%s|%s&identifier=%s", patientId,
+						PatientDataReceiptService.PDR_CODE.getSystem(), PatientDataReceiptService.PDR_CODE.getCode(), messageId))
+				.returnBundle(Bundle.class).execute();
+		Assertions.assertThat(lists.getEntry()).hasSize(1);
+		return (ListResource) lists.getEntryFirstRep().getResource();
+	}
+	
+	private ListResource findPDRList(String patientId) {
+		Bundle lists = testClient.search()
+				.byUrl(String.format("List?subject=Patient/%s&code=%s|%s", patientId,
+						PatientDataReceiptService.PDR_CODE.getSystem(), PatientDataReceiptService.PDR_CODE.getCode()))
+				.returnBundle(Bundle.class).execute();
+		Assertions.assertThat(lists.getEntry()).hasSize(1);
+		return (ListResource) lists.getEntryFirstRep().getResource();
+	}
+}
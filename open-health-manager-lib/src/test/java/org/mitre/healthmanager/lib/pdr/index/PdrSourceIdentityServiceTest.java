@@ -0,0 +1,88 @@
+package org.mitre.healthmanager.lib.pdr.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mockito.Mockito;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+class PdrSourceIdentityServiceTest {
+	private static final IdType SOURCE_A = new IdType("http://example.org/source", "Observation", "obs-a", null);
+	private static final IdType SOURCE_B = new IdType("http://example.org/source", "Observation", "obs-b", null);
+
+	private PdrSourceIdentityService identityService;
+
+	@BeforeEach
+	void setUp() {
+		identityService = new PdrSourceIdentityService();
+		identityService.repository = Mockito.mock(PdrSourceIdentityRepository.class);
+		identityService.applicationProperties = new ApplicationProperties();
+	}
+
+	@AfterEach
+	void tearDown() {
+		if(TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	@Test
+	void testFindTargetResourceIds() {
+		Mockito.when(identityService.repository.findAllBySourceResourceIds(Mockito.eq("patient-1"),
+				Mockito.eq("http://example.org/source"), Mockito.any()))
+			.thenReturn(Collections.singletonList(new PdrSourceIdentity(
+					PdrSourceIdentityId.of("patient-1", SOURCE_A), new IdType("Observation", "a1", "2"))));
+
+		Map<String, IIdType> targetIds = identityService.findTargetResourceIds("patient-1", Arrays.asList(SOURCE_A, SOURCE_B));
+		Assertions.assertEquals(1, targetIds.size());
+		Assertions.assertEquals("a1", targetIds.get(SOURCE_A.getValue()).getIdPart());
+		// a miss is left to the Provenance fallback of record matching
+		Assertions.assertFalse(targetIds.containsKey(SOURCE_B.getValue()));
+	}
+
+	@Test
+	void testRecordedAfterCommit() {
+		TransactionSynchronizationManager.initSynchronization();
+		identityService.recordTargetResourceId("patient-1", SOURCE_A, new IdType("Observation", "a1"));
+		Mockito.verifyNoInteractions(identityService.repository);
+
+		for(TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCommit();
+		}
+		Mockito.verify(identityService.repository).save(Mockito.argThat(identity ->
+				identity.getId().equals(PdrSourceIdentityId.of("patient-1", SOURCE_A))
+				&& "Observation/a1".equals(identity.getTargetResourceId())));
+	}
+
+	@Test
+	void testFailedRecordIsIgnored() {
+		Mockito.when(identityService.repository.save(Mockito.any())).thenThrow(new IllegalStateException("database down"));
+		Assertions.assertDoesNotThrow(() ->
+				identityService.recordTargetResourceId("patient-1", SOURCE_A, new IdType("Observation", "a1")));
+	}
+
+	@Test
+	void testDeleteTargetsInChunks() {
+		Mockito.when(identityService.repository.deleteAllByTargetResourceIds(Mockito.eq("patient-1"), Mockito.any()))
+			.thenAnswer(invocation -> invocation.getArgument(1, Collection.class).size());
+		List<String> targetIds = new ArrayList<>();
+		for(int i = 0; i < 501; i++) {
+			targetIds.add("Observation/" + i);
+		}
+
+		Assertions.assertEquals(501, identityService.deleteTargets("patient-1", targetIds));
+		Mockito.verify(identityService.repository, Mockito.times(2)).deleteAllByTargetResourceIds(Mockito.eq("patient-1"), Mockito.any());
+	}
+}
@@ -0,0 +1,156 @@
+package org.mitre.healthmanager.lib.pdr.ledger;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mockito.Mockito;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+class PdrLedgerServiceTest {
+	private static final Identifier MESSAGE = new Identifier().setSystem("http://example.org/").setValue("message-1");
+	
+	private PdrLedgerEntryRepository repository = Mockito.mock(PdrLedgerEntryRepository.class);
+	
+	@AfterEach
+	void tearDown() {
+		if(TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+	
+	@Test
+	void testListIdIndexedByPatientAndMessage() {
+		PdrLedgerService ledgerService = ledgerService(10);
+		ledgerService.indexListId("patient-1", MESSAGE, "list-1");
+		
+		Assertions.assertEquals("list-1", ledgerService.findListId("patient-1", MESSAGE));
+		Assertions.assertNull(ledgerService.findListId("patient-2", MESSAGE));
+		Assertions.assertNull(ledgerService.findListId("patient-1", 
+				new Identifier().setSystem("http://example.org/").setValue("message-2")));
+	}
+	
+	@Test
+	void testDeleteListInvalidatesListId() {
+		PdrLedgerService ledgerService = ledgerService(10);
+		ledgerService.indexListId("patient-1", MESSAGE, "list-1");
+		ledgerService.indexListId("patient-2", MESSAGE, "list-2");
+		
+		ledgerService.deleteList("list-1");
+		Assertions.assertNull(ledgerService.findListId("patient-1", MESSAGE));
+		Assertions.assertEquals("list-2", ledgerService.findListId("patient-2", MESSAGE));
+	}
+	
+	@Test
+	void testMaterializeMergesLedger() {
+		Mockito.when(repository.findAllByListIdOrderByIdAsc("list-1")).thenReturn(Arrays.asList(
+				entry("Bundle/raw-1", false), 
+				entry("Observation/obs-1/_history/1", false),
+				entry("Provenance/prov-1/_history/1", false),
+				entry("Observation/obs-1/_history/1", true)));
+		ListResource list = pdrList("list-1");
+		
+		PdrLedgerService ledgerService = ledgerService(10);
+		ledgerService.materialize(list);
+		
+		Assertions.assertEquals(3, list.getEntry().size());
+		Assertions.assertEquals("Bundle/raw-1", list.getEntry().get(0).getItem().getReference());
+		Assertions.assertEquals("Observation/obs-1/_history/1", list.getEntry().get(1).getItem().getReference());
+		Assertions.assertTrue(list.getEntry().get(1).getDeleted());
+		Assertions.assertFalse(list.getEntry().get(2).getDeleted());
+		
+		// materialized once per List instance
+		ledgerService.materialize(list);
+		Assertions.assertEquals(3, list.getEntry().size());
+	}
+	
+	@Test
+	void testMaterializeIgnoresOtherLists() {
+		ListResource list = new ListResource();
+		list.setId("list-1");
+		list.addEntry().setItem(new Reference("Observation/obs-1"));
+		
+		ledgerService(10).materialize(list);
+		Assertions.assertEquals(1, list.getEntry().size());
+		Mockito.verifyNoInteractions(repository);
+	}
+	
+	@Test
+	void testAppendInvalidatesMaterializedEntries() {
+		Mockito.when(repository.findAllByListIdOrderByIdAsc("list-1"))
+			.thenReturn(Collections.singletonList(entry("Bundle/raw-1", false)))
+			.thenReturn(Arrays.asList(entry("Bundle/raw-1", false), entry("Observation/obs-1/_history/1", false)));
+		PdrLedgerService ledgerService = ledgerService(10);
+		ledgerService.materialize(pdrList("list-1"));
+		
+		List<PdrLedgerEntry> entries = Collections.singletonList(entry("Observation/obs-1/_history/1", false));
+		ledgerService.append("list-1", entries);
+		Mockito.verify(repository).saveAll(entries);
+		
+		ListResource list = pdrList("list-1");
+		ledgerService.materialize(list);
+		Assertions.assertEquals(2, list.getEntry().size());
+	}
+	
+	@Test
+	void testAppendWaitsForCommit() {
+		PdrLedgerService ledgerService = ledgerService(10);
+		List<PdrLedgerEntry> entries = Collections.singletonList(entry("Observation/obs-1/_history/1", false));
+		
+		TransactionSynchronizationManager.initSynchronization();
+		ledgerService.append("list-1", entries);
+		Mockito.verifyNoInteractions(repository);
+		
+		// a rolled back transaction leaves the ledger untouched
+		List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		synchronizations.forEach(synchronization -> synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+		Mockito.verifyNoInteractions(repository);
+		
+		synchronizations.forEach(TransactionSynchronization::afterCommit);
+		Mockito.verify(repository).saveAll(entries);
+	}
+	
+	@Test
+	void testFailedAppendIsReportedOnce() {
+		PdrLedgerService ledgerService = ledgerService(10);
+		List<PdrLedgerEntry> entries = Collections.singletonList(entry("Observation/obs-1/_history/1", false));
+		Mockito.when(repository.saveAll(entries)).thenThrow(new IllegalStateException("ledger unavailable"));
+		
+		// the resources are committed, the PDR goes on
+		ledgerService.append("list-1", entries);
+		Assertions.assertTrue(ledgerService.checkAppended("list-2"));
+		Assertions.assertFalse(ledgerService.checkAppended("list-1"));
+		Assertions.assertTrue(ledgerService.checkAppended("list-1"));
+	}
+	
+	private PdrLedgerService ledgerService(long listIndexMaximumSize) {
+		ApplicationProperties applicationProperties = new ApplicationProperties();
+		applicationProperties.getPdr().getLedger().setListIndexMaximumSize(listIndexMaximumSize);
+		return new PdrLedgerService(repository, applicationProperties);
+	}
+	
+	private static ListResource pdrList(String listId) {
+		ListResource list = new ListResource();
+		list.setIdElement(new IdType("List", listId));
+		list.getCode().addCoding(new Coding()
+				.setSystem(PatientDataReceiptService.PDR_CODE.getSystem())
+				.setCode(PatientDataReceiptService.PDR_CODE.getCode()));
+		list.addEntry().setItem(new Reference("Bundle/raw-1"));
+		return list;
+	}
+	
+	private static PdrLedgerEntry entry(String itemReference, boolean deleted) {
+		return new PdrLedgerEntry("list-1", "patient-1", new IdType(itemReference), deleted);
+	}
+}
@@ -0,0 +1,98 @@
+package org.mitre.healthmanager.lib.pdr.ledger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource.ListEntryComponent;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Cost of matching the response ids of a 100 entry PDR against a PDR List 
+ * of increasing size, comparing the former linear scan of the List entries 
+ * with the entry index. Run with the test classpath, for example from an IDE 
+ * or {@code java -cp <test classpath> ...PdrListEntryIndexBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PdrListEntryIndexBenchmark {
+	private static final int PDR_SIZE = 100;
+	
+	@Param({"1000", "10000", "100000"})
+	int listSize;
+	
+	private List<ListEntryComponent> listEntries;
+	private List<PdrLedgerEntry> ledgerEntries;
+	private List<IdType> responseIds;
+	
+	@Setup
+	public void setup() {
+		listEntries = new ArrayList<>(listSize);
+		ledgerEntries = new ArrayList<>(listSize);
+		for (int i = 0; i < listSize; i++) {
+			IdType item = new IdType("Observation", String.valueOf(i), "1");
+			listEntries.add(new ListEntryComponent().setItem(new Reference(item)).setDate(new Date()));
+			ledgerEntries.add(new PdrLedgerEntry("1", "pat1", item, false));
+		}
+		// updates spread over the List, half of them new
+		responseIds = new ArrayList<>(PDR_SIZE);
+		for (int i = 0; i < PDR_SIZE; i++) {
+			responseIds.add(new IdType("Observation", String.valueOf(i * (listSize / PDR_SIZE) * 2), "1"));
+		}
+	}
+	
+	@Benchmark
+	public void linearScan(Blackhole blackhole) {
+		for (IdType responseId : responseIds) {
+			ListEntryComponent entry = null;
+			for (ListEntryComponent existingEntry : listEntries) {
+				if (existingEntry.getItem().getReferenceElement().equals(responseId)) {
+					entry = existingEntry;
+					break;
+				}
+			}
+			blackhole.consume(entry);
+		}
+	}
+	
+	@Benchmark
+	public void entryIndex(Blackhole blackhole) {
+		PdrListEntryIndex index = PdrListEntryIndex.of(ledgerEntries);
+		for (IdType responseId : responseIds) {
+			blackhole.consume(index.contains(responseId.getValue()));
+		}
+	}
+	
+	@Benchmark
+	public void materialize(Blackhole blackhole) {
+		PdrListEntryIndex ledger = PdrListEntryIndex.of(ledgerEntries);
+		blackhole.consume(PdrListEntryIndex.of(new ArrayList<>(), ledger).toListEntries());
+	}
+	
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(PdrListEntryIndexBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
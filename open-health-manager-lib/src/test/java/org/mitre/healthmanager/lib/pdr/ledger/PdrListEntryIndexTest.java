@@ -0,0 +1,97 @@
+package org.mitre.healthmanager.lib.pdr.ledger;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.ListResource.ListEntryComponent;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mockito.Mockito;
+
+class PdrListEntryIndexTest {
+	
+	@Test
+	void testLookupByVersionedReference() {
+		PdrListEntryIndex index = PdrListEntryIndex.of(Arrays.asList(
+				entry("Observation/obs-1/_history/1", false),
+				entry("Observation/obs-1/_history/2", false)));
+		
+		Assertions.assertEquals(2, index.size());
+		Assertions.assertTrue(index.contains("Observation/obs-1/_history/1"));
+		Assertions.assertTrue(index.contains("Observation/obs-1/_history/2"));
+		Assertions.assertFalse(index.contains("Observation/obs-1/_history/3"));
+		Assertions.assertFalse(index.contains("Observation/obs-1"));
+	}
+	
+	@Test
+	void testDeletedEntriesAreSticky() {
+		PdrListEntryIndex index = PdrListEntryIndex.of(Arrays.asList(
+				entry("Observation/obs-1/_history/1", false),
+				entry("Observation/obs-1/_history/1", true),
+				entry("Observation/obs-1/_history/1", false)));
+		
+		List<ListEntryComponent> listEntries = index.toListEntries();
+		Assertions.assertEquals(1, listEntries.size());
+		Assertions.assertTrue(listEntries.get(0).getDeleted());
+	}
+	
+	@Test
+	void testListEntriesKeepTheirOrderBeforeTheLedger() {
+		ListEntryComponent rawBundle = new ListEntryComponent().setItem(new Reference("Bundle/raw-1")).setDate(new Date());
+		ListEntryComponent withoutItem = new ListEntryComponent().setDate(new Date());
+		PdrListEntryIndex ledger = PdrListEntryIndex.of(Arrays.asList(
+				entry("Observation/obs-1/_history/1", false),
+				entry("Bundle/raw-1", false)));
+		
+		List<ListEntryComponent> listEntries = PdrListEntryIndex.of(Arrays.asList(rawBundle, withoutItem), ledger).toListEntries();
+		Assertions.assertEquals(3, listEntries.size());
+		Assertions.assertEquals("Bundle/raw-1", listEntries.get(0).getItem().getReference());
+		Assertions.assertFalse(listEntries.get(1).hasItem());
+		Assertions.assertEquals("Observation/obs-1/_history/1", listEntries.get(2).getItem().getReference());
+	}
+	
+	@Test
+	void testCacheEvictsListsOverMaximumEntries() {
+		PdrLedgerEntryRepository repository = Mockito.mock(PdrLedgerEntryRepository.class);
+		Mockito.when(repository.findAllByListIdOrderByIdAsc("list-1")).thenReturn(Arrays.asList(
+				entry("Observation/obs-1/_history/1", false),
+				entry("Observation/obs-2/_history/1", false)));
+		
+		ApplicationProperties applicationProperties = new ApplicationProperties();
+		applicationProperties.getPdr().getLedger().setCacheMaximumEntries(10);
+		PdrLedgerService ledgerService = new PdrLedgerService(repository, applicationProperties);
+		ledgerService.materialize(pdrList());
+		ledgerService.materialize(pdrList());
+		ledgerService.cleanUp();
+		ledgerService.materialize(pdrList());
+		Mockito.verify(repository, Mockito.times(1)).findAllByListIdOrderByIdAsc("list-1");
+		
+		// a List weighs its entry count
+		applicationProperties.getPdr().getLedger().setCacheMaximumEntries(1);
+		ledgerService = new PdrLedgerService(repository, applicationProperties);
+		ledgerService.materialize(pdrList());
+		ledgerService.cleanUp();
+		ledgerService.materialize(pdrList());
+		Mockito.verify(repository, Mockito.times(3)).findAllByListIdOrderByIdAsc("list-1");
+	}
+	
+	private static ListResource pdrList() {
+		ListResource list = new ListResource();
+		list.setIdElement(new IdType("List", "list-1"));
+		list.getCode().addCoding(new Coding()
+				.setSystem(PatientDataReceiptService.PDR_CODE.getSystem())
+				.setCode(PatientDataReceiptService.PDR_CODE.getCode()));
+		return list;
+	}
+	
+	private static PdrLedgerEntry entry(String itemReference, boolean deleted) {
+		return new PdrLedgerEntry("list-1", "patient-1", new IdType(itemReference), deleted);
+	}
+}
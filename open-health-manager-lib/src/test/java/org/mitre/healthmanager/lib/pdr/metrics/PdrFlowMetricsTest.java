@@ -0,0 +1,119 @@
+package org.mitre.healthmanager.lib.pdr.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.config.ApplicationProperties;
+import org.mitre.healthmanager.lib.pdr.data.DataTransformerRegistry;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.integration.handler.AbstractReplyProducingMessageHandler;
+import org.springframework.integration.handler.advice.AbstractRequestHandlerAdvice;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.support.MessageBuilder;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class PdrFlowMetricsTest {
+	private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private PdrFlowMetrics flowMetrics = new PdrFlowMetrics(meterRegistry,
+			new DataTransformerRegistry(Collections.emptyList(), meterRegistry), new ApplicationProperties());
+	
+	@Test
+	void testRecordsStagesOfTrace() {
+		Message<Bundle> message = message(flowMetrics.start(), 3);
+		
+		invoke(flowMetrics.splitStage("splitBundle"), message, m -> m.getPayload());
+		invoke(flowMetrics.stage("transformEntry"), message, m -> m.getPayload());
+		invoke(flowMetrics.stage("transformEntry"), message, m -> m.getPayload());
+		Assertions.assertTrue(flowMetrics.getSlowest(10).isEmpty());
+		invoke(flowMetrics.lastStage("successMessage"), message, m -> m.getPayload());
+		
+		List<PdrTrace> slowest = flowMetrics.getSlowest(10);
+		Assertions.assertEquals(1, slowest.size());
+		PdrTrace trace = slowest.get(0);
+		Assertions.assertEquals("success", trace.getOutcome());
+		Assertions.assertEquals("raw-1", trace.getRawBundleId());
+		Assertions.assertEquals(3, trace.getEntries());
+		Assertions.assertEquals(3, trace.getStages().size());
+		Assertions.assertEquals(Arrays.asList("splitBundle", "transformEntry", "successMessage"),
+				new ArrayList<>(trace.getStages().keySet()));
+		Assertions.assertEquals(2, trace.getStages().get("transformEntry").getCount());
+		
+		Assertions.assertEquals(2, meterRegistry.get(PdrFlowMetrics.STAGE_TIMER).tag("stage", "transformEntry")
+				.tag("source", "other").tag("outcome", "success").timer().count());
+		Assertions.assertEquals(3, meterRegistry.get(PdrFlowMetrics.ENTRIES_SUMMARY).summary().totalAmount());
+		Assertions.assertEquals(1, meterRegistry.get(PdrFlowMetrics.MESSAGE_TIMER).tag("outcome", "success").timer().count());
+	}
+	
+	@Test
+	void testFailedStageCompletedFromErrorChannel() {
+		Message<Bundle> message = message(flowMetrics.start(), 1);
+		
+		Assertions.assertThrows(MessagingException.class, () -> invoke(flowMetrics.lastStage("writeData"), message, m -> {
+			throw new IllegalStateException("write failed");
+		}));
+		Assertions.assertTrue(flowMetrics.getSlowest(10).isEmpty());
+		flowMetrics.completed(message, false);
+		
+		Assertions.assertEquals("error", flowMetrics.getSlowest(10).get(0).getOutcome());
+		Assertions.assertEquals(1, meterRegistry.get(PdrFlowMetrics.STAGE_TIMER).tag("stage", "writeData")
+				.tag("outcome", "error").timer().count());
+	}
+	
+	@Test
+	void testSlowestFirst() {
+		for(int i = 0; i < 3; i++) {
+			Message<Bundle> message = message(flowMetrics.start(), 1);
+			long sleepMillis = i * 20L;
+			invoke(flowMetrics.lastStage("successMessage"), message, m -> {
+				try {
+					Thread.sleep(sleepMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return m.getPayload();
+			});
+		}
+		List<PdrTrace> slowest = flowMetrics.getSlowest(2);
+		Assertions.assertEquals(2, slowest.size());
+		Assertions.assertTrue(slowest.get(0).getDurationMillis() >= slowest.get(1).getDurationMillis());
+		Assertions.assertTrue(slowest.get(1).getDurationMillis() >= 20);
+	}
+	
+	private static Message<Bundle> message(String traceId, int entries) {
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(new MessageHeader());
+		for(int i = 0; i < entries; i++) {
+			bundle.addEntry().setResource(new Observation());
+		}
+		return MessageBuilder.withPayload(bundle)
+				.setHeader(PdrFlowMetrics.TRACE_ID_HEADER, traceId)
+				.setHeader("sourceEndpoint", "urn:source:unregistered")
+				.setHeader("rawBundleId", "raw-1")
+				.build();
+	}
+	
+	private static void invoke(AbstractRequestHandlerAdvice advice, Message<?> message, Function<Message<?>, Object> handler) {
+		AbstractReplyProducingMessageHandler advised = new AbstractReplyProducingMessageHandler() {
+			@Override
+			protected Object handleRequestMessage(Message<?> requestMessage) {
+				return handler.apply(requestMessage);
+			}
+		};
+		advised.setAdviceChain(Collections.singletonList(advice));
+		advised.setOutputChannel(new QueueChannel());
+		advised.setBeanFactory(new DefaultListableBeanFactory());
+		advised.afterPropertiesSet();
+		advised.handleMessage(message);
+	}
+}
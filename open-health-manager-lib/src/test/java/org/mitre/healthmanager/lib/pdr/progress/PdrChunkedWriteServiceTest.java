@@ -0,0 +1,166 @@
+package org.mitre.healthmanager.lib.pdr.progress;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mitre.healthmanager.lib.pdr.RecordMatchService;
+import org.mitre.healthmanager.lib.pdr.ledger.PdrLedgerService;
+import org.mockito.Mockito;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.TransactionProcessor;
+
+class PdrChunkedWriteServiceTest {
+	private static final String ENDPOINT = "http://example.org/";
+	
+	private PdrChunkedWriteService chunkedWriteService;
+	private TransactionProcessor transactionProcessor;
+	private DaoRegistry daoRegistry;
+	private PdrLedgerService ledgerService;
+	private MessageHeader header;
+	private List<Bundle> transactions = new ArrayList<>();
+	
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void setUp() {
+		chunkedWriteService = new PdrChunkedWriteService();
+		chunkedWriteService.repository = Mockito.mock(PdrWriteProgressRepository.class);
+		chunkedWriteService.myFhirContext = FhirContext.forR4Cached();
+		Mockito.when(chunkedWriteService.repository.save(Mockito.any())).thenAnswer(invocation -> invocation.getArgument(0));
+		
+		header = new MessageHeader();
+		header.setId("header-1");
+		header.getSource().setEndpoint(ENDPOINT);
+		
+		// the PDR List of the message, found through the ledger
+		ListResource list = new ListResource();
+		list.setIdElement(new IdType("List", "list-1"));
+		list.setSubject(new Reference("Patient/patient-1"));
+		list.addIdentifier(PatientDataReceiptService.getSourceMessageHeaderIdentifier(header));
+		IFhirResourceDao<ListResource> listDao = Mockito.mock(IFhirResourceDao.class);
+		Mockito.when(listDao.read(Mockito.any(IIdType.class))).thenReturn(list);
+		daoRegistry = Mockito.mock(DaoRegistry.class);
+		Mockito.when(daoRegistry.getResourceDao(ListResource.class)).thenReturn(listDao);
+		ledgerService = Mockito.mock(PdrLedgerService.class);
+		Mockito.when(ledgerService.findListId(Mockito.eq("patient-1"), Mockito.any())).thenReturn("list-1");
+		
+		// answers each transaction with a new id per entry
+		transactionProcessor = Mockito.mock(TransactionProcessor.class);
+		Mockito.when(transactionProcessor.transaction(Mockito.any(), Mockito.any(), Mockito.anyBoolean())).thenAnswer(invocation -> {
+			Bundle transaction = invocation.getArgument(1);
+			transactions.add(transaction);
+			Bundle response = new Bundle();
+			for(BundleEntryComponent entry : transaction.getEntry()) {
+				response.addEntry().getResponse().setLocation(entry.getResource().fhirType() + "/" + UUID.randomUUID() + "/_history/1");
+			}
+			return response;
+		});
+	}
+	
+	@Test
+	void testResumeSubstitutesReferencesToCommittedChunks() {
+		String encounterId = UUID.randomUUID().toString();
+		String observationId = UUID.randomUUID().toString();
+		Encounter encounter = new Encounter();
+		encounter.setId(encounterId);
+		Observation observation = new Observation();
+		observation.setId(observationId);
+		observation.setEncounter(new Reference("urn:uuid:" + encounterId));
+		
+		// the Encounter was committed before the PDR was interrupted, record 
+		// matching found it stored as Encounter/stored-1
+		Bundle message = new Bundle();
+		entry(message, 1, encounter, Bundle.HTTPVerb.PUT, "Encounter/stored-1");
+		entry(message, 2, observation, Bundle.HTTPVerb.POST, "Observation");
+		Mockito.when(chunkedWriteService.repository.findById("raw-1"))
+			.thenReturn(Optional.of(new PdrWriteProgress("raw-1").chunkCommitted(1)));
+		Mockito.when(chunkedWriteService.repository.existsById("raw-1")).thenReturn(true);
+		
+		chunkedWriteService.write(message, 1, "patient-1", "raw-1", header, 
+				transactionProcessor, daoRegistry, null, ledgerService);
+		
+		// only the Observation and its Provenance are written
+		Assertions.assertEquals(1, transactions.size());
+		Assertions.assertEquals(2, transactions.get(0).getEntry().size());
+		Assertions.assertEquals("Encounter/stored-1", observation.getEncounter().getReference());
+		Mockito.verify(chunkedWriteService.repository).deleteById("raw-1");
+	}
+	
+	@Test
+	void testReferencesToEarlierChunksAreSubstituted() {
+		String encounterId = UUID.randomUUID().toString();
+		Encounter encounter = new Encounter();
+		encounter.setId(encounterId);
+		Observation observation = new Observation();
+		observation.setId(UUID.randomUUID().toString());
+		observation.setEncounter(new Reference("urn:uuid:" + encounterId));
+		
+		Bundle message = new Bundle();
+		entry(message, 1, encounter, Bundle.HTTPVerb.POST, "Encounter");
+		entry(message, 2, observation, Bundle.HTTPVerb.POST, "Observation");
+		Mockito.when(chunkedWriteService.repository.findById("raw-1")).thenReturn(Optional.empty());
+		
+		chunkedWriteService.write(message, 1, "patient-1", "raw-1", header, 
+				transactionProcessor, daoRegistry, null, ledgerService);
+		
+		Assertions.assertEquals(2, transactions.size());
+		Assertions.assertTrue(observation.getEncounter().getReference().startsWith("Encounter/"));
+		Assertions.assertNotEquals("urn:uuid:" + encounterId, observation.getEncounter().getReference());
+	}
+	
+	@Test
+	void testForwardReferencesAreWrittenInTheSameChunk() {
+		String encounterId = UUID.randomUUID().toString();
+		Observation observation = new Observation();
+		observation.setId(UUID.randomUUID().toString());
+		observation.setEncounter(new Reference("urn:uuid:" + encounterId));
+		Encounter encounter = new Encounter();
+		encounter.setId(encounterId);
+		Observation other = new Observation();
+		other.setId(UUID.randomUUID().toString());
+		
+		// the Observation comes before the Encounter it references
+		Bundle message = new Bundle();
+		entry(message, 1, observation, Bundle.HTTPVerb.POST, "Observation");
+		entry(message, 2, encounter, Bundle.HTTPVerb.POST, "Encounter");
+		entry(message, 3, other, Bundle.HTTPVerb.POST, "Observation");
+		Mockito.when(chunkedWriteService.repository.findById("raw-1")).thenReturn(Optional.empty());
+		
+		chunkedWriteService.write(message, 1, "patient-1", "raw-1", header, 
+				transactionProcessor, daoRegistry, null, ledgerService);
+		
+		// the first chunk takes the Encounter along, the reference resolves within it
+		Assertions.assertEquals(2, transactions.size());
+		Assertions.assertTrue(transactions.get(0).getEntry().stream().anyMatch(e -> e.getResource() == encounter));
+		Assertions.assertTrue(transactions.get(1).getEntry().stream().anyMatch(e -> e.getResource() == other));
+		Assertions.assertEquals("urn:uuid:" + encounterId, observation.getEncounter().getReference());
+		Mockito.verify(chunkedWriteService.repository, Mockito.times(2)).save(Mockito.any());
+	}
+	
+	private static void entry(Bundle message, int entryIndex, Resource resource, Bundle.HTTPVerb method, String url) {
+		BundleEntryComponent entry = message.addEntry();
+		entry.setResource(resource);
+		entry.getRequest().setMethod(method).setUrl(url);
+		entry.setFullUrl(method == Bundle.HTTPVerb.PUT ? url 
+				: RecordMatchService.getFullUrl(resource.fhirType(), resource.getIdElement().getIdPart()));
+		entry.setUserData(PdrChunkedWriteService.ENTRY_INDEX, entryIndex);
+	}
+}
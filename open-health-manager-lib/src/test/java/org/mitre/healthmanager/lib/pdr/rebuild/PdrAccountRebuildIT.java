@@ -0,0 +1,109 @@
+package org.mitre.healthmanager.lib.pdr.rebuild;
+
+import java.util.Optional;
+
+import org.assertj.core.api.Assertions;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mitre.healthmanager.TestApplication;
+import org.mitre.healthmanager.lib.pdr.BasePdrIT;
+import org.mitre.healthmanager.lib.pdr.PatientDataReceiptService;
+import org.mitre.healthmanager.lib.sphr.PdrAccountRebuildProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes={TestApplication.class})
+@TestPropertySource(properties = {
+		"spring.batch.job.enabled=false",
+		"spring.jpa.properties.hibernate.dialect=ca.uhn.fhir.jpa.model.dialect.HapiFhirH2Dialect",
+		"hapi.fhir.enable_repository_validating_interceptor=true",
+		"hapi.fhir.fhir_version=r4",
+		"hapi.fhir.subscription.websocket_enabled=true",
+		"hapi.fhir.mdm_enabled=true",
+		// Override is currently required when using MDM as the construction of the MDM
+		// beans are ambiguous as they are constructed multiple places. This is evident
+		// when running in a spring boot environment
+		"spring.main.allow-bean-definition-overriding=true",
+		"hapi.fhir.allow_external_references=true"})
+class PdrAccountRebuildIT extends BasePdrIT {
+	private static final String TEST_RESOURCES = "/healthmanager/dataMgr/RebuildAccountTests/";
+	
+    @LocalServerPort
+    private int port = 0;
+    
+    @Autowired
+    PdrAccountRebuildRepository rebuildRepository;
+
+	@Test
+	void testRebuildSinglePDR() throws InterruptedException {
+		initClient(port);
+		Bundle patientTransaction = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "PatientOnlyBundleTransaction.json"));
+		Bundle patientResponse = testClient.transaction().withBundle(patientTransaction).execute();
+		String patientId = new IdType(patientResponse.getEntryFirstRep().getResponse().getLocation()).getIdPart();
+		
+		Bundle testMessage = ourCtx.newJsonParser().parseResource(
+				Bundle.class, this.getClass().getResourceAsStream(TEST_RESOURCES + "SinglePDRRebuild.json"));
+		((MessageHeader) testMessage.getEntryFirstRep().getResource()).addFocus(new Reference("Patient/" + patientId));
+		assertSuccessResponse(processMessage(testMessage));
+		ListResource originalList = findPDRList(patientId);
+		int encounters = countEncounters(patientId);
+		
+		OperationOutcome outcome = testClient.operation()
+				.onInstance(new IdType("Patient", patientId))
+				.named(PdrAccountRebuildProvider.OPERATION_NAME)
+				.withNoParameters(Parameters.class)
+				.returnResourceType(OperationOutcome.class)
+				.execute();
+		Assertions.assertThat(outcome.getIssueFirstRep().getDiagnostics()).contains("Patient/" + patientId);
+		
+		Optional<PdrAccountRebuild> rebuild = Optional.empty();
+		for(int i = 0; i < 300 && !rebuild.isPresent(); i++) {
+			Thread.sleep(100);
+			rebuild = rebuildRepository.findFirstByPatientIdAndStatusNotOrderByStartedDesc(patientId, PdrAccountRebuild.Status.RUNNING);
+		}
+		Assertions.assertThat(rebuild).isPresent();
+		Assertions.assertThat(rebuild.get().getStatus()).isEqualTo(PdrAccountRebuild.Status.COMPLETE);
+		Assertions.assertThat(rebuild.get().getTotalBundles()).isEqualTo(1);
+		
+		// the PDR List is recreated for the replayed raw bundle
+		ListResource rebuiltList = findPDRList(patientId);
+		Assertions.assertThat(rebuiltList.getIdElement().getIdPart()).isNotEqualTo(originalList.getIdElement().getIdPart());
+		Assertions.assertThat(rebuiltList.getEntryFirstRep().getItem().getReference())
+			.isEqualTo(originalList.getEntryFirstRep().getItem().getReference());
+		Assertions.assertThatThrownBy(() -> testClient.read().resource(ListResource.class)
+				.withId(originalList.getIdElement().toUnqualifiedVersionless()).execute())
+			.isInstanceOf(ResourceGoneException.class);
+		Assertions.assertThat(countEncounters(patientId)).isEqualTo(encounters);
+	}
+	
+	private ListResource findPDRList(String patientId) {
+		Bundle lists = testClient.search()
+				.byUrl(String.format("List?subject=Patient/%s&code=%s|%s", patientId,
+						PatientDataReceiptService.PDR_CODE.getSystem(), PatientDataReceiptService.PDR_CODE.getCode()))
+				.returnBundle(Bundle.class).execute();
+		Assertions.assertThat(lists.getEntry()).hasSize(1);
+		return (ListResource) lists.getEntryFirstRep().getResource();
+	}
+	
+	private int countEncounters(String patientId) {
+		Bundle encounters = testClient.search()
+				.byUrl("Encounter?subject=Patient/" + patientId)
+				.returnBundle(Bundle.class).execute();
+		return encounters.getEntry().size();
+	}
+}
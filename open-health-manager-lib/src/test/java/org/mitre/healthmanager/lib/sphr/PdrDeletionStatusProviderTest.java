@@ -0,0 +1,79 @@
+package org.mitre.healthmanager.lib.sphr;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.pdr.deletion.PdrDeletionJob;
+import org.mitre.healthmanager.lib.pdr.deletion.PdrDeletionService;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+class PdrDeletionStatusProviderTest {
+	private FhirContext fhirContext = FhirContext.forR4Cached();
+	private PdrDeletionService deletionService;
+	private PdrDeletionStatusProvider provider;
+	private MockHttpServletResponse response;
+	private ServletRequestDetails requestDetails;
+
+	@BeforeEach
+	void setUp() {
+		deletionService = Mockito.mock(PdrDeletionService.class);
+		provider = new PdrDeletionStatusProvider(fhirContext, deletionService);
+		response = new MockHttpServletResponse();
+		requestDetails = Mockito.mock(ServletRequestDetails.class);
+		Mockito.when(requestDetails.getServletResponse()).thenReturn(response);
+		Mockito.when(deletionService.getJob("job-1")).thenReturn(new PdrDeletionJob("job-1", "List/list-1", "patient-1", false));
+	}
+
+	@AfterEach
+	void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	void testRunningJob() throws Exception {
+		authenticate("{\"sub\":\"admin\",\"auth\":\"ROLE_ADMIN,ROLE_USER\"}");
+
+		provider.deletionStatus(new StringType("job-1"), requestDetails);
+		Assertions.assertEquals(202, response.getStatus());
+		Assertions.assertTrue(fhirContext.newJsonParser().parseResource(response.getContentAsString()) instanceof OperationOutcome);
+	}
+
+	@Test
+	void testUnknownJob() {
+		authenticate("{\"sub\":\"admin\",\"auth\":\"ROLE_ADMIN,ROLE_USER\"}");
+
+		Assertions.assertThrows(ResourceNotFoundException.class,
+				() -> provider.deletionStatus(new StringType("job-2"), requestDetails));
+	}
+
+	@Test
+	void testJobOfAnotherPatient() throws Exception {
+		authenticate("{\"sub\":\"patientUser\",\"auth\":\"ROLE_USER\",\"patient\":\"patient-2\"}");
+		Assertions.assertThrows(ForbiddenOperationException.class,
+				() -> provider.deletionStatus(new StringType("job-1"), requestDetails));
+
+		authenticate("{\"sub\":\"patientUser\",\"auth\":\"ROLE_USER\",\"patient\":\"patient-1\"}");
+		provider.deletionStatus(new StringType("job-1"), requestDetails);
+		Assertions.assertEquals(202, response.getStatus());
+	}
+
+	private static void authenticate(String claims) {
+		String token = "eyJhbGciOiJIUzUxMiJ9."
+				+ Base64.getUrlEncoder().encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".signature";
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("user", token));
+	}
+}
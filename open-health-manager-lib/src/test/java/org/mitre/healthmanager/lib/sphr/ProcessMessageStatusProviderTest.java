@@ -0,0 +1,126 @@
+package org.mitre.healthmanager.lib.sphr;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mitre.healthmanager.lib.pdr.PdrJob;
+import org.mitre.healthmanager.lib.pdr.PdrJobService;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+class ProcessMessageStatusProviderTest {
+	private FhirContext fhirContext = FhirContext.forR4Cached();
+	private PdrJobService jobService;
+	private ProcessMessageStatusProvider provider;
+	private MockHttpServletResponse response;
+	private ServletRequestDetails requestDetails;
+
+	@BeforeEach
+	void setUp() {
+		jobService = Mockito.mock(PdrJobService.class);
+		provider = new ProcessMessageStatusProvider(fhirContext, jobService);
+		response = new MockHttpServletResponse();
+		requestDetails = Mockito.mock(ServletRequestDetails.class);
+		Mockito.when(requestDetails.getServletResponse()).thenReturn(response);
+		authenticate("{\"sub\":\"admin\",\"auth\":\"ROLE_ADMIN,ROLE_USER\"}");
+	}
+
+	@AfterEach
+	void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	void testCompleteJob() throws Exception {
+		Bundle result = new Bundle();
+		result.setType(Bundle.BundleType.MESSAGE);
+		result.addEntry().setResource(new MessageHeader().setResponse(
+				new MessageHeader.MessageHeaderResponseComponent().setCode(MessageHeader.ResponseType.OK)));
+		mockJob(new PdrJob("job-1", null).completed(fhirContext.newJsonParser().encodeResourceToString(result)));
+
+		provider.processMessageStatus(new StringType("job-1"), requestDetails);
+		Assertions.assertEquals(200, response.getStatus());
+		Assertions.assertTrue(parse() instanceof Bundle);
+	}
+
+	@Test
+	void testInProgressJob() throws Exception {
+		mockJob(new PdrJob("job-1", null));
+
+		provider.processMessageStatus(new StringType("job-1"), requestDetails);
+		Assertions.assertEquals(202, response.getStatus());
+		Assertions.assertTrue(parse() instanceof OperationOutcome);
+	}
+
+	@Test
+	void testFailedJob() throws Exception {
+		mockJob(new PdrJob("job-1", null).failed(422, "bundle not provided to $process-message"));
+
+		provider.processMessageStatus(new StringType("job-1"), requestDetails);
+		Assertions.assertEquals(422, response.getStatus());
+		OperationOutcome outcome = (OperationOutcome) parse();
+		Assertions.assertEquals(OperationOutcome.IssueSeverity.FATAL, outcome.getIssueFirstRep().getSeverity());
+		Assertions.assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("bundle not provided"));
+	}
+
+	@Test
+	void testJobWithoutResponse() throws Exception {
+		mockJob(new PdrJob("job-1", null).failed(500, null));
+
+		provider.processMessageStatus(new StringType("job-1"), requestDetails);
+		Assertions.assertEquals(500, response.getStatus());
+		OperationOutcome outcome = (OperationOutcome) parse();
+		Assertions.assertEquals(OperationOutcome.IssueSeverity.FATAL, outcome.getIssueFirstRep().getSeverity());
+	}
+
+	@Test
+	void testUnknownJob() {
+		Assertions.assertThrows(ResourceNotFoundException.class,
+				() -> provider.processMessageStatus(new StringType("job-2"), requestDetails));
+		Assertions.assertThrows(ResourceNotFoundException.class,
+				() -> provider.processMessageStatus(null, requestDetails));
+	}
+
+	@Test
+	void testJobOfAnotherPatient() throws Exception {
+		mockJob(new PdrJob("job-1", "patient-1"));
+
+		authenticate("{\"sub\":\"patientUser\",\"auth\":\"ROLE_USER\",\"patient\":\"patient-2\"}");
+		Assertions.assertThrows(ForbiddenOperationException.class,
+				() -> provider.processMessageStatus(new StringType("job-1"), requestDetails));
+
+		authenticate("{\"sub\":\"patientUser\",\"auth\":\"ROLE_USER\",\"patient\":\"patient-1\"}");
+		provider.processMessageStatus(new StringType("job-1"), requestDetails);
+		Assertions.assertEquals(202, response.getStatus());
+	}
+
+	private void mockJob(PdrJob job) {
+		Mockito.when(jobService.getJob(job.getId())).thenReturn(job);
+	}
+
+	private IBaseResource parse() throws Exception {
+		return fhirContext.newJsonParser().parseResource(response.getContentAsString());
+	}
+
+	private static void authenticate(String claims) {
+		String token = "eyJhbGciOiJIUzUxMiJ9."
+				+ Base64.getUrlEncoder().encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".signature";
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("user", token));
+	}
+}